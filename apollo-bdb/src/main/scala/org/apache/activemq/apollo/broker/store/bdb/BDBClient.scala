@@ -21,7 +21,8 @@ import java.{lang=>jl}
 import java.{util=>ju}
 
 import java.util.concurrent.atomic.AtomicInteger
-import collection.mutable.ListBuffer
+import java.util.concurrent.TimeUnit
+import collection.mutable.{HashMap, ListBuffer}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.io.{EOFException, InputStream, OutputStream}
@@ -32,8 +33,40 @@ import java.sql.ClientInfoStatus
 import com.sleepycat.je._
 import javax.management.remote.rmi._RMIConnection_Stub
 import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtdispatch._
+
+object BDBClient extends Log {
+
+  /**
+   * The durability a uow gets committed with, null means a synced commit.
+   */
+  def durability_of(level:DurabilityLevel, sync:Boolean):Durability = {
+    if( level==null && !sync ) {
+      Durability.COMMIT_NO_SYNC
+    } else if( sync ) {
+      null
+    } else {
+      Durability.COMMIT_WRITE_NO_SYNC
+    }
+  }
+
+  /**
+   * Splits the uows into consecutive runs which get committed with the
+   * same durability.
+   */
+  def durability_runs[T](uows:Seq[T])(durability:T=>Durability):List[(Durability, Seq[T])] = {
+    val rc = ListBuffer[(Durability, Seq[T])]()
+    var remaining = uows
+    while( !remaining.isEmpty ) {
+      val current = durability(remaining.head)
+      val (run, rest) = remaining.span(x=> durability(x) == current)
+      rc += ((current, run))
+      remaining = rest
+    }
+    rc.toList
+  }
+}
 
-object BDBClient extends Log
 /**
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -86,12 +119,24 @@ class BDBClient(store: BDBStore) {
 
     environment = new Environment(directory, env_config);
 
+    // Stores created before the entry range summaries existed need them built.
+    val build_entry_ranges = !environment.getDatabaseNames.contains("entry_ranges")
+
     with_ctx() { ctx=>
       import ctx._
       messages_db
       message_refs_db
       queues_db
 
+      if( build_entry_ranges ) {
+        info("Building the queue entry range summaries of the store.")
+        queues_db.cursor(tx) { (key, _) =>
+          rebuild_entry_ranges(ctx, key)
+          true
+        }
+      }
+      entry_ranges_db
+
       if( zero_copy_buffer_allocator!=null ) {
         zerocp_db.cursor(tx) { (_,value)=>
           val v = decode_zcp_value(value)
@@ -129,6 +174,14 @@ class BDBClient(store: BDBStore) {
       _entries_db
     }
 
+    private var _entry_ranges_db:Database = _
+    def entry_ranges_db:Database = {
+      if( _entry_ranges_db==null ) {
+        _entry_ranges_db = environment.openDatabase(tx, "entry_ranges", long_long_key_conf)
+      }
+      _entry_ranges_db
+    }
+
     private var _messages_db:Database = _
     def messages_db:Database = {
       if( _messages_db==null ) {
@@ -182,6 +235,9 @@ class BDBClient(store: BDBStore) {
       if( _entries_db!=null ) {
         _entries_db.close
       }
+      if( _entry_ranges_db!=null ) {
+        _entry_ranges_db.close
+      }
       if( _map_db!=null ) {
         _map_db.close
       }
@@ -196,7 +252,7 @@ class BDBClient(store: BDBStore) {
   }
 
 
-  def with_ctx[T](sync:Boolean=true)(func: (TxContext) => T): T = {
+  def with_ctx[T](durability:Durability=null)(func: (TxContext) => T): T = {
     var error:Throwable = null
     var rc:Option[T] = None
 
@@ -205,10 +261,10 @@ class BDBClient(store: BDBStore) {
     while(!rc.isDefined) {
 
 
-      val ctx = if(sync) {
+      val ctx = if( durability==null ) {
         TxContext(environment.beginTransaction(null, null));
       } else {
-        TxContext(environment.beginTransaction(null, new TransactionConfig().setDurability(Durability.COMMIT_NO_SYNC)))
+        TxContext(environment.beginTransaction(null, new TransactionConfig().setDurability(durability)))
       }
 
       try {
@@ -259,10 +315,12 @@ class BDBClient(store: BDBStore) {
       remove_db("messages")
       remove_db("message_refs")
       remove_db("queues")
+      remove_db("entry_ranges")
 
       messages_db
       message_refs_db
       queues_db
+      entry_ranges_db
     }
 
   }
@@ -326,15 +384,115 @@ class BDBClient(store: BDBStore) {
           false
         }
       }
+      remove_entry_ranges(ctx, queue_key)
     }
     callback.run
   }
 
+  private def remove_entry_ranges(ctx:TxContext, queue_key:Long) = {
+    import ctx._
+    entry_ranges_db.cursor_from(tx, (queue_key, 0L)) { (key,_)=>
+      val current_key:(Long,Long)=key
+      if( current_key._1 == queue_key ) {
+        entry_ranges_db.delete(tx, key)
+        true
+      } else {
+        false
+      }
+    }
+  }
+
+  /**
+   * Recomputes the entry range summaries of a queue from it's entries.
+   * Writes, so it must only be called from the write thread or on startup.
+   */
+  def rebuild_entry_ranges(ctx:TxContext, queue_key:Long) = {
+    import ctx._
+    remove_entry_ranges(ctx, queue_key)
+    compute_entry_ranges(ctx, queue_key) { (block, range) =>
+      entry_ranges_db.put(tx, (queue_key, block), QueueEntryRange.encode(range))
+    }
+  }
+
+  /**
+   * Summarizes the entries of a queue, passing each block's range to the callback.
+   */
+  def compute_entry_ranges(ctx:TxContext, queue_key:Long)(func:(Long, QueueEntryRange)=>Unit) = {
+    import ctx._
+    var block = -1L
+    var range:QueueEntryRange = null
+    def flush = {
+      if( range!=null ) {
+        func(block, range)
+      }
+    }
+    entries_db.cursor_from(tx, (queue_key, 0L)) { (key, value) =>
+      val current_key:(Long,Long)= key
+      if( current_key._1 == queue_key ) {
+        val entry:QueueEntryRecord = value
+        val entry_block = QueueEntryRange.block_of(entry.entry_seq)
+        if( entry_block != block ) {
+          flush
+          block = entry_block
+          range = null
+        }
+        range = QueueEntryRange.enqueued(range, entry)
+        true
+      } else {
+        false
+      }
+    }
+    flush
+  }
+
+  /**
+   * How long async_flush updates can stay un-synced.
+   */
+  val ASYNC_FLUSH_DELAY = 1000
+
+  private var log_sync_scheduled = false
+
   def store(uows: Seq[BDBStore#DelayableUOW], callback:Runnable) {
-    val sync = uows.find( ! _.complete_listeners.isEmpty ).isDefined
-    with_ctx(sync) { ctx=>
+    // Store runs of uows that need the same durability in their own
+    // transaction so only the ones that need it pay for a sync.  The
+    // runs are stored in order, so later syncs also cover earlier runs.
+    durability_runs(uows)(x=> durability_of(x.durability_level, x.sync)).foreach { case (durability, run) =>
+      store(run, durability)
+    }
+
+    if( uows.exists(_.durability_level == DurabilityLevel.ASYNC_FLUSH) ) {
+      schedule_log_sync
+    }
+    callback.run
+  }
+
+  // Only accessed from the store's write thread.
+  private def schedule_log_sync = {
+    if( !log_sync_scheduled ) {
+      log_sync_scheduled = true
+      store.dispatch_queue.executeAfter(ASYNC_FLUSH_DELAY, TimeUnit.MILLISECONDS, ^{
+        val executor = store.write_executor
+        if( executor!=null ) {
+          executor {
+            log_sync_scheduled = false
+            environment.flushLog(true)
+          }
+        }
+      })
+    }
+  }
+
+  private def store(uows: Seq[BDBStore#DelayableUOW], durability:Durability) {
+    with_ctx(durability) { ctx=>
       import ctx._
       var zcp_files_to_sync = Set[Int]()
+
+      // The range summaries touched by this batch, null values get deleted.
+      val ranges = HashMap[(Long,Long), QueueEntryRange]()
+      def range(entry:QueueEntryRecord) = {
+        val key = (entry.queue_key, QueueEntryRange.block_of(entry.entry_seq))
+        (key, ranges.getOrElseUpdate(key, entry_ranges_db.get(tx, key).map(x=> QueueEntryRange.decode(x)).getOrElse(null)))
+      }
       uows.foreach { uow =>
 
           for((key,value) <- uow.map_actions) {
@@ -345,45 +503,57 @@ class BDBClient(store: BDBStore) {
             }
           }
 
-          uow.actions.foreach {
-            case (msg, action) =>
-
-              val message_record = action.message_record
-              if (message_record != null) {
-                import PBSupport._
-
-                val pb = if( message_record.zero_copy_buffer != null ) {
-                  val r = to_pb(action.message_record).copy
-                  val buffer = zero_copy_buffer_allocator.to_alloc_buffer(message_record.zero_copy_buffer)
-                  r.setZcpFile(buffer.file)
-                  r.setZcpOffset(buffer.offset)
-                  r.setZcpSize(buffer.size)
-                  zerocp_db.put(tx, message_record.key, (buffer.file, buffer.offset, buffer.size))
-                  zcp_files_to_sync += buffer.file
-                  r.freeze
-                } else {
-                  to_pb(action.message_record)
-                }
-
-                messages_db.put(tx, action.message_record.key, pb)
+          uow.actions.foreach { action =>
+
+            val message_record = action.message_record
+            if (message_record != null) {
+              import PBSupport._
+
+              val pb = if( message_record.zero_copy_buffer != null ) {
+                val r = to_pb(action.message_record).copy
+                val buffer = zero_copy_buffer_allocator.to_alloc_buffer(message_record.zero_copy_buffer)
+                r.setZcpFile(buffer.file)
+                r.setZcpOffset(buffer.offset)
+                r.setZcpSize(buffer.size)
+                zerocp_db.put(tx, message_record.key, (buffer.file, buffer.offset, buffer.size))
+                zcp_files_to_sync += buffer.file
+                r.freeze
+              } else {
+                to_pb(action.message_record)
               }
 
-              action.enqueues.foreach { queueEntry =>
-                entries_db.put(tx, (queueEntry.queue_key, queueEntry.entry_seq), queueEntry)
-                add_and_get(message_refs_db, queueEntry.message_key, 1, tx)
-              }
+              messages_db.put(tx, action.message_record.key, pb)
+            }
 
-              action.dequeues.foreach { queueEntry =>
-                entries_db.delete(tx, (queueEntry.queue_key, queueEntry.entry_seq))
+            action.enqueues.foreach { queueEntry =>
+              entries_db.put(tx, (queueEntry.queue_key, queueEntry.entry_seq), queueEntry)
+              add_and_get(message_refs_db, queueEntry.message_key, 1, tx)
+              val (key, current) = range(queueEntry)
+              ranges.put(key, QueueEntryRange.enqueued(current, queueEntry))
+            }
+
+            action.dequeues.foreach { queueEntry =>
+              // a duplicate or stale dequeue must not touch the counts.
+              if( entries_db.delete(tx, (queueEntry.queue_key, queueEntry.entry_seq)) == OperationStatus.SUCCESS ) {
                 decrement_message_reference(ctx, queueEntry.message_key)
+                val (key, current) = range(queueEntry)
+                ranges.put(key, QueueEntryRange.dequeued(current, queueEntry.size))
               }
+            }
           }
       }
+
+      ranges.foreach { case (key, range) =>
+        if( range==null ) {
+          entry_ranges_db.delete(tx, key)
+        } else {
+          entry_ranges_db.put(tx, key, QueueEntryRange.encode(range))
+        }
+      }
       if( zero_copy_buffer_allocator!=null ) {
         zcp_files_to_sync.foreach(zero_copy_buffer_allocator.sync(_))
       }
     }
-    callback.run
   }
 
   def listQueues: Seq[Long] = {
@@ -408,51 +578,44 @@ class BDBClient(store: BDBStore) {
   }
 
   def listQueueEntryGroups(queue_key: Long, limit: Int) : Seq[QueueEntryRange] = {
-    var rc = ListBuffer[QueueEntryRange]()
     with_ctx() { ctx=>
       import ctx._
-      var group:QueueEntryRange = null
-
-      entries_db.cursor_from(tx, (queue_key, 0L)) { (key, value) =>
-        val current_key:(Long,Long)= key
-        if( current_key._1 == queue_key ) {
-          if( group == null ) {
-            group = new QueueEntryRange
-            group.first_entry_seq = current_key._2
-          }
-
-          val entry:QueueEntryRecord = value
 
-          group.last_entry_seq = current_key._2
-          group.count += 1
-          group.size += entry.size
-
-          if(group.expiration == 0){
-            group.expiration = entry.expiration
+      def blocks = {
+        val rc = ListBuffer[QueueEntryRange]()
+        entry_ranges_db.cursor_from(tx, (queue_key, 0L)) { (key, value) =>
+          val current_key:(Long,Long)= key
+          if( current_key._1 == queue_key ) {
+            rc += QueueEntryRange.decode(value)
+            true // to continue cursoring.
           } else {
-            if( entry.expiration != 0 ) {
-              group.expiration = entry.expiration.min(group.expiration)
-            }
+            false
           }
-
-          if( group.count == limit) {
-            rc += group
-            group = null
-          }
-
-          true // to continue cursoring.
-
-        } else {
-          false
         }
+        rc
       }
 
-      if( group!=null ) {
-        rc += group
+      var rc = blocks
+      if( rc.isEmpty ) {
+        // Verify the queue really is empty, it's summaries could be
+        // missing if it was written by an older version.
+        var has_entries = false
+        entries_db.cursor_from(tx, (queue_key, 0L)) { (key, _) =>
+          val current_key:(Long,Long)= key
+          has_entries = current_key._1 == queue_key
+          false
+        }
+        if( has_entries ) {
+          // This runs on the read threads, so don't write the summaries
+          // back, the write thread could be updating them concurrently.
+          warn("Missing the entry range summaries of queue: %d, computing them from it's entries", queue_key)
+          compute_entry_ranges(ctx, queue_key) { (_, range) =>
+            rc += range
+          }
+        }
       }
-
+      QueueEntryRange.group(rc.iterator, limit)
     }
-    rc
   }
 
   def getQueueEntries(queue_key: Long, firstSeq:Long, lastSeq:Long): Seq[QueueEntryRecord] = {
@@ -680,6 +843,11 @@ class BDBClient(store: BDBStore) {
             add_and_get(message_refs_db, record.message_key, 1, tx)
           }
         }
+
+        queues_db.cursor(tx) { (key, _) =>
+          rebuild_entry_ranges(ctx, key)
+          true
+        }
       }
       Success(Zilch)
 
@@ -54,6 +54,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  override def flush_delay_min = config.flush_delay_min.getOrElse(flush_delay)
+  override def flush_delay_max = config.flush_delay_max.getOrElse(flush_delay)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -190,7 +192,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def list_queue_entry_ranges(queueKey: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
-    write_executor ^{
+    // Runs on the read threads so that many queues can restore at once.
+    read_executor ^{
       callback( client.listQueueEntryGroups(queueKey, limit) )
     }
   }
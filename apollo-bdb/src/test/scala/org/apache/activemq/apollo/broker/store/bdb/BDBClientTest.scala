@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.bdb
+
+import com.sleepycat.je.Durability
+import org.apache.activemq.apollo.broker.store.DurabilityLevel._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import BDBClient._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class BDBClientTest extends FunSuiteSupport {
+
+  test("uows get committed with the durability of their level") {
+    // uows without a level only sync if someone waits on them.
+    expect(Durability.COMMIT_NO_SYNC)(durability_of(null, false))
+    expect(null)(durability_of(null, true))
+
+    expect(null)(durability_of(SYNC, SYNC.sync))
+    expect(null)(durability_of(GROUP_COMMIT(10), true))
+    expect(Durability.COMMIT_WRITE_NO_SYNC)(durability_of(ASYNC_FLUSH, false))
+    expect(Durability.COMMIT_WRITE_NO_SYNC)(durability_of(OS_CACHE, false))
+  }
+
+  test("a batch gets split into runs of the same durability") {
+    val levels = List(SYNC, SYNC, OS_CACHE, ASYNC_FLUSH, GROUP_COMMIT(5), SYNC, OS_CACHE)
+    val runs = durability_runs(levels)(x=> durability_of(x, x.sync))
+    expect(List(
+      (null, List(SYNC, SYNC)),
+      (Durability.COMMIT_WRITE_NO_SYNC, List(OS_CACHE, ASYNC_FLUSH)),
+      (null, List(GROUP_COMMIT(5), SYNC)),
+      (Durability.COMMIT_WRITE_NO_SYNC, List(OS_CACHE))
+    ))(runs.map(x=> (x._1, x._2.toList)))
+  }
+
+  test("an empty batch has no runs") {
+    expect(Nil)(durability_runs(List[String]())(x=> null))
+  }
+
+}
@@ -17,8 +17,11 @@
 package org.apache.activemq.apollo.broker.store.bdb
 
 import dto.BDBStoreDTO
-import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.{DurabilityLevel, MessageRecord, Store, StoreFunSuiteSupport}
 import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtdispatch.TaskTracker
+import java.util.concurrent.TimeUnit
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -35,4 +38,31 @@ class BDBStoreTest extends StoreFunSuiteSupport {
     rc
   }
 
+  test("uows with different durability levels get stored in one batch") {
+    import DurabilityLevel._
+    val A = add_queue("A")
+    val levels = List(SYNC, OS_CACHE, ASYNC_FLUSH, GROUP_COMMIT(5), null, SYNC)
+
+    val tracker = new TaskTracker()
+    val keys = for( (level, i) <- levels.zipWithIndex ) yield {
+      val batch = store.create_uow
+      if( level!=null ) {
+        batch.durability(level)
+      }
+      val key = add_message(batch, "message "+i)
+      batch.enqueue(entry(A, i+1, key))
+      val task = tracker.task("uow "+i)
+      batch.on_complete(task.run)
+      batch.complete_asap
+      batch.release
+      key
+    }
+    expect(true)(tracker.await(5, TimeUnit.SECONDS))
+
+    for( (key, i) <- keys.zipWithIndex ) {
+      val rc = CB[Option[MessageRecord]]( cb=> store.load_message(key, null)(cb) )
+      expect(ascii("message "+i).buffer)(rc.get.buffer)
+    }
+  }
+
 }
@@ -23,6 +23,7 @@ import org.fusesource.hawtbuf._
 import collection.JavaConversions
 import JavaConversions._
 import security.{AclAuthorizer, Authorizer, JaasAuthenticator, Authenticator}
+import protocol.HeartBeatWheel
 import org.apache.activemq.apollo.broker.web._
 import collection.mutable.{HashSet, LinkedHashMap, HashMap}
 import scala.util.Random
@@ -239,6 +240,10 @@ class Broker() extends BaseService {
 
   val connection_id_counter = new LongCounter
 
+  val memory_governor = new MemoryGovernor
+
+  val heart_beat_wheel = new HeartBeatWheel
+
   var key_storage:KeyStorage = _
 
   var web_server:WebServer = _
@@ -344,6 +349,8 @@ class Broker() extends BaseService {
     import OptionSupport._
     init_logs
 
+    memory_governor.limit = Option(config.memory_limit).map(MemoryPropertyEditor.parse(_)).getOrElse(Long.MaxValue)
+
     key_storage = if (config.key_storage != null) {
       new KeyStorage(config.key_storage)
     } else {
@@ -23,6 +23,7 @@ import org.apache.activemq.apollo.transport._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.util.OptionSupport._
 import java.net.SocketAddress
+import java.util.concurrent.TimeUnit
 import org.apache.activemq.apollo.util.{Log, Service, ClassFinder}
 import org.apache.activemq.apollo.dto._
 
@@ -111,9 +112,17 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
 
   var transport_server:TransportServer = _
   var protocol:Protocol = _
+  var buffer_pool:BufferPool = _
   val accepted = new LongCounter()
   val connected = new LongCounter()
 
+  /**
+   * The number of connections accepted per second, sampled every second.
+   */
+  @volatile
+  var accept_rate = 0L
+  private var accept_rate_sampler = 0
+
   override def toString = "connector: "+config.id
 
   def socket_address = Option(transport_server).map(_.getSocketAddress).getOrElse(null)
@@ -125,8 +134,15 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     result.state_since = service_state.since
     result.connection_counter = accepted.get
     result.connected = connected.get
+    result.accept_rate = accept_rate
     result.protocol = Option(config.protocol).getOrElse("any")
     result.local_address = Option(socket_address).map(_.toString).getOrElse("any")
+    if( buffer_pool!=null ) {
+      result.buffers_borrowed = buffer_pool.getBorrowedCount
+      result.buffers_borrowed_size = buffer_pool.getBorrowedSize
+      result.buffers_pooled_size = buffer_pool.getPooledSize
+      result.buffers_allocated = buffer_pool.getAllocatedCount
+    }
     result
   }
 
@@ -199,6 +215,22 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
     transport_server.setDispatchQueue(dispatch_queue)
     transport_server.setAcceptListener(BrokerAcceptListener)
 
+    buffer_pool = Option(config.buffer_pool).map { kind =>
+      val size = Option(config.buffer_pool_size).map(MemoryPropertyEditor.parse(_)).getOrElse(16*1024*1024L)
+      kind match {
+        case "heap" => new BufferPool(false, size)
+        case "direct" => new BufferPool(true, size)
+        case _ => throw new IllegalArgumentException("Invalid buffer_pool: "+kind)
+      }
+    }.getOrElse(null)
+    if( buffer_pool!=null ) {
+      if( transport_server.isInstanceOf[BufferPoolAware] ) {
+        transport_server.asInstanceOf[BufferPoolAware].setBufferPool(buffer_pool)
+      } else {
+        warn("The %s transport does not support buffer pools.", config.bind)
+      }
+    }
+
     if( transport_server.isInstanceOf[KeyAndTrustAware] ) {
       if( broker.key_storage!=null ) {
         transport_server.asInstanceOf[KeyAndTrustAware].setTrustManagers(broker.key_storage.create_trust_managers)
@@ -211,6 +243,22 @@ class AcceptingConnector(val broker:Broker, val id:String) extends Connector {
       broker.console_log.info("Accepting connections at: "+transport_server.getBoundAddress)
       on_completed.run
     })
+    accept_rate = 0
+    accept_rate_sampler += 1
+    schedule_accept_rate_sample(accept_rate_sampler, accepted.get)
+  }
+
+  def schedule_accept_rate_sample(sampler:Int, last:Long):Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
+    // a restart of the connector starts a new sampler.
+    if( sampler == accept_rate_sampler ) {
+      if( service_state.is_started ) {
+        val current = accepted.get
+        accept_rate = current - last
+        schedule_accept_rate_sample(sampler, current)
+      } else {
+        accept_rate = 0
+      }
+    }
   }
 
 
@@ -709,6 +709,57 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
   val queue_domain = new QueueDomain
   class QueueDomain extends Domain[Queue] {
 
+    // The additional partitions of the partitioned queues by the id of the
+    // queue.  Index 0 is left empty since that partition is the queue itself.
+    val partitions_by_id = HashMap[String, Array[Queue]]()
+
+    def bind_partition(queue:Queue, partition:Int) = {
+      val id = queue.binding.binding_dto.name(destination_parser.path_separator)
+      var partitions = partitions_by_id.getOrElse(id, new Array[Queue](0))
+      if( partitions.length <= partition ) {
+        val grown = new Array[Queue](partition+1)
+        System.arraycopy(partitions, 0, grown, 0, partitions.length)
+        partitions = grown
+        partitions_by_id.put(id, partitions)
+      }
+      partitions(partition) = queue
+    }
+
+    def unbind_partition(queue:Queue, partition:Int) = {
+      val id = queue.binding.binding_dto.name(destination_parser.path_separator)
+      partitions_by_id.get(id).foreach { partitions =>
+        if( partitions(partition) eq queue ) {
+          partitions(partition) = null
+        }
+        if( partitions.forall(_ == null) ) {
+          partitions_by_id.remove(id)
+        }
+      }
+    }
+
+    /**
+     * The additional partitions of the queue which currently exist.
+     */
+    def partitions(queue:Queue):Seq[Queue] = {
+      partitions_by_id.get(queue.id).map(_.toSeq.filter(_ != null)).getOrElse(Nil)
+    }
+
+    /**
+     * Gets all the partitions of the queue starting with the queue itself.
+     * The configured partitions which don't exist yet get created.
+     */
+    def partitions_of(queue:Queue):Array[Queue] = {
+      import OptionSupport._
+      val count = queue.config.partitions.getOrElse(1)
+      for( partition <- 1 until count ) {
+        val existing = partitions_by_id.get(queue.id).filter(_.length > partition).map(_(partition))
+        if( existing.getOrElse(null) == null ) {
+          _create_queue(QueueBinding.create(new QueuePartitionDestinationDTO(queue.binding.binding_dto.path, partition)))
+        }
+      }
+      (queue :: partitions(queue).toList).toArray
+    }
+
     def can_create_queue(config:QueueDTO, security:SecurityContext) = {
       if( virtual_host.authorizer==null || security==null) {
         true
@@ -1196,6 +1247,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
 
   def _destroy_queue(queue: Queue) {
+    if( queue.binding.isInstanceOf[QueueDomainQueueBinding] ) {
+      queue_domain.partitions(queue).foreach(_destroy_queue(_))
+    }
     queue.stop(dispatch_queue.runnable{
 
       queue.binding.unbind(this, queue)
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import org.fusesource.hawtdispatch._
+import collection.mutable.HashSet
+import org.apache.activemq.apollo.util.Log
+
+object MemoryGovernor extends Log {
+
+  /**
+   * Queues get memory credit from the governor in chunks of this size
+   * so that they don't have to contend on it for every message.
+   */
+  val CREDIT_SIZE = 16*1024
+
+  /**
+   * Once the limit is exceeded, queues get swapped out until usage drops
+   * below this percentage of the limit.
+   */
+  val RELIEF_TARGET = 90
+
+  /**
+   * How long to wait for a swap out request to take effect before
+   * asking more queues to swap.
+   */
+  val RELIEF_DELAY = 100
+}
+
+/**
+ * <p>
+ * Limits the memory used by the messages loaded in all the queues of the
+ * broker.  Queues take memory credit before they let producers enqueue more
+ * messages and hand it back as messages get consumed or swapped out.
+ * </p>
+ *
+ * <p>
+ * When usage goes over the limit, the queues which have gone the longest
+ * without anything being consumed from them are asked to swap their
+ * messages out first.  Queues which ran out of credit get their producers
+ * woken up once usage drops back under the limit.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MemoryGovernor {
+  import MemoryGovernor._
+
+  val dispatch_queue = createQueue("memory governor")
+
+  @volatile
+  var limit = Long.MaxValue
+
+  /**
+   * The amount of credit currently held by queues.
+   */
+  val used = new AtomicLong
+
+  // The following are only accessed from the governor's dispatch queue.
+  private val queues = HashSet[Queue]()
+  private val waiting = HashSet[Queue]()
+  private var relieving = false
+
+  @volatile
+  private var has_waiting = false
+
+  def register(queue:Queue) = dispatch_queue {
+    queues += queue
+  }
+
+  def unregister(queue:Queue) = dispatch_queue {
+    queues -= queue
+    waiting -= queue
+  }
+
+  /**
+   * Takes credit only if it keeps usage under the limit.  Otherwise the
+   * queue is woken up via Queue.memory_available once credit frees up.
+   */
+  def acquire(queue:Queue, amount:Int):Boolean = {
+    while( true ) {
+      val current = used.get
+      if( current + amount > limit ) {
+        dispatch_queue {
+          waiting += queue
+          has_waiting = true
+          relieve
+          wake
+        }
+        return false
+      }
+      if( used.compareAndSet(current, current + amount) ) {
+        queue.virtual_host.memory_used.addAndGet(amount)
+        return true
+      }
+    }
+    false
+  }
+
+  /**
+   * Takes credit even if it pushes usage over the limit.  Used to account
+   * for memory that has already been allocated, like messages loaded
+   * from the store.
+   */
+  def take(queue:Queue, amount:Int):Unit = {
+    queue.virtual_host.memory_used.addAndGet(amount)
+    if( used.addAndGet(amount) > limit ) {
+      dispatch_queue {
+        relieve
+      }
+    }
+  }
+
+  def release(queue:Queue, amount:Int):Unit = {
+    queue.virtual_host.memory_used.addAndGet(-amount)
+    used.addAndGet(-amount)
+    if( has_waiting ) {
+      dispatch_queue {
+        wake
+      }
+    }
+  }
+
+  private def wake = {
+    if( !waiting.isEmpty && used.get < limit ) {
+      waiting.foreach { queue =>
+        queue.dispatch_queue {
+          queue.memory_available
+        }
+      }
+      waiting.clear
+      has_waiting = false
+    }
+  }
+
+  private def relieve:Unit = {
+    val target = limit / 100 * RELIEF_TARGET
+    var needed = used.get - target
+    if( relieving || needed <= 0 ) {
+      return
+    }
+
+    // Swap out the queues which have not been consumed from recently first.
+    val candidates = queues.filter(x=> x.tune_swap && x.memory_credit > 0).toArray.sortWith { (a, b) =>
+      a.dequeue_ts < b.dequeue_ts
+    }
+    var i = 0
+    while( needed > 0 && i < candidates.length ) {
+      val queue = candidates(i)
+      needed -= queue.memory_credit
+      queue.dispatch_queue {
+        queue.relieve_memory_pressure
+      }
+      i += 1
+    }
+    if( i > 0 ) {
+      debug("asked %d queues to swap out to get under the memory limit", i)
+    }
+
+    // Give the swap outs a chance to complete before checking again.
+    relieving = true
+    dispatch_queue.after(RELIEF_DELAY, TimeUnit.MILLISECONDS) {
+      relieving = false
+      if( used.get > limit ) {
+        relieve
+      }
+      wake
+    }
+  }
+
+}
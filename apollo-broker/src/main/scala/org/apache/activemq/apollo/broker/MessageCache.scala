@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.concurrent.atomic.AtomicReference
+import org.fusesource.hawtdispatch._
+import collection.mutable.{HashMap, ListBuffer}
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store}
+import org.apache.activemq.apollo.dto.StoreStatusDTO
+
+object MessageCache {
+
+  /**
+   * The cache size used when the virtual host does not configure one.
+   */
+  val DEFAULT_SIZE = 10*1024*1024L
+}
+
+/**
+ * <p>
+ * Caches the message records loaded from the store so that a message
+ * which got enqueued to many queues, like a topic message sent to many
+ * durable subscriptions, only gets read from the store once when those
+ * queues swap it back in.
+ * </p>
+ *
+ * <p>
+ * The cache holds up to limit bytes of message records and evicts the
+ * least recently used ones first.  Loads of a message which is already
+ * being read from the store share that read instead of issuing another one.
+ * </p>
+ *
+ * <p>
+ * Every record handed out by a load holds a reference on the cached
+ * entry until it's released.  Entries which are still referenced only
+ * get evicted once there are no unreferenced ones left to evict.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCache {
+
+  val dispatch_queue = createQueue("message cache")
+
+  @volatile
+  var limit = MessageCache.DEFAULT_SIZE
+
+  @volatile
+  var hits = 0L
+  @volatile
+  var misses = 0L
+  @volatile
+  var evictions = 0L
+  @volatile
+  var size = 0L
+
+  class Entry(val record:MessageRecord) {
+    var refs = 0
+  }
+
+  // The following are only accessed from the cache's dispatch queue.
+  private val entries = new java.util.LinkedHashMap[Long, Entry](16, 0.75f, true)
+  private val loading = HashMap[Long, ListBuffer[(Option[MessageRecord])=>Unit]]()
+  // bumped on every clear so that loads started before it don't get cached.
+  private var generation = 0L
+
+  /**
+   * Loads the message from the cache if it's there, otherwise from the store.
+   * A record passed to the callback should be released once it's no
+   * longer used.
+   */
+  def load(store:Store, queue_key:Long, key:Long, locator:AtomicReference[Array[Byte]])(callback:(Option[MessageRecord])=>Unit):Unit = {
+    if( limit <= 0 ) {
+      store.load_message(queue_key, key, locator)(callback)
+      return
+    }
+    dispatch_queue {
+      val entry = entries.get(key)
+      if( entry!=null ) {
+        hits += 1
+        entry.refs += 1
+        callback(Some(entry.record))
+      } else {
+        misses += 1
+        loading.get(key) match {
+          case Some(waiters) =>
+            waiters += callback
+          case None =>
+            loading.put(key, ListBuffer(callback))
+            val started = generation
+            store.load_message(queue_key, key, locator) { rc =>
+              dispatch_queue {
+                loaded(store, queue_key, key, locator, started, rc)
+              }
+            }
+        }
+      }
+    }
+  }
+
+  private def loaded(store:Store, queue_key:Long, key:Long, locator:AtomicReference[Array[Byte]], started:Long, rc:Option[MessageRecord]) = {
+    val waiters = loading.remove(key).get
+    rc match {
+      case Some(record) if record.zero_copy_buffer!=null =>
+        // Zero copy buffers are owned by the queue which loads them, so
+        // only the first waiter gets it and the rest load their own.
+        waiters.head(rc)
+        waiters.tail.foreach { callback =>
+          store.load_message(queue_key, key, locator)(callback)
+        }
+      case _ =>
+        rc.foreach { record =>
+          if( started == generation && record_size(record) <= limit ) {
+            val entry = new Entry(record)
+            entry.refs = waiters.size
+            entries.put(key, entry)
+            size += record_size(record)
+            evict
+          }
+        }
+        waiters.foreach(_(rc))
+    }
+  }
+
+  /**
+   * Drops the reference a load handed out with the record.
+   */
+  def release(record:MessageRecord) = dispatch_queue {
+    val entry = entries.get(record.key)
+    // records which were not cached, or got evicted since, are not counted.
+    if( entry!=null && (entry.record eq record) && entry.refs > 0 ) {
+      entry.refs -= 1
+      if( entry.refs == 0 ) {
+        evict
+      }
+    }
+  }
+
+  private def record_size(record:MessageRecord):Long = {
+    if( record.buffer!=null ) record.buffer.length.max(record.size) else record.size
+  }
+
+  private def evict = {
+    def evict_where(func:(Entry)=>Boolean) = {
+      val i = entries.values.iterator
+      while( size > limit && i.hasNext ) {
+        val entry = i.next
+        if( func(entry) ) {
+          size -= record_size(entry.record)
+          i.remove
+          evictions += 1
+        }
+      }
+    }
+    evict_where(_.refs == 0)
+    evict_where(_ => true)
+  }
+
+  /**
+   * Drops all the cached messages, used when the store gets purged.
+   */
+  def clear = dispatch_queue {
+    entries.clear
+    size = 0
+    generation += 1
+  }
+
+  /**
+   * The number of references held on the cached copy of the message,
+   * -1 if it's not cached.  Only call it from the cache's dispatch queue.
+   */
+  def refs(key:Long) = {
+    val entry = entries.get(key)
+    if( entry==null ) -1 else entry.refs
+  }
+
+  def fill_store_status(rc:StoreStatusDTO) = {
+    rc.message_cache_hits = hits
+    rc.message_cache_misses = misses
+    rc.message_cache_evictions = evictions
+    rc.message_cache_size = size
+  }
+
+}
@@ -36,6 +36,52 @@ object Queue extends Log {
 
   val PREFTCH_LOAD_FLAG = 1.toByte
   val PREFTCH_HOLD_FLAG = 2.toByte
+
+  /**
+   * The max number of dirty entries a single swap pass will process.  If
+   * more are pending, another pass gets scheduled to handle them.
+   */
+  val SWAP_BATCH_SIZE = 1000
+
+  /**
+   * The max number of entries the periodic sweep visits in one pass when
+   * looking for swapped entries to combine.
+   */
+  val SWEEP_BATCH_SIZE = 10000
+
+  /**
+   * Subscriptions load this many times the bytes they consume during
+   * one swap in latency ahead of their position so that the loads
+   * finish before the subscription gets to them.
+   */
+  val READ_AHEAD_FACTOR = 2
+
+  /**
+   * The max number of priority levels a queue can be configured with.
+   */
+  val MAX_PRIORITIES = 10
+
+  /**
+   * Priority queues keep the priority level of an entry in the high
+   * bits of it's seq so that sorting entries by seq puts them in dispatch
+   * order.  That way the store hands them back in the right order on restart.
+   */
+  val PRIORITY_SHIFT = 56
+
+  /**
+   * Orders queue entries by the time they expire.
+   */
+  val EXPIRATION_ORDER = new java.util.Comparator[QueueEntry] {
+    def compare(a: QueueEntry, b: QueueEntry): Int = {
+      if( a.expiring_at != b.expiring_at ) {
+        if( a.expiring_at < b.expiring_at ) -1 else 1
+      } else if( a.seq != b.seq ) {
+        if( a.seq < b.seq ) -1 else 1
+      } else {
+        0
+      }
+    }
+  }
 }
 
 import Queue._
@@ -108,6 +154,15 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
    */
   var tune_swap = true
 
+  // Loaded entries which need to be looked at by the next swap pass.
+  var swap_dirty = ListBuffer[QueueEntry]()
+
+  /**
+   * Should a non-persistent queue swap it's messages out to
+   * the virtual host's spool file?
+   */
+  var tune_spool = false
+
   /**
    * The number max number of swapped queue entries to load
    * for the store at a time.  Note that swapped entries are just
@@ -121,19 +176,72 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
    */
   var tune_consumer_buffer = 0
 
+  /**
+   *  The max memory each subscription loads ahead of its consumer buffer
+   *  to hide the store latency.
+   */
+  var tune_read_ahead = 0L
+
   /**
    *  The max memory to allow this queue to grow to.
    */
   var tune_quota = -1L
 
+  /**
+   * The number of priority levels the queue dispatches with. 1 means
+   * priorities are not used.
+   */
+  var tune_priorities = 1
+
+  /**
+   * How durable the persistent updates of the queue need to be, null
+   * lets the store decide.
+   */
+  var tune_durability:DurabilityLevel = null
+
+  /**
+   * The durability configured on the topic of a durable subscription.
+   */
+  @volatile
+  var topic_durability:DurabilityLevel = null
+
+  def durability_level = if( tune_durability!=null ) tune_durability else topic_durability
+
+  // The last entry of each priority level, null if the level has no entries.
+  var level_tails:Array[QueueEntry] = null
+
+  // The seq the next entry of each priority level will get.
+  var level_next_seqs:Array[Long] = null
+
   def configure(c:QueueDTO) = {
     config = c
     tune_persistent = virtual_host.store !=null && config.persistent.getOrElse(true)
-    tune_swap = tune_persistent && config.swap.getOrElse(true)
+    tune_spool = !tune_persistent && virtual_host.spool!=null
+    tune_swap = (tune_persistent || tune_spool) && config.swap.getOrElse(true)
+    if( !tune_swap ) {
+      // nothing would ever drain entries marked while swapping was enabled.
+      swap_dirty.foreach( _.dirty = false )
+      swap_dirty.clear
+    }
     tune_swap_range_size = config.swap_range_size.getOrElse(10000)
     tune_consumer_buffer = config.consumer_buffer.getOrElse(256*1024)
+    tune_read_ahead = Option(config.read_ahead).map(MemoryPropertyEditor.parse(_)).getOrElse(0L)
 
     tune_quota = Option(config.quota).map(MemoryPropertyEditor.parse(_)).getOrElse(-1)
+    tune_durability = DurabilityLevel.parse(config.durability)
+
+    // changing the number of levels would re-order existing entries so
+    // it's only applied when the queue is created.
+    if( level_tails == null ) {
+      tune_priorities = config.priorities.getOrElse(1).max(1).min(MAX_PRIORITIES)
+      level_tails = new Array[QueueEntry](tune_priorities)
+      level_next_seqs = Array.tabulate(tune_priorities)(level => priority_seq_prefix(level) + 1)
+      if( tune_priorities > 1 ) {
+        // new entries get linked at their priority level instead of
+        // at the tail, so the tail stays behind every possible seq.
+        tail_entry = new QueueEntry(this, Long.MaxValue)
+      }
+    }
 
     if( tune_persistent ) {
       val record = new QueueRecord
@@ -147,7 +255,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
     if( auto_delete_after!= 0 ) {
       // we don't auto delete explicitly configured queues,
       // non destination queues, or unified queues.
-      if( config.unified.getOrElse(false) || !binding.isInstanceOf[QueueDomainQueueBinding] || !LocalRouter.is_wildcard_config(config) ) {
+      if( config.unified.getOrElse(false) || config.partitions.getOrElse(1) > 1 || !binding.isInstanceOf[QueueDomainQueueBinding] || !LocalRouter.is_wildcard_config(config) ) {
         auto_delete_after = 0
       }
     }
@@ -164,6 +272,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
   var dequeue_item_counter = 0L
   var dequeue_size_counter = 0L
+  @volatile
   var dequeue_ts = now;
 
   var nack_item_counter = 0L
@@ -180,11 +289,104 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
   var swapping_in_size = 0
   var swapping_out_size = 0
 
+  // Moving average of how long swapping in a message takes in nanoseconds.
+  var avg_swap_in_latency = 0L
+
   var swapped_in_items = 0
-  var swapped_in_size = 0
+  private var _swapped_in_size = 0
 
   var swapped_in_size_max = 0
 
+  // The broker memory credit this queue holds, it's kept at or above swapped_in_size.
+  @volatile
+  var memory_credit = 0
+  var memory_governor:MemoryGovernor = null
+
+  // set when the governor had no credit left to give us, producers stay
+  // throttled until it calls memory_available.
+  var memory_starved = false
+
+  def swapped_in_size = _swapped_in_size
+
+  def swap_in_latency(value:Long) = {
+    avg_swap_in_latency = if( avg_swap_in_latency==0 ) value else (avg_swap_in_latency*7 + value) / 8
+  }
+
+  /**
+   * Reading ahead is held off once the broker gets close to its memory
+   * limit since those messages would just get swapped right back out.
+   */
+  def can_read_ahead = {
+    tune_read_ahead > 0 && (memory_governor==null ||
+      memory_governor.used.get < memory_governor.limit / 100 * MemoryGovernor.RELIEF_TARGET)
+  }
+
+  def swapped_in_size_=(value:Int):Unit = {
+    _swapped_in_size = value
+    if( memory_governor!=null ) {
+      if( value > memory_credit ) {
+        // swap ins and oversized messages are not flow controlled, so
+        // the memory they use gets accounted for after the fact.
+        val amount = value - memory_credit
+        memory_credit += amount
+        memory_governor.take(this, amount)
+      } else if( memory_credit - value > 2*MemoryGovernor.CREDIT_SIZE ) {
+        val amount = memory_credit - value - MemoryGovernor.CREDIT_SIZE
+        memory_credit -= amount
+        memory_governor.release(this, amount)
+      }
+    }
+  }
+
+  /**
+   * Tops up the memory credit once enqueues have used it all up.  If the
+   * broker is out of memory, producers get throttled until the governor
+   * calls memory_available.
+   */
+  def request_memory_credit = {
+    if( memory_governor!=null && !memory_starved && swapped_in_size >= memory_credit ) {
+      if( memory_governor.acquire(this, MemoryGovernor.CREDIT_SIZE) ) {
+        memory_credit += MemoryGovernor.CREDIT_SIZE
+      } else {
+        memory_starved = true
+      }
+    }
+  }
+
+  /**
+   * Called by the memory governor once broker memory frees up after
+   * the queue ran out of credit.
+   */
+  def memory_available = {
+    if( memory_starved ) {
+      memory_starved = false
+      request_memory_credit
+      if( !messages.full && messages.refiller != null ) {
+        messages.refiller.run
+      }
+    }
+  }
+
+  /**
+   * Called by the memory governor when broker memory is running low.
+   * Loaded entries outside the subscription prefetch windows already get
+   * swapped out by the swap pass, so this only has to visit the windows
+   * and swap out the entries that are just being held for a subscription.
+   */
+  def relieve_memory_pressure = {
+    if( tune_swap && service_state.is_started ) {
+      all_subscriptions.valuesIterator.foreach { sub =>
+        sub.prefetched.foreach { entry =>
+          val loaded = entry.as_loaded
+          if( loaded!=null && !loaded.acquired && entry.isLinked && (entry.prefetch_flags & PREFTCH_LOAD_FLAG)==0 ) {
+            entry.swap(true)
+          }
+        }
+      }
+      trigger_swap
+    }
+  }
+
   var swap_out_item_counter = 0L
   var swap_out_size_counter = 0L
 
@@ -196,6 +398,17 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
   var individual_swapped_items = 0
 
+  // Where the next periodic sweep will resume from, null means the head.
+  var sweep_pos:QueueEntry = null
+  var sweep_distance_from_sub = 0
+
+  // The number of entries that the swap and sweep passes have visited.
+  var swap_visit_counter = 0L
+
+  // Holds the entries that can expire ordered by their expiration time.  Swapped
+  // ranges are indexed by the earliest expiration of the entries they contain.
+  val expiration_index = new java.util.TreeSet[QueueEntry](EXPIRATION_ORDER)
+
   val swap_source = createSource(EventAggregators.INTEGER_ADD, dispatch_queue)
   swap_source.setEventHandler(^{ swap_messages });
   swap_source.resume
@@ -255,7 +468,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
   def restore_from_store(on_completed: => Unit) {
     if (!restored_from_store && tune_persistent) {
       restored_from_store = true
-      virtual_host.store.list_queue_entry_ranges(store_id, tune_swap_range_size) { ranges =>
+      virtual_host.queue_recovery.submit { done => virtual_host.store.list_queue_entry_ranges(store_id, tune_swap_range_size) { ranges =>
+        done.run
         dispatch_queue {
           if (ranges != null && !ranges.isEmpty) {
 
@@ -267,22 +481,88 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
                 message_seq_counter = range.last_entry_seq + 1
                 enqueue_item_counter += range.count
                 enqueue_size_counter += range.size
-                tail_entry = new QueueEntry(Queue.this, next_message_seq)
+                if( tune_priorities == 1 ) {
+                  tail_entry = new QueueEntry(Queue.this, next_message_seq)
+                }
             }
 
             debug("restored: " + enqueue_item_counter)
           }
-          on_completed
+          if( tune_priorities > 1 ) {
+            restore_priority_levels(on_completed)
+          } else {
+            on_completed
+          }
         }
-      }
+      }}
     } else {
       on_completed
     }
   }
 
+  /**
+   * The store builds the restored ranges without knowing about priority
+   * levels, so ranges which span several levels get broken up into
+   * individual entries before the level tails get rebuilt.
+   */
+  def restore_priority_levels(on_completed: => Unit):Unit = {
+    val spanning = ListBuffer[QueueEntry]()
+    var cur = head_entry.getNext
+    while( cur!=null ) {
+      if( cur.is_swapped_range && priority_level(cur.seq) != priority_level(cur.as_swapped_range.last) ) {
+        spanning += cur
+      }
+      cur = cur.getNext
+    }
+
+    var remaining = spanning.size + 1
+    def split_completed = {
+      remaining -= 1
+      if( remaining == 0 ) {
+        cur = head_entry.getNext
+        while( cur!=null ) {
+          val level = priority_level(cur.seq)
+          val last_seq = if( cur.is_swapped_range ) cur.as_swapped_range.last else cur.seq
+          level_tails(level) = cur
+          level_next_seqs(level) = level_next_seqs(level).max(last_seq + 1)
+          cur = cur.getNext
+        }
+        on_completed
+      }
+    }
+
+    spanning.foreach { range =>
+      virtual_host.store.list_queue_entries(store_id, range.seq, range.as_swapped_range.last) { records =>
+        dispatch_queue {
+          var item_count = 0
+          var size_count = 0
+          val tmpList = new LinkedNodeList[QueueEntry]()
+          records.foreach { record =>
+            tmpList.addLast(new QueueEntry(Queue.this, record.entry_seq).init(record))
+            item_count += 1
+            size_count += record.size
+          }
+          enqueue_item_counter += item_count - range.count
+          enqueue_size_counter += size_count - range.size
+          if( !tmpList.isEmpty ) {
+            range.linkAfter(tmpList)
+          }
+          unlinking(range)
+          range.unlink
+          split_completed
+        }
+      }
+    }
+    split_completed
+  }
+
   protected def _start(on_completed: Runnable) = {
     swapped_in_size_max += tune_queue_buffer;
 
+    memory_governor = virtual_host.broker.memory_governor
+    memory_governor.register(this)
+    swapped_in_size = swapped_in_size
+
     restore_from_store {
 
 
@@ -315,6 +595,12 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
     swapped_in_size_max -= tune_queue_buffer;
     trigger_swap
 
+    memory_governor.unregister(this)
+    memory_governor.release(this, memory_credit)
+    memory_credit = 0
+    memory_starved = false
+    memory_governor = null
+
     on_completed.run
   }
 
@@ -330,7 +616,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
     var refiller: Runnable = null
 
-    def full = (swapped_in_size >= swapped_in_size_max) || !service_state.is_started || (tune_quota >=0 && queue_size > tune_quota)
+    def full = (swapped_in_size >= swapped_in_size_max) || !service_state.is_started || (tune_quota >=0 && queue_size > tune_quota) || memory_starved
 
     def offer(delivery: Delivery): Boolean = {
       if (full) {
@@ -344,8 +630,13 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
           return true
         }
 
-        val entry = tail_entry
-        tail_entry = new QueueEntry(Queue.this, next_message_seq)
+        val entry = if( tune_priorities > 1 ) {
+          new QueueEntry(Queue.this, next_priority_seq(delivery.message.priority))
+        } else {
+          val rc = tail_entry
+          tail_entry = new QueueEntry(Queue.this, next_message_seq)
+          rc
+        }
         val queueDelivery = delivery.copy
         entry.init(queueDelivery)
         
@@ -353,7 +644,11 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
           queueDelivery.uow = delivery.uow
         }
 
-        entries.addLast(entry)
+        if( tune_priorities > 1 ) {
+          link_by_priority(entry)
+        } else {
+          entries.addLast(entry)
+        }
         enqueue_item_counter += 1
         enqueue_size_counter += entry.size
         enqueue_ts = now;
@@ -384,6 +679,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
           queueDelivery.uow = null
         }
 
+        request_memory_credit
         true
       }
     }
@@ -449,95 +745,265 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
     }
   }
 
-  def swap_messages = {
+  def swap_messages:Unit = {
 
     now = System.currentTimeMillis()
+    expire_entries
 
-    var cur = entries.getHead
-    while( cur!=null ) {
+    // Only the entries in the subscription prefetch windows can change their
+    // prefetch flags, so we just reset and then refill those windows.  The
+    // loaded entries which dropped out of every window need a look, the
+    // ones which are still prefetched would just stay loaded.
+    val previous = all_subscriptions.values.toList.map( _.reset_prefetch )
+    all_subscriptions.valuesIterator.foreach( _.refill_prefetch )
+    previous.foreach( _.foreach { entry =>
+      if( entry.prefetch_flags==0 && entry.is_loaded && entry.isLinked ) {
+        mark_dirty(entry)
+      }
+    })
+
+    // Now swap out the dirty loaded entries that no subscription needs soon.
+    var remaining = SWAP_BATCH_SIZE
+    while( remaining > 0 && !swap_dirty.isEmpty ) {
+      remaining -= 1
+      swap_visit_counter += 1
+      val cur = swap_dirty.remove(0)
+      cur.dirty = false
+      val loaded = cur.as_loaded
+      if( loaded!=null && cur.isLinked ) {
+        if( cur.prefetch_flags==0 && !loaded.acquired  ) {
+          cur.swap(true)
+        } else {
+          cur.load // just in case it's getting swapped.
+        }
+      }
+    }
 
-      // reset the prefetch flags and handle expiration...
-      cur.prefetch_flags = 0
-      val next = cur.getNext
+    // Pick up any left over work in a subsequent pass.
+    if( !swap_dirty.isEmpty ) {
+      trigger_swap
+    }
+  }
 
-      // handle expiration...
-      if( cur.expiration != 0 && cur.expiration <= now ) {
-        cur.state match {
-          case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load
-          case x:QueueEntry#Swapped =>
-            // remove the expired swapped message.
-            expired(cur)
-            x.remove
-          case x:QueueEntry#Loaded =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !x.acquired ) {
-              expired(cur)
-              x.remove
-            }
-          case _ =>
+  /**
+   * Flags a loaded entry so that the next swap pass decides if
+   * it should get swapped out.
+   */
+  def mark_dirty(entry:QueueEntry) = {
+    // only the swap pass drains the dirty list.
+    if( tune_swap && !entry.dirty ) {
+      entry.dirty = true
+      swap_dirty += entry
+    }
+  }
+
+  /**
+   * Called before an entry gets unlinked from the entries list so
+   * that the sweep position does not get stranded on it.
+   */
+  def unlinking(entry:QueueEntry) = {
+    if( sweep_pos eq entry ) {
+      sweep_pos = entry.getNext
+    }
+    if( tune_priorities > 1 ) {
+      val level = priority_level(entry.seq)
+      if( level_tails(level) eq entry ) {
+        val prev = entry.getPrevious
+        level_tails(level) = if( prev!=null && !prev.is_head && priority_level(prev.seq)==level ) {
+          prev
+        } else {
+          null
         }
       }
-      cur = next
     }
+    unindex_expiration(entry)
+  }
 
-    // Set the prefetch flags
-    all_subscriptions.valuesIterator.foreach( _.refill_prefetch )
+  /**
+   * Called when a swapped range gets replaced by the entries it held
+   * so that the level tail can move to the last of those entries.
+   */
+  def replacing(entry:QueueEntry, last:QueueEntry) = {
+    if( tune_priorities > 1 ) {
+      val level = priority_level(entry.seq)
+      if( level_tails(level) eq entry ) {
+        level_tails(level) = last
+      }
+    }
+  }
 
-    // swap out messages.
-    cur = entries.getHead
-    while( cur!=null ) {
-      val next = cur.getNext
-      val loaded = cur.as_loaded
-      if( loaded!=null ) {
-        if( cur.prefetch_flags==0 && !loaded.acquired  ) {
-          val asap = !cur.as_loaded.acquired
-          cur.swap(asap)
+  /**
+   * Maps a message priority to one of the queue's priority levels.  Message
+   * priorities range from 0 to 9 like JMS priorities do.
+   */
+  def message_priority_level(priority:Byte) = priority.toInt.max(0).min(9) * tune_priorities / 10
+
+  /**
+   * The priority level an entry seq belongs to.  Entries stored before
+   * priorities were enabled land on the highest level.
+   */
+  def priority_level(seq:Long) = (tune_priorities - 1 - (seq >>> PRIORITY_SHIFT).toInt).max(0)
+
+  def priority_seq_prefix(level:Int) = (tune_priorities - 1 - level).toLong << PRIORITY_SHIFT
+
+  def is_same_priority_level(a:QueueEntry, b:QueueEntry) = {
+    tune_priorities == 1 || priority_level(a.seq) == priority_level(b.seq)
+  }
+
+  private def next_priority_seq(priority:Byte) = {
+    val level = message_priority_level(priority)
+    val rc = level_next_seqs(level)
+    level_next_seqs(level) += 1
+    rc
+  }
+
+  /**
+   * Links a new entry behind the last entry of it's priority level and
+   * moves the subscriptions which were already past that point back to it.
+   */
+  def link_by_priority(entry:QueueEntry) = {
+    val level = priority_level(entry.seq)
+    var prev:QueueEntry = null
+    var l = level
+    while( prev==null && l < tune_priorities ) {
+      prev = level_tails(l)
+      l += 1
+    }
+    if( prev==null ) {
+      prev = head_entry
+    }
+    prev.linkAfter(entry)
+    level_tails(level) = entry
+
+    val delivery = entry.as_loaded.delivery
+    all_subscriptions.valuesIterator.foreach { sub=>
+      if( !sub.browser && entry.seq < sub.pos.seq && sub.matches(delivery) ) {
+        sub.reposition(entry)
+      }
+    }
+  }
+
+  /**
+   * Updates the position of the entry in the expiration index.  Needs
+   * to get called whenever the expiration of the entry could have changed.
+   */
+  def index_expiration(entry:QueueEntry) = {
+    if( entry.expiring_at != 0 ) {
+      expiration_index.remove(entry)
+    }
+    entry.expiring_at = entry.expiration
+    if( entry.expiring_at != 0 ) {
+      expiration_index.add(entry)
+    }
+  }
+
+  /**
+   * Removes the entry from the expiration index.
+   */
+  def unindex_expiration(entry:QueueEntry) = {
+    if( entry.expiring_at != 0 ) {
+      expiration_index.remove(entry)
+      entry.expiring_at = 0
+    }
+  }
+
+  /**
+   * Removes the expired entries.  Only the expired entries are visited, and
+   * swapped ranges only get loaded when they hold at least one expired entry.
+   */
+  def expire_entries:Unit = {
+    if( expiration_index.isEmpty || expiration_index.first.expiring_at > now ) {
+      return
+    }
+
+    // Copy them out since expiring modifies the index.
+    val expiring = ListBuffer[QueueEntry]()
+    val i = expiration_index.iterator
+    var done = false
+    while( !done && i.hasNext ) {
+      val cur = i.next
+      if( cur.expiring_at <= now ) {
+        expiring += cur
+      } else {
+        done = true
+      }
+    }
+
+    expiring.foreach { cur =>
+      swap_visit_counter += 1
+      if( cur.is_swapped_range ) {
+        // load the range to expire the messages in it.
+        cur.load
+      } else if( cur.is_swapped ) {
+        // remove the expired swapped message.
+        expired(cur)
+        cur.remove
+      } else if( cur.is_loaded ) {
+        // remove the expired message if it has not been
+        // acquired.
+        val loaded = cur.as_loaded
+        if( loaded.acquired || loaded.remove_pending ) {
+          // it's up to the consumer now, so don't keep visiting it.  A
+          // nack puts it back into the index.
+          unindex_expiration(cur)
         } else {
-          cur.load // just in case it's getting swapped.
+          expired(cur)
+          loaded.remove
         }
       }
-      cur = next
     }
+  }
 
+  /**
+   * Incrementally walks the entries list combining swapped entries into
+   * swapped ranges.  Each pass visits at most SWEEP_BATCH_SIZE entries and
+   * then resumes from where it left off on the next pass, so the cost of a
+   * pass does not grow with the queue depth.
+   */
+  def sweep_entries:Unit = {
 
     // Combine swapped items into swapped ranges
-    if( individual_swapped_items > tune_swap_range_size*2 ) {
-
-      debug("Looking for swapped entries to combine")
+    if( individual_swapped_items <= tune_swap_range_size*2 ) {
+      return
+    }
 
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
+    var cur = sweep_pos
+    if( cur==null ) {
+      cur = entries.getHead
+      sweep_distance_from_sub = tune_swap_range_size
+    }
 
-      while( cur!=null ) {
+    var combine_counter = 0
+    var remaining = SWEEP_BATCH_SIZE
+    while( remaining > 0 && cur!=null ) {
+      remaining -= 1
+      swap_visit_counter += 1
 
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
+      // get the next now.. since cur may get combined and unlinked
+      // from the entry list.
+      val next = cur.getNext
 
-        if( cur.prefetch_flags!=0 ) {
-          distance_from_sub = 0
+      if( cur.prefetch_flags!=0 ) {
+        sweep_distance_from_sub = 0
+      } else {
+        sweep_distance_from_sub += 1
+        if( cur.can_combine_with_prev ) {
+          cur.getPrevious.as_swapped_range.combineNext
+          combine_counter += 1
         } else {
-          distance_from_sub += 1
-          if( cur.can_combine_with_prev ) {
-            cur.getPrevious.as_swapped_range.combineNext
+          if( cur.is_swapped && !cur.is_spooled && sweep_distance_from_sub > tune_swap_range_size ) {
+            cur.swapped_range
             combine_counter += 1
-          } else {
-            if( cur.is_swapped && distance_from_sub > tune_swap_range_size ) {
-              cur.swapped_range
-              combine_counter += 1
-            }
           }
-
         }
-        cur = next
       }
-      debug("combined %d entries", combine_counter)
+      cur = next
     }
 
+    sweep_pos = cur
+    if( combine_counter > 0 ) {
+      debug("combined %d entries", combine_counter)
+    }
   }
 
   def schedule_periodic_maintenance:Unit = dispatch_queue.after(1, TimeUnit.SECONDS) {
@@ -558,6 +1024,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
 
         }
 
+        sub.consumption_rate = (sub.consumption_rate*3 + sub.advanced_size) / 4
         sub.total_advanced_size += sub.advanced_size
         sub.advanced_size = 0
         sub.tail_parkings = 0
@@ -565,6 +1032,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
       }
 
       swap_messages
+      sweep_entries
       schedule_periodic_maintenance
     }
   }
@@ -704,10 +1172,16 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
   def disconnected() = throw new RuntimeException("unsupported")
 
   def bind(destination:DestinationDTO, consumer: DeliveryConsumer) = {
-    bind(consumer::Nil)
+    partitions_consumer match {
+      case Some(x) => x.bind(consumer)
+      case None => bind(consumer::Nil)
+    }
   }
   def unbind(consumer: DeliveryConsumer, persistent:Boolean):Unit = {
-    unbind(consumer::Nil)
+    partitions_consumer match {
+      case Some(x) => x.unbind(consumer)
+      case None => unbind(consumer::Nil)
+    }
   }
 
   def connect (destination:DestinationDTO, producer:BindableDeliveryProducer) = {
@@ -717,12 +1191,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
       val topic = router.topic_domain.get_or_create_destination(binding.destination, binding.binding_dto, null).success
       topic.connect(destination, producer)
     } else {
-      dispatch_queue {
-        producers += producer
-        producer_counter += 1
-        check_idle
+      partitions_consumer match {
+        case Some(consumer) =>
+          consumer.partitions.foreach(_.add_producer(producer))
+          producer.bind(consumer::Nil)
+        case None =>
+          add_producer(producer)
+          producer.bind(this::Nil)
       }
-      producer.bind(this::Nil)
     }
   }
 
@@ -732,14 +1208,47 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:QueueBinding
       val topic = router.topic_domain.get_or_create_destination(binding.destination, binding.binding_dto, null).success
       topic.disconnect(producer)
     } else {
-      dispatch_queue {
-        producers -= producer
-        check_idle
+      partitions_consumer match {
+        case Some(consumer) =>
+          consumer.partitions.foreach(_.remove_producer(producer))
+          producer.unbind(consumer::Nil)
+        case None =>
+          remove_producer(producer)
+          producer.unbind(this::Nil)
       }
-      producer.unbind(this::Nil)
     }
   }
 
+  def add_producer(producer:BindableDeliveryProducer) = dispatch_queue {
+    producers += producer
+    producer_counter += 1
+    check_idle
+  }
+
+  def remove_producer(producer:BindableDeliveryProducer) = dispatch_queue {
+    producers -= producer
+    check_idle
+  }
+
+  // Set on a partitioned queue once its partitions have been created.
+  private var _partitions_consumer:QueuePartitionsConsumer = null
+
+  /**
+   * Gets the consumer which spreads deliveries over the partitions if this
+   * is a partitioned queue.  The partitions get created on first use, so
+   * this must only be called from the router's dispatch queue.
+   */
+  private def partitions_consumer:Option[QueuePartitionsConsumer] = {
+    router.dispatch_queue.assertExecuting()
+    if( _partitions_consumer==null && binding.isInstanceOf[QueueDomainQueueBinding] ) {
+      val partitions = router.queue_domain.partitions_of(this)
+      if( partitions.length > 1 ) {
+        _partitions_consumer = new QueuePartitionsConsumer(this, partitions)
+      }
+    }
+    Option(_partitions_consumer)
+  }
+
   override def connection:Option[BrokerConnection] = None
 
   override def send_buffer_size = tune_queue_buffer
@@ -804,6 +1313,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   // in the entry.
   var prefetch_flags:Byte = 0
 
+  // set while the entry is sitting in the queue's swap_dirty list.
+  var dirty = false
+
+  // The expiration the entry is indexed under in the queue's
+  // expiration_index or 0 if it's not in the index.
+  var expiring_at = 0L
+
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
 
@@ -826,17 +1342,21 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     state = new Loaded(delivery, false)
     queue.swapped_in_size += size
     queue.swapped_in_items += 1
+    queue.mark_dirty(this)
+    queue.index_expiration(this)
     this
   }
 
   def init(qer:QueueEntryRecord):QueueEntry = {
     val locator = new AtomicReference[Array[Byte]](Option(qer.message_locator).map(_.toByteArray).getOrElse(null))
     state = new Swapped(qer.message_key, locator, qer.size, qer.expiration)
+    queue.index_expiration(this)
     this
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
     state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    queue.index_expiration(this)
     this
   }
 
@@ -882,7 +1402,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
 
   def compareTo(o: QueueEntry) = {
-    (seq - o.seq).toInt
+    if( seq < o.seq ) -1 else if( seq > o.seq ) 1 else 0
   }
 
   def toQueueEntryRecord = {
@@ -922,6 +1442,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def is_loaded = as_loaded!=null
   def is_swapped = as_swapped!=null
   def is_swapped_range = as_swapped_range!=null
+  // spooled entries can't be reloaded by key so they are never combined into ranges.
+  def is_spooled = as_swapped!=null && as_swapped.is_spooled
 
   // These should not change the current state.
   def count = state.count
@@ -942,6 +1464,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     getPrevious !=null &&
       getPrevious.is_swapped_range &&
         ( is_swapped || is_swapped_range ) &&
+          !is_spooled &&
+          queue.is_same_priority_level(getPrevious, this) &&
           (getPrevious.count + count  < queue.tune_swap_range_size)
   }
 
@@ -1016,6 +1540,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       parked = Nil
 
       // take the entry of the entries list..
+      queue.unlinking(entry)
       unlink
       //TODO: perhaps refill subscriptions.
     }
@@ -1090,6 +1615,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     var acquired = false
     var swapping_out = false
     var storing = false
+    // where the message was written in the spool file, -1 if it was not spooled.
+    var spool_pos = -1L
+    // the message cache record the message got swapped in from, it's
+    // released once the entry stops using it.
+    var cached:MessageRecord = null
 
     def label = {
       var rc = "loaded"
@@ -1122,6 +1652,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if(!storing) {
         storing = true
         delivery.uow.enqueue(toQueueEntryRecord)
+        delivery.uow.durability(queue.durability_level)
         delivery.uow.on_flush {
           queue.swap_out_completes_source.merge(this)
         }
@@ -1135,6 +1666,24 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swapping_out_size+=size
         if( stored ) {
           swapped_out
+        } else if( queue.tune_spool ) {
+
+          // Non-persistent queues swap out to the virtual host's spool file.
+          if( !storing ) {
+            val record = delivery.createMessageRecord
+            if( record.buffer == null ) {
+              // can't spool a zero copy buffer, keep it in memory.
+              swapping_out = false
+              queue.swapping_out_size-=size
+            } else {
+              storing = true
+              queue.virtual_host.spool.write(record) { pos =>
+                queue.dispatch_queue {
+                  spooled(pos)
+                }
+              }
+            }
+          }
         } else {
 
           // The storeBatch is only set when called from the messages.offer method
@@ -1170,6 +1719,41 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
     }
 
+    def spooled(pos:Long) = {
+      if( pos == -1 ) {
+        // The spool write failed, the message stays in memory.
+        storing = false
+        if( swapping_out ) {
+          swapping_out = false
+          queue.swapping_out_size-=size
+        }
+        if( remove_pending ) {
+          release_cached
+          delivery.message.release
+          queue.swapped_in_size -= size
+          queue.swapped_in_items -= 1
+          super.remove
+        }
+      } else {
+        spool_pos = pos
+        swapped_out
+      }
+    }
+
+    def free_spool = {
+      if( spool_pos != -1 ) {
+        queue.virtual_host.spool.free(spool_pos)
+        spool_pos = -1
+      }
+    }
+
+    def release_cached = {
+      if( cached != null ) {
+        queue.virtual_host.message_cache.release(cached)
+        cached = null
+      }
+    }
+
     def swapped_out() = {
       assert( state == this )
       storing = false
@@ -1184,7 +1768,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_out_size_counter += size
         queue.swap_out_item_counter += 1
 
-        state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration)
+        release_cached
+        state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration, spool_pos)
         if( can_combine_with_prev ) {
           getPrevious.as_swapped_range.combineNext
         }
@@ -1193,6 +1778,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         }
       } else {
         if( remove_pending ) {
+          free_spool
+          release_cached
           delivery.message.release
           queue.swapped_in_size -= size
           queue.swapped_in_items -= 1
@@ -1212,6 +1799,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if( storing | remove_pending ) {
         remove_pending = true
       } else {
+        free_spool
+        release_cached
         delivery.message.release
         queue.swapped_in_size -= size
         queue.swapped_in_items -= 1
@@ -1332,11 +1921,22 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * entry is persisted, it can move into this state.  This state only holds onto the
    * the massage key so that it can reload the message from the store quickly when needed.
    */
-  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Array[Byte]], override val size:Int, override val expiration:Long) extends EntryState {
+  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Array[Byte]], override val size:Int, override val expiration:Long, val spool_pos:Long = -1) extends EntryState {
 
-    queue.individual_swapped_items += 1
+    def is_spooled = spool_pos != -1
+
+    // spooled entries never get combined into ranges, so they should
+    // not make the sweep think it has work to do.
+    if( !is_spooled ) {
+      queue.individual_swapped_items += 1
+    }
+
+    private def uncount = if( !is_spooled ) {
+      queue.individual_swapped_items -= 1
+    }
 
     var swapping_in = false
+    var swap_in_start = 0L
 
 
     override def count = 1
@@ -1359,8 +1959,19 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 //        trace("Start entry load of message seq: %s", seq)
         // start swapping in...
         swapping_in = true
+        swap_in_start = System.nanoTime
         queue.swapping_in_size += size
-        queue.virtual_host.store.load_message(message_key, message_locator) { delivery =>
+        if( is_spooled ) {
+          queue.virtual_host.spool.read(spool_pos) { record =>
+            if( record.isDefined ) {
+              queue.store_load_source.merge((this, record.get))
+            } else {
+              queue.dispatch_queue {
+                remove
+              }
+            }
+          }
+        } else queue.virtual_host.message_cache.load(queue.virtual_host.store, queue.store_id, message_key, message_locator) { delivery =>
           // pass off to a source so it can aggregate multiple
           // loads to reduce cross thread synchronization
           if( delivery.isDefined ) {
@@ -1384,6 +1995,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 //        debug("Loaded message seq: ", seq )
         swapping_in = false
         queue.swapping_in_size -= size
+        queue.swap_in_latency(System.nanoTime - swap_in_start)
 
         val delivery = new Delivery()
         delivery.message = ProtocolFactory.get(messageRecord.protocol.toString).get.decode(messageRecord)
@@ -1397,10 +2009,16 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_in_size_counter += size
         queue.swap_in_item_counter += 1
 
-        queue.individual_swapped_items -= 1
-        state = new Loaded(delivery, true)
+        uncount
+        val loaded = new Loaded(delivery, true)
+        // keep the spooled copy so it does not have to be written again on the next swap out.
+        loaded.spool_pos = spool_pos
+        loaded.cached = messageRecord
+        state = loaded
+        queue.mark_dirty(entry)
       } else {
 //        debug("Ignoring store load of: ", messageKey)
+        queue.virtual_host.message_cache.release(messageRecord)
       }
     }
 
@@ -1410,7 +2028,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         swapping_in = false
         queue.swapping_in_size -= size
       }
-      queue.individual_swapped_items -= 1
+      if( is_spooled ) {
+        queue.virtual_host.spool.free(spool_pos)
+      }
+      uncount
       super.remove
     }
 
@@ -1419,7 +2040,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         swapping_in = false
         queue.swapping_in_size -= size
       }
-      queue.individual_swapped_items -= 1
+      uncount
       state = new SwappedRange(seq, 1, size, expiration)
     }
   }
@@ -1480,6 +2101,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                 item_count += 1
                 size_count += record.size
               }
+              val last_loaded = tmpList.getTail
 
               // we may need to adjust the enqueue count if entries
               // were dropped at the store level
@@ -1498,11 +2120,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
               // move the subs to the first entry that we just loaded.
               parked.foreach(_.advance(next))
               next :::= parked
+              // the next swap pass refills the prefetches so subscriptions
+              // reading ahead load the entries we just expanded.
               queue.trigger_swap
 
+              queue.replacing(entry, last_loaded)
+              queue.unlinking(entry)
               unlink
-
-              // TODO: refill prefetches
             }
           } else {
             warn("range load failed")
@@ -1534,6 +2158,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           _expiration = value.expiration.min(_expiration)
         }
       }
+      if( expiring_at != _expiration ) {
+        queue.index_expiration(entry)
+      }
       _size += value.size
       value.remove
     }
@@ -1570,6 +2197,12 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   var avg_advanced_size = queue.tune_consumer_buffer
   var tail_parkings = 1
 
+  // Moving average of the bytes the subscription advances per second.
+  var consumption_rate = 0L
+
+  // The entries which the last refill_prefetch flagged.
+  var prefetched = ListBuffer[QueueEntry]()
+
   var total_dispatched_count = 0L
   var total_dispatched_size = 0L
 
@@ -1637,6 +2270,8 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
         queue.all_subscriptions.values.foreach(_.rewind(queue.head_entry))
       }
 
+      clear_prefetch
+
       session.refiller = NOOP
       session.close
       session = null
@@ -1672,11 +2307,19 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
    * a nack occurs from another consumer.
    */
   def rewind(value:QueueEntry):Unit = {
+    reposition(value)
+    queue.dispatch_queue << value // queue up the entry to get dispatched..
+  }
+
+  /**
+   * Moves the subscription back to an entry that got linked in
+   * before its current position.
+   */
+  def reposition(value:QueueEntry):Unit = {
     assert(value!=null)
     pos -= this
     value ::= this
     pos = value
-    queue.dispatch_queue << value // queue up the entry to get dispatched..
   }
 
   def tail_parked = pos eq queue.tail_entry
@@ -1705,10 +2348,11 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       pos // start prefetching from the current position.
     }
 
-    var remaining = queue.tune_consumer_buffer - acquired_size
+    var remaining = queue.tune_consumer_buffer - acquired_size + read_ahead_size
     while( remaining>0 && next!=null ) {
       remaining -= next.size
       next.prefetch_flags = (next.prefetch_flags | PREFTCH_LOAD_FLAG).toByte
+      prefetched += next
       next.load
       next = next.getNext
     }
@@ -1717,9 +2361,56 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     while( remaining>0 && next!=null ) {
       remaining -= next.size
       next.prefetch_flags = (next.prefetch_flags | PREFTCH_HOLD_FLAG).toByte
+      prefetched += next
+      if( next.is_loaded ) {
+        next.load // just in case it's getting swapped.
+      }
       next = next.getNext
     }
 
+    queue.swap_visit_counter += prefetched.size
+  }
+
+  /**
+   * The bytes to load past the consumer buffer so that the entries are
+   * swapped in by the time the subscription gets to them.  Sized from how
+   * much the subscription consumes during one swap in latency.  Swapped
+   * ranges in that window get loaded as a batch and the entries they
+   * expand to get loaded on the next swap pass.
+   */
+  def read_ahead_size:Long = {
+    if( !queue.can_read_ahead || queue.avg_swap_in_latency==0 ) {
+      0
+    } else {
+      val size = consumption_rate * queue.avg_swap_in_latency * READ_AHEAD_FACTOR / 1000000000L
+      size.min(queue.tune_read_ahead)
+    }
+  }
+
+  /**
+   * Resets the prefetch flags of the entries flagged by the last
+   * refill_prefetch.
+   *
+   * @return the entries which were flagged.
+   */
+  def reset_prefetch = {
+    val rc = prefetched
+    rc.foreach( _.prefetch_flags = 0 )
+    prefetched = ListBuffer[QueueEntry]()
+    rc
+  }
+
+  /**
+   * Resets the prefetch window of a closing subscription.  The loaded
+   * entries get marked dirty so that the next swap pass can swap them
+   * out if they are no longer needed.
+   */
+  def clear_prefetch = {
+    reset_prefetch.foreach { entry =>
+      if( entry.is_loaded && entry.isLinked ) {
+        queue.mark_dirty(entry)
+      }
+    }
   }
 
   class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] {
@@ -1745,6 +2436,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
           uow
         }
         storeBatch.dequeue(entry.toQueueEntryRecord)
+        storeBatch.durability(queue.durability_level)
         if( uow == null ) {
           storeBatch.release
         }
@@ -1779,6 +2471,8 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
       total_nack_count += 1
       entry.as_loaded.acquired = false
+      queue.mark_dirty(entry)
+      queue.index_expiration(entry)
       acquired_size -= entry.size
 
       // track for stats
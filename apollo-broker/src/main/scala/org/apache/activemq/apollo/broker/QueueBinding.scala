@@ -113,6 +113,7 @@ object QueueDomainQueueBinding extends QueueBinding.Provider {
   }
 
   def create(binding_dto:DestinationDTO) = binding_dto match {
+    case x:QueuePartitionDestinationDTO => null
     case ptp_dto:QueueDestinationDTO =>
       new QueueDomainQueueBinding(JsonCodec.encode(ptp_dto), ptp_dto)
     case _ => null
@@ -167,6 +168,65 @@ class QueueDomainQueueBinding(val binding_data:Buffer, val binding_dto:QueueDest
 }
 
 
+object QueuePartitionQueueBinding extends QueueBinding.Provider {
+
+  val PARTITION_KIND = new AsciiBuffer("ptp-partition")
+
+  def create(binding_kind:AsciiBuffer, binding_data:Buffer) = {
+    if( binding_kind == PARTITION_KIND ) {
+      new QueuePartitionQueueBinding(binding_data, JsonCodec.decode(binding_data, classOf[QueuePartitionDestinationDTO]))
+    } else {
+      null
+    }
+  }
+
+  def create(binding_dto:DestinationDTO) = binding_dto match {
+    case x:QueuePartitionDestinationDTO =>
+      new QueuePartitionQueueBinding(JsonCodec.encode(x), x)
+    case _ => null
+  }
+
+}
+
+/**
+ * <p>
+ * Binds the additional partitions of a partitioned queue.  The
+ * partitions are not registered in the queue domain, the first partition
+ * which is the queue itself spreads the producers and consumers over them.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueuePartitionQueueBinding(val binding_data:Buffer, val binding_dto:QueuePartitionDestinationDTO) extends QueueBinding {
+
+  import QueuePartitionQueueBinding._
+
+  val destination = LocalRouter.destination_parser.decode_path(binding_dto.path)
+  def binding_kind = PARTITION_KIND
+
+  def partition = binding_dto.partition
+
+  def unbind(node: LocalRouter, queue: Queue) = {
+    node.queue_domain.unbind_partition(queue, partition)
+  }
+
+  def bind(node: LocalRouter, queue: Queue) = {
+    node.queue_domain.bind_partition(queue, partition)
+  }
+
+  val id = binding_dto.name(LocalRouter.destination_parser.path_separator)+"#"+partition
+
+  override def hashCode = binding_kind.hashCode ^ binding_data.hashCode
+
+  override def equals(o:Any):Boolean = o match {
+    case x: QueuePartitionQueueBinding => x.binding_data == binding_data
+    case _ => false
+  }
+
+  def config(host:VirtualHost):QueueDTO = QueueDomainQueueBinding.queue_config(host, destination)
+
+}
+
 object DurableSubscriptionQueueBinding extends QueueBinding.Provider {
 
   val DURABLE_SUB_KIND = new AsciiBuffer("ds")
@@ -238,7 +298,8 @@ class DurableSubscriptionQueueBinding(val binding_data:Buffer, val binding_dto:D
     case _ => false
   }
 
-  override def message_filter = {
+  // Parsed once per binding since the queue consults it on every dispatch.
+  override lazy val message_filter:BooleanExpression = {
     if ( binding_dto.selector==null ) {
       ConstantExpression.TRUE
     } else {
@@ -0,0 +1,172 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import collection.mutable.{ListBuffer, LinkedHashMap}
+
+/**
+ * <p>
+ * The delivery consumer that producers of a partitioned queue bind to.  It
+ * spreads the deliveries round robin over the partitions, skipping the
+ * partitions which are full, so that each partition can be dispatched
+ * concurrently on it's own dispatch queue.
+ * </p>
+ * <p>
+ * It also assigns the consumers of the queue to the partitions.  Each
+ * consumer only gets bound to one partition unless there are fewer
+ * consumers than partitions, in which case the partitions get spread over
+ * the consumers so that none of them is left without a consumer.  Browsers
+ * get bound to all the partitions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueuePartitionsConsumer(val queue:Queue, val partitions:Array[Queue]) extends BaseRetained with DeliveryConsumer {
+
+  override def toString = queue.toString
+
+  def dispatch_queue = queue.dispatch_queue
+  def matches(delivery:Delivery) = queue.matches(delivery)
+  def is_persistent = queue.is_persistent
+
+  // The partitions each of the bound consumers got assigned.  Only
+  // accessed from the router's dispatch queue.
+  private val assignments = LinkedHashMap[DeliveryConsumer, ListBuffer[Queue]]()
+
+  def bind(consumer:DeliveryConsumer):Unit = {
+    if( consumer.browser ) {
+      partitions.foreach(_.bind(consumer::Nil))
+    } else {
+      assignments.put(consumer, ListBuffer())
+      rebalance
+    }
+  }
+
+  def unbind(consumer:DeliveryConsumer):Unit = {
+    if( consumer.browser ) {
+      partitions.foreach(_.unbind(consumer::Nil))
+    } else {
+      assignments.remove(consumer).foreach { assigned =>
+        assigned.foreach(_.unbind(consumer::Nil))
+        rebalance
+      }
+    }
+  }
+
+  def consumers_of(partition:Queue) = assignments.valuesIterator.count(_.contains(partition))
+
+  private def assign(consumer:DeliveryConsumer, partition:Queue) = {
+    assignments(consumer) += partition
+    partition.bind(consumer::Nil)
+  }
+
+  private def unassign(consumer:DeliveryConsumer, partition:Queue) = {
+    assignments(consumer) -= partition
+    partition.unbind(consumer::Nil)
+  }
+
+  /**
+   * Gives every partition a consumer and every consumer a partition while
+   * moving as few of the existing assignments as possible.  Moving a
+   * consumer nacks the deliveries it had not acked yet on the partition
+   * it leaves.
+   */
+  private def rebalance:Unit = {
+    if( assignments.isEmpty ) {
+      return
+    }
+
+    partitions.foreach { partition =>
+      if( consumers_of(partition) == 0 ) {
+        // move a consumer over from a partition that has several,
+        // otherwise double up the consumer with the fewest partitions.
+        val donor = partitions.maxBy(consumers_of(_))
+        if( consumers_of(donor) > 1 ) {
+          val consumer = assignments.filter(_._2.contains(donor)).minBy(_._2.size)._1
+          unassign(consumer, donor)
+          assign(consumer, partition)
+        } else {
+          assign(assignments.minBy(_._2.size)._1, partition)
+        }
+      }
+    }
+
+    assignments.keys.toList.foreach { consumer =>
+      if( assignments(consumer).isEmpty ) {
+        // take over partitions from the consumers that have more than
+        // their share, otherwise share the partition with the fewest
+        // consumers.
+        var done = false
+        while( !done ) {
+          val (busiest, assigned) = assignments.maxBy(_._2.size)
+          if( assigned.size > assignments(consumer).size + 1 ) {
+            val partition = assigned.last
+            unassign(busiest, partition)
+            assign(consumer, partition)
+          } else {
+            done = true
+          }
+        }
+        if( assignments(consumer).isEmpty ) {
+          assign(consumer, partitions.minBy(consumers_of(_)))
+        }
+      }
+    }
+  }
+
+  def connect(p:DeliveryProducer) = new DeliverySession {
+    retain
+
+    override def toString = queue.toString
+
+    def producer = p
+    def consumer = QueuePartitionsConsumer.this
+
+    val sessions = partitions.map(_.connect(p))
+
+    // the partition the next delivery goes to if it's not full.
+    var next = 0
+
+    def remaining_capacity = sessions.foldLeft(0)(_ + _.remaining_capacity)
+
+    def close = {
+      sessions.foreach(_.close)
+      release
+    }
+
+    def full = sessions.forall(_.full)
+
+    def offer(delivery:Delivery):Boolean = {
+      var i = 0
+      while( i < sessions.length ) {
+        val session = sessions((next + i) % sessions.length)
+        if( !session.full ) {
+          next = (next + i + 1) % sessions.length
+          return session.offer(delivery)
+        }
+        i += 1
+      }
+      false
+    }
+
+    def refiller = sessions(0).refiller
+
+    def refiller_=(value:Runnable) = sessions.foreach(_.refiller = value)
+  }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * Schedules the queues of a virtual host restoring from the store so that
+ * up to `concurrency` of them list their entry ranges at the same time.
+ * Queues which are done restoring can be used right away while the others
+ * are still waiting for their turn.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueRecoveryPlanner(var concurrency:Int) {
+
+  val dispatch_queue = createQueue("queue recovery planner")
+
+  // The following are only accessed from the planner's dispatch queue.
+  private val pending = ListBuffer[(Runnable)=>Unit]()
+  private var running = 0
+
+  @volatile
+  var submitted = 0
+  @volatile
+  var completed = 0
+
+  // When the first restore got submitted and the last one completed.
+  @volatile
+  var started_at = 0L
+  @volatile
+  var completed_at = 0L
+
+  def in_progress = submitted - completed
+
+  def is_done = submitted == completed
+
+  /**
+   * Runs the restore once a slot frees up.  The restore must run the
+   * runnable it's passed once it's done using the store.
+   */
+  def submit(restore: (Runnable)=>Unit) = dispatch_queue {
+    if( submitted == completed ) {
+      started_at = System.currentTimeMillis
+    }
+    submitted += 1
+    pending += restore
+    drain
+  }
+
+  private def drain:Unit = {
+    while( running < concurrency.max(1) && !pending.isEmpty ) {
+      val restore = pending.remove(0)
+      running += 1
+      restore(dispatch_queue.runnable {
+        running -= 1
+        completed += 1
+        if( submitted == completed ) {
+          completed_at = System.currentTimeMillis
+        }
+        drain
+      })
+    }
+  }
+
+}
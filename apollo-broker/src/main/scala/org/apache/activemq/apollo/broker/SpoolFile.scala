@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.io.{RandomAccessFile, File}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.{RejectedExecutionException, ThreadFactory, Executors, ExecutorService}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
+import org.apache.activemq.apollo.broker.store.MessageRecord
+import org.apache.activemq.apollo.util.Log
+
+object SpoolFile extends Log {
+  /**
+   * Space in the file is handed out in blocks of this size so that
+   * freed space can be reused by similarly sized messages.
+   */
+  val BLOCK_SIZE = 512
+
+  // a location holds the first block of a record in the high bits and
+  // the number of blocks it uses in the low bits.
+  private val COUNT_BITS = 24
+
+  def location(block:Long, count:Int) = (block << COUNT_BITS) | count
+  def block_of(location:Long) = location >>> COUNT_BITS
+  def count_of(location:Long) = (location & ((1L << COUNT_BITS)-1)).toInt
+}
+
+/**
+ * <p>
+ * A temporary file that the non-persistent queues of a virtual host swap
+ * their messages out to.  Records are appended to the end of the file
+ * unless the free list holds a freed region big enough to reuse.  Freed
+ * regions are not coalesced.  The locations handed out encode how many
+ * blocks a record uses, so freeing it does not have to touch the file.
+ * </p>
+ *
+ * <p>
+ * All the file IO and free list bookkeeping happens on a single spool
+ * thread, callbacks get invoked on that thread.  The file is deleted
+ * when the spool is started and stopped, so it does not survive restarts.
+ * Once stopped, writes fail with -1, reads with None and frees are ignored.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SpoolFile(val file:File) {
+  import SpoolFile._
+
+  private var executor:ExecutorService = _
+  private var channel:FileChannel = _
+
+  // the number of blocks in use up to the end of the file.
+  private var append_block = 0L
+
+  // freed regions, keyed by their size in blocks.
+  private val free_list = new java.util.TreeMap[java.lang.Integer, java.util.ArrayList[java.lang.Long]]()
+
+  def size = append_block * BLOCK_SIZE
+
+  def start = {
+    file.getParentFile.mkdirs
+    file.delete
+    channel = new RandomAccessFile(file, "rw").getChannel
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "spool: "+file.getName)
+        rc.setDaemon(true)
+        rc
+      }
+    })
+  }
+
+  private def execute(func: =>Unit)(rejected: =>Unit) = {
+    try {
+      executor.execute(^{ func })
+    } catch {
+      case e:RejectedExecutionException => rejected
+    }
+  }
+
+  def stop = {
+    execute {
+      channel.close
+      file.delete
+    } {
+      // already stopped.
+    }
+    executor.shutdown
+  }
+
+  /**
+   * Writes the record to the spool and passes the location it was written
+   * at to the callback, or -1 if the write failed.
+   */
+  def write(record:MessageRecord)(cb: Long=>Unit):Unit = execute {
+    val rc = try {
+      val length = 4 + 2 + record.protocol.length + 4 + 8 + record.buffer.length
+      val buffer = ByteBuffer.allocate(length)
+      buffer.putInt(length)
+      buffer.putShort(record.protocol.length.toShort)
+      buffer.put(record.protocol.data, record.protocol.offset, record.protocol.length)
+      buffer.putInt(record.size)
+      buffer.putLong(record.expiration)
+      buffer.put(record.buffer.data, record.buffer.offset, record.buffer.length)
+      buffer.flip
+
+      val count = blocks(length)
+      val block = allocate(count)
+      val pos = block * BLOCK_SIZE
+      while( buffer.hasRemaining ) {
+        channel.write(buffer, pos + buffer.position)
+      }
+      location(block, count)
+    } catch {
+      case e:Throwable =>
+        warn(e, "Could not write to the spool file: %s", file)
+        -1L
+    }
+    cb(rc)
+  } {
+    cb(-1L)
+  }
+
+  /**
+   * Reads back the record written at the location.
+   */
+  def read(location:Long)(cb: Option[MessageRecord]=>Unit):Unit = execute {
+    val rc = try {
+      // read all the blocks of the record in one go, the last
+      // one may be cut short by the end of the file.
+      val pos = block_of(location) * BLOCK_SIZE
+      val data = new Array[Byte](count_of(location) * BLOCK_SIZE)
+      val buffer = ByteBuffer.wrap(data)
+      var eof = false
+      while( buffer.hasRemaining && !eof ) {
+        eof = channel.read(buffer, pos + buffer.position) < 0
+      }
+      buffer.flip
+      if( buffer.remaining < 4 || buffer.remaining < buffer.getInt(0) ) {
+        throw new java.io.EOFException
+      }
+      buffer.limit(buffer.getInt)
+      val record = new MessageRecord
+      val protocol_length = buffer.getShort
+      record.protocol = new AsciiBuffer(data, buffer.position, protocol_length)
+      buffer.position(buffer.position + protocol_length)
+      record.size = buffer.getInt
+      record.expiration = buffer.getLong
+      record.buffer = new Buffer(data, buffer.position, buffer.remaining)
+      Some(record)
+    } catch {
+      case e:Throwable =>
+        warn(e, "Could not read from the spool file: %s", file)
+        None
+    }
+    cb(rc)
+  } {
+    cb(None)
+  }
+
+  /**
+   * Releases the space used by the record written at the location.
+   */
+  def free(location:Long):Unit = execute {
+    val block = block_of(location)
+    val count = count_of(location)
+    if( block + count == append_block ) {
+      append_block = block
+    } else {
+      add_free(block, count)
+    }
+  } {
+    // the file is gone already.
+  }
+
+  private def blocks(length:Int) = (length + BLOCK_SIZE - 1) / BLOCK_SIZE
+
+  private def allocate(count:Int):Long = {
+    val fitting = free_list.tailMap(count)
+    if( fitting.isEmpty ) {
+      val rc = append_block
+      append_block += count
+      rc
+    } else {
+      val key = fitting.firstKey
+      val regions = fitting.get(key)
+      val rc = regions.remove(regions.size-1).longValue
+      if( regions.isEmpty ) {
+        free_list.remove(key)
+      }
+      // hand back what we don't need.
+      val extra = key.intValue - count
+      if( extra > 0 ) {
+        add_free(rc + count, extra)
+      }
+      rc
+    }
+  }
+
+  private def add_free(block:Long, count:Int) = {
+    var regions = free_list.get(count)
+    if( regions == null ) {
+      regions = new java.util.ArrayList[java.lang.Long]()
+      free_list.put(count, regions)
+    }
+    regions.add(block)
+  }
+
+}
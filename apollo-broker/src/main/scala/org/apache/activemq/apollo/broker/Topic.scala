@@ -23,6 +23,7 @@ import org.apache.activemq.apollo.dto._
 import collection.mutable.{HashMap, ListBuffer}
 import java.util.concurrent.TimeUnit
 import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.broker.store.DurabilityLevel
 
 /**
  * <p>
@@ -44,6 +45,7 @@ class Topic(val router:LocalRouter, val destination_dto:TopicDestinationDTO, var
   var consumer_counter = 0L
 
   var config:TopicDTO = _
+  var durability:DurabilityLevel = null
 
   refresh_config
 
@@ -64,6 +66,8 @@ class Topic(val router:LocalRouter, val destination_dto:TopicDestinationDTO, var
     import OptionSupport._
 
     config = config_updater()
+    durability = DurabilityLevel.parse(config.durability)
+    durable_subscriptions.foreach(_.topic_durability = durability)
     auto_delete_after = config.auto_delete_after.getOrElse(60*5)
     if( auto_delete_after!= 0 ) {
       // we don't auto delete explicitly configured destinations.
@@ -167,6 +171,7 @@ class Topic(val router:LocalRouter, val destination_dto:TopicDestinationDTO, var
   def bind_durable_subscription(destination: DurableSubscriptionDestinationDTO, queue:Queue)  = {
     if( !durable_subscriptions.contains(queue) ) {
       durable_subscriptions += queue
+      queue.topic_durability = durability
       val list = List(queue)
       producers.foreach({ r=>
         r.bind(list)
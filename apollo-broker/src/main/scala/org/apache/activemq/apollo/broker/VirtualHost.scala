@@ -28,6 +28,7 @@ import org.fusesource.hawtbuf.{Buffer, AsciiBuffer}
 import collection.JavaConversions
 import java.util.concurrent.atomic.AtomicLong
 import org.apache.activemq.apollo.util.OptionSupport._
+import org.apache.activemq.apollo.util.FileSupport._
 import org.apache.activemq.apollo.util.path.{Path, PathParser}
 import security.{AclAuthorizer, JaasAuthenticator, Authenticator, Authorizer}
 import org.apache.activemq.apollo.broker.store.{ZeroCopyBufferAllocator, Store, StoreFactory}
@@ -98,10 +99,16 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
   var names:List[String] = Nil;
 
   var store:Store = null
+  var spool:SpoolFile = null
+  val queue_recovery = new QueueRecoveryPlanner(10)
+  val message_cache = new MessageCache
   val queue_id_counter = new LongCounter()
 
   val session_counter = new AtomicLong(0)
 
+  // memory credit held by the queues of this host, maintained by the broker's MemoryGovernor.
+  val memory_used = new AtomicLong(0)
+
   var authenticator:Authenticator = _
   var authorizer:Authorizer = _
 
@@ -140,6 +147,9 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
   }
 
   def apply_update:Unit = {
+    queue_recovery.concurrency = config.recovery_concurrency.getOrElse(10)
+    message_cache.limit = Option(config.message_cache_size).map(MemoryPropertyEditor.parse(_)).getOrElse(MessageCache.DEFAULT_SIZE)
+
     // Configure the logging categories...
     val log_category = config.log_category.getOrElse(new LogCategoryDTO)
     security_log = Option(log_category.security).map(Log(_)).getOrElse(broker.security_log)
@@ -169,6 +179,13 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
     apply_update
 
     store = StoreFactory.create(config.store)
+    message_cache.clear
+
+    spool = null
+    if( config.spool.getOrElse(false) && broker.tmp!=null ) {
+      spool = new SpoolFile(broker.tmp / "spool" / (id+".spool"))
+      spool.start
+    }
 
     val tracker = new LoggingTracker("virtual host startup", console_log)
     if( store!=null ) {
@@ -190,6 +207,8 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
           if( config.purge_on_startup.getOrElse(false) ) {
             val task = tracker.task("store purge")
             store.purge {
+              // the purged store hands out the message keys again.
+              message_cache.clear
               task.run
             }
           }
@@ -214,7 +233,14 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService {
     if( store!=null ) {
       tracker.stop(store);
     }
-    tracker.callback(on_completed)
+    tracker.callback {
+      // the stopped spool stays around since queue entries may
+      // still try to free their spooled messages.
+      if( spool!=null ) {
+        spool.stop
+      }
+      on_completed.run
+    }
   }
 
 
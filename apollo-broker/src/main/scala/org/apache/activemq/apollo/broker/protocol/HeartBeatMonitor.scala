@@ -24,6 +24,9 @@ import java.util.concurrent.TimeUnit
  * of a transport to see if it is still alive or if a keep alive
  * packet needs to be transmitted to keep it alive.</p>
  *
+ * <p>When a wheel is set, the checks run from the shared wheel instead
+ * of scheduling timers on the transport's dispatch queue.</p>
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class HeartBeatMonitor() {
@@ -35,8 +38,36 @@ class HeartBeatMonitor() {
   var on_keep_alive = ()=>{}
   var on_dead = ()=>{}
 
+  var wheel:HeartBeatWheel = null
+  var checks:List[HeartBeatWheel.Check] = Nil
+
   var session = 0
 
+  /**
+   * Runs the action on the transport's queue when the counter has not
+   * changed since the last check.  The counter gets read from the wheel's
+   * dispatch threads, which is why the codec counters are volatile.
+   */
+  def wheel_check(interval:Long, counter: =>Long, action: =>Unit) = {
+    val session = this.session
+    val queue = transport.getDispatchQueue
+    new HeartBeatWheel.Check(interval, queue) {
+      @volatile
+      var last_counter = counter
+      def check = {
+        val current = if( transport.getProtocolCodec==null ) last_counter else counter
+        if( current == last_counter ) {
+          queue {
+            if( HeartBeatMonitor.this.session == session ) {
+              action
+            }
+          }
+        }
+        last_counter = current
+      }
+    }
+  }
+
   def schedual_check_writes(session:Int):Unit = {
     val last_write_counter = transport.getProtocolCodec.getWriteCounter()
     transport.getDispatchQueue.after(write_interval/2, TimeUnit.MILLISECONDS) {
@@ -63,15 +94,27 @@ class HeartBeatMonitor() {
 
   def start = {
     session += 1
-    if( write_interval!=0 ) {
-      schedual_check_writes(session)
-    }
-    if( read_interval!=0 ) {
-      schedual_check_reads(session)
+    if( wheel!=null ) {
+      if( write_interval!=0 ) {
+        checks ::= wheel_check(write_interval/2, transport.getProtocolCodec.getWriteCounter, on_keep_alive())
+      }
+      if( read_interval!=0 ) {
+        checks ::= wheel_check(read_interval, transport.getProtocolCodec.getReadCounter, on_dead())
+      }
+      checks.foreach(wheel.add(_))
+    } else {
+      if( write_interval!=0 ) {
+        schedual_check_writes(session)
+      }
+      if( read_interval!=0 ) {
+        schedual_check_reads(session)
+      }
     }
   }
 
   def stop = {
     session += 1
+    checks.foreach(_.cancel)
+    checks = Nil
   }
 }
\ No newline at end of file
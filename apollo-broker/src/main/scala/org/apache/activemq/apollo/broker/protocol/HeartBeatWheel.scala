@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol
+
+import java.util.concurrent.TimeUnit
+import org.fusesource.hawtdispatch._
+import collection.mutable.{HashMap, ListBuffer}
+
+object HeartBeatWheel {
+
+  /**
+   * How often in milliseconds the wheel advances.
+   */
+  val TICK = 100L
+
+  /**
+   * The number of slots in the wheel.  Checks with intervals longer
+   * than a full turn of the wheel wait for multiple turns.
+   */
+  val WHEEL_SIZE = 512
+
+  /**
+   * A periodic check.  check gets called every interval milliseconds on
+   * the target queue of queue, so it should only dispatch to queue if it
+   * needs to act.
+   */
+  abstract class Check(val interval:Long, val queue:DispatchQueue) {
+    @volatile
+    var canceled = false
+    private[protocol] var rounds = 0L
+
+    def check:Unit
+
+    def cancel = canceled = true
+  }
+}
+
+/**
+ * <p>
+ * A hashed timing wheel which runs the periodic heart beat checks of all
+ * the connections of a broker from a single timer.  Checks stay in the wheel
+ * until they get canceled, so they don't have to be re-scheduled after
+ * every interval.
+ * </p>
+ *
+ * <p>
+ * The checks which are due on a tick get batched up by the dispatch
+ * thread their connection runs on so that it takes one task per thread
+ * to run them instead of one per connection.  The wheel stops ticking
+ * while it's empty.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HeartBeatWheel(val tick:Long = HeartBeatWheel.TICK) {
+  import HeartBeatWheel._
+
+  val dispatch_queue = createQueue("heart beat wheel")
+
+  // The following are only accessed from the wheel's dispatch queue.
+  private val wheel = Array.fill(WHEEL_SIZE)(ListBuffer[Check]())
+  private var cursor = 0
+  private[protocol] var size = 0
+  private[protocol] var ticking = false
+
+  def add(check:Check) = dispatch_queue {
+    insert(check)
+    size += 1
+    if( !ticking ) {
+      ticking = true
+      schedule_tick
+    }
+  }
+
+  private def insert(check:Check) = {
+    val ticks = (check.interval / tick).max(1)
+    check.rounds = (ticks - 1) / WHEEL_SIZE
+    wheel(((cursor + ticks) % WHEEL_SIZE).toInt) += check
+  }
+
+  private def schedule_tick:Unit = dispatch_queue.after(tick, TimeUnit.MILLISECONDS) {
+    cursor = (cursor + 1) % WHEEL_SIZE
+    val slot = wheel(cursor)
+    if( !slot.isEmpty ) {
+      wheel(cursor) = ListBuffer[Check]()
+      val due = HashMap[DispatchQueue, ListBuffer[Check]]()
+      slot.foreach { check =>
+        if( check.canceled ) {
+          size -= 1
+        } else if( check.rounds > 0 ) {
+          check.rounds -= 1
+          wheel(cursor) += check
+        } else {
+          val target = Option(check.queue.getTargetQueue).getOrElse(check.queue)
+          due.getOrElseUpdate(target, ListBuffer[Check]()) += check
+          insert(check)
+        }
+      }
+      due.foreach { case (target, checks) =>
+        target {
+          checks.foreach { check =>
+            if( !check.canceled ) {
+              check.check
+            }
+          }
+        }
+      }
+    }
+    if( size > 0 ) {
+      schedule_tick
+    } else {
+      ticking = false
+    }
+  }
+
+}
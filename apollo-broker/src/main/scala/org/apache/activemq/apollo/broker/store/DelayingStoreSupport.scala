@@ -16,17 +16,40 @@
  */
 package org.apache.activemq.apollo.broker.store
 
-import collection.mutable.ListBuffer
+import collection.mutable.{ArrayBuffer, ListBuffer}
 import java.util.HashMap
 import collection.Seq
 import org.fusesource.hawtdispatch._
 import java.util.concurrent._
-import atomic.{AtomicReference, AtomicInteger}
+import atomic.{AtomicLong, AtomicReference, AtomicInteger}
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
 import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO}
 import org.fusesource.hawtbuf.Buffer
 
+object DelayingStoreSupport {
+
+  /**
+   * The lock stripes used by the maps tracking the pending stores and
+   * enqueues.
+   */
+  val PENDING_STRIPES = 16
+
+  /**
+   * Uows holding more messages than this get their message actions
+   * indexed by message key.
+   */
+  val LINEAR_SCAN_LIMIT = 8
+
+  abstract class UOWUpdate {
+    var next:UOWUpdate = _
+  }
+  class StoreUpdate(val record:MessageRecord) extends UOWUpdate
+  class EnqueueUpdate(val entry:QueueEntryRecord) extends UOWUpdate
+  class DequeueUpdate(val entry:QueueEntryRecord) extends UOWUpdate
+  class PutUpdate(val key:Buffer, val value:Buffer) extends UOWUpdate
+}
+
 /**
  * <p>
  * Support class for implementing Stores which delay doing updates
@@ -37,11 +60,25 @@ import org.fusesource.hawtbuf.Buffer
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 trait DelayingStoreSupport extends Store with BaseService {
+  import DelayingStoreSupport._
 
   protected def flush_delay:Long
 
+  /**
+   * The bounds the flush delay gets tuned within.  The delay stays fixed
+   * at flush_delay unless a store configures wider bounds.
+   */
+  protected def flush_delay_min:Long = flush_delay
+  protected def flush_delay_max:Long = flush_delay
+
   protected def get_next_msg_key:Long
 
+  /**
+   * The counter message keys get handed out from.  Stores which get
+   * striped together share one counter.
+   */
+  var next_msg_key:AtomicLong
+
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
   /////////////////////////////////////////////////////////////////////
@@ -50,7 +87,6 @@ trait DelayingStoreSupport extends Store with BaseService {
   //
   /////////////////////////////////////////////////////////////////////
   val dispatch_queue:DispatchQueue = createQueue(toString)
-  val aggregator = new AggregatingExecutor(dispatch_queue)
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -61,9 +97,6 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   class DelayableUOW extends BaseRetained with StoreUOW {
 
-    var dispose_start:Long = 0
-    var flushing = false;
-
     class MessageAction {
 
       var msg= 0L
@@ -72,62 +105,103 @@ trait DelayingStoreSupport extends Store with BaseService {
       var dequeues = ListBuffer[QueueEntryRecord]()
 
       def uow = DelayableUOW.this
-      def isEmpty() = message_record==null && enqueues==Nil && dequeues==Nil
+      def isEmpty() = message_record==null && enqueues.isEmpty && dequeues.isEmpty
 
       def cancel() = {
-        uow.rm(msg)
+        DelayableUOW.this.rm(this)
       }
     }
 
     val uow_id:Int = next_batch_id.getAndIncrement
-    var actions = Map[Long, MessageAction]()
 
-    var completed = false
-    var complete_listeners = ListBuffer[() => Unit]()
-    var flushed = false
-    var flush_listeners = ListBuffer[() => Unit]()
+    // Several queues can add to the same uow concurrently, so updates get
+    // pushed onto this list without locking and are only grouped into
+    // message actions once the uow is disposed.
+    private val updates = new AtomicReference[UOWUpdate]()
+
+    private val durability_ref = new AtomicReference[DurabilityLevel]()
+    private val flush_listeners = new AtomicReference[List[()=>Unit]](Nil)
+    private val complete_listeners = new AtomicReference[List[()=>Unit]](Nil)
+
+    @volatile
     var disable_delay = false
 
+    // The following are only accessed from the store's dispatch queue.
+    var dispose_start:Long = 0
+    var built = false
+    var flushing = false
+    var actions = Array[MessageAction]()
     var map_actions = Map[Buffer, Buffer]()
-
-    def put(key: Buffer, value: Buffer) = {
-      map_actions += (key -> value)
+    var delayable_actions = 0
+    private var action_index:HashMap[Long, MessageAction] = null
+
+    // The dequeues of other uows for enqueues in this uow which could not
+    // cancel them out yet, those uows have to be flushed after it.
+    var dependents = List[(DelayableUOW, DelayableUOW#MessageAction, QueueEntryRecord)]()
+    var blockers = 0
+    var flush_requested = false
+
+    private def push(update:UOWUpdate) = {
+      var done = false
+      while( !done ) {
+        val head = updates.get
+        update.next = head
+        done = updates.compareAndSet(head, update)
+      }
     }
 
-    def on_flush(callback: =>Unit) = {
-      if( this.synchronized {
-        if( flushed ) {
-          true
-        } else {
-          flush_listeners += ( ()=> callback  )
-          false
+    def put(key: Buffer, value: Buffer) = push(new PutUpdate(key, value))
+
+    def on_flush(callback: =>Unit) = add_listener(flush_listeners, callback _)
+
+    def on_complete(callback: =>Unit) = add_listener(complete_listeners, callback _)
+
+    /**
+     * Listeners get added until the list is swapped out for a null
+     * when the event fires, after that they are run right away.
+     */
+    private def add_listener(listeners:AtomicReference[List[()=>Unit]], callback:()=>Unit):Unit = {
+      while( true ) {
+        val current = listeners.get
+        if( current==null ) {
+          callback()
+          return
+        }
+        if( listeners.compareAndSet(current, callback :: current) ) {
+          return
         }
-      }) {
-        callback
       }
     }
 
-    def on_complete(callback: =>Unit) = {
-      if( this.synchronized {
-        if( completed ) {
-          true
-        } else {
-          complete_listeners += ( ()=> callback  )
-          false
-        }
-      }) {
-        callback
+    def complete_asap() = disable_delay = true
+
+    def durability_level = durability_ref.get
+
+    def durability(level:DurabilityLevel) = {
+      var done = false
+      while( !done ) {
+        val current = durability_ref.get
+        done = durability_ref.compareAndSet(current, DurabilityLevel.strongest(current, level))
       }
     }
 
-    def complete_asap() = this.synchronized { disable_delay=true }
-
-    var delayable_actions = 0
+    /**
+     * Does the store need to sync this uow to disk before completing it?
+     */
+    def sync = if( durability_level==null ) {
+      val listeners = complete_listeners.get
+      listeners!=null && !listeners.isEmpty
+    } else {
+      durability_level.sync
+    }
 
     def delayable = !disable_delay && delayable_actions>0 && flush_delay>=0
 
-    def rm(msg:Long) = {
-      actions -= msg
+    def rm(action:MessageAction) = {
+      actions = actions.filterNot(_ eq action)
+      if( action_index!=null ) {
+        action_index.remove(action.msg)
+      }
       if( actions.isEmpty && map_actions.isEmpty ) {
         cancel
       }
@@ -137,72 +211,123 @@ trait DelayingStoreSupport extends Store with BaseService {
       dispatch_queue.assertExecuting()
       flushing = true
       delayed_uows.remove(uow_id)
+      release_dependents
       on_completed
     }
 
     def store(record: MessageRecord):Long = {
       record.key = get_next_msg_key
-      val action = new MessageAction
-      action.msg = record.key
-      action.message_record = record
-      this.synchronized {
-        actions += record.key -> action
-      }
-      aggregator {
-        pending_stores.put(record.key, action)
-      }
-      delayable_actions += 1
-      record.key
+      store_keyed(record)
     }
 
-    def action(msg:Long) = {
-      actions.get(msg) match {
-        case Some(x) => x
-        case None =>
-          val x = new MessageAction
-          x.msg = msg
-          actions += msg->x
-          x
-      }
+    /**
+     * Stores a message which was already assigned a key from the
+     * next_msg_key counter.
+     */
+    def store_keyed(record: MessageRecord):Long = {
+      pending_stores.put(record.key, this)
+      push(new StoreUpdate(record))
+      record.key
     }
 
     def enqueue(entry: QueueEntryRecord) = {
-      val a = this.synchronized {
-        val a = action(entry.message_key)
-        a.enqueues += entry
-        delayable_actions += 1
-        a
+      pending_enqueues.put(key(entry), this)
+      push(new EnqueueUpdate(entry))
+    }
+
+    def dequeue(entry: QueueEntryRecord) = push(new DequeueUpdate(entry))
+
+    override def dispose = {
+      dispose_start = System.nanoTime
+      uow_source.merge(this)
+    }
+
+    /**
+     * Groups the updates by message once no more can get added.
+     */
+    def build_actions = {
+      dispatch_queue.assertExecuting()
+      var list = List[UOWUpdate]()
+      var update = updates.getAndSet(null)
+      while( update!=null ) {
+        list ::= update
+        update = update.next
       }
-      aggregator {
-        pending_enqueues.put(key(entry), a)
+
+      val built_actions = new ArrayBuffer[MessageAction](list.size)
+      def action(msg:Long) = {
+        var rc = find_action(built_actions, msg)
+        if( rc==null ) {
+          rc = new MessageAction
+          rc.msg = msg
+          built_actions += rc
+          if( action_index!=null ) {
+            action_index.put(msg, rc)
+          } else if( built_actions.size > LINEAR_SCAN_LIMIT ) {
+            action_index = new HashMap[Long, MessageAction]()
+            built_actions.foreach(x=> action_index.put(x.msg, x))
+          }
+        }
+        rc
       }
 
+      list.foreach {
+        case x:StoreUpdate =>
+          action(x.record.key).message_record = x.record
+          delayable_actions += 1
+        case x:EnqueueUpdate =>
+          action(x.entry.message_key).enqueues += x.entry
+          delayable_actions += 1
+        case x:DequeueUpdate =>
+          action(x.entry.message_key).dequeues += x.entry
+        case x:PutUpdate =>
+          map_actions += (x.key -> x.value)
+      }
+      actions = built_actions.toArray
+      built = true
     }
 
-    def dequeue(entry: QueueEntryRecord) = {
-      this.synchronized {
-        action(entry.message_key).dequeues += entry
+    private def find_action(candidates:IndexedSeq[MessageAction], msg:Long):MessageAction = {
+      if( action_index!=null ) {
+        action_index.get(msg)
+      } else {
+        // uows usually only hold a few messages.
+        var i = candidates.size-1
+        while( i >= 0 ) {
+          if( candidates(i).msg == msg ) {
+            return candidates(i)
+          }
+          i -= 1
+        }
+        null
       }
     }
 
-    override def dispose = {
-      dispose_start = System.nanoTime
-      uow_source.merge(this)
+    def action(msg:Long) = find_action(actions, msg)
+
+    def release_dependents = {
+      dependents.foreach { case (dependent, _, _) =>
+        dependent.blockers -= 1
+        if( dependent.blockers==0 && dependent.flush_requested ) {
+          flush(dependent)
+        }
+      }
+      dependents = Nil
     }
 
-    def on_flushed() = this.synchronized {
-      if( !flushed ) {
-        flushed = true
-        flush_listeners.foreach(_())
+    def on_flushed() = {
+      val listeners = flush_listeners.getAndSet(null)
+      if( listeners!=null ) {
+        listeners.reverse.foreach(_())
       }
     }
 
-    def on_completed() = this.synchronized {
-      if ( !completed ) {
+    def on_completed() = {
+      val listeners = complete_listeners.getAndSet(null)
+      if ( listeners!=null ) {
         on_flushed
-        completed = true
         commit_latency_counter += System.nanoTime-dispose_start
-        complete_listeners.foreach(_())
+        listeners.reverse.foreach(_())
         super.dispose
       }
     }
@@ -218,9 +343,14 @@ trait DelayingStoreSupport extends Store with BaseService {
     flush_message_source.getData.foreach { case (message_key, cb) =>
       pending_stores.get(message_key) match {
         case null => cb()
-        case action =>
-          action.uow.on_complete( cb() )
-          flush(action.uow)
+        case uow =>
+          uow.on_complete( cb() )
+          if( uow.built ) {
+            flush(uow)
+          } else {
+            // it gets flushed as soon as it's disposed.
+            uow.complete_asap
+          }
       }
     }
   }
@@ -276,6 +406,7 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
     rc.pending_stores = pending_stores.size
+    rc.flush_delay = current_flush_delay
 
 //    import collection.JavaConversions._
 //    var last = ""
@@ -298,78 +429,204 @@ trait DelayingStoreSupport extends Store with BaseService {
   uow_source.setEventHandler(^{drain_uows});
   uow_source.resume
 
-  var pending_stores = new HashMap[Long, DelayableUOW#MessageAction]()
-  var pending_enqueues = new HashMap[(Long,Long), DelayableUOW#MessageAction]()
+  // The uows holding message stores and enqueues which have not been
+  // flushed yet.  They get updated directly by the threads adding to
+  // the uows, the lock striping keeps them from contending much.
+  val pending_stores = new ConcurrentHashMap[Long, DelayableUOW](1024, 0.75f, PENDING_STRIPES)
+  val pending_enqueues = new ConcurrentHashMap[(Long,Long), DelayableUOW](1024, 0.75f, PENDING_STRIPES)
   var delayed_uows = new HashMap[Int, DelayableUOW]()
 
   val next_batch_id = new AtomicInteger(1)
 
-  def drain_uows = {
-    dispatch_queue.assertExecuting()
-    uow_source.getData.foreach { uow =>
+  // The flush delay of the whole store and of each queue with recently
+  // delayed enqueues.  Only accessed from the dispatch queue.
+  private var store_delay_tuner:FlushDelayTuner = null
+  private val queue_delay_tuners = new HashMap[Long, FlushDelayTuner]()
+  private var last_delay_tuning = 0L
 
-      delayed_uows.put(uow.uow_id, uow)
+  private def store_tuner = {
+    if( store_delay_tuner==null ) {
+      store_delay_tuner = new FlushDelayTuner(flush_delay)
+      store_delay_tuner.bounds(flush_delay_min, flush_delay_max)
+    }
+    store_delay_tuner
+  }
 
-      uow.actions.foreach { case (msg, action) =>
+  private def queue_tuner(queue_key:Long) = {
+    var rc = queue_delay_tuners.get(queue_key)
+    if( rc==null ) {
+      rc = new FlushDelayTuner(store_tuner.delay)
+      rc.bounds(flush_delay_min, flush_delay_max)
+      queue_delay_tuners.put(queue_key, rc)
+    }
+    rc
+  }
 
-        // dequeues can cancel out previous enqueues
-        action.dequeues.foreach { currentDequeue=>
-          val currentKey = key(currentDequeue)
-          val prev_action:DelayableUOW#MessageAction = pending_enqueues.remove(currentKey)
+  /**
+   * The flush delay currently used for units of work which don't enqueue
+   * to any queues.  Queues get their own delays tuned from it.
+   */
+  def current_flush_delay = store_tuner.delay
+
+  private def tune_flush_delays = {
+    val now = System.currentTimeMillis
+    if( now - last_delay_tuning >= FlushDelayTuner.TUNE_INTERVAL ) {
+      last_delay_tuning = now
+      val min = flush_delay_min
+      val max = flush_delay_max
+      val pending = pending_stores.size
+      store_tuner.bounds(min, max)
+      store_tuner.tune(pending)
+      val i = queue_delay_tuners.values.iterator
+      while( i.hasNext ) {
+        val tuner = i.next
+        if( tuner.is_idle ) {
+          // it gets re-created from the store's delay if the queue gets used again.
+          i.remove
+        } else {
+          tuner.bounds(min, max)
+          tuner.tune(pending)
+        }
+      }
+    }
+  }
+
+  /**
+   * Holds back the uow for the longest delay tuned for the queues it
+   * enqueues to.
+   */
+  private def delay_for(uow:DelayableUOW) = {
+    var rc = -1L
+    uow.actions.foreach { action =>
+      action.enqueues.foreach { entry =>
+        val tuner = queue_tuner(entry.queue_key)
+        tuner.delayed += 1
+        store_tuner.delayed += 1
+        rc = rc.max(tuner.delay)
+      }
+    }
+    if( rc < 0 ) store_tuner.delay else rc
+  }
 
-          def prev_uow = prev_action.uow
+  private def cancel_enqueue(prev_uow:DelayableUOW, action:DelayableUOW#MessageAction, dequeue:QueueEntryRecord) = {
+    val currentKey = key(dequeue)
+    val prev_action = prev_uow.action(dequeue.message_key)
+    pending_enqueues.remove(currentKey)
+
+    prev_uow.delayable_actions -= 1
+    metric_canceled_enqueue_counter += 1
+    store_tuner.canceled += 1
+    val tuner = queue_delay_tuners.get(dequeue.queue_key)
+    if( tuner!=null ) {
+      tuner.canceled += 1
+    }
 
-          if( prev_action!=null && !prev_uow.flushing ) {
+    // yay we can cancel out a previous enqueue
+    prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == currentKey )
 
+    // if the message is not in any queues.. we can gc it..
+    if( prev_action.enqueues.isEmpty && prev_action.message_record !=null ) {
+      pending_stores.remove(prev_action.msg)
+      prev_action.message_record = null
+      prev_uow.delayable_actions -= 1
+      metric_canceled_message_counter += 1
+    }
 
-            prev_uow.delayable_actions -= 1
-            metric_canceled_enqueue_counter += 1
+    // Cancel the action if it's now empty
+    if( prev_action.isEmpty ) {
+      prev_action.cancel()
+    } else if( !prev_uow.delayable ) {
+      // flush it if there is no point in delyaing anymore
+      flush(prev_uow)
+    }
 
-            // yay we can cancel out a previous enqueue
-            prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == currentKey )
+    // since we canceled out the previous enqueue.. now cancel out the action
+    action.dequeues = action.dequeues.filterNot( _ == dequeue)
+    if( action.isEmpty ) {
+      action.cancel()
+    }
+  }
 
-            // if the message is not in any queues.. we can gc it..
-            if( prev_action.enqueues == Nil && prev_action.message_record !=null ) {
-              pending_stores.remove(msg)
-              prev_action.message_record = null
-              prev_uow.delayable_actions -= 1
-              metric_canceled_message_counter += 1
-            }
+  def drain_uows = {
+    dispatch_queue.assertExecuting()
+    tune_flush_delays
+    uow_source.getData.foreach { uow =>
 
-            // Cancel the action if it's now empty
-            if( prev_action.isEmpty ) {
-              prev_action.cancel()
-            } else if( !prev_uow.delayable ) {
-              // flush it if there is no point in delyaing anymore
-              flush(prev_uow)
-            }
+      uow.build_actions
+      delayed_uows.put(uow.uow_id, uow)
 
-            // since we canceled out the previous enqueue.. now cancel out the action
-            action.dequeues = action.dequeues.filterNot( _ == currentDequeue)
-            if( action.isEmpty ) {
-              action.cancel()
+      // dequeues which were waiting for this uow to get disposed
+      // can now cancel out its enqueues.  The ones which can't have to
+      // keep waiting until this uow gets flushed so that the dequeue
+      // does not get stored before the enqueue.
+      val waiting = uow.dependents.reverse
+      uow.dependents = Nil
+      waiting.foreach { case entry@(dependent, action, dequeue) =>
+        if( !uow.flushing && !dependent.flushing && pending_enqueues.get(key(dequeue)) == uow ) {
+          dependent.blockers -= 1
+          cancel_enqueue(uow, action, dequeue)
+          if( dependent.blockers==0 && dependent.flush_requested ) {
+            flush(dependent)
+          }
+        } else if( uow.flushing ) {
+          dependent.blockers -= 1
+          if( dependent.blockers==0 && dependent.flush_requested ) {
+            flush(dependent)
+          }
+        } else {
+          uow.dependents ::= entry
+        }
+      }
+
+      uow.actions.foreach { action =>
+
+        // dequeues can cancel out previous enqueues
+        action.dequeues.foreach { currentDequeue=>
+          val prev_uow = pending_enqueues.get(key(currentDequeue))
+          if( prev_uow!=null && !prev_uow.flushing ) {
+            if( prev_uow.built ) {
+              cancel_enqueue(prev_uow, action, currentDequeue)
+            } else {
+              // The enqueue is in a uow which has not been disposed yet, the
+              // dequeue has to wait for it to be canceled or stored first.
+              prev_uow.dependents ::= ((uow, action, currentDequeue))
+              uow.blockers += 1
             }
           }
         }
       }
 
       val uow_id = uow.uow_id
-      if( uow.delayable ) {
-        dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^{
-          flush(delayed_uows.get(uow_id))
-        })
-      } else {
-        flush(uow)
+      uow.durability_level match {
+        case DurabilityLevel.GROUP_COMMIT(max_delay) =>
+          // hold it back so that it shares a sync with the uows flushed meanwhile.
+          val delay = if( uow.delayable ) delay_for(uow).min(max_delay) else max_delay
+          dispatch_queue.executeAfter(delay, TimeUnit.MILLISECONDS, ^{
+            flush(delayed_uows.get(uow_id))
+          })
+        case _ =>
+          if( uow.delayable ) {
+            dispatch_queue.executeAfter(delay_for(uow), TimeUnit.MILLISECONDS, ^{
+              flush(delayed_uows.get(uow_id))
+            })
+          } else {
+            flush(uow)
+          }
       }
 
     }
   }
 
-  private def flush(uow:DelayableUOW) = {
+  private def flush(uow:DelayableUOW):Unit = {
     if( uow!=null && !uow.flushing ) {
-      uow.flushing = true
-      delayed_uows.remove(uow.uow_id)
-      flush_source.merge(uow)
+      if( uow.blockers > 0 ) {
+        uow.flush_requested = true
+      } else {
+        uow.flushing = true
+        delayed_uows.remove(uow.uow_id)
+        flush_source.merge(uow)
+        uow.release_dependents
+      }
     }
   }
 
@@ -397,14 +654,14 @@ trait DelayingStoreSupport extends Store with BaseService {
           flush_source.resume
           dispatch_queue.assertExecuting()
           uows.foreach { uow=>
-            uow.actions.foreach { case (msg, action) =>
+            uow.actions.foreach { action =>
               if( action.message_record !=null ) {
                 metric_flushed_message_counter += 1
-                pending_stores.remove(msg)
+                pending_stores.remove(action.msg, uow)
               }
               action.enqueues.foreach { queue_entry=>
                 metric_flushed_enqueue_counter += 1
-                pending_enqueues.remove(key(queue_entry))
+                pending_enqueues.remove(key(queue_entry), uow)
               }
             }
           }
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+/**
+ * <p>
+ * How durable the updates of a unit of work have to be before it
+ * completes.  A unit of work holding updates for destinations with
+ * different levels uses the strongest of them.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+sealed abstract class DurabilityLevel(val strength:Int, val sync:Boolean)
+
+object DurabilityLevel {
+
+  /**
+   * Synced to disk before the unit of work completes.
+   */
+  case object SYNC extends DurabilityLevel(3, true)
+
+  /**
+   * Synced to disk, but held back for up to max_delay milliseconds
+   * so that it shares the sync with other units of work.
+   */
+  case class GROUP_COMMIT(max_delay:Long) extends DurabilityLevel(2, true)
+
+  /**
+   * Written without a sync, the store syncs it in the background.
+   */
+  case object ASYNC_FLUSH extends DurabilityLevel(1, false)
+
+  /**
+   * Written without a sync, it's up to the OS to get it to disk.
+   */
+  case object OS_CACHE extends DurabilityLevel(0, false)
+
+  val DEFAULT_GROUP_COMMIT_DELAY = 10L
+
+  private val GROUP_COMMIT_PATTERN = """group_commit(?:\((\d+)\))?""".r
+
+  /**
+   * Parses values like: sync, group_commit, group_commit(50),
+   * async_flush or os_cache.  Returns null if value is null.
+   */
+  def parse(value:String):DurabilityLevel = value match {
+    case null => null
+    case "sync" => SYNC
+    case GROUP_COMMIT_PATTERN(delay) =>
+      GROUP_COMMIT(Option(delay).map(_.toLong).getOrElse(DEFAULT_GROUP_COMMIT_DELAY))
+    case "async_flush" => ASYNC_FLUSH
+    case "os_cache" => OS_CACHE
+    case _ => throw new IllegalArgumentException("Invalid durability: "+value)
+  }
+
+  /**
+   * @return the stronger of the two levels, either of them may be null.
+   */
+  def strongest(a:DurabilityLevel, b:DurabilityLevel):DurabilityLevel = (a, b) match {
+    case (null, _) => b
+    case (_, null) => a
+    case (GROUP_COMMIT(x), GROUP_COMMIT(y)) => if( x <= y ) a else b
+    case _ => if( b.strength > a.strength ) b else a
+  }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+object FlushDelayTuner {
+
+  /**
+   * How often in milliseconds the flush delays get tuned.
+   */
+  val TUNE_INTERVAL = 1000L
+
+  /**
+   * The delay is not changed on fewer delayed enqueues than this since it
+   * would be tuned on noise.
+   */
+  val MIN_SAMPLES = 50
+
+  /**
+   * Grow the delay while at least this share of the delayed enqueues
+   * get canceled.
+   */
+  val HIGH_CANCEL_RATIO = 0.5
+
+  /**
+   * Shrink the delay once less than this share of the delayed enqueues
+   * get canceled.
+   */
+  val LOW_CANCEL_RATIO = 0.1
+
+  /**
+   * Shrink the delay when this many message stores are waiting to be
+   * flushed, no matter how well canceling is working out.
+   */
+  val PENDING_STORES_LIMIT = 10000
+}
+
+/**
+ * <p>
+ * Tunes a flush delay between the min and max bounds based on how
+ * many of the enqueues held back by it end up getting canceled by
+ * a dequeue.  When consumers keep up, most delayed enqueues get canceled
+ * and a longer delay saves more writes.  When they fall behind, delaying
+ * just adds latency and holds more pending stores in memory so the
+ * delay shrinks back towards the min bound.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, it's only used from the store's dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class FlushDelayTuner(initial:Long) {
+  import FlushDelayTuner._
+
+  var min = initial
+  var max = initial
+  var delay = initial
+
+  // Counted since the last time the delay got tuned.
+  var delayed = 0L
+  var canceled = 0L
+
+  def bounds(min:Long, max:Long) = {
+    this.min = min
+    this.max = max.max(min)
+    delay = delay.max(this.min).min(this.max)
+  }
+
+  def is_idle = delayed == 0 && canceled == 0
+
+  def tune(pending_stores:Int) = {
+    if( pending_stores > PENDING_STORES_LIMIT ) {
+      shrink
+    } else if( delayed >= MIN_SAMPLES ) {
+      val ratio = canceled.toDouble / delayed
+      if( ratio >= HIGH_CANCEL_RATIO ) {
+        grow
+      } else if( ratio < LOW_CANCEL_RATIO ) {
+        shrink
+      }
+    }
+    delayed = 0
+    canceled = 0
+  }
+
+  private def grow = delay = (delay.max(1) * 2).min(max)
+
+  private def shrink = delay = (delay / 2).max(min)
+
+}
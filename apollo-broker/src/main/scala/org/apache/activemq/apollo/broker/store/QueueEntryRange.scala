@@ -17,6 +17,127 @@
 
 package org.apache.activemq.apollo.broker.store
 
+import org.fusesource.hawtbuf.{AbstractVarIntSupport, DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * Helpers used by the stores to keep a persistent summary of every block
+ * of entry seqs of a queue, so that a queue can be restored without
+ * visiting all of it's entries.
+ * </p>
+ *
+ * <p>
+ * A summary is updated as entries get enqueued and dequeued.  Since a
+ * dequeue can't tell if the removed entry was at the edge of the block or
+ * held the earliest expiration, the first and last seqs and the expiration
+ * of a summary only ever widen.  They are bounds on the remaining entries,
+ * which is all a queue needs to load the range later.
+ * </p>
+ */
+object QueueEntryRange {
+
+  /**
+   * Summaries cover blocks of 2^BLOCK_SHIFT entry seqs.
+   */
+  val BLOCK_SHIFT = 10
+
+  def block_of(entry_seq:Long) = entry_seq >>> BLOCK_SHIFT
+
+  def enqueued(range:QueueEntryRange, entry:QueueEntryRecord):QueueEntryRange = {
+    val rc = if( range == null ) {
+      val rc = new QueueEntryRange
+      rc.first_entry_seq = entry.entry_seq
+      rc.last_entry_seq = entry.entry_seq
+      rc
+    } else {
+      range
+    }
+    rc.first_entry_seq = rc.first_entry_seq.min(entry.entry_seq)
+    rc.last_entry_seq = rc.last_entry_seq.max(entry.entry_seq)
+    rc.count += 1
+    rc.size += entry.size
+    if( rc.expiration == 0 ) {
+      rc.expiration = entry.expiration
+    } else if( entry.expiration != 0 ) {
+      rc.expiration = entry.expiration.min(rc.expiration)
+    }
+    rc
+  }
+
+  /**
+   * @return null once the range no longer holds any entries.
+   */
+  def dequeued(range:QueueEntryRange, size:Int):QueueEntryRange = {
+    if( range == null || range.count <= 1 ) {
+      null
+    } else {
+      range.count -= 1
+      range.size -= size
+      range
+    }
+  }
+
+  /**
+   * Combines the summaries of consecutive blocks into ranges holding
+   * up to limit entries.  A single block holding more than limit
+   * entries is returned as is.
+   */
+  def group(blocks:Iterator[QueueEntryRange], limit:Int):Seq[QueueEntryRange] = {
+    val rc = ListBuffer[QueueEntryRange]()
+    var group:QueueEntryRange = null
+    blocks.foreach { block =>
+      if( group!=null && group.count + block.count > limit ) {
+        rc += group
+        group = null
+      }
+      if( group == null ) {
+        group = block
+      } else {
+        group.last_entry_seq = block.last_entry_seq
+        group.count += block.count
+        group.size += block.size
+        if( group.expiration == 0 ) {
+          group.expiration = block.expiration
+        } else if( block.expiration != 0 ) {
+          group.expiration = block.expiration.min(group.expiration)
+        }
+      }
+    }
+    if( group!=null ) {
+      rc += group
+    }
+    rc
+  }
+
+  def encode(range:QueueEntryRange):Buffer = {
+    val out = new DataByteArrayOutputStream(
+      AbstractVarIntSupport.computeVarLongSize(range.first_entry_seq) +
+      AbstractVarIntSupport.computeVarLongSize(range.last_entry_seq) +
+      AbstractVarIntSupport.computeVarIntSize(range.count) +
+      AbstractVarIntSupport.computeVarIntSize(range.size) +
+      AbstractVarIntSupport.computeVarLongSize(range.expiration)
+    )
+    out.writeVarLong(range.first_entry_seq)
+    out.writeVarLong(range.last_entry_seq)
+    out.writeVarInt(range.count)
+    out.writeVarInt(range.size)
+    out.writeVarLong(range.expiration)
+    out.toBuffer
+  }
+
+  def decode(buffer:Buffer):QueueEntryRange = {
+    val in = new DataByteArrayInputStream(buffer)
+    val rc = new QueueEntryRange
+    rc.first_entry_seq = in.readVarLong()
+    rc.last_entry_seq = in.readVarLong()
+    rc.count = in.readVarInt()
+    rc.size = in.readVarInt()
+    rc.expiration = in.readVarLong()
+    rc
+  }
+}
+
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -26,4 +147,4 @@ class QueueEntryRange {
   var count = 0
   var size = 0
   var expiration = 0L
-}
\ No newline at end of file
+}
@@ -96,7 +96,8 @@ trait Store extends ServiceTrait {
   /**
    * Groups all the entries in the specified queue into ranges containing up limit entries
    * big and returns those ranges.  Allows you to incrementally, load all the entries in
-   * a queue.
+   * a queue.  Stores which summarize their entries by block may return bigger ranges, and
+   * the first and last seqs and expiration of a range may only be bounds on its entries.
    */
   def list_queue_entry_ranges(queueKey:Long, limit:Int)(callback:(Seq[QueueEntryRange])=>Unit )
 
@@ -118,6 +119,14 @@ trait Store extends ServiceTrait {
    */
   def load_message(messageKey:Long, locator:AtomicReference[Array[Byte]])(callback:(Option[MessageRecord])=>Unit )
 
+  /**
+   * Loads a delivery which was enqueued to the given queue.  Stores which
+   * spread their queues over several stores use the queue to find it.
+   */
+  def load_message(queueKey:Long, messageKey:Long, locator:AtomicReference[Array[Byte]])(callback:(Option[MessageRecord])=>Unit ):Unit = {
+    load_message(messageKey, locator)(callback)
+  }
+
   /**
    * Exports the contents of the store to the provided streams.  Each stream should contain
    * a list of framed protobuf objects with the corresponding object types.
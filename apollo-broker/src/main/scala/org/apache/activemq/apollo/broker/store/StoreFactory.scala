@@ -17,7 +17,7 @@ package org.apache.activemq.apollo.broker.store
  * limitations under the License.
  */
 import org.apache.activemq.apollo.util._
-import org.apache.activemq.apollo.dto.{NullStoreDTO, StoreDTO}
+import org.apache.activemq.apollo.dto.{NullStoreDTO, StoreDTO, StripedStoreDTO}
 
 /**
  * <p>
@@ -36,6 +36,7 @@ object StoreFactory {
   def create(config:StoreDTO):Store = config match {
     case null => null
     case config:NullStoreDTO => null
+    case config:StripedStoreDTO => StripedStore.create(config)
     case _ =>
       providers.singletons.foreach { provider=>
         val rc = provider.create(config)
@@ -72,6 +72,14 @@ trait StoreUOW extends Retained {
    */
   def complete_asap()
 
+  /**
+   * Requires the uow to be at least as durable as the given
+   * level.  When called multiple times, the strongest level is
+   * used.  If never called, the Store implementation decides
+   * how durable the uow is.
+   */
+  def durability(level:DurabilityLevel)
+
   /**
    * The specified callback is executed once the UOW
    * has written to disk and flushed of the application
@@ -0,0 +1,724 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import java.{lang=>jl}
+import java.{util=>ju}
+import java.io._
+import java.util.concurrent.{CountDownLatch, Executors, ExecutorService, ThreadFactory, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong, AtomicReference, AtomicReferenceArray}
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.proto.PBMessageFactory
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.{StoreStatusDTO, StripedStoreDTO, StripedStoreStatusDTO}
+import collection.mutable.ListBuffer
+import scala.util.continuations._
+
+object StripedStore extends Log {
+
+  /**
+   * The number of points each store gets on the hash ring.
+   */
+  val VIRTUAL_NODES = 64
+
+  /**
+   * Map entries are all kept in the first store.
+   */
+  val MAP_STORE = 0
+
+  def hash(value:Long) = {
+    var x = value
+    x ^= x >>> 33
+    x *= 0xff51afd7ed558ccdL
+    x ^= x >>> 33
+    x *= 0xc4ceb53a85e34ec3L
+    x ^= x >>> 33
+    x.toInt
+  }
+
+  def create(config:StripedStoreDTO) = {
+    import collection.JavaConversions._
+    if( config.stores==null || config.stores.isEmpty ) {
+      throw new IllegalArgumentException("A striped store needs at least one store")
+    }
+    val stores = config.stores.map { x =>
+      StoreFactory.create(x) match {
+        case store:DelayingStoreSupport => store
+        case store => throw new IllegalArgumentException("Can't stripe the store: "+store)
+      }
+    }
+    new StripedStore(config, stores.toArray)
+  }
+}
+
+/**
+ * <p>
+ * A store which spreads the queues of a virtual host across several
+ * stores so that the stores can sync their updates to different disks
+ * at the same time.  Queues get assigned to a store by a consistent hash
+ * of their key.  Once a queue is in a store it stays there, even if
+ * the stripe gets reconfigured.
+ * </p>
+ *
+ * <p>
+ * The stores share one message key counter.  A message enqueued to
+ * queues in several stores gets written to each of those stores with
+ * the same key, so every store holds the messages its queues
+ * reference.  A message which was stored by an earlier unit of work
+ * gets copied from a store holding it when it's enqueued to a queue of
+ * another store.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StripedStore(val config:StripedStoreDTO, val stores:Array[DelayingStoreSupport]) extends Store with BaseService {
+  import StripedStore._
+
+  val dispatch_queue:DispatchQueue = createQueue(toString)
+
+  override def toString = "striped store of "+stores.length+" stores"
+
+  // The store each known queue is in.
+  private val queue_stores = new ConcurrentHashMap[Long, jl.Integer]()
+
+  private val ring = {
+    val rc = new ju.TreeMap[jl.Integer, jl.Integer]()
+    for( i <- 0 until stores.length; v <- 0 until VIRTUAL_NODES ) {
+      rc.put(hash(((i+1).toLong << 32) | v), i)
+    }
+    rc
+  }
+
+  private var export_executor:ExecutorService = _
+
+  /**
+   * The index of the store which holds the queue.
+   */
+  def store_index(queue_key:Long):Int = {
+    val rc = queue_stores.get(queue_key)
+    if( rc!=null ) {
+      rc.intValue
+    } else {
+      var entry = ring.ceilingEntry(hash(queue_key))
+      if( entry==null ) {
+        entry = ring.firstEntry
+      }
+      entry.getValue.intValue
+    }
+  }
+
+  def store_for(queue_key:Long) = stores(store_index(queue_key))
+
+  protected def _start(on_completed: Runnable) = {
+    export_executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "striped store export/import")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    val tracker = new LoggingTracker("striped store startup", StripedStore)
+    stores.foreach(tracker.start(_))
+    tracker.callback {
+      // Continue from the largest message key used by any of the stores.
+      val next_msg_key = new AtomicLong(stores.map(_.next_msg_key.get).max)
+      stores.foreach(_.next_msg_key = next_msg_key)
+      load_queue_stores(on_completed)
+    }
+  }
+
+  protected def _stop(on_completed: Runnable) = {
+    val tracker = new LoggingTracker("striped store shutdown", StripedStore)
+    stores.foreach(tracker.stop(_))
+    tracker.callback {
+      export_executor.shutdown
+      on_completed.run
+    }
+  }
+
+  private def load_queue_stores(on_completed: Runnable) = {
+    queue_stores.clear
+    val tracker = new TaskTracker("loading the queues of the striped stores")
+    for( i <- 0 until stores.length ) {
+      val task = tracker.task("list queues "+stores(i))
+      stores(i).list_queues { keys =>
+        keys.foreach(queue_stores.put(_, i))
+        task.run
+      }
+    }
+    tracker.callback(on_completed)
+  }
+
+  /**
+   * Runs func against every store and passes the results to the
+   * callback once they are all done.
+   */
+  private def all[T](func:(Store, (T)=>Unit)=>Unit)(callback:(Seq[T])=>Unit) = {
+    val results = new AtomicReferenceArray[Any](stores.length)
+    val remaining = new AtomicInteger(stores.length)
+    for( i <- 0 until stores.length ) {
+      func(stores(i), { result:T =>
+        results.set(i, result)
+        if( remaining.decrementAndGet == 0 ) {
+          callback((0 until stores.length).map(results.get(_).asInstanceOf[T]))
+        }
+      })
+    }
+  }
+
+  def get_store_status(callback:(StoreStatusDTO)=>Unit) = {
+    all[StoreStatusDTO]((store, cb)=> store.get_store_status(cb)) { statuses =>
+      val rc = new StripedStoreStatusDTO
+      rc.id = toString
+      rc.state = service_state.toString
+      rc.state_since = service_state.since
+      statuses.foreach { status =>
+        rc.stores.add(status)
+        rc.canceled_message_counter += status.canceled_message_counter
+        rc.canceled_enqueue_counter += status.canceled_enqueue_counter
+        rc.flushed_message_counter += status.flushed_message_counter
+        rc.flushed_enqueue_counter += status.flushed_enqueue_counter
+        rc.pending_stores += status.pending_stores
+        rc.flush_delay = rc.flush_delay.max(status.flush_delay)
+      }
+      callback(rc)
+    }
+  }
+
+  def create_uow() = new StripedUOW
+
+  def purge(callback: => Unit) = {
+    all[Unit]((store, cb)=> store.purge(cb(()))) { _ =>
+      queue_stores.clear
+      callback
+    }
+  }
+
+  def get_last_queue_key(callback: (Option[Long]) => Unit) = {
+    all[Option[Long]]((store, cb)=> store.get_last_queue_key(cb)) { keys =>
+      val rc = keys.flatten
+      callback(if( rc.isEmpty ) None else Some(rc.max))
+    }
+  }
+
+  def add_queue(record: QueueRecord)(callback: (Boolean) => Unit) = {
+    val index = store_index(record.key)
+    queue_stores.put(record.key, index)
+    stores(index).add_queue(record)(callback)
+  }
+
+  def remove_queue(queue_key: Long)(callback: (Boolean) => Unit) = {
+    store_for(queue_key).remove_queue(queue_key) { rc =>
+      queue_stores.remove(queue_key)
+      callback(rc)
+    }
+  }
+
+  def get(key: Buffer)(callback: (Option[Buffer]) => Unit) = stores(MAP_STORE).get(key)(callback)
+
+  def get_queue(queue_key: Long)(callback: (Option[QueueRecord]) => Unit) = store_for(queue_key).get_queue(queue_key)(callback)
+
+  def list_queues(callback: (Seq[Long]) => Unit) = {
+    all[Seq[Long]]((store, cb)=> store.list_queues(cb)) { keys =>
+      callback(keys.flatten.sorted)
+    }
+  }
+
+  def list_queue_entry_ranges(queue_key: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
+    store_for(queue_key).list_queue_entry_ranges(queue_key, limit)(callback)
+  }
+
+  def list_queue_entries(queue_key: Long, firstSeq: Long, lastSeq: Long)(callback: (Seq[QueueEntryRecord]) => Unit) = {
+    store_for(queue_key).list_queue_entries(queue_key, firstSeq, lastSeq)(callback)
+  }
+
+  def flush_message(message_key: Long)(callback: => Unit) = {
+    // it could be pending in any of the stores.
+    all[Unit]((store, cb)=> store.flush_message(message_key)(cb(()))) { _ =>
+      callback
+    }
+  }
+
+  def load_message(message_key: Long, locator: AtomicReference[Array[Byte]])(callback: (Option[MessageRecord]) => Unit) = {
+    // Any store holding a copy of the message will do.
+    load_from((0 until stores.length).toList, message_key, locator)(callback)
+  }
+
+  /**
+   * Loads the message from the store of the queue, the other stores only
+   * get asked if that one does not have it.
+   */
+  override def load_message(queue_key: Long, message_key: Long, locator: AtomicReference[Array[Byte]])(callback: (Option[MessageRecord]) => Unit) = {
+    val index = store_index(queue_key)
+    load_from(index :: (0 until stores.length).filter(_ != index).toList, message_key, locator)(callback)
+  }
+
+  private def load_from(indexes:List[Int], message_key: Long, locator: AtomicReference[Array[Byte]])(callback: (Option[MessageRecord]) => Unit):Unit = {
+    indexes match {
+      case index :: rest =>
+        stores(index).load_message(message_key, locator) { rc =>
+          if( rc.isDefined || rest.isEmpty ) {
+            callback(rc)
+          } else {
+            load_from(rest, message_key, locator)(callback)
+          }
+        }
+      case Nil =>
+        callback(None)
+    }
+  }
+
+  private def blocking[T](func:((T)=>Unit)=>Unit):T = {
+    val latch = new CountDownLatch(1)
+    var rc:Option[T] = None
+    func { x=>
+      rc = Some(x)
+      latch.countDown
+    }
+    latch.await
+    rc.get
+  }
+
+  /**
+   * Temp files the export and import streams get spooled to, since each
+   * of the streams can only be opened once.
+   */
+  private class Spool {
+    private val files = new ju.HashMap[String, File]()
+    private val writers = new ju.HashMap[String, OutputStream]()
+
+    private def file(name:String) = {
+      var rc = files.get(name)
+      if( rc==null ) {
+        rc = File.createTempFile("striped-"+name, ".dat")
+        rc.deleteOnExit
+        files.put(name, rc)
+      }
+      rc
+    }
+
+    /**
+     * An output stream to the file which stays open until the spool gets closed.
+     */
+    def writer(name:String) = {
+      var rc = writers.get(name)
+      if( rc==null ) {
+        rc = new BufferedOutputStream(new FileOutputStream(file(name), true))
+        writers.put(name, rc)
+      }
+      rc
+    }
+
+    def append(name:String)(func: (OutputStream)=>Unit) = {
+      val os = new BufferedOutputStream(new FileOutputStream(file(name), true))
+      try {
+        func(os)
+      } finally {
+        os.close
+      }
+    }
+
+    def read(name:String)(func: (InputStream)=>Unit) = {
+      val file = files.get(name)
+      val is = if( file==null ) {
+        new ByteArrayInputStream(new Array[Byte](0))
+      } else {
+        new BufferedInputStream(new FileInputStream(file))
+      }
+      try {
+        func(is)
+      } finally {
+        is.close
+      }
+    }
+
+    def outputs(prefix:String) = new StreamManager[OutputStream]() {
+      def using_map_stream(func: (OutputStream)=>Unit) = append(prefix+"map")(func)
+      def using_queue_stream(func: (OutputStream)=>Unit) = append(prefix+"queue")(func)
+      def using_message_stream(func: (OutputStream)=>Unit) = append(prefix+"message")(func)
+      def using_queue_entry_stream(func: (OutputStream)=>Unit) = append(prefix+"queue_entry")(func)
+    }
+
+    def inputs(prefix:String) = new StreamManager[InputStream]() {
+      def using_map_stream(func: (InputStream)=>Unit) = read(prefix+"map")(func)
+      def using_queue_stream(func: (InputStream)=>Unit) = read(prefix+"queue")(func)
+      def using_message_stream(func: (InputStream)=>Unit) = read(prefix+"message")(func)
+      def using_queue_entry_stream(func: (InputStream)=>Unit) = read(prefix+"queue_entry")(func)
+    }
+
+    def close = {
+      import collection.JavaConversions._
+      writers.values.foreach(_.close)
+      writers.clear
+    }
+
+    def delete = {
+      import collection.JavaConversions._
+      close
+      files.values.foreach(_.delete)
+    }
+  }
+
+  private def foreach_framed[T](is:InputStream, fact:PBMessageFactory[_,_])(func: (T)=>Unit):Unit = {
+    while( true ) {
+      val pb = try {
+        fact.parseFramed(is).asInstanceOf[T]
+      } catch {
+        case x:EOFException => return
+      }
+      func(pb)
+    }
+  }
+
+  /**
+   * Reads the data of a zero copy buffer which follows it's message in
+   * the message stream.
+   */
+  private def read_zcp_data(is:InputStream, pb:MessagePB.Buffer) = {
+    val rc = new Array[Byte](pb.getZcpSize)
+    new DataInputStream(is).readFully(rc)
+    rc
+  }
+
+  /**
+   * Exports the stores one after the other.  Each store's streams get
+   * spooled to temp files which are then appended to each other.
+   * Messages held by several stores only get exported once.
+   */
+  def export_pb(streams: StreamManager[OutputStream]):Result[Zilch,String] @suspendable = export_executor ! {
+    val spool = new Spool
+    try {
+      var rc:Result[Zilch,String] = Success(Zilch)
+      var i = 0
+      while( rc.failure_option.isEmpty && i < stores.length ) {
+        val store = stores(i)
+        rc = blocking[Result[Zilch,String]] { cb =>
+          reset {
+            cb(store.export_pb(spool.outputs("")))
+          }
+        }
+        i += 1
+      }
+
+      if( rc.failure_option.isEmpty ) {
+        def copy(name:String)(os:OutputStream) = spool.read(name)(FileSupport.copy(_, os))
+        streams.using_map_stream(copy("map"))
+        streams.using_queue_stream(copy("queue"))
+        streams.using_message_stream { os =>
+          val exported = new ju.HashSet[jl.Long]()
+          spool.read("message") { is =>
+            foreach_framed[MessagePB.Buffer](is, MessagePB.FACTORY) { pb =>
+              val data = if( pb.hasZcpSize ) read_zcp_data(is, pb) else null
+              if( exported.add(pb.getMessageKey) ) {
+                pb.writeFramed(os)
+                if( data!=null ) {
+                  os.write(data)
+                }
+              }
+            }
+          }
+        }
+        streams.using_queue_entry_stream(copy("queue_entry"))
+      }
+      rc
+    } finally {
+      spool.delete
+    }
+  }
+
+  /**
+   * Imports the queues into the stores the hash ring assigns them to after
+   * purging all the stores.  Each store gets the messages its queues
+   * reference, messages which no queue references end up in the
+   * first store.
+   */
+  def import_pb(streams: StreamManager[InputStream]):Result[Zilch,String] @suspendable = export_executor ! {
+    blocking[Unit] { cb => purge(cb(())) }
+    val spool = new Spool
+    try {
+      streams.using_map_stream { is =>
+        spool.append(MAP_STORE+".map")(FileSupport.copy(is, _))
+      }
+      streams.using_queue_stream { is =>
+        foreach_framed[QueuePB.Buffer](is, QueuePB.FACTORY) { pb =>
+          pb.writeFramed(spool.writer(store_index(pb.getKey)+".queue"))
+        }
+      }
+
+      // Which stores the messages are referenced from.
+      val refs = new ju.HashMap[jl.Long, ju.BitSet]()
+      streams.using_queue_entry_stream { is =>
+        foreach_framed[QueueEntryPB.Buffer](is, QueueEntryPB.FACTORY) { pb =>
+          val index = store_index(pb.getQueueKey)
+          pb.writeFramed(spool.writer(index+".queue_entry"))
+          var targets = refs.get(pb.getMessageKey)
+          if( targets==null ) {
+            targets = new ju.BitSet(stores.length)
+            refs.put(pb.getMessageKey, targets)
+          }
+          targets.set(index)
+        }
+      }
+
+      streams.using_message_stream { is =>
+        foreach_framed[MessagePB.Buffer](is, MessagePB.FACTORY) { pb =>
+          val data = if( pb.hasZcpSize ) read_zcp_data(is, pb) else null
+          val targets = refs.get(pb.getMessageKey)
+          var index = if( targets==null ) 0 else targets.nextSetBit(0)
+          while( index >= 0 ) {
+            val os = spool.writer(index+".message")
+            pb.writeFramed(os)
+            if( data!=null ) {
+              os.write(data)
+            }
+            index = if( targets==null ) -1 else targets.nextSetBit(index+1)
+          }
+        }
+      }
+      spool.close
+
+      var rc:Result[Zilch,String] = Success(Zilch)
+      var i = 0
+      while( rc.failure_option.isEmpty && i < stores.length ) {
+        val store = stores(i)
+        val inputs = spool.inputs(i+".")
+        rc = blocking[Result[Zilch,String]] { cb =>
+          reset {
+            cb(store.import_pb(inputs))
+          }
+        }
+        i += 1
+      }
+      blocking[Unit] { cb => load_queue_stores(^{ cb(()) }) }
+      rc
+    } catch {
+      case x:IOException =>
+        Failure(x.getMessage)
+    } finally {
+      spool.delete
+    }
+  }
+
+  /**
+   * A unit of work which keeps a unit of work open against each of the
+   * stores it updates.  It completes once all of those have completed.
+   */
+  class StripedUOW extends BaseRetained with StoreUOW {
+
+    private val uows = new AtomicReferenceArray[DelayingStoreSupport#DelayableUOW](stores.length)
+
+    // The messages stored in this uow, they get written to the stores
+    // of the queues they get enqueued to.
+    private val records = new ConcurrentHashMap[Long, MessageRecord]()
+    private val copies = new ConcurrentHashMap[(Long, Int), jl.Boolean]()
+
+    private val durability_ref = new AtomicReference[DurabilityLevel]()
+    private val flush_listeners = new AtomicReference[List[()=>Unit]](Nil)
+    private val complete_listeners = new AtomicReference[List[()=>Unit]](Nil)
+
+    @volatile
+    private var disable_delay = false
+
+    private def uow(index:Int) = {
+      var rc = uows.get(index)
+      if( rc==null ) {
+        val created = stores(index).create_uow
+        if( uows.compareAndSet(index, null, created) ) {
+          rc = created
+        } else {
+          created.release
+          rc = uows.get(index)
+        }
+      }
+      rc
+    }
+
+    def store(record: MessageRecord) = {
+      record.key = stores(0).next_msg_key.getAndIncrement
+      records.put(record.key, record)
+      record.key
+    }
+
+    def enqueue(entry: QueueEntryRecord) = {
+      val index = store_index(entry.queue_key)
+      val target = uow(index)
+      val record = records.get(entry.message_key)
+      if( record!=null ) {
+        if( copies.putIfAbsent((entry.message_key, index), true)==null ) {
+          target.store_keyed(record)
+        }
+        target.enqueue(entry)
+      } else if( copies.putIfAbsent((entry.message_key, index), true)!=null || stores(index).pending_stores.containsKey(entry.message_key) ) {
+        // the message is already on it's way into the target store.
+        target.enqueue(entry)
+      } else {
+        if( entry.message_key < 0 || entry.message_key >= stores(0).next_msg_key.get ) {
+          throw new IllegalArgumentException("Message %d enqueued to queue %d was never stored".format(entry.message_key, entry.queue_key))
+        }
+        // The message was stored by an earlier unit of work, so it might
+        // only be in the stores of other queues.  Hold off completing until
+        // it's been copied over.
+        retain
+        stores(index).load_message(entry.message_key, null) { rc =>
+          if( rc.isDefined ) {
+            target.enqueue(entry)
+            release
+          } else {
+            load_copy(entry.message_key, (0 until stores.length).filter(_ != index).toList) {
+              case Some(record) =>
+                record.locator = null
+                target.store_keyed(record)
+                target.enqueue(entry)
+                release
+              case None =>
+                // it got removed from the stores in the mean time, don't
+                // throw here since we're on a store thread.
+                error("Message %d enqueued to queue %d is not in any of the stores, the enqueue was dropped", entry.message_key, entry.queue_key)
+                release
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Loads a message from the first of the stores which has it.  A message
+     * still pending in one of the stores gets flushed first, unless it's
+     * pending in this unit of work.
+     */
+    private def load_copy(message_key:Long, indexes:List[Int])(callback: (Option[MessageRecord])=>Unit):Unit = {
+      indexes match {
+        case index :: rest =>
+          def load = stores(index).load_message(message_key, null) { rc =>
+            if( rc.isDefined ) {
+              callback(rc)
+            } else {
+              load_copy(message_key, rest)(callback)
+            }
+          }
+          val pending = stores(index).pending_stores.get(message_key)
+          if( pending!=null && (pending ne uows.get(index)) ) {
+            stores(index).flush_message(message_key)(load)
+          } else {
+            load
+          }
+        case Nil =>
+          callback(None)
+      }
+    }
+
+    def dequeue(entry: QueueEntryRecord) = uow(store_index(entry.queue_key)).dequeue(entry)
+
+    def put(key: Buffer, value: Buffer) = uow(MAP_STORE).put(key, value)
+
+    def complete_asap() = {
+      disable_delay = true
+      for( i <- 0 until stores.length ) {
+        val x = uows.get(i)
+        if( x!=null ) {
+          x.complete_asap
+        }
+      }
+    }
+
+    def durability(level: DurabilityLevel) = {
+      var done = false
+      while( !done ) {
+        val current = durability_ref.get
+        done = durability_ref.compareAndSet(current, DurabilityLevel.strongest(current, level))
+      }
+    }
+
+    def on_flush(callback: => Unit) = add_listener(flush_listeners, callback _)
+
+    def on_complete(callback: => Unit) = add_listener(complete_listeners, callback _)
+
+    private def add_listener(listeners:AtomicReference[List[()=>Unit]], callback:()=>Unit):Unit = {
+      while( true ) {
+        val current = listeners.get
+        if( current==null ) {
+          callback()
+          return
+        }
+        if( listeners.compareAndSet(current, callback :: current) ) {
+          return
+        }
+      }
+    }
+
+    private def fire(listeners:AtomicReference[List[()=>Unit]]) = {
+      val rc = listeners.getAndSet(null)
+      if( rc!=null ) {
+        rc.reverse.foreach(_())
+      }
+    }
+
+    private def completed = {
+      fire(flush_listeners)
+      fire(complete_listeners)
+      super.dispose
+    }
+
+    override def dispose = {
+      val targets = ListBuffer[DelayingStoreSupport#DelayableUOW]()
+      for( i <- 0 until stores.length ) {
+        val x = uows.get(i)
+        if( x!=null ) {
+          targets += x
+        }
+      }
+
+      if( targets.isEmpty ) {
+        completed
+      } else {
+        // Only wait for the syncs if someone is waiting on this uow to
+        // complete, otherwise the stores don't have to sync.
+        val listeners = complete_listeners.get
+        val wait_for_complete = listeners!=null && !listeners.isEmpty
+        val flushes = new AtomicInteger(targets.size)
+        val completes = new AtomicInteger(targets.size)
+        val level = durability_ref.get
+        targets.foreach { target =>
+          if( disable_delay ) {
+            target.complete_asap
+          }
+          if( level!=null ) {
+            target.durability(level)
+          }
+          target.on_flush {
+            if( flushes.decrementAndGet == 0 ) {
+              fire(flush_listeners)
+              if( !wait_for_complete ) {
+                completed
+              }
+            }
+          }
+          if( wait_for_complete ) {
+            target.on_complete {
+              if( completes.decrementAndGet == 0 ) {
+                completed
+              }
+            }
+          }
+          target.release
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.dto.{QueueDTO, VirtualHostDTO}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MemoryGovernorTest extends QueueFunSuiteSupport {
+
+  override def configure(host:VirtualHostDTO) = {
+    // big enough queue buffers so that only the broker limit throttles.
+    for( id <- List("memory_check", "memory_throttle") ) {
+      val queue = new QueueDTO
+      queue.id = id
+      queue.queue_buffer = 10*1024*1024
+      host.queues.add(queue)
+    }
+  }
+
+  def governor = broker.memory_governor
+
+  def with_limit(extra:Long)(func: =>Unit) = {
+    governor.limit = governor.used.get + extra
+    try {
+      func
+    } finally {
+      governor.limit = Long.MaxValue
+    }
+  }
+
+  test("the broker memory is not limited by default") {
+    expect(Long.MaxValue)(governor.limit)
+  }
+
+  test("checking if a queue is full does not take memory credit") {
+    val queue = queue_named("memory_check")
+    with_limit(64*1024) {
+      val used = governor.used.get
+      sync(queue.dispatch_queue) {
+        for( i <- 0 until 100 ) {
+          queue.messages.full
+        }
+      }
+      expect(used)(governor.used.get)
+    }
+  }
+
+  test("producers get throttled at the memory limit until messages get consumed") {
+    val queue = queue_named("memory_throttle")
+    with_limit(64*1024) {
+      var sent = 0
+      while( sent < 1000 && sync(queue.dispatch_queue)(queue.messages.offer(delivery())) ) {
+        sent += 1
+      }
+      expect(true)(sent > 32 && sent < 100)
+      expect(true)(sync(queue.dispatch_queue)(queue.memory_starved))
+
+      val consumer = new TestConsumer
+      queue.bind(consumer::Nil)
+      expect(true)(within(10*1000)(consumer.received.get == sent))
+
+      // consuming hands the credit back, which wakes up the producers.
+      expect(true)(within(10*1000)(!sync(queue.dispatch_queue)(queue.memory_starved)))
+      send(queue, delivery())
+      expect(true)(within(10*1000)(consumer.received.get == sent+1))
+      queue.unbind(consumer::Nil)
+    }
+  }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.io.{InputStream, OutputStream}
+import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue, TimeUnit}
+import java.util.concurrent.atomic.AtomicReference
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import org.fusesource.hawtdispatch._
+import org.scalatest.BeforeAndAfterEach
+import scala.util.continuations._
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.dto.StoreStatusDTO
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCacheTest extends FunSuiteSupport with BeforeAndAfterEach {
+
+  /**
+   * A store which holds on to the message loads until the test
+   * completes them.
+   */
+  class TestStore extends Store {
+    val loads = new LinkedBlockingQueue[(Long, (Option[MessageRecord])=>Unit)]()
+
+    def load_message(messageKey:Long, locator:AtomicReference[Array[Byte]])(callback:(Option[MessageRecord])=>Unit ) = {
+      loads.add((messageKey, callback))
+    }
+
+    /**
+     * Completes the next load with a record of the given size.
+     */
+    def complete(size:Int) = {
+      val (key, callback) = loads.poll(10, TimeUnit.SECONDS)
+      callback(Some(record(key, size)))
+    }
+
+    def start = {}
+    def start(on_complete:Runnable) = on_complete.run
+    def stop = {}
+    def stop(on_complete:Runnable) = on_complete.run
+    def get_store_status(callback:(StoreStatusDTO)=>Unit) = callback(null)
+    def create_uow():StoreUOW = throw new UnsupportedOperationException
+    def purge(callback: =>Unit) = callback
+    def get_last_queue_key(callback:(Option[Long])=>Unit) = callback(None)
+    def add_queue(record:QueueRecord)(callback:(Boolean)=>Unit) = callback(false)
+    def remove_queue(queueKey:Long)(callback:(Boolean)=>Unit) = callback(false)
+    def get(key:Buffer)(callback:(Option[Buffer])=>Unit ) = callback(None)
+    def get_queue(queueKey:Long)(callback:(Option[QueueRecord])=>Unit ) = callback(None)
+    def list_queues(callback: (Seq[Long])=>Unit ) = callback(Nil)
+    def list_queue_entry_ranges(queueKey:Long, limit:Int)(callback:(Seq[QueueEntryRange])=>Unit ) = callback(Nil)
+    def list_queue_entries(queueKey:Long, firstSeq:Long, lastSeq:Long)(callback:(Seq[QueueEntryRecord])=>Unit ) = callback(Nil)
+    def flush_message(messageKey:Long)(callback: =>Unit) = callback
+    def export_pb(streams:StreamManager[OutputStream]):Result[Zilch,String] @suspendable = Failure("not supported")
+    def import_pb(streams:StreamManager[InputStream]):Result[Zilch,String] @suspendable = Failure("not supported")
+  }
+
+  var store:TestStore = _
+  var cache:MessageCache = _
+
+  override protected def beforeEach() = {
+    store = new TestStore
+    cache = new MessageCache
+  }
+
+  def record(key:Long, size:Int) = {
+    val rc = new MessageRecord
+    rc.key = key
+    rc.protocol = ascii("test")
+    rc.buffer = new Buffer(new Array[Byte](size))
+    rc.size = size
+    rc
+  }
+
+  /**
+   * Starts a load and returns a function which waits for the loaded record.
+   */
+  def start_load(key:Long) = {
+    val rc = new AtomicReference[Option[MessageRecord]]()
+    val done = new CountDownLatch(1)
+    cache.load(store, 1, key, null) { record =>
+      rc.set(record)
+      done.countDown
+    }
+    () => {
+      expect(true)(done.await(10, TimeUnit.SECONDS))
+      rc.get.get
+    }
+  }
+
+  /**
+   * Loads the message, completing the store read if there is one.
+   */
+  def load(key:Long, size:Int=100) = {
+    val loaded = start_load(key)
+    sync {
+      if( !store.loads.isEmpty ) {
+        store.complete(size)
+      }
+    }
+    loaded()
+  }
+
+  def sync[T](func: =>T):T = {
+    val rc = new AtomicReference[Any]()
+    val done = new CountDownLatch(1)
+    cache.dispatch_queue {
+      rc.set(func)
+      done.countDown
+    }
+    expect(true)(done.await(10, TimeUnit.SECONDS))
+    rc.get.asInstanceOf[T]
+  }
+
+  def refs(key:Long) = sync(cache.refs(key))
+
+  test("loads of a cached message are hits") {
+    val first = load(1)
+    expect((0L, 1L))((cache.hits, cache.misses))
+
+    val second = load(1)
+    expect(true)(first eq second)
+    expect((1L, 1L))((cache.hits, cache.misses))
+    expect(2)(refs(1))
+    expect(100L)(cache.size)
+  }
+
+  test("concurrent loads of a message share one store read") {
+    val a = start_load(1)
+    val b = start_load(1)
+    sync {}
+    expect(1)(store.loads.size)
+    store.complete(100)
+    expect(true)(a() eq b())
+    expect(2)(refs(1))
+  }
+
+  test("unreferenced records get evicted first") {
+    cache.limit = 250
+    load(1)
+    cache.release(load(2))
+    load(3)
+    expect(1L)(cache.evictions)
+    expect(-1)(refs(2))
+    expect(1)(refs(1))
+    expect(1)(refs(3))
+    expect(200L)(cache.size)
+  }
+
+  test("referenced records get evicted once there is nothing else to evict") {
+    cache.limit = 250
+    val first = load(1)
+    load(2)
+    load(3)
+    expect(1L)(cache.evictions)
+    expect(-1)(refs(1))
+
+    // releasing a record which is no longer cached is ignored.
+    cache.release(first)
+    expect(1)(refs(2))
+    expect(200L)(cache.size)
+  }
+
+  test("released records stay cached until they need to be evicted") {
+    cache.limit = 250
+    val first = load(1)
+    cache.release(first)
+    expect(0)(refs(1))
+    expect(true)(load(1) eq first)
+    expect(1L)(cache.hits)
+  }
+
+  test("records larger than the cache are not cached") {
+    cache.limit = 50
+    load(1)
+    expect(-1)(refs(1))
+    expect(0L)(cache.size)
+  }
+
+  test("clearing the cache drops the records and the loads in flight") {
+    load(1)
+    val loading = start_load(2)
+    sync {}
+    cache.clear
+    store.complete(100)
+    loading()
+
+    expect(-1)(refs(1))
+    expect(-1)(refs(2))
+    expect(0L)(cache.size)
+
+    // so the next load reads from the store again.
+    load(1)
+    expect((0L, 3L))((cache.hits, cache.misses))
+  }
+
+}
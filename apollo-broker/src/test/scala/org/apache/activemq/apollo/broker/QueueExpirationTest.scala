@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import collection.JavaConversions._
+
+/**
+ * <p>
+ * Tests the queue's expiration index.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueExpirationTest extends QueueFunSuiteSupport {
+
+  def index_of(queue:Queue) = sync(queue.dispatch_queue) {
+    queue.expiration_index.toList.map(_.expiring_at)
+  }
+
+  def expire(queue:Queue, at:Long) = sync(queue.dispatch_queue) {
+    queue.now = at
+    queue.expire_entries
+  }
+
+  test("only expiring entries are indexed in expiration order") {
+    val queue = queue_named("expiration_order")
+    val base = System.currentTimeMillis + 60*1000
+    send(queue, delivery(expiration=base+300))
+    send(queue, delivery())
+    send(queue, delivery(expiration=base+100))
+    send(queue, delivery(expiration=base+200))
+    send(queue, delivery(expiration=base+100))
+
+    expect(List(base+100, base+100, base+200, base+300)) {
+      index_of(queue)
+    }
+  }
+
+  test("expired entries are removed from the queue and the index") {
+    val queue = queue_named("expiration_remove")
+    val base = System.currentTimeMillis + 60*1000
+    send(queue, delivery(expiration=base+100))
+    send(queue, delivery(expiration=base+200))
+    send(queue, delivery())
+
+    expire(queue, base+150)
+    expect(List(base+200))(index_of(queue))
+    expect(2L)(sync(queue.dispatch_queue)(queue.queue_items))
+
+    expire(queue, base+250)
+    expect(Nil)(index_of(queue))
+    expect(1L)(sync(queue.dispatch_queue)(queue.queue_items))
+    expect(2L)(sync(queue.dispatch_queue)(queue.expired_item_counter))
+  }
+
+  test("acquired entries leave the index until they get nacked") {
+    val queue = queue_named("expiration_acquired")
+    val base = System.currentTimeMillis + 60*1000
+    val consumer = new TestConsumer(false)
+    queue.bind(consumer::Nil)
+
+    send(queue, delivery(expiration=base+100))
+    expect(true)(within(10*1000)(consumer.received.get == 1))
+
+    // a consumer holds it, so it stays on the queue but
+    // later passes don't have to look at it again.
+    expire(queue, base+150)
+    expect(Nil)(index_of(queue))
+    expect(1L)(sync(queue.dispatch_queue)(queue.queue_items))
+
+    // closing the subscription nacks what it was holding.
+    queue.unbind(consumer::Nil)
+    expect(true)(within(10*1000)(index_of(queue) == List(base+100)))
+
+    expire(queue, base+150)
+    expect(Nil)(index_of(queue))
+    expect(0L)(sync(queue.dispatch_queue)(queue.queue_items))
+  }
+
+}
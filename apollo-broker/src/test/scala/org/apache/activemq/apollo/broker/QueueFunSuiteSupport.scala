@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.{ServiceControl, FunSuiteSupport}
+import org.apache.activemq.apollo.dto.{QueueDestinationDTO, VirtualHostDTO}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch}
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * <p>Runs a broker without connectors so that tests can work
+ * directly against its queues.</p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+abstract class QueueFunSuiteSupport extends FunSuiteSupport {
+
+  var broker:Broker = null
+
+  /**
+   * Lets sub classes add queue configurations before the broker starts.
+   */
+  def configure(host:VirtualHostDTO):Unit = {}
+
+  override protected def beforeAll() = {
+    broker = new Broker
+    broker.config.connectors.clear
+    configure(broker.config.virtual_hosts.get(0))
+    ServiceControl.start(broker, "broker")
+  }
+
+  override protected def afterAll() = {
+    ServiceControl.stop(broker, "broker")
+  }
+
+  def router = broker.default_virtual_host.router.asInstanceOf[LocalRouter]
+
+  /**
+   * Handy helper to run a function on a dispatch queue and wait
+   * for its result.
+   */
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    class X {
+      var value:T = _
+      var error:Throwable = null
+    }
+    val rc = new X
+    val cd = new CountDownLatch(1)
+    queue {
+      try {
+        rc.value = func
+      } catch {
+        case e:Throwable => rc.error = e
+      } finally {
+        cd.countDown
+      }
+    }
+    cd.await
+    if( rc.error!=null ) {
+      throw rc.error
+    }
+    rc.value
+  }
+
+  /**
+   * Gets the named queue, creating it if it was not configured.
+   */
+  def queue_named(name:String):Queue = sync(router.dispatch_queue) {
+    val dto = new QueueDestinationDTO
+    dto.path.add(name)
+    val path = LocalRouter.destination_parser.decode_path(dto.path)
+    router.queue_domain.get_destination_matches(path).headOption.getOrElse {
+      router._get_or_create_destination(dto, null).success
+    }.asInstanceOf[Queue]
+  }
+
+  /**
+   * Offers a delivery to the queue, waiting while the queue is full.
+   */
+  def send(queue:Queue, delivery:Delivery) = {
+    while( !sync(queue.dispatch_queue)(queue.messages.offer(delivery)) ) {
+      Thread.sleep(1)
+    }
+  }
+
+  def within(timeout:Long)(check: =>Boolean) = {
+    val deadline = System.currentTimeMillis + timeout
+    while( !check && System.currentTimeMillis < deadline ) {
+      Thread.sleep(10)
+    }
+    check
+  }
+
+  class TestMessage(val expiration:Long, val priority:Byte) extends BaseRetained with Message {
+    def id = null
+    def producer = null
+    def persistent = false
+    def protocol = null
+    def getBodyAs[T](kind:Class[T]):T = null.asInstanceOf[T]
+    def getProperty(name:String):AnyRef = null
+    def getLocalConnectionId:AnyRef = null
+  }
+
+  def delivery(size:Int=1024, expiration:Long=0, priority:Byte=4) = {
+    val rc = new Delivery
+    rc.size = size
+    rc.message = new TestMessage(expiration, priority)
+    rc
+  }
+
+  /**
+   * A consumer that acks every delivery as soon as it gets it, or
+   * holds on to them when auto_ack is not set.  It stops taking
+   * deliveries while full is set.
+   */
+  class TestConsumer(auto_ack:Boolean=true) extends BaseRetained with DeliveryConsumer {
+    val dispatch_queue = createQueue("test consumer")
+    val received = new AtomicInteger
+    val held = new ConcurrentLinkedQueue[Delivery]
+    @volatile
+    var full = false
+
+    def matches(delivery:Delivery) = true
+    def is_persistent = false
+
+    def connect(p:DeliveryProducer) = new DeliverySession {
+      var refiller:Runnable = null
+      def producer = p
+      def consumer = TestConsumer.this
+      def remaining_capacity = Integer.MAX_VALUE
+      def close = {}
+      def full = TestConsumer.this.full
+      def offer(delivery:Delivery) = {
+        received.incrementAndGet
+        if( !auto_ack ) {
+          held.add(delivery)
+        } else if( delivery.ack!=null ) {
+          delivery.ack(Delivered, null)
+        }
+        true
+      }
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.dto.{QueueDTO, VirtualHostDTO}
+
+/**
+ * <p>
+ * Tests how the consumers of a partitioned queue get assigned to
+ * the partitions.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueuePartitionTest extends QueueFunSuiteSupport {
+
+  override def configure(host:VirtualHostDTO) = {
+    val queue = new QueueDTO
+    queue.id = "partitioned_*"
+    queue.partitions = 4
+    host.queues.add(queue)
+  }
+
+  def partitions_of(name:String) = {
+    val queue = queue_named(name)
+    sync(router.dispatch_queue)(router.queue_domain.partitions_of(queue).toList)
+  }
+
+  def bind(queue:Queue, consumer:DeliveryConsumer) = sync(router.dispatch_queue) {
+    queue.bind(null, consumer)
+  }
+
+  def unbind(queue:Queue, consumer:DeliveryConsumer) = sync(router.dispatch_queue) {
+    queue.unbind(consumer, false)
+  }
+
+  def subscriptions(partitions:List[Queue]) = partitions.map { partition =>
+    sync(partition.dispatch_queue)(partition.all_subscriptions.keys.toSet)
+  }
+
+  test("each consumer gets one partition when there are enough consumers") {
+    val partitions = partitions_of("partitioned_a")
+    expect(4)(partitions.size)
+
+    val consumers = (1 to 6).map(_ => new TestConsumer).toList
+    consumers.foreach(bind(partitions.head, _))
+
+    val subs = subscriptions(partitions)
+    expect(List(2, 2, 1, 1))(subs.map(_.size))
+    consumers.foreach { consumer =>
+      expect(1)(subs.count(_.contains(consumer)))
+    }
+  }
+
+  test("partitions are spread over the consumers when there are fewer consumers") {
+    val partitions = partitions_of("partitioned_b")
+    val a = new TestConsumer
+    val b = new TestConsumer
+    bind(partitions.head, a)
+    bind(partitions.head, b)
+
+    var subs = subscriptions(partitions)
+    expect(List(1, 1, 1, 1))(subs.map(_.size))
+    expect(2)(subs.count(_.contains(a)))
+    expect(2)(subs.count(_.contains(b)))
+
+    // the partitions of a consumer that leaves get taken over.
+    unbind(partitions.head, a)
+    subs = subscriptions(partitions)
+    expect(List(Set(b), Set(b), Set(b), Set(b)))(subs)
+  }
+
+  test("browsers get bound to every partition") {
+    val partitions = partitions_of("partitioned_c")
+    partitions.foreach(send(_, delivery()))
+
+    val browser = new TestConsumer {
+      override def browser = true
+    }
+    bind(partitions.head, browser)
+    expect(true)(within(10*1000)(browser.received.get == 4))
+  }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit._
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.activemq.apollo.util.FunSuiteSupport
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueRecoveryPlannerTest extends FunSuiteSupport {
+
+  /**
+   * Submits restores which hold on to their slot until the test
+   * runs the runnable they were handed.
+   */
+  class Restores(planner:QueueRecoveryPlanner) {
+    val running = new AtomicInteger
+    val max_running = new AtomicInteger
+    val slots = new LinkedBlockingQueue[Runnable]()
+
+    def submit = planner.submit { done =>
+      val count = running.incrementAndGet
+      if( count > max_running.get ) {
+        max_running.set(count)
+      }
+      slots.add(done)
+    }
+
+    def release = {
+      val done = slots.poll(10, SECONDS)
+      expect(true)(done!=null)
+      running.decrementAndGet
+      done.run
+    }
+  }
+
+  def within(timeout:Long)(check: =>Boolean) = {
+    val deadline = System.currentTimeMillis + timeout
+    while( !check && System.currentTimeMillis < deadline ) {
+      Thread.sleep(10)
+    }
+    check
+  }
+
+  test("only concurrency restores run at the same time") {
+    val planner = new QueueRecoveryPlanner(2)
+    val restores = new Restores(planner)
+    for( i <- 0 until 6 ) {
+      restores.submit
+    }
+    expect(true)(within(10*1000)(planner.submitted == 6))
+    expect(true)(within(10*1000)(restores.slots.size == 2))
+    Thread.sleep(100)
+    expect(2)(restores.slots.size)
+    expect(4)(planner.in_progress - restores.slots.size)
+
+    for( i <- 0 until 6 ) {
+      restores.release
+    }
+    expect(true)(within(10*1000)(planner.is_done))
+    expect(6)(planner.completed)
+    expect(2)(restores.max_running.get)
+  }
+
+  test("a released slot gets handed to the next restore") {
+    val planner = new QueueRecoveryPlanner(1)
+    val restores = new Restores(planner)
+    restores.submit
+    restores.submit
+    expect(true)(within(10*1000)(restores.slots.size == 1))
+    Thread.sleep(100)
+    expect(1)(restores.slots.size)
+
+    restores.release
+    expect(true)(within(10*1000)(planner.completed == 1))
+    expect(true)(within(10*1000)(restores.slots.size == 1))
+    expect(false)(planner.is_done)
+
+    restores.release
+    expect(true)(within(10*1000)(planner.is_done))
+    expect(true)(planner.completed_at >= planner.started_at)
+  }
+
+  test("restores still run one at a time without any concurrency") {
+    val planner = new QueueRecoveryPlanner(0)
+    val restores = new Restores(planner)
+    restores.submit
+    restores.submit
+    restores.release
+    restores.release
+    expect(true)(within(10*1000)(planner.is_done))
+    expect(1)(restores.max_running.get)
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.io.File
+import org.apache.activemq.apollo.dto.{QueueDTO, VirtualHostDTO}
+
+/**
+ * <p>Tests how the swap passes of a queue track the loaded entries
+ * which might have to get swapped out.</p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueSwapTest extends QueueFunSuiteSupport {
+
+  override def configure(host:VirtualHostDTO) = {
+    val queue = new QueueDTO
+    queue.id = "noswap"
+    queue.swap = false
+    host.queues.add(queue)
+    // so that the other queues swap to the spool.
+    host.spool = true
+    broker.tmp = new File(test_data_dir, "queue-swap-test")
+  }
+
+  test("a non swapping queue does not track dirty entries") {
+    val queue = queue_named("noswap")
+    expect(false)(queue.tune_swap)
+
+    val consumer = new TestConsumer
+    queue.bind(consumer::Nil)
+
+    val count = 10000
+    for( i <- 0 until count ) {
+      send(queue, delivery())
+    }
+    expect(true)(within(10*1000)(consumer.received.get == count))
+
+    expect(0) {
+      sync(queue.dispatch_queue)(queue.swap_dirty.size)
+    }
+  }
+
+  test("swap passes stop once they have looked at the prefetched entries") {
+    val queue = queue_named("prefetched")
+    expect(true)(queue.tune_swap)
+
+    // keeps all the entries in the prefetch window.
+    val consumer = new TestConsumer
+    consumer.full = true
+    queue.bind(consumer::Nil)
+
+    // more entries than a swap pass looks at.
+    val count = Queue.SWAP_BATCH_SIZE * 2
+    for( i <- 0 until count ) {
+      send(queue, delivery(100))
+    }
+    sync(queue.dispatch_queue)(queue.trigger_swap)
+
+    expect(true)(within(10*1000)(sync(queue.dispatch_queue)(queue.swap_dirty.isEmpty)))
+    val visits = sync(queue.dispatch_queue)(queue.swap_visit_counter)
+    Thread.sleep(500)
+    expect(visits)(sync(queue.dispatch_queue)(queue.swap_visit_counter))
+
+    // none of them got swapped out since they are all prefetched.
+    expect(count) {
+      sync(queue.dispatch_queue) {
+        var rc = 0
+        var cur = queue.head_entry.getNext
+        while( cur!=null ) {
+          if( cur.is_loaded && cur.prefetch_flags!=0 ) {
+            rc += 1
+          }
+          cur = cur.getNext
+        }
+        rc
+      }
+    }
+    expect(0)(consumer.received.get)
+  }
+
+}
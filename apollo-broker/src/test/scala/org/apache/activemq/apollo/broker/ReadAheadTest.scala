@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.concurrent.TimeUnit._
+import org.apache.activemq.apollo.dto.{QueueDTO, VirtualHostDTO}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReadAheadTest extends QueueFunSuiteSupport {
+
+  override def configure(host:VirtualHostDTO) = {
+    val queue = new QueueDTO
+    queue.id = "read_ahead"
+    queue.read_ahead = "1M"
+    host.queues.add(queue)
+  }
+
+  def governor = broker.memory_governor
+
+  /**
+   * Gets the read ahead size of a subscription which consumes rate bytes a
+   * second while the queue's swap ins take latency nanoseconds.
+   */
+  def read_ahead_size(queue:Queue, rate:Long, latency:Long) = sync(queue.dispatch_queue) {
+    val sub = new Subscription(queue, new TestConsumer)
+    sub.consumption_rate = rate
+    val original = queue.avg_swap_in_latency
+    queue.avg_swap_in_latency = latency
+    try {
+      sub.read_ahead_size
+    } finally {
+      queue.avg_swap_in_latency = original
+    }
+  }
+
+  test("reading ahead is disabled by default") {
+    val queue = queue_named("read_ahead_default")
+    expect(0L)(queue.tune_read_ahead)
+    expect(false)(sync(queue.dispatch_queue)(queue.can_read_ahead))
+    expect(0L)(read_ahead_size(queue, 1024*1024, MILLISECONDS.toNanos(100)))
+  }
+
+  test("the read ahead covers what the subscription consumes during a few swap ins") {
+    val queue = queue_named("read_ahead")
+    expect(1024*1024L)(queue.tune_read_ahead)
+    expect(true)(sync(queue.dispatch_queue)(queue.can_read_ahead))
+
+    // 100k/s with 100ms swap ins loads 2 swap ins worth ahead.
+    expect(20*1024L)(read_ahead_size(queue, 100*1024, MILLISECONDS.toNanos(100)))
+    // but never more than the configured read_ahead.
+    expect(1024*1024L)(read_ahead_size(queue, 100*1024*1024, MILLISECONDS.toNanos(100)))
+  }
+
+  test("nothing is read ahead before the queue has swapped anything in") {
+    val queue = queue_named("read_ahead")
+    expect(0L)(read_ahead_size(queue, 100*1024, 0))
+  }
+
+  test("reading ahead is held off near the broker memory limit") {
+    val queue = queue_named("read_ahead")
+    try {
+      governor.limit = governor.used.get
+      expect(false)(sync(queue.dispatch_queue)(queue.can_read_ahead))
+      expect(0L)(read_ahead_size(queue, 100*1024, MILLISECONDS.toNanos(100)))
+
+      governor.limit = (governor.used.get + 1024) * 100
+      expect(true)(sync(queue.dispatch_queue)(queue.can_read_ahead))
+    } finally {
+      governor.limit = Long.MaxValue
+    }
+  }
+
+}
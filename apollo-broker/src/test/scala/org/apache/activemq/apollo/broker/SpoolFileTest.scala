@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.io.File
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.scalatest.BeforeAndAfterEach
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtbuf.Buffer._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.broker.store.MessageRecord
+import SpoolFile._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SpoolFileTest extends FunSuiteSupport with BeforeAndAfterEach {
+
+  var spool:SpoolFile = _
+
+  override protected def beforeEach() = {
+    spool = new SpoolFile(new File(test_data_dir, "spool-file-test"))
+    spool.start
+  }
+
+  override protected def afterEach() = {
+    spool.stop
+  }
+
+  def CB[T](func: (T=>Unit)=>Unit ) = {
+    class X {
+      var value:T = _
+    }
+    val rc = new X
+    val cd = new CountDownLatch(1)
+    def cb(x:T) = {
+      rc.value = x
+      cd.countDown
+    }
+    func(cb)
+    expect(true)(cd.await(10, TimeUnit.SECONDS))
+    rc.value
+  }
+
+  def record(size:Int) = {
+    val rc = new MessageRecord
+    rc.protocol = ascii("test")
+    rc.buffer = new Buffer(Array.fill(size)('x'.toByte))
+    rc.size = size
+    rc.expiration = 5
+    rc
+  }
+
+  def write(size:Int) = CB[Long](spool.write(record(size))(_))
+  def read(location:Long) = CB[Option[MessageRecord]](spool.read(location)(_))
+
+  test("records read back the way they were written") {
+    val small = write(10)
+    val large = write(3000)
+    expect(1)(count_of(small))
+    expect(6)(count_of(large))
+    expect(1L)(block_of(large))
+
+    val rc = read(large).get
+    expect(ascii("test"))(rc.protocol.ascii)
+    expect(3000)(rc.size)
+    expect(5L)(rc.expiration)
+    expect(record(3000).buffer)(rc.buffer)
+
+    expect(record(10).buffer)(read(small).get.buffer)
+  }
+
+  test("freed space gets reused by records that fit") {
+    val a = write(10)
+    val b = write(2000)
+    val c = write(10)
+    expect(4)(count_of(b))
+    expect(6L * BLOCK_SIZE)(spool.size)
+
+    spool.free(b)
+    // the freed region is split up between the next 2 records.
+    val d = write(1500)
+    expect(block_of(b))(block_of(d))
+    expect(3)(count_of(d))
+    val e = write(10)
+    expect(block_of(b)+3)(block_of(e))
+    expect(6L * BLOCK_SIZE)(spool.size)
+
+    // and once it's used up we append again.
+    val f = write(10)
+    expect(6L)(block_of(f))
+    expect(7L * BLOCK_SIZE)(spool.size)
+
+    expect(record(1500).buffer)(read(d).get.buffer)
+    expect(record(10).buffer)(read(a).get.buffer)
+    expect(record(10).buffer)(read(c).get.buffer)
+  }
+
+  test("freeing the last record shrinks the spool") {
+    write(10)
+    val b = write(2000)
+    spool.free(b)
+    val c = write(10)
+    expect(block_of(b))(block_of(c))
+    expect(2L * BLOCK_SIZE)(spool.size)
+  }
+
+  test("a stopped spool fails writes and reads") {
+    val a = write(10)
+    spool.stop
+    expect(-1L)(write(10))
+    expect(None)(read(a))
+    spool.free(a)
+  }
+
+}
@@ -17,6 +17,8 @@
 package org.apache.activemq.apollo.broker.perf
 
 import java.net.URL
+import org.apache.activemq.apollo.broker.{Queue, LocalRouter}
+import org.apache.activemq.apollo.util.ServiceControl
 
 /**
  * <p>
@@ -56,4 +58,56 @@ trait DeepQueueScenarios extends PersistentScenario {
       }
     }
   }
+
+  /**
+   * The queue depths at which the queue maintenance cost gets sampled.
+   */
+  def maintenanceDepths = List(10000, 100000, 1000000)
+
+  def with_queue[T](func: Queue => T):T = {
+    val host = sendBroker.default_virtual_host
+    val queue = host.dispatch_queue.future {
+      host.router.asInstanceOf[LocalRouter].queue_domain.destinations.head
+    }.await()
+    queue.dispatch_queue.future {
+      func(queue)
+    }.await()
+  }
+
+  // The number of queue entries visited by the swap/expiration maintenance
+  // passes should stay flat as the queue gets deeper.
+  for (depth <- maintenanceDepths) {
+    test("queue maintenance at depth %d".format(depth)) {
+      PTP = true
+      MESSAGE_SIZE = 20
+      destCount = 1
+      producerCount = 1
+      createConnections();
+
+      ServiceControl.start(producers, "test producer startup")
+      try {
+        while (with_queue(_.queue_items) < depth) {
+          println("Filling queue: %d/%d".format(with_queue(_.queue_items), depth))
+          Thread.sleep(SAMPLE_PERIOD)
+        }
+        ServiceControl.stop(producers, "producer shutdown")
+        producers.clear
+
+        // let the swap outs triggered by the fill settle down.
+        Thread.sleep(SAMPLE_PERIOD)
+
+        var peak = 0L
+        for (i <- 0 until PERFORMANCE_SAMPLES) {
+          val start = with_queue(_.swap_visit_counter)
+          Thread.sleep(SAMPLE_PERIOD)
+          val visits = (with_queue(_.swap_visit_counter) - start) * 1000 / SAMPLE_PERIOD
+          println("maintenance visits/sec: %d at depth: %d".format(visits, with_queue(_.queue_items)))
+          peak = peak max visits
+        }
+        samples = samples ::: (testName + " visits/sec", java.lang.Float.valueOf(peak)) :: Nil
+      } finally {
+        stopServices();
+      }
+    }
+  }
 }
\ No newline at end of file
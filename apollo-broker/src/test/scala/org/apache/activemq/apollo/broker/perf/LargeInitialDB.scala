@@ -22,6 +22,7 @@ import org.apache.activemq.apollo.util.{ServiceControl, FileSupport}
 import FileSupport._
 import java.io.File
 import org.apache.activemq.apollo.dto.DestinationDTO
+import org.apache.activemq.apollo.broker.LocalRouter
 
 trait LargeInitialDB extends PersistentScenario {
   PURGE_STORE = false
@@ -33,6 +34,11 @@ trait LargeInitialDB extends PersistentScenario {
   // Keep it simple.. we are only creating 1 queue with a large number of entries.
   override def partitionedLoad = List(1)
 
+  /**
+   * The number of queues the initial messages get spread over.
+   */
+  def initialQueues = 1
+
   override def reportResourceTemplate() = { classOf[PersistentScenario].getResource("largedb-persistent-report.html") }
 
   // delete existing data file and copy new data file over
@@ -62,32 +68,59 @@ trait LargeInitialDB extends PersistentScenario {
     ServiceControl.start(sendBroker, "initial db broker startup")
 
     PTP = true
-    val dests: Array[DestinationDTO] = createDestinations(1)
+    val dests: Array[DestinationDTO] = createDestinations(initialQueues)
 
     totalProducerRate = new MetricAggregator().name("Aggregate Producer Rate").unit("items")
 
-    val producer: RemoteProducer = _createProducer(0, 20, dests(0))
-
-    producer.persistent = true
-    producer.sync_persistent_send = false // this should speed things up.
+    val producers = dests.zipWithIndex.map { case (dest, i) =>
+      val producer: RemoteProducer = _createProducer(i, 20, dest)
+      producer.persistent = true
+      producer.sync_persistent_send = false // this should speed things up.
+      producer
+    }
 
-    ServiceControl.start(producer, "initial db producer startup")
+    ServiceControl.start(producers, "initial db producer startup")
 
     val messages = 1000000L
+    def sent = producers.map(_.rate.counter()).sum
 
     println("Sending %d messages".format(messages))
-    while (producer.rate.counter() < messages) {
-      println("Waiting for producer " + producer.rate.counter() + "/" + messages)
+    while (sent < messages) {
+      println("Waiting for producer " + sent + "/" + messages)
       Thread.sleep(5000)
     }
 
-    ServiceControl.stop(producer, "producer shutdown")
+    ServiceControl.stop(producers, "producer shutdown")
 
     ServiceControl.stop(sendBroker, "broker shutdown")
 
     saveDB
   }
 
+  // Measures how long it takes for all the queues of the initial db
+  // to be restored and ready to be used.
+  test("broker startup time") {
+    brokers.clear
+    initBrokers
+    val start = System.currentTimeMillis
+    startBrokers
+    try {
+      val host = sendBroker.default_virtual_host
+      def restored = host.dispatch_queue.future {
+        host.router.asInstanceOf[LocalRouter].queue_domain.destinations.forall(_.service_state.is_started)
+      }.await()
+      while (!restored) {
+        Thread.sleep(10)
+      }
+      val elapsed = System.currentTimeMillis - start
+      println("All queues restored after %d ms".format(elapsed))
+      samples = samples ::: (testName + " ms", java.lang.Float.valueOf(elapsed)) :: Nil
+    } finally {
+      ServiceControl.stop(brokers, "broker shutdown")
+      brokers.clear
+    }
+  }
+
   def saveDB {
     println("Copying contents of " + original + " to " + backup)
     cleanBackup
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import collection.mutable.ListBuffer
+import HeartBeatWheel._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HeartBeatWheelTest extends FunSuiteSupport {
+
+  /**
+   * A check which counts how often it runs.
+   */
+  class CountingCheck(interval:Long, queue:DispatchQueue=createQueue("connection"), expected:Int=1) extends Check(interval, queue) {
+    val runs = new AtomicInteger()
+    val done = new CountDownLatch(expected)
+    def check = {
+      runs.incrementAndGet
+      done.countDown
+    }
+    def await = expect(true)(done.await(10, TimeUnit.SECONDS))
+  }
+
+  def sync[T](queue:DispatchQueue)(func: =>T):T = {
+    val rc = new AtomicReference[Any]()
+    val done = new CountDownLatch(1)
+    queue {
+      rc.set(func)
+      done.countDown
+    }
+    expect(true)(done.await(10, TimeUnit.SECONDS))
+    rc.get.asInstanceOf[T]
+  }
+
+  test("checks run every interval") {
+    val wheel = new HeartBeatWheel(10)
+    val check = new CountingCheck(50, expected=5)
+    val start = System.currentTimeMillis
+    wheel.add(check)
+    check.await
+    // ticks can run late but never early.
+    expect(true)(System.currentTimeMillis - start >= 250)
+    check.cancel
+  }
+
+  test("checks with intervals longer than a turn of the wheel wait for more rounds") {
+    val wheel = new HeartBeatWheel(1)
+    val check = new CountingCheck(WHEEL_SIZE + WHEEL_SIZE/2)
+    val start = System.currentTimeMillis
+    wheel.add(check)
+    expect(1L)(sync(wheel.dispatch_queue)(check.rounds))
+
+    // without the extra round it would have run half a turn in.
+    check.await
+    expect(true)(System.currentTimeMillis - start >= WHEEL_SIZE + WHEEL_SIZE/2)
+    check.cancel
+
+    val longer = new CountingCheck(WHEEL_SIZE * 3)
+    wheel.add(longer)
+    expect(2L)(sync(wheel.dispatch_queue)(longer.rounds))
+    longer.cancel
+  }
+
+  test("canceled checks stop running and the wheel stops ticking once it's empty") {
+    val wheel = new HeartBeatWheel(10)
+    val check = new CountingCheck(20, expected=2)
+    wheel.add(check)
+    check.await
+    expect(true)(sync(wheel.dispatch_queue)(wheel.ticking))
+
+    check.cancel
+    Thread.sleep(50)
+    val runs = check.runs.get
+    Thread.sleep(100)
+    expect(runs)(check.runs.get)
+    expect((0, false))(sync(wheel.dispatch_queue)((wheel.size, wheel.ticking)))
+
+    // adding a check starts it ticking again.
+    val next = new CountingCheck(20)
+    wheel.add(next)
+    next.await
+    next.cancel
+  }
+
+  test("due checks of connections on the same thread run in one task") {
+    val wheel = new HeartBeatWheel(10)
+    val target = createQueue("thread")
+    val order = new ListBuffer[(String, Boolean)]()
+    val done = new CountDownLatch(2)
+
+    def check(name:String) = {
+      val queue = createQueue(name)
+      queue.setTargetQueue(target)
+      new Check(20, queue) {
+        def check = {
+          order.synchronized {
+            order += ((name, target.isSuspended))
+          }
+          // holds off any other task the wheel dispatched to the thread.
+          target.suspend
+          done.countDown
+        }
+      }
+    }
+
+    val checks = check("a")::check("b")::Nil
+    // so both land in the same slot.
+    wheel.dispatch_queue.suspend
+    checks.foreach(wheel.add(_))
+    wheel.dispatch_queue.resume
+
+    expect(true)(done.await(10, TimeUnit.SECONDS))
+    checks.foreach(_.cancel)
+    expect(List(("a", false), ("b", true)))(order.synchronized(order.toList))
+    target.resume
+    target.resume
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import DurabilityLevel._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DurabilityLevelTest extends FunSuiteSupport {
+
+  test("parse") {
+    expect(null)(parse(null))
+    expect(SYNC)(parse("sync"))
+    expect(GROUP_COMMIT(DEFAULT_GROUP_COMMIT_DELAY))(parse("group_commit"))
+    expect(GROUP_COMMIT(50))(parse("group_commit(50)"))
+    expect(ASYNC_FLUSH)(parse("async_flush"))
+    expect(OS_CACHE)(parse("os_cache"))
+  }
+
+  test("parse rejects invalid values") {
+    for( value <- List("", "SYNC", "group_commit()", "group_commit(x)", "group_commit(-1)", "fast") ) {
+      intercept[IllegalArgumentException] {
+        parse(value)
+      }
+    }
+  }
+
+  test("only the synced levels sync") {
+    expect(true)(SYNC.sync)
+    expect(true)(GROUP_COMMIT(10).sync)
+    expect(false)(ASYNC_FLUSH.sync)
+    expect(false)(OS_CACHE.sync)
+  }
+
+  test("strongest") {
+    expect(null)(strongest(null, null))
+    expect(OS_CACHE)(strongest(null, OS_CACHE))
+    expect(OS_CACHE)(strongest(OS_CACHE, null))
+
+    val levels = List(OS_CACHE, ASYNC_FLUSH, GROUP_COMMIT(10), SYNC)
+    for( (weaker, i) <- levels.zipWithIndex; stronger <- levels.drop(i) ) {
+      expect(stronger)(strongest(weaker, stronger))
+      expect(stronger)(strongest(stronger, weaker))
+    }
+  }
+
+  test("the group commit with the shortest delay is the strongest") {
+    expect(GROUP_COMMIT(10))(strongest(GROUP_COMMIT(10), GROUP_COMMIT(50)))
+    expect(GROUP_COMMIT(10))(strongest(GROUP_COMMIT(50), GROUP_COMMIT(10)))
+  }
+
+}
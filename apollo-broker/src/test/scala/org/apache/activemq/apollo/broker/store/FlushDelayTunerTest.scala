@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import FlushDelayTuner._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class FlushDelayTunerTest extends FunSuiteSupport {
+
+  def tuner(initial:Long=100, min:Long=10, max:Long=1000) = {
+    val rc = new FlushDelayTuner(initial)
+    rc.bounds(min, max)
+    rc
+  }
+
+  def sample(tuner:FlushDelayTuner, delayed:Long, canceled:Long, pending_stores:Int=0) = {
+    tuner.delayed = delayed
+    tuner.canceled = canceled
+    tuner.tune(pending_stores)
+    tuner.delay
+  }
+
+  test("the delay grows while most delayed enqueues get canceled") {
+    val t = tuner()
+    expect(200)(sample(t, 100, 50))
+    expect(400)(sample(t, 100, 90))
+  }
+
+  test("the delay shrinks once few delayed enqueues get canceled") {
+    val t = tuner()
+    expect(50)(sample(t, 100, 9))
+    expect(25)(sample(t, 100, 0))
+  }
+
+  test("the delay holds while the cancel ratio is in between") {
+    val t = tuner()
+    expect(100)(sample(t, 100, 10))
+    expect(100)(sample(t, 100, 49))
+  }
+
+  test("too many pending stores shrink the delay even if canceling works") {
+    val t = tuner()
+    expect(50)(sample(t, 100, 100, PENDING_STORES_LIMIT+1))
+    expect(100)(sample(t, 100, 100, PENDING_STORES_LIMIT))
+  }
+
+  test("the delay is not tuned on too few samples") {
+    val t = tuner()
+    expect(100)(sample(t, MIN_SAMPLES-1, MIN_SAMPLES-1))
+    expect(100)(sample(t, MIN_SAMPLES-1, 0))
+    expect(200)(sample(t, MIN_SAMPLES, MIN_SAMPLES))
+  }
+
+  test("tuning resets the counters") {
+    val t = tuner()
+    expect(true)(t.is_idle)
+    t.delayed = 10
+    t.canceled = 5
+    expect(false)(t.is_idle)
+    t.tune(0)
+    expect(true)(t.is_idle)
+  }
+
+  test("the delay stays within it's bounds") {
+    val t = tuner()
+    for( i <- 0 until 10 ) {
+      sample(t, 100, 100)
+    }
+    expect(1000)(t.delay)
+    for( i <- 0 until 10 ) {
+      sample(t, 100, 0)
+    }
+    expect(10)(t.delay)
+  }
+
+  test("changing the bounds clamps the delay") {
+    val t = tuner()
+    t.bounds(200, 500)
+    expect(200)(t.delay)
+    t.bounds(10, 50)
+    expect(50)(t.delay)
+    // a max below the min is raised to the min.
+    t.bounds(20, 5)
+    expect(20)(t.max)
+    expect(20)(t.delay)
+  }
+
+  test("a zero delay can grow") {
+    val t = tuner(0, 0, 100)
+    expect(2)(sample(t, 100, 100))
+  }
+
+}
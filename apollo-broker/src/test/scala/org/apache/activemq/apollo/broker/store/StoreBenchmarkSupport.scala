@@ -158,6 +158,36 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     loadMessages(A, message_keys)
   }
 
+  test("canceled uow throughput") {
+    val threads = 8
+    val queues = (0 until threads).map(i=> add_queue("Q"+i))
+    val content = payload("message\n", 1024)
+
+    // The dequeue cancels out the delayed enqueue, so this measures the
+    // uow bookkeeping without the disk getting in the way.  Each thread
+    // works on it's own queue, like the queues of a broker would.
+    var metric = benchmarkThreads(threads, 20000) { (thread, i) =>
+      val queue = queues(thread)
+      val seq = i + 1L
+
+      var batch = store.create_uow
+      val message = addMessage(batch, content)
+      batch.enqueue(entry(queue, seq, message))
+      batch.release
+
+      batch = store.create_uow
+      batch.dequeue(entry(queue, seq, message))
+      val latch = new CountDownLatch(1)
+      batch.on_complete(latch.countDown)
+      batch.release
+
+      latch.await
+    }
+    println("uow metrics: "+metric)
+    println("uow latency is: "+metric.latency(TimeUnit.MILLISECONDS)+" ms")
+    println("uow rate is: "+metric.rate(TimeUnit.SECONDS)+" uows/s")
+  }
+
   def storeMessages(queue:Long) = {
 
     var seq = 0L
@@ -249,6 +279,30 @@ abstract class StoreBenchmarkSupport extends FunSuiteSupport with BeforeAndAfter
     Metric(counter.get, endT-startT)
   }
 
+  /**
+   * Runs the function iterations times on each of the threads.  The
+   * function gets passed the thread's index and the iteration.
+   */
+  def benchmarkThreads(threads:Int, iterations:Int)(func: (Int, Int)=>Unit ) = {
+    val go = new CountDownLatch(1)
+    val workers = for( t <- 0 until threads ) yield new Thread("benchmarked task "+t) {
+      override def run = {
+        go.await
+        var i = 0
+        while( i < iterations) {
+          func(t, i)
+          i += 1
+        }
+      }
+    }
+    workers.foreach(_.start)
+    val startT = System.nanoTime();
+    go.countDown
+    workers.foreach(_.join)
+    val endT = System.nanoTime();
+    Metric(threads.toLong*iterations, endT-startT)
+  }
+
   def benchmarkCount(iterations:Int)(func: =>Unit ) = {
     val startT = System.nanoTime();
     var i = 0
@@ -176,6 +176,46 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("list queue entry ranges") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::"message 4"::Nil)
+
+    var ranges:Seq[QueueEntryRange] = CB( cb=> store.list_queue_entry_ranges(A, 10)(cb) )
+    expect((4, 1L, 4L)) {
+      (ranges.map(_.count).sum, ranges.head.first_entry_seq, ranges.last.last_entry_seq)
+    }
+
+    // the ranges keep track of dequeues.
+    val batch = store.create_uow
+    batch.dequeue(entry(A, 2, msg_keys(1)))
+    val tracker = new TaskTracker()
+    val task = tracker.task("uow complete")
+    batch.on_complete(task.run)
+    batch.complete_asap
+    batch.release
+    tracker.await
+
+    ranges = CB( cb=> store.list_queue_entry_ranges(A, 10)(cb) )
+    expect(3) {
+      ranges.map(_.count).sum
+    }
+
+    // dequeuing the same entry again leaves them alone.
+    val again = store.create_uow
+    again.dequeue(entry(A, 2, msg_keys(1)))
+    val again_tracker = new TaskTracker()
+    val again_task = again_tracker.task("uow complete")
+    again.on_complete(again_task.run)
+    again.complete_asap
+    again.release
+    again_tracker.await
+
+    ranges = CB( cb=> store.list_queue_entry_ranges(A, 10)(cb) )
+    expect(3) {
+      ranges.map(_.count).sum
+    }
+  }
+
   test("batch completes after a delay") {x}
   def x = {
     val A = add_queue("A")
@@ -216,5 +256,71 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("concurrent enqueues and dequeues cancel out") {
+    val A = add_queue("A")
+    val threads = 4
+    val count = 250
+    val tracker = new TaskTracker()
+    val errors = new AtomicLong
+
+    val workers = for( t <- 0 until threads ) yield new Thread("enqueue/dequeue "+t) {
+      override def run = try {
+        for( i <- 0 until count ) {
+          val seq = (t * count) + i + 1
+          val enqueue = store.create_uow
+          val key = add_message(enqueue, "message "+seq)
+          enqueue.enqueue(entry(A, seq, key))
+
+          val dequeue = store.create_uow
+          dequeue.dequeue(entry(A, seq, key))
+          val task = tracker.task("dequeue "+seq)
+          dequeue.on_complete(task.run)
+
+          // every other dequeue gets disposed before the uow holding it's enqueue.
+          if( i%2 == 0 ) {
+            dequeue.release
+            enqueue.release
+          } else {
+            enqueue.release
+            dequeue.release
+          }
+        }
+      } catch {
+        case e:Throwable =>
+          e.printStackTrace
+          errors.incrementAndGet
+      }
+    }
+    workers.foreach(_.start)
+    workers.foreach(_.join)
+    expect(0L)(errors.get)
+    expect(true)(tracker.await(10, TimeUnit.SECONDS))
+
+    val rc:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(A, 0, Long.MaxValue)(cb) )
+    expect(Nil)(rc.toList)
+  }
+
+  test("group commit uows are held back for at most their max delay") {
+    val A = add_queue("A")
+    var batch = store.create_uow
+    batch.durability(DurabilityLevel.GROUP_COMMIT(1000))
+
+    val m1 = add_message(batch, "message 1")
+    batch.enqueue(entry(A, 1, m1))
+
+    val tracker = new TaskTracker()
+    val task = tracker.task("uow complete")
+    batch.on_complete(task.run)
+    batch.release
+
+    // held back for the group commit, but not for the whole flush delay.
+    expect(false) {
+      tracker.await(300, TimeUnit.MILLISECONDS)
+    }
+    expect(true) {
+      tracker.await(3, TimeUnit.SECONDS)
+    }
+  }
+
 
 }
@@ -113,24 +113,23 @@ class CassandraClient() {
         var operations = List[Operation]()
         txs.foreach {
           tx =>
-            tx.actions.foreach {
-              case (msg, action) =>
-                var rc =
-                if (action.message_record != null) {
-                  operations ::= Insert( schema.message_data \ (msg, action.message_record ) )
-                }
-                action.enqueues.foreach {
-                  queueEntry =>
-                    val qid = queueEntry.queue_key
-                    val seq = queueEntry.entry_seq
-                    operations ::= Insert( schema.entries \ qid \ (seq, queueEntry) )
-                }
-                action.dequeues.foreach {
-                  queueEntry =>
-                    val qid = queueEntry.queue_key
-                    val seq = queueEntry.entry_seq
-                    operations ::= Delete( schema.entries \ qid, ColumnPredicate(seq :: Nil) )
-                }
+            tx.actions.foreach { action =>
+              var rc =
+              if (action.message_record != null) {
+                operations ::= Insert( schema.message_data \ (action.msg, action.message_record ) )
+              }
+              action.enqueues.foreach {
+                queueEntry =>
+                  val qid = queueEntry.queue_key
+                  val seq = queueEntry.entry_seq
+                  operations ::= Insert( schema.entries \ qid \ (seq, queueEntry) )
+              }
+              action.dequeues.foreach {
+                queueEntry =>
+                  val qid = queueEntry.queue_key
+                  val seq = queueEntry.entry_seq
+                  operations ::= Delete( schema.entries \ qid, ColumnPredicate(seq :: Nil) )
+              }
             }
         }
         session.batch(operations)
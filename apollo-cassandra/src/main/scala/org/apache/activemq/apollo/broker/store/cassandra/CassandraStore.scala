@@ -63,6 +63,8 @@ class CassandraStore(var config:CassandraStoreDTO) extends DelayingStoreSupport
   var blocking:ExecutorService = null
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  override def flush_delay_min = config.flush_delay_min.getOrElse(flush_delay)
+  override def flush_delay_max = config.flush_delay_max.getOrElse(flush_delay)
 
   override def toString = "cassandra store at "+config.hosts.toList.mkString(", ")
 
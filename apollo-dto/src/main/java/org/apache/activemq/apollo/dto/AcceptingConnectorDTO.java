@@ -39,6 +39,21 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
   @XmlAttribute
   public String protocol;
 
+  /**
+   * The kind of buffers the connections borrow from a pool shared by the
+   * connector while data is in flight, either heap or direct.  If not set,
+   * each connection allocates it's own buffers.
+   */
+  @XmlAttribute(name="buffer_pool")
+  public String buffer_pool;
+
+  /**
+   * The max amount of memory the buffer pool keeps around for buffers
+   * which are not in use.  Defaults to 16M.
+   */
+  @XmlAttribute(name="buffer_pool_size")
+  public String buffer_pool_size;
+
   /**
    * A broker accepts connections via it's configured connectors.
    */
@@ -59,6 +74,10 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
       return false;
     if (protocols != null ? !protocols.equals(that.protocols) : that.protocols != null)
       return false;
+    if (buffer_pool != null ? !buffer_pool.equals(that.buffer_pool) : that.buffer_pool != null)
+      return false;
+    if (buffer_pool_size != null ? !buffer_pool_size.equals(that.buffer_pool_size) : that.buffer_pool_size != null)
+      return false;
 
     return true;
   }
@@ -69,6 +88,8 @@ public class AcceptingConnectorDTO extends ConnectorTypeDTO {
     result = 31 * result + (bind != null ? bind.hashCode() : 0);
     result = 31 * result + (protocol != null ? protocol.hashCode() : 0);
     result = 31 * result + (protocols != null ? protocols.hashCode() : 0);
+    result = 31 * result + (buffer_pool != null ? buffer_pool.hashCode() : 0);
+    result = 31 * result + (buffer_pool_size != null ? buffer_pool_size.hashCode() : 0);
     return result;
   }
 }
\ No newline at end of file
@@ -91,6 +91,13 @@ public class BrokerDTO {
     @XmlAttribute(name="validation")
     public String validation;
 
+    /**
+     * The max amount of memory the messages loaded in the broker's queues
+     * may use, for example "512M".  Not limited by default.
+     */
+    @XmlAttribute(name="memory_limit")
+    public String memory_limit;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -114,6 +121,8 @@ public class BrokerDTO {
             return false;
         if (log_category != null ? !log_category.equals(brokerDTO.log_category) : brokerDTO.log_category != null)
             return false;
+        if (memory_limit != null ? !memory_limit.equals(brokerDTO.memory_limit) : brokerDTO.memory_limit != null)
+            return false;
         if (notes != null ? !notes.equals(brokerDTO.notes) : brokerDTO.notes != null) return false;
         if (other != null ? !other.equals(brokerDTO.other) : brokerDTO.other != null) return false;
         if (services != null ? !services.equals(brokerDTO.services) : brokerDTO.services != null) return false;
@@ -141,6 +150,7 @@ public class BrokerDTO {
         result = 31 * result + (services != null ? services.hashCode() : 0);
         result = 31 * result + (sticky_dispatching != null ? sticky_dispatching.hashCode() : 0);
         result = 31 * result + (validation != null ? validation.hashCode() : 0);
+        result = 31 * result + (memory_limit != null ? memory_limit.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
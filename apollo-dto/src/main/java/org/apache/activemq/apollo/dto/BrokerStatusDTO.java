@@ -71,4 +71,17 @@ public class BrokerStatusDTO extends ServiceStatusDTO {
      */
 	@XmlAttribute(name="connection_counter")
 	public long connection_counter;
+
+    /**
+     * The max amount of memory the messages loaded in queues may use,
+     * or -1 if not limited.
+     */
+	@XmlAttribute(name="memory_limit")
+	public long memory_limit;
+
+    /**
+     * The amount of memory used by the messages loaded in queues.
+     */
+	@XmlAttribute(name="memory_used")
+	public long memory_used;
 }
@@ -53,4 +53,38 @@ public class ConnectorStatusDTO extends ServiceStatusDTO {
     @XmlAttribute
     public long connected;
 
+    /**
+     * The number of connections that this connector accepted in the
+     * last second.
+     */
+    @XmlAttribute(name="accept_rate")
+    public long accept_rate;
+
+    /**
+     * The number of buffers the connections have borrowed from the
+     * connector's buffer pool.
+     */
+    @XmlAttribute(name="buffers_borrowed")
+    public long buffers_borrowed;
+
+    /**
+     * The number of bytes the connections have borrowed from the
+     * connector's buffer pool.
+     */
+    @XmlAttribute(name="buffers_borrowed_size")
+    public long buffers_borrowed_size;
+
+    /**
+     * The number of bytes held by the connector's buffer pool which
+     * are not in use.
+     */
+    @XmlAttribute(name="buffers_pooled_size")
+    public long buffers_pooled_size;
+
+    /**
+     * The number of buffers the connector's buffer pool has allocated.
+     */
+    @XmlAttribute(name="buffers_allocated")
+    public long buffers_allocated;
+
 }
@@ -30,7 +30,7 @@ import java.util.List;
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 @XmlType(name = "destination")
-@XmlSeeAlso({QueueDestinationDTO.class, DurableSubscriptionDestinationDTO.class})
+@XmlSeeAlso({QueueDestinationDTO.class, DurableSubscriptionDestinationDTO.class, QueuePartitionDestinationDTO.class})
 @JsonTypeInfo(use=JsonTypeInfo.Id.CLASS, include=JsonTypeInfo.As.PROPERTY, property="@class")
 @XmlAccessorType(XmlAccessType.FIELD)
 abstract public class DestinationDTO {
@@ -61,12 +61,29 @@ public class QueueDTO extends StringIdDTO {
     @XmlAttribute(name="consumer_buffer")
     public Integer consumer_buffer;
 
+    /**
+     * The max amount of memory each subscription loads ahead of its
+     * consumer buffer so that store load latency is hidden from fast
+     * consumers.  Not enabled by default.
+     */
+    @XmlAttribute(name="read_ahead")
+    public String read_ahead;
+
     /**
      * Should this queue persistently store it's entries?
      */
     @XmlAttribute(name="persistent")
     public Boolean persistent;
 
+    /**
+     * How durable the persistent updates for this queue need to be
+     * before they are considered complete.  One of: sync,
+     * group_commit(max_delay), async_flush or os_cache.  If not set,
+     * the store decides.
+     */
+    @XmlAttribute(name="durability")
+    public String durability;
+
     /**
      * Should messages be swapped out of memory if
      * no consumers need the message?
@@ -83,6 +100,26 @@ public class QueueDTO extends StringIdDTO {
     @XmlAttribute(name="swap_range_size")
     public Integer swap_range_size;
 
+    /**
+     * The number of priority levels the queue dispatches messages
+     * with.  Messages with a higher priority level get dispatched
+     * before the lower priority ones.  Defaults to 1 which disables
+     * priority dispatching.  The max is 10.  Only applied when the
+     * queue is first created.
+     */
+    @XmlAttribute(name="priorities")
+    public Integer priorities;
+
+    /**
+     * The number of partitions the queue is split into.  Each partition
+     * is dispatched on it's own thread so a busy queue can use more
+     * than one core.  Producers spread their messages over the partitions
+     * and consumers receive from all of them, so the message order
+     * is only kept within a partition.  Defaults to 1.
+     */
+    @XmlAttribute(name="partitions")
+    public Integer partitions;
+
     @XmlElement(name="acl")
     public QueueAclDTO acl;
 
@@ -113,13 +150,20 @@ public class QueueDTO extends StringIdDTO {
             return false;
         if (consumer_buffer != null ? !consumer_buffer.equals(queueDTO.consumer_buffer) : queueDTO.consumer_buffer != null)
             return false;
+        if (read_ahead != null ? !read_ahead.equals(queueDTO.read_ahead) : queueDTO.read_ahead != null)
+            return false;
         if (other != null ? !other.equals(queueDTO.other) : queueDTO.other != null) return false;
         if (persistent != null ? !persistent.equals(queueDTO.persistent) : queueDTO.persistent != null) return false;
+        if (durability != null ? !durability.equals(queueDTO.durability) : queueDTO.durability != null) return false;
         if (queue_buffer != null ? !queue_buffer.equals(queueDTO.queue_buffer) : queueDTO.queue_buffer != null)
             return false;
         if (swap != null ? !swap.equals(queueDTO.swap) : queueDTO.swap != null) return false;
         if (swap_range_size != null ? !swap_range_size.equals(queueDTO.swap_range_size) : queueDTO.swap_range_size != null)
             return false;
+        if (priorities != null ? !priorities.equals(queueDTO.priorities) : queueDTO.priorities != null)
+            return false;
+        if (partitions != null ? !partitions.equals(queueDTO.partitions) : queueDTO.partitions != null)
+            return false;
         if (unified != null ? !unified.equals(queueDTO.unified) : queueDTO.unified != null) return false;
 
         return true;
@@ -132,9 +176,13 @@ public class QueueDTO extends StringIdDTO {
         result = 31 * result + (unified != null ? unified.hashCode() : 0);
         result = 31 * result + (queue_buffer != null ? queue_buffer.hashCode() : 0);
         result = 31 * result + (consumer_buffer != null ? consumer_buffer.hashCode() : 0);
+        result = 31 * result + (read_ahead != null ? read_ahead.hashCode() : 0);
         result = 31 * result + (persistent != null ? persistent.hashCode() : 0);
+        result = 31 * result + (durability != null ? durability.hashCode() : 0);
         result = 31 * result + (swap != null ? swap.hashCode() : 0);
         result = 31 * result + (swap_range_size != null ? swap_range_size.hashCode() : 0);
+        result = 31 * result + (priorities != null ? priorities.hashCode() : 0);
+        result = 31 * result + (partitions != null ? partitions.hashCode() : 0);
         result = 31 * result + (acl != null ? acl.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ * Identifies one of the partitions of a partitioned queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name = "queue_partition_destination")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class QueuePartitionDestinationDTO extends QueueDestinationDTO {
+
+    /**
+     * The index of the partition.  The first partition (index 0)
+     * is the queue itself.
+     */
+    @XmlAttribute
+    public int partition;
+
+    public QueuePartitionDestinationDTO() {
+    }
+
+    public QueuePartitionDestinationDTO(java.util.List<String> path, int partition) {
+        super(path);
+        this.partition = partition;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+
+        QueuePartitionDestinationDTO that = (QueuePartitionDestinationDTO) o;
+
+        if (partition != that.partition) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + partition;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "QueuePartitionDestinationDTO{" +
+                "path=" + path +
+                ", partition=" + partition +
+                '}';
+    }
+}
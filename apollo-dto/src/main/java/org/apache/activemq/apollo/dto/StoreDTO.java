@@ -38,6 +38,22 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * The smallest flush delay the store will tune the flush delay down to
+     * when few of the delayed units of work end up getting negated.
+     * Defaults to the flush_delay.
+     */
+    @XmlAttribute(name="flush_delay_min", required=false)
+    public Long flush_delay_min;
+
+    /**
+     * The largest flush delay the store will tune the flush delay up to
+     * when most of the delayed units of work end up getting negated.
+     * Defaults to the flush_delay.
+     */
+    @XmlAttribute(name="flush_delay_max", required=false)
+    public Long flush_delay_max;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -47,12 +63,19 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (flush_delay_max != null ? !flush_delay_max.equals(storeDTO.flush_delay_max) : storeDTO.flush_delay_max != null)
+            return false;
+        if (flush_delay_min != null ? !flush_delay_min.equals(storeDTO.flush_delay_min) : storeDTO.flush_delay_min != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (flush_delay_min != null ? flush_delay_min.hashCode() : 0);
+        result = 31 * result + (flush_delay_max != null ? flush_delay_max.hashCode() : 0);
+        return result;
     }
 }
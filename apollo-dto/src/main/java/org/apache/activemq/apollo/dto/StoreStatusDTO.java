@@ -81,4 +81,34 @@ public abstract class StoreStatusDTO extends StringIdDTO {
     @XmlElement(name="pending_stores")
     public int pending_stores;
 
+    /**
+     * The flush delay in milliseconds the store is currently using.
+     */
+    @XmlAttribute(name="flush_delay")
+    public long flush_delay;
+
+    /**
+     * The number of message loads served from the virtual host's message cache.
+     */
+    @XmlAttribute(name="message_cache_hits")
+    public long message_cache_hits;
+
+    /**
+     * The number of message loads which had to go to the store.
+     */
+    @XmlAttribute(name="message_cache_misses")
+    public long message_cache_misses;
+
+    /**
+     * The number of messages evicted from the message cache.
+     */
+    @XmlAttribute(name="message_cache_evictions")
+    public long message_cache_evictions;
+
+    /**
+     * The number of bytes of messages held in the message cache.
+     */
+    @XmlAttribute(name="message_cache_size")
+    public long message_cache_size;
+
 }
\ No newline at end of file
@@ -43,6 +43,15 @@ public class TopicDTO extends StringIdDTO {
     @XmlAttribute(name="slow_consumer_policy")
     public String slow_consumer_policy;
 
+    /**
+     * How durable the persistent updates for the durable subscriptions
+     * of this topic need to be before they are considered complete.
+     * One of: sync, group_commit(max_delay), async_flush or os_cache.
+     * Durable subscriptions which set their own durability use that instead.
+     */
+    @XmlAttribute(name="durability")
+    public String durability;
+
     @XmlElement(name="acl")
     public TopicAclDTO acl;
 
@@ -64,6 +73,7 @@ public class TopicDTO extends StringIdDTO {
         if (auto_delete_after != null ? !auto_delete_after.equals(topicDTO.auto_delete_after) : topicDTO.auto_delete_after != null)
             return false;
         if (other != null ? !other.equals(topicDTO.other) : topicDTO.other != null) return false;
+        if (durability != null ? !durability.equals(topicDTO.durability) : topicDTO.durability != null) return false;
         if (slow_consumer_policy != null ? !slow_consumer_policy.equals(topicDTO.slow_consumer_policy) : topicDTO.slow_consumer_policy != null)
             return false;
 
@@ -76,6 +86,7 @@ public class TopicDTO extends StringIdDTO {
         result = 31 * result + (auto_delete_after != null ? auto_delete_after.hashCode() : 0);
         result = 31 * result + (slow_consumer_policy != null ? slow_consumer_policy.hashCode() : 0);
         result = 31 * result + (acl != null ? acl.hashCode() : 0);
+        result = 31 * result + (durability != null ? durability.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
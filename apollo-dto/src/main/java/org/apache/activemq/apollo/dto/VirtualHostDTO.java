@@ -74,6 +74,28 @@ public class VirtualHostDTO extends ServiceDTO {
     @XmlAttribute(name="regroup_connections")
     public Boolean regroup_connections;
 
+    /**
+     * Should non-persistent queue messages be swapped out to a temporary
+     * spool file in the broker's tmp directory?  Defaults to false.
+     */
+    @XmlAttribute(name="spool")
+    public Boolean spool;
+
+    /**
+     * The max number of queues which restore from the store
+     * at the same time when the virtual host starts.  Defaults to 10.
+     */
+    @XmlAttribute(name="recovery_concurrency")
+    public Integer recovery_concurrency;
+
+    /**
+     * The max amount of memory used to cache the messages loaded from the
+     * store so that queues sharing a message only load it once.
+     * Set to 0 to disable the cache.  Defaults to 10M.
+     */
+    @XmlAttribute(name="message_cache_size")
+    public String message_cache_size;
+
     @XmlElement(name="acl")
     public VirtualHostAclDTO acl;
 
@@ -111,6 +133,11 @@ public class VirtualHostDTO extends ServiceDTO {
         if (queues != null ? !queues.equals(that.queues) : that.queues != null) return false;
         if (regroup_connections != null ? !regroup_connections.equals(that.regroup_connections) : that.regroup_connections != null)
             return false;
+        if (spool != null ? !spool.equals(that.spool) : that.spool != null) return false;
+        if (recovery_concurrency != null ? !recovery_concurrency.equals(that.recovery_concurrency) : that.recovery_concurrency != null)
+            return false;
+        if (message_cache_size != null ? !message_cache_size.equals(that.message_cache_size) : that.message_cache_size != null)
+            return false;
         if (store != null ? !store.equals(that.store) : that.store != null) return false;
         if (topics != null ? !topics.equals(that.topics) : that.topics != null) return false;
 
@@ -128,6 +155,9 @@ public class VirtualHostDTO extends ServiceDTO {
         result = 31 * result + (queues != null ? queues.hashCode() : 0);
         result = 31 * result + (dsubs != null ? dsubs.hashCode() : 0);
         result = 31 * result + (regroup_connections != null ? regroup_connections.hashCode() : 0);
+        result = 31 * result + (spool != null ? spool.hashCode() : 0);
+        result = 31 * result + (recovery_concurrency != null ? recovery_concurrency.hashCode() : 0);
+        result = 31 * result + (message_cache_size != null ? message_cache_size.hashCode() : 0);
         result = 31 * result + (acl != null ? acl.hashCode() : 0);
         result = 31 * result + (authentication != null ? authentication.hashCode() : 0);
         result = 31 * result + (log_category != null ? log_category.hashCode() : 0);
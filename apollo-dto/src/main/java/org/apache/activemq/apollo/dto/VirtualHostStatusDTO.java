@@ -56,4 +56,23 @@ public class VirtualHostStatusDTO extends ServiceStatusDTO {
     @XmlElement(name="store")
     public boolean store;
 
+    /**
+     * The amount of memory used by the messages loaded in the
+     * virtual host's queues.
+     */
+    @XmlAttribute(name="memory_used")
+    public long memory_used;
+
+    /**
+     * The number of queues which have finished restoring from the store.
+     */
+    @XmlAttribute(name="queues_restored")
+    public int queues_restored;
+
+    /**
+     * The number of queues which are still restoring from the store.
+     */
+    @XmlAttribute(name="queues_restoring")
+    public int queues_restoring;
+
 }
@@ -22,7 +22,7 @@ import java.{util=>ju}
 
 import java.io.File
 import java.io.IOException
-import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.atomic.{AtomicReference, AtomicInteger, AtomicLong}
 import org.fusesource.hawtdb.internal.journal.{JournalListener, Journal, Location}
 import org.apache.activemq.apollo.broker.store.hawtdb.model.Type._
 import org.apache.activemq.apollo.broker.store.hawtdb.model._
@@ -62,7 +62,8 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
 
   private val indexFileFactory = new TxPageFileFactory()
-  private var journal: Journal = null
+  private[hawtdb] var journal: Journal = null
+  private var reader: JournalReader = null
 
   private var lockFile: LockFile = null
   private val trackingGen = new AtomicLong(0)
@@ -95,6 +96,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   def journal_batch_size = config.journal_batch_size.getOrElse(1024*256)
   def index_flush_interval = config.index_flush_interval.getOrElse(5L * 1000L)
   def cleanup_interval = config.cleanup_interval.getOrElse(30 * 1000L)
+  def compaction_interval = config.compaction_interval.getOrElse(60 * 1000L)
+  def compaction_ratio = config.compaction_ratio.getOrElse(50)
+  def compaction_rate = config.compaction_rate.getOrElse(1024*1024*4)
   def fail_if_locked = config.fail_if_locked.getOrElse(false)
   def index_page_size = config.index_page_size.getOrElse(512.toShort)
   def index_cache_size = config.index_cache_size.getOrElse(5000)
@@ -166,6 +170,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
         journal.setArchiveDataLogs(true)
       }
       journal.start
+      reader = new JournalReader(journal)
 
       indexFileFactory.setFile(new File(directory, "db"))
       indexFileFactory.setDrainOnClose(false)
@@ -209,6 +214,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   }
 
   def stop() = {
+    reader.close
     journal.close
     indexFileFactory.close
     lockFile.unlock
@@ -230,6 +236,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
   def store(uows: Seq[HawtDBStore#DelayableUOW], callback:Runnable) {
     var batch = ListBuffer[TypeCreatable]()
+    val locators = new ju.IdentityHashMap[TypeCreatable, AtomicReference[Array[Byte]]]()
     uows.foreach { uow =>
 
         for((key,value) <- uow.map_actions) {
@@ -239,26 +246,28 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
           batch += entry
         }
 
-        uow.actions.foreach {
-          case (msg, action) =>
-            if (action.message_record != null) {
-              val update: AddMessage.Bean = action.message_record
-              batch += update
-            }
-            action.enqueues.foreach {
-              queueEntry =>
-                val update: AddQueueEntry.Bean = queueEntry
-                batch += update
-            }
-            action.dequeues.foreach {
-              queueEntry =>
-                val queueKey = queueEntry.queue_key
-                val queueSeq = queueEntry.entry_seq
-                batch += new RemoveQueueEntry.Bean().setQueueKey(queueKey).setQueueSeq(queueSeq)
+        uow.actions.foreach { action =>
+          if (action.message_record != null) {
+            val update: AddMessage.Bean = action.message_record
+            batch += update
+            if( action.message_record.locator!=null ) {
+              locators.put(update, action.message_record.locator)
             }
+          }
+          action.enqueues.foreach {
+            queueEntry =>
+              val update: AddQueueEntry.Bean = queueEntry
+              batch += update
+          }
+          action.dequeues.foreach {
+            queueEntry =>
+              val queueKey = queueEntry.queue_key
+              val queueSeq = queueEntry.entry_seq
+              batch += new RemoveQueueEntry.Bean().setQueueKey(queueKey).setQueueSeq(queueSeq)
+          }
         }
     }
-    _store(batch, callback)
+    _store(batch, callback, locators)
   }
 
 
@@ -315,43 +324,79 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
         if (queueRecord != null) {
           val entryIndex = queueEntryIndex(queueRecord)
 
-          var rc = ListBuffer[QueueEntryRange]()
-          var group:QueueEntryRange = null
+          val blocks = if( queueRecord.hasRangeIndexPage ) {
+            queueRangeIndex(queueRecord).iterator.map(x=> QueueEntryRange.decode(x.getValue)).toList
+          } else {
+            Nil
+          }
 
-          entryIndex.iterator.foreach { entry =>
-            if( group == null ) {
-              group = new QueueEntryRange
-              group.first_entry_seq = entry.getKey.longValue
+          if( blocks.isEmpty && entryIndex.iterator.hasNext ) {
+            // The summaries are missing, fall back to visiting all the entries.
+            warn("Queue %d has no entry range summaries, scanning it's entries.", queueKey)
+            var rc = ListBuffer[QueueEntryRange]()
+            var group:QueueEntryRange = null
+            entryIndex.iterator.foreach { entry =>
+              group = QueueEntryRange.enqueued(group, entry.getValue)
+              if( group.count == limit) {
+                rc += group
+                group = null
+              }
             }
-            group.last_entry_seq = entry.getKey.longValue
-            group.count += 1
-            group.size += entry.getValue.getSize
-
-// TODO:
-//            if(group.expiration == 0){
-//              group.expiration = entry.expiration
-//            } else {
-//              if( entry.expiration != 0 ) {
-//                group.expiration = entry.expiration.min(group.expiration)
-//              }
-//            }
-
-            if( group.count == limit) {
+            if( group!=null ) {
               rc += group
-              group = null
             }
+            rc
+          } else {
+            QueueEntryRange.group(blocks.iterator, limit)
           }
-
-          if( group!=null ) {
-            rc += group
-          }
-          rc
         } else {
           null
         }
     }
   }
 
+  /**
+   * Builds the entry range summaries of the queues which were
+   * written by a version of the store that did not keep them.
+   */
+  private def build_missing_entry_ranges() = withTx { tx =>
+    val helper = new TxHelper(tx)
+    import JavaConversions._
+    import helper._
+
+    val missing = ListBuffer[(jl.Long, QueueRootRecord.Buffer)]()
+    queueIndex.iterator.foreach { entry =>
+      if( !entry.getValue.hasRangeIndexPage ) {
+        missing += entry.getKey -> entry.getValue
+      }
+    }
+
+    missing.foreach { case (queueKey, queueRecord) =>
+      info("Building the entry range summaries of queue: %d", queueKey)
+      val updated = queueRecord.copy
+      updated.setRangeIndexPage(alloc(QUEUE_RANGE_INDEX_FACTORY))
+      val frozen = updated.freeze
+      val rangeIndex = queueRangeIndex(frozen)
+      var block = -1L
+      var range:QueueEntryRange = null
+      queueEntryIndex(frozen).iterator.foreach { entry =>
+        val entry_block = QueueEntryRange.block_of(entry.getKey.longValue)
+        if( entry_block != block ) {
+          if( range!=null ) {
+            rangeIndex.put(block, QueueEntryRange.encode(range))
+          }
+          block = entry_block
+          range = null
+        }
+        range = QueueEntryRange.enqueued(range, entry.getValue)
+      }
+      if( range!=null ) {
+        rangeIndex.put(block, QueueEntryRange.encode(range))
+      }
+      queueIndex.put(queueKey, frozen)
+    }
+  }
+
   def getQueueEntries(queueKey: Long, firstSeq:Long, lastSeq:Long): Seq[QueueEntryRecord] = {
     var rc = ListBuffer[QueueEntryRecord]()
     withTx { tx =>
@@ -383,31 +428,66 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
   val metric_load_from_journal_counter = new TimeCounter
   var metric_load_from_journal = metric_load_from_journal_counter(false)
 
-  def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]) = {
-    val locations = withTx { tx =>
-      val helper = new TxHelper(tx)
-      import helper._
-      requests.flatMap { case (messageKey, callback)=>
-        val location = metric_load_from_index_counter.time {
-          messageKeyIndex.get(messageKey)
-        }
-        if( location==null ) {
-          debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
-          callback(None)
-          None
-        } else {
-          Some((location, callback))
+  def loadMessages(requests: ListBuffer[(Long, AtomicReference[Array[Byte]], (Option[MessageRecord])=>Unit)]) = {
+    // Messages which were stored or loaded before carry their journal
+    // location in their locator, only the rest need an index lookup.
+    val located = ListBuffer[(Location, Long, AtomicReference[Array[Byte]], (Option[MessageRecord])=>Unit)]()
+    val unlocated = ListBuffer[(Long, AtomicReference[Array[Byte]], (Option[MessageRecord])=>Unit)]()
+    requests.foreach { case request@(messageKey, locator, callback)=>
+      val value = if( locator==null ) null else locator.get
+      if( value==null ) {
+        unlocated += request
+      } else {
+        located += ((fromLocator(value), messageKey, locator, callback))
+      }
+    }
+
+    if( !unlocated.isEmpty ) {
+      withTx { tx =>
+        val helper = new TxHelper(tx)
+        import helper._
+        unlocated.foreach { case (messageKey, locator, callback)=>
+          val location = metric_load_from_index_counter.time {
+            messageKeyIndex.get(messageKey)
+          }
+          if( location==null ) {
+            debug("Message not indexed.  Journal location could not be determined for message: %s", messageKey)
+            callback(None)
+          } else {
+            located += ((location, messageKey, locator, callback))
+          }
         }
       }
     }
 
-    locations.foreach { case (location, callback)=>
+    // Read the records in journal order so each data file is read sequentially.
+    val sorted = located.sortWith { (a, b)=> a._1.compareTo(b._1) < 0 }
+    sorted.foreach { case (location, messageKey, locator, callback)=>
       val addMessage = metric_load_from_journal_counter.time {
-        load(location, classOf[AddMessage.Getter])
+        load(location, classOf[AddMessage.Getter]).filter(_.getMessageKey == messageKey)
+      }
+      addMessage match {
+        case Some(x) =>
+          val record:MessageRecord = x
+          record.locator = if( locator==null ) new AtomicReference[Array[Byte]]() else locator
+          record.locator.set(toLocator(location))
+          callback(Some(record))
+        case None =>
+          if( locator!=null && locator.get!=null ) {
+            // The locator was stale, fall back to the index and
+            // point the locator at where the message really is.
+            locator.set(null)
+            val rc = loadMessage(messageKey)
+            rc.foreach { record =>
+              locator.set(record.locator.get)
+              record.locator = locator
+            }
+            callback(rc)
+          } else {
+            callback(None)
+          }
       }
-      callback( addMessage.map( x => toMessageRecord(x) ) )
     }
-
   }
 
   def loadMessage(messageKey: Long): Option[MessageRecord] = {
@@ -424,6 +504,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
             load(location, classOf[AddMessage.Getter]) match {
               case Some(x) =>
                 val messageRecord: MessageRecord = x
+                messageRecord.locator = new AtomicReference[Array[Byte]](toLocator(location))
                 Some(messageRecord)
               case None => None
             }
@@ -458,12 +539,12 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     }
   }
 
-  private def _store(updates: Seq[TypeCreatable], onComplete: Runnable): Unit = {
+  private def _store(updates: Seq[TypeCreatable], onComplete: Runnable, locators: ju.Map[TypeCreatable, AtomicReference[Array[Byte]]]): Unit = {
     val batch = next_batch_id
     begin(batch)
     updates.foreach {
       update =>
-        _store(batch, update, null)
+        _store(batch, update, null, if( locators==null ) null else locators.get(update))
     }
     commit(batch, onComplete)
   }
@@ -483,7 +564,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
    *
    * @throws IOException
    */
-  private def _store(batch: Int, update: TypeCreatable, onComplete: Runnable): Unit = {
+  private def _store(batch: Int, update: TypeCreatable, onComplete: Runnable, locator: AtomicReference[Array[Byte]] = null): Unit = {
     val kind = update.asInstanceOf[TypeCreatable]
     val frozen = update.freeze
     val baos = new DataByteArrayOutputStream(frozen.serializedSizeFramed + 5)
@@ -493,6 +574,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
     val buffer = baos.toBuffer()
     append(buffer) { (helper, location) =>
+      if( locator!=null ) {
+        locator.set(toLocator(location))
+      }
       metric_index_update_counter.time {
         executeStore(helper, location, batch, update, onComplete)
       }
@@ -568,6 +652,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
       val end = System.currentTimeMillis()
       info("Processed %d operations from the journal in %,.3f seconds.", recoveryCounter, ((end - start) / 1000.0f))
+      build_missing_entry_ranges
       onComplete.run
     })
   }
@@ -656,7 +741,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
     }
   }
 
-  def read(location: Location) = journal.read(location)
+  def read(location: Location) = reader.read(location)
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -781,11 +866,41 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
         entryIndex.destroy
         trackingIndex.destroy
+        if( queueRecord.hasRangeIndexPage ) {
+          queueRangeIndex(queueRecord).destroy
+        }
       }
 
     }
 
+    def updateRange(queueRecord:QueueRootRecord.Getter, queueSeq:Long)(func: (QueueEntryRange)=>QueueEntryRange) = {
+      // queues recovered from an older store get their summaries built after recovery.
+      if( queueRecord.hasRangeIndexPage ) {
+        val rangeIndex = queueRangeIndex(queueRecord)
+        val block = new jl.Long(QueueEntryRange.block_of(queueSeq))
+        val update = func(Option(rangeIndex.get(block)).map(QueueEntryRange.decode(_)).getOrElse(null))
+        if( update == null ) {
+          rangeIndex.remove(block)
+        } else {
+          rangeIndex.put(block, QueueEntryRange.encode(update))
+        }
+      }
+    }
+
     update match {
+      case x: AddMessage.Getter if x.hasRelocatedFrom =>
+
+        // The message got moved by the journal compaction, unless it
+        // was removed or moved again since then.
+        val messageKey = x.getMessageKey()
+        val from:Location = x.getRelocatedFrom
+        val current = messageKeyIndex.get(messageKey)
+        if (current != null && current.getDataFileId == from.getDataFileId && current.getOffset == from.getOffset) {
+          messageKeyIndex.put(messageKey, location)
+          addAndGet(dataFileRefIndex, new jl.Integer(current.getDataFileId), -1)
+          addAndGet(dataFileRefIndex, new jl.Integer(location.getDataFileId), 1)
+        }
+
       case x: AddMessage.Getter =>
 
         val messageKey = x.getMessageKey()
@@ -826,6 +941,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
             val previous = entryIndex.put(queueSeq, x.freeze)
             if (previous == null) {
               addAndGet(messageRefsIndex, new jl.Long(messageKey), 1)
+              updateRange(queueRecord, queueSeq) { range =>
+                QueueEntryRange.enqueued(range, x)
+              }
             } else {
               // TODO perhaps treat this like an update?
               error("Duplicate queue entry seq %d", x.getQueueSeq)
@@ -847,6 +965,9 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
           val queueSeq = x.getQueueSeq
           val queueEntry = entryIndex.remove(queueSeq)
           if (queueEntry != null) {
+            updateRange(queueRecord, queueSeq) { range =>
+              QueueEntryRange.dequeued(range, queueEntry.getSize)
+            }
             val messageKey = queueEntry.getMessageKey
             val existing = trackingIndex.remove(messageKey)
             if (existing != null) {
@@ -881,6 +1002,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
           val queueRecord = new QueueRootRecord.Bean
           queueRecord.setEntryIndexPage(alloc(QUEUE_ENTRY_INDEX_FACTORY))
           queueRecord.setTrackingIndexPage(alloc(QUEUE_TRACKING_INDEX_FACTORY))
+          queueRecord.setRangeIndexPage(alloc(QUEUE_RANGE_INDEX_FACTORY))
           queueRecord.setInfo(x)
           queueIndex.put(queueKey, queueRecord.freeze)
         }
@@ -963,19 +1085,7 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
     // Don't GC files that we will need for recovery..
 
-    // Notice we are using the storedRootBuffer and not the rootBuffer field.
-    // rootBuffer has the latest updates, which they may not survive restart.
-    val upto = if (storedRootBuffer.hasFirstBatchLocation) {
-      Some(storedRootBuffer.getFirstBatchLocation.getDataFileId)
-    } else {
-      if (storedRootBuffer.hasLastUpdateLocation) {
-        Some(storedRootBuffer.getLastUpdateLocation.getDataFileId)
-      } else {
-        None
-      }
-    }
-
-    upto match {
+    recovery_data_file match {
       case Some(dataFile) =>
         var done = false
         while (!done && !gcCandidateSet.isEmpty()) {
@@ -996,12 +1106,199 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
       }
       if (!gcCandidateSet.isEmpty()) {
         debug("Cleanup removing the data files: %s", gcCandidateSet)
+        reader.release(gcCandidateSet)
         journal.removeDataFiles(gcCandidateSet)
       }
     }
     debug("Cleanup done.")
   }
 
+  /**
+   * The first data file which would get replayed if we were to recover now.
+   */
+  private def recovery_data_file:Option[Int] = {
+    // Notice we are using the storedRootBuffer and not the rootBuffer field.
+    // rootBuffer has the latest updates, which they may not survive restart.
+    if (storedRootBuffer.hasFirstBatchLocation) {
+      Some(storedRootBuffer.getFirstBatchLocation.getDataFileId)
+    } else {
+      if (storedRootBuffer.hasLastUpdateLocation) {
+        Some(storedRootBuffer.getLastUpdateLocation.getDataFileId)
+      } else {
+        None
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Methods related to journal compaction
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  @volatile
+  var metric_compacted_files = 0L
+  @volatile
+  var metric_compacted_messages = 0L
+  @volatile
+  var metric_compacted_size = 0L
+
+  // The ref counts of the data files which were too live to compact
+  // the last time they were measured.
+  private val compaction_skipped = new ju.HashMap[jl.Integer, jl.Integer]()
+
+  private var compacting:jl.Integer = null
+  private var compacting_refs:jl.Integer = null
+  private var compacting_position:Location = null
+  private var relocating = false
+  private var live_size = 0L
+  private var total_size = 0L
+
+  /**
+   * Does the next step of compacting the journal.  A data file is compacted
+   * in two passes, the first measures how much of it is still live and
+   * if that's at most compaction_ratio percent of it, the second appends its
+   * live messages to the journal again.  Cleanup removes the data file once
+   * it's no longer referenced.  Queue entries are held in the index so
+   * only messages keep data files from being cleaned up.
+   *
+   * @return the number of journal bytes visited or -1 if there was nothing
+   *         to compact.
+   */
+  def compact(limit:Int):Int = {
+    if( compacting==null && !next_compaction_candidate ) {
+      return -1
+    }
+    try {
+      var visited = 0
+      var done = !journal.getFileMap.containsKey(compacting)
+      withTx { tx =>
+        val helper = new TxHelper(tx)
+        import helper._
+
+        while( !done && visited < limit ) {
+          val location = journal.getNextLocation(compacting_position)
+          if( location==null || location.getDataFileId != compacting.intValue ) {
+            done = true
+          } else {
+            compacting_position = location
+            val data = reader.read(location)
+            val size = data.length + JournalReader.RECORD_HEAD_SPACE
+            visited += size
+            if( !relocating ) {
+              total_size += size
+            }
+
+            val editor = data.bigEndianEditor
+            val updateType = editor.readByte
+            editor.readInt // the batch
+            if( updateType == Type.ADD_MESSAGE.getNumber ) {
+              val message = decode(location, Type.ADD_MESSAGE.getNumber, data).asInstanceOf[AddMessage.Getter]
+              val current = messageKeyIndex.get(message.getMessageKey)
+              if( current!=null && current.getDataFileId==location.getDataFileId && current.getOffset==location.getOffset ) {
+                if( relocating ) {
+                  relocate(location, message)
+                  metric_compacted_messages += 1
+                  metric_compacted_size += size
+                } else {
+                  live_size += size
+                }
+              }
+            }
+          }
+        }
+      }
+      if( done ) {
+        compacted
+      }
+      visited
+    } catch {
+      case e:Throwable =>
+        warn(e, "Could not compact the journal data file: %s", compacting)
+        compacting = null
+        0
+    }
+  }
+
+  private def next_compaction_candidate:Boolean = {
+    if( compaction_ratio <= 0 ) {
+      return false
+    }
+    val upto = recovery_data_file match {
+      case Some(x) => x
+      case None => return false
+    }
+
+    val refs = withTx { tx =>
+      val helper = new TxHelper(tx)
+      import JavaConversions._
+      import helper._
+      dataFileRefIndex.iterator.map(x=> (x.getKey, x.getValue)).toList
+    }
+
+    // forget about the data files which have been removed.
+    val live = new ju.HashSet[jl.Integer]()
+    refs.foreach(x=> live.add(x._1))
+    compaction_skipped.keySet.retainAll(live)
+
+    val files = journal.getFileMap
+    val candidates = refs.filter { case (file, count) =>
+      file.intValue < upto && files.containsKey(file) && !lockedDatatFiles.contains(file) &&
+        Option(compaction_skipped.get(file)).map(count.intValue < _.intValue).getOrElse(true)
+    }
+
+    // Start with the data files referenced by the fewest messages.
+    candidates.sortWith(_._2.intValue < _._2.intValue).headOption match {
+      case Some((file, count)) =>
+        compacting = file
+        compacting_refs = count
+        compacting_position = new Location(file.intValue, 0)
+        relocating = false
+        live_size = 0
+        total_size = 0
+        true
+      case None =>
+        false
+    }
+  }
+
+  private def compacted = {
+    if( relocating ) {
+      debug("Compacted journal data file: %s", compacting)
+      metric_compacted_files += 1
+      compaction_skipped.remove(compacting)
+      compacting = null
+    } else {
+      val ratio = if( total_size==0 ) 0 else live_size * 100 / total_size
+      if( ratio <= compaction_ratio ) {
+        debug("Compacting journal data file: %s, it's %d%% live", compacting, ratio)
+        relocating = true
+        compacting_position = new Location(compacting.intValue, 0)
+      } else {
+        compaction_skipped.put(compacting, compacting_refs)
+        compacting = null
+      }
+    }
+  }
+
+  private def relocate(location:Location, message:AddMessage.Getter) = {
+    val update = new AddMessage.Bean
+    update.setMessageKey(message.getMessageKey)
+    update.setProtocol(message.getProtocol)
+    update.setSize(message.getSize)
+    if( message.hasValue ) {
+      update.setValue(message.getValue)
+    }
+    if( message.hasStreamKey ) {
+      update.setStreamKey(message.getStreamKey)
+    }
+    if( message.hasExpiration ) {
+      update.setExpiration(message.getExpiration)
+    }
+    update.setRelocatedFrom(location)
+    _store(update, null)
+  }
+
   /////////////////////////////////////////////////////////////////////
   //
   // Helper Methods / Classes
@@ -1040,6 +1337,8 @@ class HawtDBClient(hawtDBStore: HawtDBStore) {
 
     def queueTrackingIndex(root: QueueRootRecord.Getter) = QUEUE_TRACKING_INDEX_FACTORY.open(_tx, root.getTrackingIndexPage)
 
+    def queueRangeIndex(root: QueueRootRecord.Getter) = QUEUE_RANGE_INDEX_FACTORY.open(_tx, root.getRangeIndexPage)
+
     def alloc(factory: IndexFactory[_, _]) = factory.create(_tx).getIndexLocation
 
     val rootBean = rootBuffer.copy
@@ -32,6 +32,11 @@ import org.fusesource.hawtbuf.Buffer
 
 object HawtDBStore extends Log {
   val DATABASE_LOCKED_WAIT_DELAY = 10 * 1000;
+
+  /**
+   * How often the journal compaction takes a step while it has work to do.
+   */
+  val COMPACTION_STEP_DELAY = 100
 }
 
 /**
@@ -43,22 +48,28 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
   var next_msg_key = new AtomicLong(1)
 
   var executor_pool:ExecutorService = _
+  // the number of stores being done by the store client, only accessed from the dispatch_queue.
+  var stores_in_progress = 0
   val schedule_version = new AtomicInteger()
   val client = new HawtDBClient(this)
 
-  val load_source = createSource(new ListEventAggregator[(Long, (Option[MessageRecord])=>Unit)](), dispatch_queue)
+  val load_source = createSource(new ListEventAggregator[(Long, AtomicReference[Array[Byte]], (Option[MessageRecord])=>Unit)](), dispatch_queue)
   load_source.setEventHandler(^{drain_loads});
 
   override def toString = "hawtdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  override def flush_delay_min = config.flush_delay_min.getOrElse(flush_delay)
+  override def flush_delay_max = config.flush_delay_max.getOrElse(flush_delay)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit) = {
+    stores_in_progress += 1
     executor_pool {
       client.store(uows, ^{
         dispatch_queue {
+          stores_in_progress -= 1
           callback
         }
       })
@@ -82,6 +93,7 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
         val v = schedule_version.incrementAndGet
         scheduleCleanup(v)
         scheduleFlush(v)
+        scheduleCompaction(v, client.compaction_interval, false)
         load_source.resume
         on_completed.run
       })
@@ -112,6 +124,24 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
     dispatch_queue.executeAfter(client.cleanup_interval, TimeUnit.MILLISECONDS, ^ {try_cleanup})
   }
 
+  def scheduleCompaction(version:Int, delay:Long, deferred:Boolean): Unit = {
+    def try_compact() = {
+      if (version == schedule_version.get) {
+        if( stores_in_progress > 0 && !deferred ) {
+          // Give the stores being done a chance to complete first.
+          scheduleCompaction(version, COMPACTION_STEP_DELAY, true)
+        } else {
+          executor_pool {
+            // limit how much gets read and rewritten per step to honor the compaction rate.
+            val visited = client.compact(client.compaction_rate / (1000 / COMPACTION_STEP_DELAY))
+            scheduleCompaction(version, if( visited < 0 ) client.compaction_interval else COMPACTION_STEP_DELAY, false)
+          }
+        }
+      }
+    }
+    dispatch_queue.executeAfter(delay, TimeUnit.MILLISECONDS, ^ {try_compact})
+  }
+
   protected def _stop(on_completed: Runnable) = {
     schedule_version.incrementAndGet
     new Thread() {
@@ -186,7 +216,7 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
 
   def load_message(messageKey: Long, locator:AtomicReference[Array[Byte]])(callback: (Option[MessageRecord]) => Unit) = {
     message_load_latency_counter.start { end=>
-      load_source.merge((messageKey, { (result)=>
+      load_source.merge((messageKey, locator, { (result:Option[MessageRecord])=>
         end()
         callback(result)
       }))
@@ -221,6 +251,8 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
         message_load_latency = message_load_latency_counter(true)
         client.metric_journal_append = client.metric_journal_append_counter(true)
         client.metric_index_update = client.metric_index_update_counter(true)
+        client.metric_load_from_index = client.metric_load_from_index_counter(true)
+        client.metric_load_from_journal = client.metric_load_from_journal_counter(true)
         commit_latency = commit_latency_counter(true)
         message_load_batch_size =  message_load_batch_size_counter(true)
 
@@ -243,11 +275,18 @@ class HawtDBStore(var config:HawtDBStoreDTO) extends DelayingStoreSupport {
 
     rc.journal_append_latency = client.metric_journal_append
     rc.index_update_latency = client.metric_index_update
+    rc.index_load_latency = client.metric_load_from_index
+    rc.journal_load_latency = client.metric_load_from_journal
+    rc.compacted_files = client.metric_compacted_files
+    rc.compacted_messages = client.metric_compacted_messages
+    rc.compacted_size = client.metric_compacted_size
 
     rc.canceled_message_counter = metric_canceled_message_counter
     rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
+    rc.pending_stores = pending_stores.size
+    rc.flush_delay = current_flush_delay
 
     callback(rc)
   }
@@ -61,6 +61,7 @@ object Helpers {
     rc.message_key = pb.getMessageKey
     rc.attachment = pb.getAttachment
     rc.size = pb.getSize
+    rc.expiration = pb.getExpiration
     rc.redeliveries = pb.getRedeliveries.toShort
     rc
   }
@@ -72,6 +73,9 @@ object Helpers {
     pb.setMessageKey(v.message_key)
     pb.setAttachment(v.attachment)
     pb.setSize(v.size)
+    if( v.expiration!=0 ) {
+      pb.setExpiration(v.expiration)
+    }
     pb.setRedeliveries(v.redeliveries)
     pb
   }
@@ -84,6 +88,19 @@ object Helpers {
     new Location(editor.readInt(), editor.readInt())
   }
   
+  def fromLocator(value: Array[Byte]): Location = {
+    val editor = new Buffer(value).bigEndianEditor
+    new Location(editor.readInt(), editor.readInt())
+  }
+
+  def toLocator(value: Location): Array[Byte] = {
+    val temp = new Buffer(8)
+    val editor = temp.bigEndianEditor
+    editor.writeInt(value.getDataFileId)
+    editor.writeInt(value.getOffset)
+    temp.data
+  }
+
   implicit def fromLocation(value: Location):Long = {
     val temp = new Buffer(8)
     val editor = temp.bigEndianEditor
@@ -158,6 +175,12 @@ object Helpers {
   QUEUE_TRACKING_INDEX_FACTORY.setValueCodec(VarLongCodec.INSTANCE);
   QUEUE_TRACKING_INDEX_FACTORY.setDeferredEncoding(true);
 
+  // maps entry seq block -> encoded QueueEntryRange summary
+  val QUEUE_RANGE_INDEX_FACTORY = new BTreeIndexFactory[jl.Long, Buffer]();
+  QUEUE_RANGE_INDEX_FACTORY.setKeyCodec(VarLongCodec.INSTANCE);
+  QUEUE_RANGE_INDEX_FACTORY.setValueCodec(BufferCodec.INSTANCE);
+  QUEUE_RANGE_INDEX_FACTORY.setDeferredEncoding(true);
+
   val SUBSCRIPTIONS_INDEX_FACTORY = new BTreeIndexFactory[AsciiBuffer, AddSubscription.Buffer]();
   SUBSCRIPTIONS_INDEX_FACTORY.setKeyCodec(AsciiBufferCodec.INSTANCE);
   SUBSCRIPTIONS_INDEX_FACTORY.setValueCodec(AddSubscription.FRAMED_CODEC);
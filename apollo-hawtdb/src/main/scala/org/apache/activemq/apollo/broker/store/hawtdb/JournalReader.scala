@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import java.{lang=>jl}
+import java.{util=>ju}
+import java.io.{IOException, RandomAccessFile}
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.hawtdb.internal.journal.{Journal, Location}
+import org.apache.activemq.apollo.util.Log
+
+object JournalReader extends Log {
+
+  // Every journal record starts with its size (including this header)
+  // followed by its type.
+  val RECORD_HEAD_SPACE = 4 + 1
+  val USER_RECORD_TYPE = 1
+
+  /**
+   * The max number of data files kept mapped at a time.
+   */
+  val MAX_MAPPINGS = 16
+
+  /**
+   * Unmaps the buffer right away instead of waiting for it to get
+   * garbage collected, which could keep removed data files from being
+   * deleted and their space from being reclaimed.  The buffer must not
+   * be used afterwards.
+   */
+  def unmap(buffer:MappedByteBuffer):Unit = {
+    try {
+      val cleaner_method = buffer.getClass.getMethod("cleaner")
+      cleaner_method.setAccessible(true)
+      val cleaner = cleaner_method.invoke(buffer)
+      if( cleaner!=null ) {
+        val clean_method = cleaner.getClass.getMethod("clean")
+        clean_method.setAccessible(true)
+        clean_method.invoke(cleaner)
+      }
+    } catch {
+      case e:Throwable =>
+        // Not supported by this JVM, it gets unmapped once it's collected.
+        trace(e, "Could not unmap a journal data file")
+    }
+  }
+}
+
+/**
+ * <p>
+ * Reads journal records through read only memory mapped views of the
+ * journal data files, so loading a batch of records sorted by location
+ * touches each data file sequentially without doing a read system call
+ * per record.  Records which can't be read from a mapping are read
+ * through the journal instead.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, it's only used from the hawtdb store client thread.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalReader(journal:Journal) {
+  import JournalReader._
+
+  private val mappings = new ju.LinkedHashMap[jl.Integer, MappedByteBuffer](MAX_MAPPINGS, 0.75f, true) {
+    override def removeEldestEntry(eldest: ju.Map.Entry[jl.Integer, MappedByteBuffer]) = {
+      if( size > MAX_MAPPINGS ) {
+        unmap(eldest.getValue)
+        true
+      } else {
+        false
+      }
+    }
+  }
+
+  def read(location:Location):Buffer = {
+    val rc = try {
+      read_mapped(location)
+    } catch {
+      case e:IOException =>
+        debug(e, "Could not map the journal data file of: %s", location)
+        null
+    }
+    if( rc!=null ) {
+      rc
+    } else {
+      journal.read(location)
+    }
+  }
+
+  private def read_mapped(location:Location):Buffer = {
+    val id = location.getDataFileId
+    val offset = location.getOffset
+
+    var mapping = mapping_for(id, offset + RECORD_HEAD_SPACE)
+    if( mapping==null ) {
+      return null
+    }
+    val size = mapping.getInt(offset)
+    if( size < RECORD_HEAD_SPACE || mapping.get(offset+4) != USER_RECORD_TYPE ) {
+      return null
+    }
+    mapping = mapping_for(id, offset + size)
+    if( mapping==null ) {
+      return null
+    }
+
+    val data = new Array[Byte](size - RECORD_HEAD_SPACE)
+    val view = mapping.duplicate
+    view.position(offset + RECORD_HEAD_SPACE)
+    view.get(data)
+    new Buffer(data)
+  }
+
+  /**
+   * Gets a mapping of the data file which extends at least up to limit.
+   * The file is mapped again if it has grown since it was last mapped.
+   */
+  private def mapping_for(id:Int, limit:Int):MappedByteBuffer = {
+    var rc = mappings.get(id)
+    if( rc==null || rc.capacity < limit ) {
+      val data_file = journal.getFileMap.get(id)
+      if( data_file==null ) {
+        return null
+      }
+      val file = new RandomAccessFile(data_file.getFile, "r")
+      try {
+        val length = file.length
+        if( length < limit ) {
+          return null
+        }
+        rc = file.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+      } finally {
+        file.close
+      }
+      val previous = mappings.put(id, rc)
+      if( previous!=null ) {
+        unmap(previous)
+      }
+    }
+    rc
+  }
+
+  /**
+   * Unmaps the data files which are getting removed.
+   */
+  def release(ids:ju.Collection[jl.Integer]) = {
+    val i = ids.iterator
+    while( i.hasNext ) {
+      val mapping = mappings.remove(i.next)
+      if( mapping!=null ) {
+        unmap(mapping)
+      }
+    }
+  }
+
+  def close = {
+    val i = mappings.values.iterator
+    while( i.hasNext ) {
+      unmap(i.next)
+    }
+    mappings.clear
+  }
+
+}
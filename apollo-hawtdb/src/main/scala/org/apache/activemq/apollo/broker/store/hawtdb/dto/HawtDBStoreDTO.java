@@ -58,6 +58,15 @@ public class HawtDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="fail_if_locked")
     public Boolean fail_if_locked;
 
+    @XmlAttribute(name="compaction_interval")
+    public Long compaction_interval;
+
+    @XmlAttribute(name="compaction_ratio")
+    public Integer compaction_ratio;
+
+    @XmlAttribute(name="compaction_rate")
+    public Integer compaction_rate;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -83,6 +92,12 @@ public class HawtDBStoreDTO extends StoreDTO {
             return false;
         if (journal_log_size != null ? !journal_log_size.equals(that.journal_log_size) : that.journal_log_size != null)
             return false;
+        if (compaction_interval != null ? !compaction_interval.equals(that.compaction_interval) : that.compaction_interval != null)
+            return false;
+        if (compaction_ratio != null ? !compaction_ratio.equals(that.compaction_ratio) : that.compaction_ratio != null)
+            return false;
+        if (compaction_rate != null ? !compaction_rate.equals(that.compaction_rate) : that.compaction_rate != null)
+            return false;
 
         return true;
     }
@@ -99,6 +114,9 @@ public class HawtDBStoreDTO extends StoreDTO {
         result = 31 * result + (index_cache_size != null ? index_cache_size.hashCode() : 0);
         result = 31 * result + (index_page_size != null ? index_page_size.hashCode() : 0);
         result = 31 * result + (fail_if_locked != null ? fail_if_locked.hashCode() : 0);
+        result = 31 * result + (compaction_interval != null ? compaction_interval.hashCode() : 0);
+        result = 31 * result + (compaction_ratio != null ? compaction_ratio.hashCode() : 0);
+        result = 31 * result + (compaction_rate != null ? compaction_rate.hashCode() : 0);
         return result;
     }
 }
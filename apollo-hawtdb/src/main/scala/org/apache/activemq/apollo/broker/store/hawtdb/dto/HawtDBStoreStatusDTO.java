@@ -22,6 +22,7 @@ import org.apache.activemq.apollo.dto.TimeMetricDTO;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -38,7 +39,39 @@ public class HawtDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="index_update_latency")
     public TimeMetricDTO index_update_latency;
 
+    /**
+     * How long it takes to look up the journal location of a message
+     * being loaded.  Messages which already know their location skip it.
+     */
+    @XmlElement(name="index_load_latency")
+    public TimeMetricDTO index_load_latency;
+
+    /**
+     * How long it takes to read a message being loaded from the journal.
+     */
+    @XmlElement(name="journal_load_latency")
+    public TimeMetricDTO journal_load_latency;
+
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    /**
+     * The number of journal data files the compaction has rewritten.
+     */
+    @XmlAttribute(name="compacted_files")
+    public long compacted_files;
+
+    /**
+     * The number of messages the compaction has moved to the head
+     * of the journal.
+     */
+    @XmlAttribute(name="compacted_messages")
+    public long compacted_messages;
+
+    /**
+     * The size in bytes of the journal records the compaction has moved.
+     */
+    @XmlAttribute(name="compacted_size")
+    public long compacted_size;
+
 }
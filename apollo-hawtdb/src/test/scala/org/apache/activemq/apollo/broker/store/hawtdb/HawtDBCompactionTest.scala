@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import dto.HawtDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtdispatch.TaskTracker
+
+/**
+ * <p>Tests the compaction of the HawtDB journal data files.</p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HawtDBCompactionTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay:Long):Store = {
+    val rc = new HawtDBStore({
+      val rc = new HawtDBStoreDTO
+      rc.directory = basedir / "activemq-data" / "compaction"
+      // small data files so that a few messages fill one up.
+      rc.journal_log_size = 32*1024
+      // the tests run the compaction themselves.
+      rc.compaction_interval = 60*60*1000L
+      rc
+    })
+    rc.config.flush_delay = flushDelay
+    rc
+  }
+
+  def hawtdb = store.asInstanceOf[HawtDBStore]
+  def client = hawtdb.client
+
+  /**
+   * Runs the function on the store client thread, which is where the
+   * compaction normally runs.
+   */
+  def on_client[T](func: =>T):T = CB[T] { cb =>
+    hawtdb.executor_pool.execute(new Runnable {
+      def run = cb(func)
+    })
+  }
+
+  def load(key:Long) = CB[Option[MessageRecord]]( cb=> store.load_message(key, null)(cb) )
+
+  def location_of(key:Long) = {
+    val rc = load(key)
+    expect(true)(rc.isDefined)
+    Helpers.fromLocator(rc.get.locator.get)
+  }
+
+  def has_data_file(id:Int) = on_client(client.journal.getFileMap.containsKey(id))
+
+  def dequeue(queue_key:Long, seqs:Seq[Long], wait:Boolean=true) = {
+    val uow = store.create_uow
+    seqs.foreach( seq=> uow.dequeue(entry(queue_key, seq)) )
+    val tracker = new TaskTracker()
+    val task = tracker.task("dequeue")
+    uow.on_complete(task.run)
+    uow.complete_asap
+    uow.release
+    if( wait ) {
+      tracker.await
+    }
+    tracker
+  }
+
+  def fillers(count:Int) = (0 until count).map(i=> "filler "+i+" "+("x"*1024)).toList
+
+  /**
+   * Fills a data file with a long lived message followed by fillers which
+   * then get dequeued so that the long lived message is all that's left.
+   * @return the key of the long lived message
+   */
+  def pin_data_file(queue_key:Long) = {
+    val keys = populate(queue_key, "long lived"::fillers(100))
+    dequeue(queue_key, 2L to 101L)
+    keys.head
+  }
+
+  /**
+   * Runs compaction steps until there is nothing left to compact, then
+   * removes the data files that are no longer referenced.
+   */
+  def compact = {
+    on_client {
+      client.flush
+      var steps = 0
+      while( client.compact(Int.MaxValue) >= 0 && steps < 1000 ) {
+        steps += 1
+      }
+    }
+    // the relocations are indexed in journal order, so they are done
+    // once a later update is.
+    add_queue("sync")
+    on_client {
+      client.flush
+      client.cleanup()
+    }
+  }
+
+  test("a long lived message can still be loaded after compaction") {
+    val A = add_queue("A")
+    val key = pin_data_file(A)
+    val before = location_of(key)
+    val compacted = client.metric_compacted_messages
+
+    compact
+
+    expect(true)(client.metric_compacted_messages > compacted)
+    val after = location_of(key)
+    expect(true)(after.getDataFileId > before.getDataFileId)
+    expect(ascii("long lived").buffer)(load(key).get.buffer)
+  }
+
+  test("the compacted data file gets removed") {
+    val A = add_queue("A")
+    val key = pin_data_file(A)
+    val file = location_of(key).getDataFileId
+    expect(true)(has_data_file(file))
+
+    compact
+
+    expect(false)(has_data_file(file))
+    expect(ascii("long lived").buffer)(load(key).get.buffer)
+  }
+
+  test("replaying a relocation leaves the index as it is") {
+    val A = add_queue("A")
+    val key = pin_data_file(A)
+    compact
+    val relocated = location_of(key)
+
+    // the relocation no longer matches the index, so it gets ignored.
+    on_client(client.recover(relocated))
+    add_queue("sync")
+
+    val after = location_of(key)
+    expect(relocated.getDataFileId)(after.getDataFileId)
+    expect(relocated.getOffset)(after.getOffset)
+    expect(ascii("long lived").buffer)(load(key).get.buffer)
+  }
+
+  test("a message removed while it's data file gets compacted stays removed") {
+    val A = add_queue("A")
+    val key = pin_data_file(A)
+    val file = location_of(key).getDataFileId
+
+    // the dequeue can get indexed before or after the relocation.
+    val tracker = dequeue(A, 1L::Nil, false)
+    compact
+    tracker.await
+    compact
+
+    expect(None)(load(key))
+    expect(false)(has_data_file(file))
+  }
+
+}
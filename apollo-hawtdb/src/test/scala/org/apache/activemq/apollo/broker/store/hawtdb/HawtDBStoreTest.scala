@@ -17,8 +17,10 @@
 package org.apache.activemq.apollo.broker.store.hawtdb
 
 import dto.HawtDBStoreDTO
-import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store, StoreFunSuiteSupport}
 import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -35,4 +37,37 @@ class HawtDBStoreTest extends StoreFunSuiteSupport {
     rc
   }
 
+  def hawtdb = store.asInstanceOf[HawtDBStore]
+
+  def load(key:Long, locator:AtomicReference[Array[Byte]]) = {
+    CB[Option[MessageRecord]]( cb=> store.load_message(key, locator)(cb) )
+  }
+
+  test("messages load straight from their journal locator") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::Nil)
+    val locator = load(msg_keys.head, null).get.locator
+    expect(true)(locator!=null && locator.get!=null)
+    val location = locator.get
+
+    // the stats poller can reset the counter, but it never goes up
+    // unless the index gets used.
+    val index_loads = hawtdb.client.metric_load_from_index_counter.count
+    expect(ascii("message 1").buffer)(load(msg_keys.head, locator).get.buffer)
+    expect(true)(hawtdb.client.metric_load_from_index_counter.count <= index_loads)
+    expect(location.toList)(locator.get.toList)
+  }
+
+  test("messages with a stale locator load through the index") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::Nil)
+    val first = load(msg_keys(0), null).get.locator.get
+    val second = load(msg_keys(1), null).get.locator.get
+
+    // point the first message's locator at the second message.
+    val locator = new AtomicReference[Array[Byte]](second)
+    expect(ascii("message 1").buffer)(load(msg_keys(0), locator).get.buffer)
+    expect(first.toList)(locator.get.toList)
+  }
+
 }
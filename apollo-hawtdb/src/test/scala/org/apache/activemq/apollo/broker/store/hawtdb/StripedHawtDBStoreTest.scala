@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.hawtdb
+
+import dto.HawtDBStoreDTO
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.dto.StripedStoreDTO
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtdispatch.TaskTracker
+
+/**
+ * <p>Runs the generic store tests against a stripe of 2 HawtDB stores.</p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StripedHawtDBStoreTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay:Long):Store = {
+    val stores = for( i <- 0 until 2 ) yield {
+      val rc = new HawtDBStore({
+        val rc = new HawtDBStoreDTO
+        rc.directory = basedir / "activemq-data" / ("stripe-"+i)
+        rc
+      })
+      rc.config.flush_delay = flushDelay
+      rc
+    }
+    new StripedStore(new StripedStoreDTO, stores.toArray)
+  }
+
+  def striped = store.asInstanceOf[StripedStore]
+
+  /**
+   * Adds queues until there is one in each of the stores.
+   */
+  def queue_per_store = {
+    val rc = new Array[Long](striped.stores.length)
+    var i = 0
+    while( rc.contains(0L) ) {
+      val key = add_queue("queue "+i)
+      val index = striped.store_index(key)
+      if( rc(index)==0L ) {
+        rc(index) = key
+      }
+      i += 1
+    }
+    rc
+  }
+
+  def load_from(index:Int, key:Long) = CB[Option[MessageRecord]]( cb=> striped.stores(index).load_message(key, null)(cb) )
+
+  def complete(uow:StoreUOW) = {
+    val tracker = new TaskTracker()
+    val task = tracker.task("uow complete")
+    uow.on_complete(task.run)
+    uow.complete_asap
+    uow.release
+    tracker.await
+  }
+
+  test("queues stay in the store they were added to") {
+    val Array(a, b) = queue_per_store
+    expect(0)(striped.store_index(a))
+    expect(1)(striped.store_index(b))
+    expect(Some(a))(CB[Option[QueueRecord]]( cb=> striped.stores(0).get_queue(a)(cb) ).map(_.key))
+    expect(None)(CB[Option[QueueRecord]]( cb=> striped.stores(1).get_queue(a)(cb) ))
+  }
+
+  test("a message enqueued to queues of both stores is written to both") {
+    val Array(a, b) = queue_per_store
+    val uow = store.create_uow
+    val key = add_message(uow, "shared")
+    uow.enqueue(entry(a, 1, key))
+    uow.enqueue(entry(b, 1, key))
+    complete(uow)
+
+    expect(ascii("shared").buffer)(load_from(0, key).get.buffer)
+    expect(ascii("shared").buffer)(load_from(1, key).get.buffer)
+  }
+
+  test("a message stored by an earlier uow gets copied to the store of the queue") {
+    val Array(a, b) = queue_per_store
+    val key = populate(a, "moved"::Nil).head
+    expect(None)(load_from(1, key))
+
+    val uow = store.create_uow
+    uow.enqueue(entry(b, 1, key))
+    complete(uow)
+
+    expect(ascii("moved").buffer)(load_from(1, key).get.buffer)
+    val rc:Seq[QueueEntryRecord] = CB( cb=> store.list_queue_entries(b, 0, Long.MaxValue)(cb) )
+    expect(List(key))(rc.map(_.message_key).toList)
+  }
+
+  test("enqueuing a message which was never stored fails") {
+    val Array(a, _) = queue_per_store
+    val uow = store.create_uow
+    intercept[IllegalArgumentException] {
+      uow.enqueue(entry(a, 1, Long.MaxValue))
+    }
+    uow.release
+  }
+
+  test("messages load from the store of the queue they are enqueued to") {
+    val Array(_, b) = queue_per_store
+    val key = populate(b, "message 1"::Nil).head
+    val rc = CB[Option[MessageRecord]]( cb=> store.load_message(b, key, null)(cb) )
+    expect(ascii("message 1").buffer)(rc.get.buffer)
+  }
+
+}
@@ -379,7 +379,7 @@ class JDBM2Client(store: JDBM2Store) {
           }
         }
 
-        uow.actions.foreach { case (msg, action) =>
+        uow.actions.foreach { action =>
 
           val message_record = action.message_record
           if (message_record != null) {
@@ -51,6 +51,8 @@ class JDBM2Store(var config:JDBM2StoreDTO) extends DelayingStoreSupport {
   override def toString = "jdbm2 store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(100)
+  override def flush_delay_min = config.flush_delay_min.getOrElse(flush_delay)
+  override def flush_delay_max = config.flush_delay_max.getOrElse(flush_delay)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
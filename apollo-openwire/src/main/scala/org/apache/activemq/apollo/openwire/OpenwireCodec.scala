@@ -18,7 +18,7 @@
 package org.apache.activemq.apollo.openwire
 
 import org.apache.activemq.apollo.broker.store.MessageRecord
-import org.apache.activemq.apollo.transport.ProtocolCodec
+import org.apache.activemq.apollo.transport.{BufferPool, BufferPoolAware, ProtocolCodec}
 import OpenwireConstants._
 import java.nio.ByteBuffer
 import java.nio.channels.{SocketChannel, WritableByteChannel, ReadableByteChannel}
@@ -50,13 +50,14 @@ object OpenwireCodec extends Sizer[Command] {
   }
 }
 
-class OpenwireCodec extends ProtocolCodec {
+class OpenwireCodec extends ProtocolCodec with BufferPoolAware {
 
   implicit def toBuffer(value:Array[Byte]):Buffer = new Buffer(value)
 
   def protocol = PROTOCOL
 
   var write_buffer_size = 1024*64;
+  @volatile
   var write_counter = 0L
   var write_channel:WritableByteChannel = null
 
@@ -116,6 +117,7 @@ class OpenwireCodec extends ProtocolCodec {
     }
   }
 
+  @volatile
   var read_counter = 0L
   var read_buffer_size = 1024*64
   var read_channel:ReadableByteChannel = null
@@ -125,6 +127,38 @@ class OpenwireCodec extends ProtocolCodec {
 
   var next_action:()=>Command = read_header
 
+  // When set, the read buffer is borrowed from the pool while a command is
+  // being read and handed back once the connection goes idle.
+  var buffer_pool:BufferPool = null
+  var read_buffer_pooled = false
+
+  def setBufferPool(pool:BufferPool) = {
+    // keep a buffer that did not come from the pool since it may hold unread data.
+    if( read_buffer_pooled ) {
+      release_read_buffer
+    }
+    buffer_pool = pool
+  }
+
+  def allocate_read_buffer(size:Int) = {
+    release_read_buffer
+    if( buffer_pool!=null ) {
+      read_buffer = buffer_pool.borrow(size)
+      read_buffer.limit(size)
+      read_buffer_pooled = true
+    } else {
+      read_buffer = ByteBuffer.allocate(size)
+    }
+  }
+
+  def release_read_buffer = {
+    if( read_buffer_pooled ) {
+      buffer_pool.release(read_buffer)
+      read_buffer_pooled = false
+    }
+    read_buffer = null
+  }
+
   def setReadableByteChannel(channel: ReadableByteChannel) = {
     this.read_channel = channel
     if( this.read_channel.isInstanceOf[SocketChannel] ) {
@@ -134,6 +168,7 @@ class OpenwireCodec extends ProtocolCodec {
 
   def unread(buffer: Buffer) = {
     assert(read_counter == 0)
+    release_read_buffer
     read_buffer = buffer.toByteBuffer
     read_buffer.position(read_buffer.limit)
     read_counter += buffer.length
@@ -152,12 +187,20 @@ class OpenwireCodec extends ProtocolCodec {
       // do we need to read in more data???
       if ( read_waiting_on > 0 ) {
 
+        if( read_buffer==null ) {
+          allocate_read_buffer(read_waiting_on)
+        }
+
         // Try to fill the buffer with data from the socket..
         var p = read_buffer.position()
         var count = read_channel.read(read_buffer)
         if (count == -1) {
             throw new EOFException("Peer disconnected")
         } else if (count == 0) {
+            if( buffer_pool!=null && read_buffer.position()==0 ) {
+              // nothing partially read, so let go of the buffer while idle.
+              release_read_buffer
+            }
             return null
         }
         read_counter += count
@@ -170,9 +213,14 @@ class OpenwireCodec extends ProtocolCodec {
       } else {
         command = next_action()
         if ( read_waiting_on > 0 ) {
-          val next_buffer = ByteBuffer.allocate(read_buffer.remaining+read_waiting_on)
-          next_buffer.put(read_buffer)
-          read_buffer = next_buffer
+          val prev_buffer = read_buffer
+          val prev_pooled = read_buffer_pooled
+          read_buffer_pooled = false
+          allocate_read_buffer(read_buffer.remaining+read_waiting_on)
+          read_buffer.put(prev_buffer)
+          if( prev_pooled ) {
+            buffer_pool.release(prev_buffer)
+          }
         }
       }
     }
@@ -193,7 +241,14 @@ class OpenwireCodec extends ProtocolCodec {
 
   def read_command(size:Int) = ()=> {
 
-    val buf = new Buffer(read_buffer.array, read_buffer.position, size)
+    val buf = if( read_buffer.hasArray ) {
+      new Buffer(read_buffer.array, read_buffer.arrayOffset+read_buffer.position, size)
+    } else {
+      // pooled direct buffers have to be copied out.
+      val data = new Array[Byte](size)
+      read_buffer.duplicate.get(data)
+      new Buffer(data)
+    }
     val rc = format.unmarshal(buf)
     read_buffer.position(read_buffer.position+size)
 
@@ -406,6 +406,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     }
 
     heart_beat_monitor.transport = connection.transport
+    heart_beat_monitor.wheel = connection.connector.broker.heart_beat_wheel
     heart_beat_monitor.start
 
     // Give the client some info about this broker.
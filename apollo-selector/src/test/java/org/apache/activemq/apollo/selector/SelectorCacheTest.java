@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+
+/**
+ * Checks that compiled selectors are shared and benchmarks routing a message
+ * through a set of selecting durable subscriptions.
+ */
+public class SelectorCacheTest extends TestCase {
+
+    static final int SUBSCRIPTIONS = 50;
+    static final int MESSAGES = 20000;
+
+    static class MockMessage implements Filterable {
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return null;
+        }
+    }
+
+    interface Router {
+        int route(Filterable message) throws FilterException;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        SelectorParser.clearCache();
+    }
+
+    public void testParsedSelectorsAreShared() throws Exception {
+        BooleanExpression first = SelectorParser.parse("region = 'east' AND qty > 10");
+        BooleanExpression second = SelectorParser.parse("region = 'east' AND qty > 10");
+        assertSame(first, second);
+        assertEquals(1, SelectorParser.getCacheSize());
+    }
+
+    public void testInvalidSelectorsAreCached() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try {
+                SelectorParser.parse("3+5");
+                fail("Created a valid selector");
+            } catch (FilterException e) {
+            }
+        }
+        assertEquals(1, SelectorParser.getCacheSize());
+    }
+
+    public void testDurableSubscriptionRoutingThroughput() throws Exception {
+        final String[] selectors = new String[SUBSCRIPTIONS];
+        final BooleanExpression[] compiled = new BooleanExpression[SUBSCRIPTIONS];
+        for (int i = 0; i < SUBSCRIPTIONS; i++) {
+            selectors[i] = "sub = " + i + " AND qty > 10";
+            compiled[i] = SelectorParser.parse(selectors[i]);
+        }
+
+        MockMessage[] messages = new MockMessage[SUBSCRIPTIONS];
+        for (int i = 0; i < SUBSCRIPTIONS; i++) {
+            messages[i] = new MockMessage();
+            messages[i].properties.put("sub", i);
+            messages[i].properties.put("qty", 20);
+        }
+
+        // Every message gets parsed again by every subscription, re-parsing
+        // is slow so that run is kept short.
+        double reparsed = benchmark("re-parsed", MESSAGES / 40, messages, new Router() {
+            public int route(Filterable message) throws FilterException {
+                int matched = 0;
+                for (String selector : selectors) {
+                    if (new SelectorParser(selector).parse().matches(message)) {
+                        matched++;
+                    }
+                }
+                return matched;
+            }
+        });
+
+        // A broker wide cache lookup per subscription per message.
+        double looked_up = benchmark("cache lookup", MESSAGES, messages, new Router() {
+            public int route(Filterable message) throws FilterException {
+                int matched = 0;
+                for (String selector : selectors) {
+                    if (SelectorParser.parse(selector).matches(message)) {
+                        matched++;
+                    }
+                }
+                return matched;
+            }
+        });
+
+        // The binding holds on to the compiled expression.
+        double held = benchmark("compiled", MESSAGES, messages, new Router() {
+            public int route(Filterable message) throws FilterException {
+                int matched = 0;
+                for (BooleanExpression selector : compiled) {
+                    if (selector.matches(message)) {
+                        matched++;
+                    }
+                }
+                return matched;
+            }
+        });
+
+        System.out.println(String.format("durable sub selector routing: %.2fx over re-parsed, %.2fx over cache lookup",
+                held / reparsed, held / looked_up));
+    }
+
+    private double benchmark(String name, int count, MockMessage[] messages, Router router) throws FilterException {
+        // warm up
+        for (int i = 0; i < count / 10; i++) {
+            router.route(messages[i % messages.length]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, router.route(messages[i % messages.length]));
+        }
+        long duration = System.nanoTime() - start;
+        double rate = count * 1000000000.0d / duration;
+        System.out.println(String.format("%s: %.2f messages/sec", name, rate));
+        return rate;
+    }
+
+}
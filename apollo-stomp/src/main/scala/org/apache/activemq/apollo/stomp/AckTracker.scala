@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.fusesource.hawtbuf.AsciiBuffer
+import org.apache.activemq.apollo.broker.DeliveryResult
+import org.apache.activemq.apollo.broker.store.StoreUOW
+import collection.mutable.{ListBuffer, HashMap}
+
+/**
+ * A delivery which is waiting for the client to ack it.
+ */
+class TrackedAck(val id:AsciiBuffer, var credit:Option[Int], val ack:(DeliveryResult, StoreUOW)=>Unit) {
+  var seq = 0L
+  var removed = false
+  // a later delivery of the same message which is also waiting for it's ack.
+  var next_dup:TrackedAck = null
+}
+
+/**
+ * <p>
+ * Tracks the deliveries of a subscription which have not been acked yet.
+ * Entries are kept in delivery sequence order in a ring buffer and indexed
+ * by message id, so individual acks are O(1) and cumulative acks only visit
+ * the prefix they release.
+ * </p>
+ *
+ * <p>
+ * Individually acked entries stay in the ring until the entries in front
+ * of them are gone too.  When they take up at least half the ring it gets
+ * compacted instead of grown, so a client holding on to one old message
+ * does not make the ring grow without bounds.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, it's only accessed from the connection's dispatch queue.
+ * </p>
+ */
+class AckTracker {
+
+  private var ring = new Array[TrackedAck](16)
+  private var head = 0
+  private var count = 0
+  private var head_seq = 0L
+  // everything before this sequence has already been credited.
+  private var credited_seq = 0L
+  // the number of entries in the ring which have not been removed.
+  private var live = 0
+
+  // indexes the oldest delivery of each message id.
+  private val by_id = HashMap[AsciiBuffer, TrackedAck]()
+
+  def size = live
+
+  def isEmpty = live == 0
+
+  private[stomp] def capacity = ring.length
+
+  def get(id:AsciiBuffer) = by_id.get(id)
+
+  def add(ack:TrackedAck):Unit = {
+    if( count == ring.length ) {
+      make_room
+    }
+    ack.seq = head_seq + count
+    ring((head+count) & (ring.length-1)) = ack
+    count += 1
+    live += 1
+    by_id.get(ack.id) match {
+      case Some(first) =>
+        // the message got delivered again before it was acked.
+        last_dup(first).next_dup = ack
+      case None =>
+        by_id.put(ack.id, ack)
+    }
+  }
+
+  /**
+   * Removes the entry tracked under the given id and all the entries
+   * tracked before it.  Returns them in delivery order or Nil if the
+   * id is not being tracked.
+   */
+  def remove_through(id:AsciiBuffer):Seq[TrackedAck] = {
+    by_id.get(id) match {
+      case None => Nil
+      case Some(first) =>
+        val last = last_dup(first)
+        val rc = ListBuffer[TrackedAck]()
+        while( count > 0 && head_seq <= last.seq ) {
+          val removed = ring(head).removed
+          val ack = poll
+          if( !removed ) {
+            unindex(ack)
+            live -= 1
+            rc += ack
+          }
+        }
+        rc
+    }
+  }
+
+  /**
+   * Removes just the oldest entry tracked under the given id.
+   */
+  def remove(id:AsciiBuffer):Option[TrackedAck] = {
+    val rc = by_id.get(id)
+    for( ack <- rc ) {
+      unindex(ack)
+      ack.removed = true
+      live -= 1
+      // drop the removed entries from the front of the ring.
+      while( count > 0 && ring(head).removed ) {
+        poll
+      }
+    }
+    rc
+  }
+
+  /**
+   * Visits the entries up to and including the one tracked under the given
+   * id which have not been visited by a previous call.
+   */
+  def credit_through(id:AsciiBuffer)(func: TrackedAck=>Unit):Unit = {
+    for( first <- by_id.get(id) ) {
+      val last = last_dup(first)
+      var seq = credited_seq max head_seq
+      while( seq <= last.seq ) {
+        val ack = ring((head + (seq-head_seq).toInt) & (ring.length-1))
+        if( !ack.removed ) {
+          func(ack)
+        }
+        seq += 1
+      }
+      credited_seq = seq
+    }
+  }
+
+  /**
+   * Grows the ring unless at least half of it is taken up by removed
+   * entries, in which case they get compacted away instead.  The live
+   * entries get renumbered so their sequences stay contiguous.
+   */
+  private def make_room = {
+    val grown = new Array[TrackedAck](if( live*2 <= count ) ring.length else ring.length*2)
+    var credited = 0
+    var n = 0
+    for( i <- 0 until count ) {
+      val ack = ring((head+i) & (ring.length-1))
+      if( !ack.removed ) {
+        if( ack.seq < credited_seq ) {
+          credited += 1
+        }
+        ack.seq = head_seq + n
+        grown(n) = ack
+        n += 1
+      }
+    }
+    credited_seq = head_seq + credited
+    ring = grown
+    head = 0
+    count = n
+  }
+
+  private def last_dup(first:TrackedAck) = {
+    var rc = first
+    while( rc.next_dup!=null ) {
+      rc = rc.next_dup
+    }
+    rc
+  }
+
+  private def poll = {
+    val ack = ring(head)
+    ring(head) = null
+    head = (head+1) & (ring.length-1)
+    head_seq += 1
+    count -= 1
+    ack.removed = true
+    ack
+  }
+
+  private def unindex(ack:TrackedAck) = {
+    by_id.get(ack.id) match {
+      case Some(first) if first eq ack =>
+        if( ack.next_dup==null ) {
+          by_id.remove(ack.id)
+        } else {
+          by_id.put(ack.id, ack.next_dup)
+        }
+      case Some(first) =>
+        var cur = first
+        while( cur.next_dup!=null && (cur.next_dup ne ack) ) {
+          cur = cur.next_dup
+        }
+        if( cur.next_dup eq ack ) {
+          cur.next_dup = ack.next_dup
+        }
+      case None =>
+    }
+    ack.next_dup = null
+  }
+
+}
@@ -137,7 +137,7 @@ object StompCodec extends Log {
 
 }
 
-class StompCodec extends ProtocolCodec {
+class StompCodec extends ProtocolCodec with BufferPoolAware {
 
   import StompCodec._
   var max_header_length = 1024*10
@@ -161,19 +161,28 @@ class StompCodec extends ProtocolCodec {
   /////////////////////////////////////////////////////////////////////
 
   var write_buffer_size = 1024*64;
+  @volatile
   var write_counter = 0L
   var write_channel:WritableByteChannel = null
 
-  var next_write_buffer = new DataByteArrayOutputStream(write_buffer_size)
+  /**
+   * Bodies and shared frame encodings at least this big are written with a
+   * gathering write instead of being copied into the write buffer.
+   */
+  def write_copy_threshold = next_write.getCopyThreshold
+  def write_copy_threshold_=(value:Int) = next_write.setCopyThreshold(value)
+
+  var next_write = new GatheringWriteBuffer(write_buffer_size, 1024)
   var next_write_direct:ZeroCopyBuffer = null
 
-  var write_buffer = ByteBuffer.allocate(0)
+  var write_buffers = new Array[ByteBuffer](0)
+  var write_buffers_pos = 0
   var write_direct:ZeroCopyBuffer = null
   var write_direct_pos = 0
   var last_write_io_size = 0
 
-  def full = next_write_direct!=null || next_write_buffer.size >= (write_buffer_size >> 1)
-  def is_empty = write_buffer.remaining == 0 && write_direct==null
+  def full = next_write_direct!=null || next_write.size >= (write_buffer_size >> 1)
+  def is_empty = write_buffers_pos >= write_buffers.length && write_direct==null
 
   def setWritableByteChannel(channel: WritableByteChannel) = {
     this.write_channel = channel
@@ -193,9 +202,13 @@ class StompCodec extends ProtocolCodec {
       val was_empty = is_empty
       command match {
         case buffer:Buffer=>
-          buffer.writeTo(next_write_buffer.asInstanceOf[DataOutput])        
+          next_write.append(buffer)
         case frame:StompFrame=>
-          encode(frame, next_write_buffer);
+          if( frame.shared_frame!=null && !frame.content.isInstanceOf[ZeroCopyContent] ) {
+            encode_shared(frame)
+          } else {
+            encode(frame)
+          }
       }
       if( was_empty ) {
         ProtocolCodec.BufferState.WAS_EMPTY
@@ -205,7 +218,8 @@ class StompCodec extends ProtocolCodec {
     }
   }
 
-  def encode(frame:StompFrame, os:DataOutput) = {
+  def encode(frame:StompFrame) = {
+    val os:DataOutput = next_write.staging
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
@@ -226,7 +240,7 @@ class StompCodec extends ProtocolCodec {
       val buffer1 = frame.headers.head._1;
       val buffer2 = frame.content.asInstanceOf[BufferContent].content;
       val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
+      next_write.append(new Buffer(buffer1.data, offset, length))
       END_OF_FRAME_BUFFER.writeTo(os)
 
     } else {
@@ -243,7 +257,7 @@ class StompCodec extends ProtocolCodec {
           assert(next_write_direct==null)
           next_write_direct = x.zero_copy_buffer
         case x:BufferContent=>
-          x.content.writeTo(os)
+          next_write.append(x.content)
           END_OF_FRAME_BUFFER.writeTo(os)
         case _=>
           END_OF_FRAME_BUFFER.writeTo(os)
@@ -251,12 +265,41 @@ class StompCodec extends ProtocolCodec {
     }
   }
 
+  /**
+   * Only encodes the action and the headers specific to this frame, the
+   * other headers come from the shared frame which encodes them once.  The
+   * content gets appended by reference like encode does.
+   */
+  def encode_shared(frame:StompFrame) = {
+    val shared = frame.shared_frame
+    val os:DataOutput = next_write.staging
+    frame.action.writeTo(os)
+    os.write(NEWLINE)
+    for( (key, value) <- frame.shared_prefix ) {
+      key.writeTo(os)
+      os.write(COLON)
+      value.writeTo(os)
+      os.write(NEWLINE)
+    }
+    next_write.append(shared.encoded_headers)
+    if( shared.are_headers_in_content_buffer ) {
+      next_write.append(shared.headers_and_content_buffer)
+    } else {
+      shared.content match {
+        case x:BufferContent=>
+          next_write.append(x.content)
+        case _=>
+      }
+    }
+    END_OF_FRAME_BUFFER.writeTo(os)
+  }
 
   def flush():ProtocolCodec.BufferState = {
     while(true) {
       // if we have a pending write that is being sent over the socket...
-      if ( write_buffer.remaining() != 0 ) {
-        last_write_io_size = write_channel.write(write_buffer)
+      write_buffers_pos = GatheringWriteBuffer.skipWritten(write_buffers, write_buffers_pos)
+      if ( write_buffers_pos < write_buffers.length ) {
+        last_write_io_size = GatheringWriteBuffer.write(write_channel, write_buffers, write_buffers_pos).toInt
         if ( last_write_io_size==0 )
           return ProtocolCodec.BufferState.NOT_EMPTY
         else
@@ -274,19 +317,17 @@ class StompCodec extends ProtocolCodec {
               write_direct.release
               write_direct = null
               write_direct_pos = 0
-              write_buffer = ByteBuffer.wrap(END_OF_FRAME_BUFFER.data)
+              write_buffers = Array(ByteBuffer.wrap(END_OF_FRAME_BUFFER.data))
+              write_buffers_pos = 0
             }
           }
         } else {
-          if( next_write_buffer.size()==0 ) {
+          if( next_write.isEmpty ) {
             return ProtocolCodec.BufferState.EMPTY
           } else {
-            // size of next buffer is based on how much was used in the previous buffer.
-            val prev_size = (write_buffer.position()+512).max(512).min(write_buffer_size)
-            write_buffer = next_write_buffer.toBuffer().toByteBuffer()
+            write_buffers = next_write.drain(write_buffer_size)
+            write_buffers_pos = 0
             write_direct = next_write_direct
-
-            next_write_buffer = new DataByteArrayOutputStream(prev_size)
             next_write_direct = null
           }
         }
@@ -304,6 +345,7 @@ class StompCodec extends ProtocolCodec {
   
   type FrameReader = (ByteBuffer)=>StompFrame
 
+  @volatile
   var read_counter = 0L
   var read_buffer_size = 1024*64
   var read_channel:ReadableByteChannel = null
@@ -320,6 +362,14 @@ class StompCodec extends ProtocolCodec {
   var next_action:FrameReader = read_action
   var trim = true
 
+  // When set, the read buffer is dropped while the connection is idle and
+  // reads get staged in a buffer borrowed from the pool until data shows
+  // up.  The read buffer itself can't be pooled since the frames read
+  // reference slices of it.
+  var buffer_pool:BufferPool = null
+
+  def setBufferPool(pool:BufferPool) = buffer_pool = pool
+
   def setReadableByteChannel(channel: ReadableByteChannel) = {
     this.read_channel = channel
     if( this.read_channel.isInstanceOf[SocketChannel] ) {
@@ -352,6 +402,29 @@ class StompCodec extends ProtocolCodec {
         }
         read_direct_pos += last_read_io_size
         read_counter += last_read_io_size
+      } else if (read_buffer==null || (buffer_pool!=null && read_direct==null && read_start == read_end && read_end == read_buffer.position() && read_buffer.remaining() == 0) ) {
+
+          // idle, or a full buffer got consumed: read through a pooled buffer
+          // so we only allocate a new read buffer once data shows up.
+          read_buffer = null
+          val staging = buffer_pool.borrow(read_buffer_size)
+          try {
+            last_read_io_size = read_channel.read(staging)
+            if (last_read_io_size == -1) {
+                throw new EOFException("Peer disconnected")
+            } else if (last_read_io_size == 0) {
+                return null
+            }
+            read_counter += last_read_io_size
+            staging.flip
+            read_buffer = ByteBuffer.allocate(read_buffer_size.max(staging.remaining))
+            read_buffer.put(staging)
+            read_start = 0
+            read_end = 0
+          } finally {
+            buffer_pool.release(staging)
+          }
+
       } else if (read_end == read_buffer.position() ) {
 
           // do we need a new data buffer to read data into??
@@ -388,6 +461,10 @@ class StompCodec extends ProtocolCodec {
           if (last_read_io_size == -1) {
               throw new EOFException("Peer disconnected")
           } else if (last_read_io_size == 0) {
+              if( buffer_pool!=null && read_start == read_end && read_direct==null ) {
+                // nothing partially read, so let go of the buffer while idle.
+                read_buffer = null
+              }
               return null
           }
           read_counter += last_read_io_size
@@ -284,7 +284,75 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
     ).map(_._2).getOrElse(null)
   }
 
-  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, value ::: updated_headers)
+  def append_headers(value:HeaderMap) = {
+    val rc = StompFrame(action, headers, content, value ::: updated_headers)
+    if( shared_frame==null ) {
+      rc.shared_frame = this
+      rc.shared_prefix = value
+    } else {
+      rc.shared_frame = shared_frame
+      rc.shared_prefix = value ::: shared_prefix
+    }
+    rc
+  }
+
+  /**
+   * When this frame was created by append_headers, the frame the headers were
+   * appended to.  Its headers only need to get encoded once no matter how
+   * many subscriptions the frame gets fanned out to.
+   */
+  var shared_frame:StompFrame = null
+
+  /**
+   * The headers which were appended to the shared_frame.
+   */
+  var shared_prefix:HeaderMap = Nil
+
+  @volatile
+  private var encoded_headers_cache:Buffer = null
+
+  /**
+   * The encoded headers of the frame.  When the headers are not in the
+   * content buffer, it includes them and the blank line that ends them,
+   * otherwise just the updated headers.  The content is not included, so
+   * the frame only holds on to a copy of its headers.
+   */
+  def encoded_headers:Buffer = {
+    var rc = encoded_headers_cache
+    if( rc==null ) {
+      val buffer = new DataByteArrayOutputStream(256)
+      val os:OutputStream = buffer
+      for( (key, value) <- updated_headers ) {
+        key.writeTo(os)
+        os.write(COLON)
+        value.writeTo(os)
+        os.write(NEWLINE)
+      }
+      if( !are_headers_in_content_buffer ) {
+        for( (key, value) <- headers ) {
+          key.writeTo(os)
+          os.write(COLON)
+          value.writeTo(os)
+          os.write(NEWLINE)
+        }
+        os.write(NEWLINE)
+      }
+      // racing threads might encode it twice, that's harmless.
+      rc = buffer.toBuffer
+      encoded_headers_cache = rc
+    }
+    rc
+  }
+
+  /**
+   * The buffer holding the headers and the content when
+   * are_headers_in_content_buffer is set.
+   */
+  def headers_and_content_buffer = {
+    val buffer1 = headers.head._1
+    val buffer2 = content.asInstanceOf[BufferContent].content
+    new Buffer(buffer1.data, buffer1.offset, (buffer2.offset-buffer1.offset)+buffer2.length)
+  }
 
   def retain = content.retain
   def release = content.release
@@ -203,10 +203,8 @@ class StompProtocolHandler extends ProtocolHandler {
 
     }
 
-    class TrackedAck(var credit:Option[Int], val ack:(DeliveryResult, StoreUOW)=>Unit)
-
     class SessionAckHandler extends AckHandler{
-      var consumer_acks = ListBuffer[(AsciiBuffer, TrackedAck)]()
+      val consumer_acks = new AckTracker
 
       def track(delivery:Delivery) = {
         queue.assertExecuting()
@@ -214,23 +212,13 @@ class StompProtocolHandler extends ProtocolHandler {
           // register on the connection since 1.0 acks may not include the subscription id
           connection_ack_handlers += ( delivery.message.id-> this )
         }
-        consumer_acks += delivery.message.id -> new TrackedAck(Some(delivery.size), delivery.ack )
+        consumer_acks.add(new TrackedAck(delivery.message.id, Some(delivery.size), delivery.ack))
       }
 
       def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
         queue.assertExecuting()
         if( initial_credit_window._3 ) {
-          var found = false
-          val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-            if( id == msgid ) {
-              found = true
-              true
-            } else {
-              !found
-            }
-          }
-
-          for( (id, delivery) <- acked ) {
+          consumer_acks.credit_through(msgid) { delivery =>
             for( credit <- delivery.credit ) {
               ack_source.merge((credit, 1))
               delivery.credit = None
@@ -247,21 +235,11 @@ class StompProtocolHandler extends ProtocolHandler {
         queue.assertExecuting()
 
         // session acks ack all previously received messages..
-        var found = false
-        val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-          if( id == msgid ) {
-            found = true
-            true
-          } else {
-            !found
-          }
-        }
-
-        if( !found ) {
+        val acked = consumer_acks.remove_through(msgid)
+        if( acked.isEmpty ) {
           trace("%s: ACK failed, invalid message id: %s, dest: %s".format(security_context.remote_address, msgid, destination.mkString(",")))
         } else {
-          consumer_acks = not_acked
-          acked.foreach{case (id, delivery)=>
+          acked.foreach{ delivery=>
             if( delivery.ack!=null ) {
               delivery.ack(consumed, uow)
             }
@@ -276,7 +254,7 @@ class StompProtocolHandler extends ProtocolHandler {
     }
 
     class MessageAckHandler extends AckHandler {
-      var consumer_acks = HashMap[AsciiBuffer, TrackedAck]()
+      val consumer_acks = new AckTracker
 
       def track(delivery:Delivery) = {
         queue.assertExecuting();
@@ -284,7 +262,7 @@ class StompProtocolHandler extends ProtocolHandler {
           // register on the connection since 1.0 acks may not include the subscription id
           connection_ack_handlers += ( delivery.message.id-> this )
         }
-        consumer_acks += delivery.message.id -> new TrackedAck(Some(delivery.size), delivery.ack)
+        consumer_acks.add(new TrackedAck(delivery.message.id, Some(delivery.size), delivery.ack))
       }
 
       def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
@@ -758,6 +736,7 @@ class StompProtocolHandler extends ProtocolHandler {
           }
 
           heart_beat_monitor.transport = connection.transport
+          heart_beat_monitor.wheel = connection.connector.broker.heart_beat_wheel
           heart_beat_monitor.start
 
         } catch {
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.AsciiBuffer
+import org.fusesource.hawtbuf.Buffer._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class AckTrackerTest extends FunSuiteSupport {
+
+  def tracked(id:String) = new TrackedAck(ascii(id), Some(1), null)
+
+  def ids(acks:Seq[TrackedAck]) = acks.map(_.id.toString).toList
+
+  test("cumulative acks remove everything up to the acked id") {
+    val tracker = new AckTracker
+    (1 to 5).foreach(i => tracker.add(tracked("m"+i)))
+
+    expect(List("m1", "m2", "m3"))(ids(tracker.remove_through(ascii("m3"))))
+    expect(2)(tracker.size)
+    expect(Nil)(ids(tracker.remove_through(ascii("m3"))))
+    expect(List("m4", "m5"))(ids(tracker.remove_through(ascii("m5"))))
+    expect(true)(tracker.isEmpty)
+  }
+
+  test("individual acks skip the removed entries on cumulative acks") {
+    val tracker = new AckTracker
+    (1 to 4).foreach(i => tracker.add(tracked("m"+i)))
+
+    expect(Some("m2"))(tracker.remove(ascii("m2")).map(_.id.toString))
+    expect(List("m1", "m3"))(ids(tracker.remove_through(ascii("m3"))))
+    expect(1)(tracker.size)
+  }
+
+  test("the ring stays bounded while the first message is held") {
+    val tracker = new AckTracker
+    tracker.add(tracked("held"))
+    for( i <- 0 until 10000 ) {
+      tracker.add(tracked("m"+i))
+      expect(true)(tracker.remove(ascii("m"+i)).isDefined)
+    }
+    expect(1)(tracker.size)
+    expect(true)(tracker.capacity <= 32)
+
+    expect(true)(tracker.remove(ascii("held")).isDefined)
+    expect(true)(tracker.isEmpty)
+  }
+
+  test("credits are not handed out twice across a compaction") {
+    val tracker = new AckTracker
+    tracker.add(tracked("held"))
+    (1 to 15).foreach(i => tracker.add(tracked("m"+i)))
+
+    var credited = List[String]()
+    tracker.credit_through(ascii("m4")) { ack => credited ::= ack.id.toString }
+    expect(5)(credited.size)
+
+    // removing most of them makes the next add compact the ring.
+    (1 to 12).foreach(i => tracker.remove(ascii("m"+i)))
+    tracker.add(tracked("m16"))
+    expect(16)(tracker.capacity)
+
+    credited = Nil
+    tracker.credit_through(ascii("m16")) { ack => credited ::= ack.id.toString }
+    expect(List("m16", "m15", "m14", "m13"))(credited)
+  }
+
+  test("redelivered messages are tracked separately") {
+    val tracker = new AckTracker
+    val first = tracked("dup")
+    val second = tracked("dup")
+    tracker.add(first)
+    tracker.add(tracked("m1"))
+    tracker.add(second)
+    expect(3)(tracker.size)
+
+    // individual acks release the oldest delivery first.
+    expect(true)(tracker.remove(ascii("dup")).get eq first)
+    expect(true)(tracker.get(ascii("dup")).get eq second)
+    expect(true)(tracker.remove(ascii("m1")).isDefined)
+    expect(true)(tracker.remove(ascii("dup")).get eq second)
+    expect(true)(tracker.isEmpty)
+
+    // nothing is left behind at the head of the ring.
+    for( i <- 0 until 1000 ) {
+      tracker.add(tracked("m"+i))
+      tracker.remove(ascii("m"+i))
+    }
+    expect(16)(tracker.capacity)
+  }
+
+  test("cumulative acks of a redelivered message release both deliveries") {
+    val tracker = new AckTracker
+    tracker.add(tracked("dup"))
+    tracker.add(tracked("m1"))
+    tracker.add(tracked("dup"))
+    tracker.add(tracked("m2"))
+
+    expect(List("dup", "m1", "dup"))(ids(tracker.remove_through(ascii("dup"))))
+    expect(None)(tracker.get(ascii("dup")))
+    expect(1)(tracker.size)
+  }
+
+}
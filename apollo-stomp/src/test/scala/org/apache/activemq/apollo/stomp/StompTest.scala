@@ -493,6 +493,72 @@ class StompDestinationTest extends StompTestSupport {
     get(3)
   }
 
+  test("Queue with priorities dispatches higher priority messages first") {
+    connect("1.1")
+
+    def put(id:Int, priority:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/prioritized.example\n" +
+        "priority:"+priority+"\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    put(1, 4)
+    put(2, 9)
+    put(3, 0)
+    put(4, 9)
+    put(5, 4)
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/prioritized.example\n" +
+      "id:0\n" +
+      "\n")
+
+    def get(id:Int) = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should include ("subscription:0\n")
+      frame should endWith regex("\n\nmessage:"+id+"\n")
+    }
+    get(2)
+    get(4)
+    get(1)
+    get(5)
+    get(3)
+  }
+
+  test("Partitioned queue delivers all the messages") {
+    connect("1.1")
+
+    def put(id:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/partitioned.example\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    for( i <- 1 to 10 ) {
+      put(i)
+    }
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/partitioned.example\n" +
+      "id:0\n" +
+      "\n")
+
+    def get() = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should include ("subscription:0\n")
+      frame.substring(frame.indexOf("\n\nmessage:")+"\n\nmessage:".length).trim.toInt
+    }
+    val received = for( i <- 1 to 10 ) yield get()
+    received.sorted.toList should be ((1 to 10).toList)
+  }
+
   test("Topic drops messages sent before before subscription is established") {
     connect("1.1")
 
@@ -528,6 +594,42 @@ class StompDestinationTest extends StompTestSupport {
     get(3)
   }
 
+  test("Topic fans out large messages to all the subscriptions") {
+    connect("1.1")
+
+    for( id <- 0 until 3 ) {
+      client.write(
+        "SUBSCRIBE\n" +
+        "destination:/topic/fanout\n" +
+        "id:"+id+"\n" +
+        "receipt:"+id+"\n" +
+        "\n")
+      wait_for_receipt(""+id)
+    }
+
+    val body = "x" * (1024*10)
+    def put(id:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/topic/fanout\n" +
+        "\n" +
+        "message:"+id+":"+body+"\n")
+    }
+    put(1)
+    put(2)
+
+    var subscriptions = Map[Int, Int]()
+    for( i <- 0 until 6 ) {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      val id = "subscription:([0-9])\n".r.findFirstMatchIn(frame).get.group(1).toInt
+      val expected = subscriptions.getOrElse(id, 0) + 1
+      frame should endWith ("\n\nmessage:"+expected+":"+body+"\n")
+      subscriptions += id -> expected
+    }
+    subscriptions should be (Map(0->2, 1->2, 2->2))
+  }
+
   test("Topic /w Durable sub retains messages.") {
     connect("1.1")
 
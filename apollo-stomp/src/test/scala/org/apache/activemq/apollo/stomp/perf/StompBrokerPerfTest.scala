@@ -18,6 +18,8 @@ package org.apache.activemq.apollo.stomp.perf
 
 import _root_.org.apache.activemq.apollo.broker.perf._
 import java.io.File
+import java.net.URL
+import org.apache.activemq.apollo.stomp.Stomp
 import org.apache.activemq.apollo.dto.BrokerDTO
 import org.apache.activemq.apollo.broker.store.bdb.dto.BDBStoreDTO
 
@@ -33,6 +35,45 @@ class DeepQueueBDBTest extends BasicScenarios with LargeInitialDB with BDBScenar
   override def description = "Using the STOMP protocol over TCP persisting to the BerkleyDB store that contains 1M messages in a queue."
 }
 
+class AckWindowNonPersistentTest extends AckWindowScenarios {
+  override def description = "Using the STOMP protocol over TCP with client acked subscriptions that keep a deep window of un-acked messages."
+}
+
+/**
+ * Consumers which hold back their acks so that a large number of messages
+ * stay in-flight, stresses the ack tracking of the subscription.
+ */
+trait AckWindowScenarios extends BrokerPerfSupport with StompScenario {
+
+  def reportResourceTemplate():URL = { classOf[BasicScenarios].getResource("report.html") }
+
+  def inFlightWindows = List(100, 10000, 20000)
+
+  for( ack_mode <- List(Stomp.ACK_MODE_CLIENT, Stomp.ACK_MODE_CLIENT_INDIVIDUAL) ; in_flight <- inFlightWindows ) {
+    test("queue 20b 1->1->1 %s ack %d in-flight".format(ack_mode, in_flight)) {
+      PTP = true
+      MESSAGE_SIZE = 20
+      producerCount = 1
+      destCount = 1
+      consumerCount = 1
+
+      createConnections();
+      for( consumer <- consumers ) {
+        consumer.asInstanceOf[StompRemoteConsumer].ack_mode = ack_mode
+        consumer.asInstanceOf[StompRemoteConsumer].in_flight = in_flight
+      }
+
+      // Start 'em up.
+      startClients();
+      try {
+        reportRates();
+      } finally {
+        stopServices();
+      }
+    }
+  }
+}
+
 trait StompScenario extends BrokerPerfSupport {
   override def createProducer() = new StompRemoteProducer()
 
@@ -34,6 +34,12 @@ import org.apache.activemq.apollo.dto.{TopicDestinationDTO, QueueDestinationDTO}
 class StompRemoteConsumer extends RemoteConsumer {
   var outboundSink: OverflowSink[StompFrame] = null
 
+  // when set, the consumer subscribes with this ack mode and holds
+  // back acks until more than in_flight messages are un-acked.
+  var ack_mode: AsciiBuffer = null
+  var in_flight = 0
+  val pending = new scala.collection.mutable.Queue[AsciiBuffer]
+
   def onConnected() = {
     outboundSink = new OverflowSink[StompFrame](transport_sink.map(x=>x))
     outboundSink.refiller = ^ {}
@@ -50,7 +56,10 @@ class StompRemoteConsumer extends RemoteConsumer {
     headers ::= (DESTINATION, stompDestination)
     headers ::= (ID, ascii("stomp-sub-" + name))
 
-    if( persistent ) {
+    if( ack_mode!=null ) {
+      headers ::= (ACK_MODE, ack_mode)
+      headers ::= (CREDIT, ascii("%d,%d".format(in_flight*2, 1024*1024*64)))
+    } else if( persistent ) {
       headers ::= (ACK_MODE, ACK_MODE_CLIENT_INDIVIDUAL)
     }
 
@@ -65,8 +74,13 @@ class StompRemoteConsumer extends RemoteConsumer {
       case StompFrame(MESSAGE, headers, content, _) =>
           messageReceived();
 
-          // we client ack if persistent messages are being used.
-          if( persistent ) {
+          if( ack_mode!=null ) {
+            pending.enqueue(frame.header(MESSAGE_ID))
+            while( pending.size > in_flight ) {
+              outboundSink.offer(StompFrame(ACK, List((MESSAGE_ID, pending.dequeue))));
+            }
+          } else if( persistent ) {
+            // we client ack if persistent messages are being used.
             var rc = List((MESSAGE_ID, frame.header(MESSAGE_ID)))
             outboundSink.offer(StompFrame(ACK, rc));
           }
@@ -116,14 +116,44 @@ public class SslTransport extends TcpTransport {
             engine.setUseClientMode(false);
             engine.setWantClientAuth(true);
         }
-        SSLSession session = engine.getSession();
-        readBuffer = ByteBuffer.allocateDirect(session.getPacketBufferSize());
-        readBuffer.flip();
-        writeBuffer = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        if( bufferPool==null ) {
+            SSLSession session = engine.getSession();
+            readBuffer = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            readBuffer.flip();
+            writeBuffer = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        }
+        // otherwise the buffers get borrowed from the pool while there
+        // is data to read or write.
 
         super.connected(channel);
     }
 
+    private ByteBuffer borrow() {
+        return bufferPool.borrow(engine.getSession().getPacketBufferSize());
+    }
+
+    private void releaseReadBuffer() {
+        if( bufferPool!=null && readBuffer!=null ) {
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+            readUnderflow = false;
+        }
+    }
+
+    private void releaseWriteBuffer() {
+        if( bufferPool!=null && writeBuffer!=null ) {
+            bufferPool.release(writeBuffer);
+            writeBuffer = null;
+        }
+    }
+
+    @Override
+    protected void dispose() {
+        releaseReadBuffer();
+        releaseWriteBuffer();
+        super.dispose();
+    }
+
     @Override
     protected void onConnected() throws IOException {
         super.onConnected();
@@ -161,17 +191,19 @@ public class SslTransport extends TcpTransport {
                 if( !writeBuffer.hasRemaining() ) {
                     writeBuffer.clear();
                     writeFlushing = false;
+                    releaseWriteBuffer();
                     suspendWrite();
                     return true;
                 } else {
                     return false;
                 }
             } else {
-                if( writeBuffer.position()!=0 ) {
+                if( writeBuffer!=null && writeBuffer.position()!=0 ) {
                     writeBuffer.flip();
                     writeFlushing = true;
                     resumeWrite();
                 } else {
+                    releaseWriteBuffer();
                     return true;
                 }
             }
@@ -185,6 +217,9 @@ public class SslTransport extends TcpTransport {
         }
         int rc = 0;
         while ( plain.hasRemaining() || engine.getHandshakeStatus()==NEED_WRAP ) {
+            if( writeBuffer==null ) {
+                writeBuffer = borrow();
+            }
             SSLEngineResult result = engine.wrap(plain, writeBuffer);
             assert result.getStatus()!= BUFFER_OVERFLOW;
             rc += result.bytesConsumed();
@@ -219,7 +254,10 @@ public class SslTransport extends TcpTransport {
                 } else {
                     return rc;
                 }
-            } else if( readUnderflow ) {
+            } else if( readUnderflow || readBuffer==null ) {
+                if( readBuffer==null ) {
+                    readBuffer = borrow();
+                }
                 int count = super.readChannel().read(readBuffer);
                 if( count == -1 ) {  // peer closed socket.
                     if (rc==0) {
@@ -229,6 +267,9 @@ public class SslTransport extends TcpTransport {
                     }
                 }
                 if( count==0 ) {  // no data available right now.
+                    if( readBuffer.position()==0 ) {
+                        releaseReadBuffer();
+                    }
                     return rc;
                 }
                 // read in some more data, perhaps now we can unwrap.
@@ -255,6 +296,9 @@ public class SslTransport extends TcpTransport {
                             return rc;
                         }
                     case OK:
+                        if( !readBuffer.hasRemaining() ) {
+                            releaseReadBuffer();
+                        }
                         if ( engine.getHandshakeStatus()!=NOT_HANDSHAKING ) {
                             dispatchQueue.execute(new Runnable() {
                                 public void run() {
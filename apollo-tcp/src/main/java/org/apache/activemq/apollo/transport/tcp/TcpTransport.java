@@ -16,10 +16,10 @@
  */
 package org.apache.activemq.apollo.transport.tcp;
 
+import org.apache.activemq.apollo.transport.BufferPool;
+import org.apache.activemq.apollo.transport.BufferPoolAware;
+import org.apache.activemq.apollo.transport.CodecTransportSupport;
 import org.apache.activemq.apollo.transport.ProtocolCodec;
-import org.apache.activemq.apollo.transport.Transport;
-import org.apache.activemq.apollo.transport.TransportListener;
-import org.apache.activemq.apollo.util.JavaBaseService;
 import org.fusesource.hawtdispatch.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -39,7 +40,7 @@ import java.util.concurrent.TimeUnit;
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-public class TcpTransport extends JavaBaseService implements Transport {
+public class TcpTransport extends CodecTransportSupport implements BufferPoolAware {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpTransport.class);
 
@@ -73,8 +74,7 @@ public class TcpTransport extends JavaBaseService implements Transport {
     class CONNECTED extends SocketState {
 
         public CONNECTED() {
-            localAddress = channel.socket().getLocalSocketAddress();
-            remoteAddress = channel.socket().getRemoteSocketAddress();
+            initializeAddresses();
         }
 
         void onStop(Runnable onCompleted) {
@@ -164,14 +164,12 @@ public class TcpTransport extends JavaBaseService implements Transport {
 
     protected URI remoteLocation;
     protected URI localLocation;
-    protected TransportListener listener;
-    protected ProtocolCodec codec;
+    protected BufferPool bufferPool;
 
     protected SocketChannel channel;
 
     protected SocketState socketState = new DISCONNECTED();
 
-    protected DispatchQueue dispatchQueue;
     private DispatchSource readSource;
     private DispatchSource writeSource;
     private CustomDispatchSource<Integer, Integer> yieldSource;
@@ -196,7 +194,7 @@ public class TcpTransport extends JavaBaseService implements Transport {
     SocketAddress localAddress;
     SocketAddress remoteAddress;
 
-    class RateLimitingChannel implements ReadableByteChannel, WritableByteChannel {
+    class RateLimitingChannel implements ReadableByteChannel, GatheringByteChannel {
 
         int read_allowance = max_read_rate;
         boolean read_suspended = false;
@@ -288,6 +286,27 @@ public class TcpTransport extends JavaBaseService implements Transport {
             }
         }
 
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if( max_write_rate==0 ) {
+                return channel.write(srcs, offset, length);
+            } else {
+                // feed the buffers one at a time through the rate limited write.
+                long rc = 0;
+                for( int i=offset; i < offset+length; i++ ) {
+                    ByteBuffer src = srcs[i];
+                    rc += write(src);
+                    if( src.remaining() != 0 ) {
+                        break;
+                    }
+                }
+                return rc;
+            }
+        }
+
         public boolean isOpen() {
             return channel.isOpen();
         }
@@ -332,7 +351,12 @@ public class TcpTransport extends JavaBaseService implements Transport {
         this.socketState = new CONNECTED();
     }
 
-    private void initializeChannel() throws IOException {
+    protected void initializeAddresses() {
+        localAddress = channel.socket().getLocalSocketAddress();
+        remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    protected void initializeChannel() throws IOException {
         this.channel.configureBlocking(false);
         Socket socket = channel.socket();
         try {
@@ -368,6 +392,9 @@ public class TcpTransport extends JavaBaseService implements Transport {
     protected void initializeCodec() {
         codec.setReadableByteChannel(readChannel());
         codec.setWritableByteChannel(writeChannel());
+        if( bufferPool!=null && codec instanceof BufferPoolAware ) {
+            ((BufferPoolAware) codec).setBufferPool(bufferPool);
+        }
     }
 
     public void connecting(URI remoteLocation, URI localLocation) throws IOException, Exception {
@@ -388,14 +415,6 @@ public class TcpTransport extends JavaBaseService implements Transport {
     }
 
 
-    public DispatchQueue getDispatchQueue() {
-        return dispatchQueue;
-    }
-
-    public void setDispatchQueue(DispatchQueue queue) {
-        this.dispatchQueue = queue;
-    }
-
     public void _start(Runnable onCompleted) {
         try {
             if (socketState.is(CONNECTING.class) ) {
@@ -505,7 +524,7 @@ public class TcpTransport extends JavaBaseService implements Transport {
         });
     }
 
-    private void dispose() {
+    protected void dispose() {
         if( readSource!=null ) {
             readSource.cancel();
             readSource=null;
@@ -515,104 +534,26 @@ public class TcpTransport extends JavaBaseService implements Transport {
             writeSource.cancel();
             writeSource=null;
         }
+        if( codec instanceof BufferPoolAware ) {
+            // hand back any buffers the codec borrowed.
+            ((BufferPoolAware) codec).setBufferPool(null);
+        }
         this.codec = null;
     }
 
+    @Override
     public void onTransportFailure(IOException error) {
-        listener.onTransportFailure(error);
+        super.onTransportFailure(error);
         socketState.onCanceled();
     }
 
 
-    public boolean full() {
-        return codec==null || codec.full();
-    }
-
-    public boolean offer(Object command) {
-        assert Dispatch.getCurrentQueue() == dispatchQueue;
-        try {
-            if (!socketState.is(CONNECTED.class)) {
-                throw new IOException("Not connected.");
-            }
-            if (getServiceState() != STARTED) {
-                throw new IOException("Not running.");
-            }
-
-            ProtocolCodec.BufferState rc = codec.write(command);
-            switch (rc ) {
-                case FULL:
-                    return false;
-                default:
-                    if( drained ) {
-                        drained = false;
-                        resumeWrite();
-                    }
-                    return true;
-            }
-        } catch (IOException e) {
-            onTransportFailure(e);
-            return false;
-        }
-
-    }
-
-
-    boolean drained = true;
-    /**
-     *
-     */
-    protected void drainOutbound() {
-        assert Dispatch.getCurrentQueue() == dispatchQueue;
-        if (getServiceState() != STARTED || !socketState.is(CONNECTED.class)) {
-            return;
-        }
-        try {
-            if( codec.flush() == ProtocolCodec.BufferState.EMPTY && flush() ) {
-                if( !drained ) {
-                    drained = true;
-                    suspendWrite();
-                    listener.onRefill();
-                }
-            }
-        } catch (IOException e) {
-            onTransportFailure(e);
-        }
+    protected boolean isReadSuspended() {
+        return readSource.isSuspended();
     }
 
-    protected boolean flush() throws IOException {
-        return true;
-    }
-
-    protected void drainInbound() {
-        if (!getServiceState().isStarted() || readSource.isSuspended()) {
-            return;
-        }
-        try {
-            long initial = codec.getReadCounter();
-            // Only process upto 2 x the read buffer worth of data at a time so we can give
-            // other connections a chance to process their requests.
-            while( codec.getReadCounter()-initial < codec.getReadBufferSize()<<2 ) {
-                Object command = codec.read();
-                if ( command!=null ) {
-                    try {
-                        listener.onTransportCommand(command);
-                    } catch (Throwable e) {
-                        e.printStackTrace();
-                        onTransportFailure(new IOException("Transport listener failure."));
-                    }
-
-                    // the transport may be suspended after processing a command.
-                    if (getServiceState() == STOPPED || readSource.isSuspended()) {
-                        return;
-                    }
-                } else {
-                    return;
-                }
-            }
-            yieldSource.merge(1);
-        } catch (IOException e) {
-            onTransportFailure(e);
-        }
+    protected void onReadYield() {
+        yieldSource.merge(1);
     }
 
     public SocketAddress getLocalAddress() {
@@ -623,13 +564,6 @@ public class TcpTransport extends JavaBaseService implements Transport {
         return remoteAddress;
     }
 
-    public <T> T narrow(Class<T> target) {
-        if (target.isAssignableFrom(getClass())) {
-            return target.cast(this);
-        }
-        return null;
-    }
-
     private boolean assertConnected() {
         try {
             if ( !isConnected() ) {
@@ -687,20 +621,12 @@ public class TcpTransport extends JavaBaseService implements Transport {
         return "tcp";
     }
 
-    public void reconnect(URI uri) {
-        throw new UnsupportedOperationException();
-    }
-
-    public TransportListener getTransportListener() {
-        return listener;
-    }
-
-    public void setTransportListener(TransportListener listener) {
-        this.listener = listener;
+    public BufferPool getBufferPool() {
+        return bufferPool;
     }
 
-    public ProtocolCodec getProtocolCodec() {
-        return codec;
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
     }
 
     public void setProtocolCodec(ProtocolCodec protocolCodec) {
@@ -718,10 +644,6 @@ public class TcpTransport extends JavaBaseService implements Transport {
         return getServiceState() == STOPPED;
     }
 
-    public boolean isFaultTolerant() {
-        return false;
-    }
-
     public boolean isUseLocalHost() {
         return useLocalHost;
     }
@@ -16,6 +16,8 @@
  */
 package org.apache.activemq.apollo.transport.tcp;
 
+import org.apache.activemq.apollo.transport.BufferPool;
+import org.apache.activemq.apollo.transport.BufferPoolAware;
 import org.apache.activemq.apollo.transport.Transport;
 import org.apache.activemq.apollo.transport.TransportAcceptListener;
 import org.apache.activemq.apollo.transport.TransportServer;
@@ -33,6 +35,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A TCP based implementation of {@link TransportServer}
@@ -40,33 +43,48 @@ import java.util.Map;
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 
-public class TcpTransportServer implements TransportServer {
+public class TcpTransportServer implements TransportServer, BufferPoolAware {
 
+    private final URI bindLocation;
     private final String bindScheme;
     private final InetSocketAddress bindAddress;
 
     private int backlog = 100;
     private Map<String, String> transportOptions;
 
+    private int acceptors = 1;
+    private boolean reuse_port;
+
     private ServerSocketChannel channel;
+    private ServerSocketChannel[] channels;
     private TransportAcceptListener listener;
     private DispatchQueue dispatchQueue;
-    private DispatchSource acceptSource;
+    private DispatchSource[] acceptSources;
     private int receive_buffer_size = 64*1024;
+    private BufferPool bufferPool;
 
     public TcpTransportServer(URI location) throws UnknownHostException {
-        bindScheme = location.getScheme();
+        this(location, bindAddress(location));
+    }
+
+    protected TcpTransportServer(URI location, InetSocketAddress bindAddress) {
+        this.bindLocation = location;
+        this.bindScheme = location.getScheme();
+        this.bindAddress = bindAddress;
+    }
+
+    private static InetSocketAddress bindAddress(URI location) throws UnknownHostException {
         String host = location.getHost();
         host = (host == null || host.length() == 0) ? "::" : host;
-        bindAddress = new InetSocketAddress(InetAddress.getByName(host), location.getPort());
+        return new InetSocketAddress(InetAddress.getByName(host), location.getPort());
     }
 
     public void setAcceptListener(TransportAcceptListener listener) {
         this.listener = listener;
     }
 
-    public InetSocketAddress getSocketAddress() {
-        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    public SocketAddress getSocketAddress() {
+        return channel.socket().getLocalSocketAddress();
     }
 
     public DispatchQueue getDispatchQueue() {
@@ -78,11 +96,15 @@ public class TcpTransportServer implements TransportServer {
     }
 
     public void suspend() {
-        acceptSource.suspend();
+        for (DispatchSource source : acceptSources) {
+            source.suspend();
+        }
     }
 
     public void resume() {
-        acceptSource.resume();
+        for (DispatchSource source : acceptSources) {
+            source.resume();
+        }
     }
 
     public void start() throws Exception {
@@ -90,43 +112,86 @@ public class TcpTransportServer implements TransportServer {
     }
     public void start(Runnable onCompleted) throws Exception {
 
+        int sourceCount = Math.max(1, acceptors);
+        channels = new ServerSocketChannel[reuse_port ? sourceCount : 1];
         try {
-            channel = ServerSocketChannel.open();
-            channel.configureBlocking(false);
-            try {
-                channel.socket().setReceiveBufferSize(receive_buffer_size);
-            } catch (SocketException ignore) {
-            }
-            channel.socket().bind(bindAddress, backlog);
+            bind(channels);
         } catch (IOException e) {
-            throw IOExceptionSupport.create("Failed to bind to server socket: " + bindAddress + " due to: " + e, e);
+            closeChannels();
+            throw IOExceptionSupport.create("Failed to bind to server socket: " + bindLocation + " due to: " + e, e);
         }
-
-        acceptSource = Dispatch.createSource(channel, SelectionKey.OP_ACCEPT, dispatchQueue);
-        acceptSource.setEventHandler(new Runnable() {
-            public void run() {
-                try {
-                    SocketChannel client = channel.accept();
-                    while( client!=null ) {
-                        handleSocket(client);
-                        client = channel.accept();
+        channel = channels[0];
+
+        acceptSources = new DispatchSource[sourceCount];
+        for (int i = 0; i < sourceCount; i++) {
+            final ServerSocketChannel acceptChannel = channels[i % channels.length];
+            // extra accept sources get their own queues so that the accepts
+            // get spread over the dispatch threads.
+            DispatchQueue queue = i == 0 ? dispatchQueue : Dispatch.createQueue("accept " + i + " " + bindLocation);
+            final DispatchSource source = Dispatch.createSource(acceptChannel, SelectionKey.OP_ACCEPT, queue);
+            source.setEventHandler(new Runnable() {
+                public void run() {
+                    try {
+                        SocketChannel client = acceptChannel.accept();
+                        while( client!=null ) {
+                            handleSocket(client);
+                            client = acceptChannel.accept();
+                        }
+                    } catch (Exception e) {
+                        listener.onAcceptError(e);
                     }
-                } catch (Exception e) {
-                    listener.onAcceptError(e);
                 }
+            });
+            acceptSources[i] = source;
+        }
+        for (DispatchSource source : acceptSources) {
+            source.resume();
+        }
+        if( onCompleted!=null ) {
+            dispatchQueue.execute(onCompleted);
+        }
+    }
+
+    /**
+     * Opens and binds the listening channels.
+     */
+    protected void bind(ServerSocketChannel[] channels) throws IOException {
+        InetSocketAddress address = bindAddress;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = ServerSocketChannel.open();
+            channels[i].configureBlocking(false);
+            try {
+                channels[i].socket().setReceiveBufferSize(receive_buffer_size);
+            } catch (SocketException ignore) {
             }
-        });
-        acceptSource.setCancelHandler(new Runnable() {
-            public void run() {
+            if( reuse_port ) {
+                setReusePort(channels[i]);
+            }
+            channels[i].socket().bind(address, backlog);
+            // the rest have to bind to the port the first one got.
+            address = new InetSocketAddress(bindAddress.getAddress(), channels[i].socket().getLocalPort());
+        }
+    }
+
+    private static void setReusePort(ServerSocketChannel channel) throws IOException {
+        // SO_REUSEPORT is only exposed by newer JDKs.
+        try {
+            Class<?> optionClass = Class.forName("java.net.SocketOption");
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            ServerSocketChannel.class.getMethod("setOption", optionClass, Object.class).invoke(channel, option, Boolean.TRUE);
+        } catch (Exception e) {
+            throw IOExceptionSupport.create("SO_REUSEPORT is not supported by this JVM: " + e, e);
+        }
+    }
+
+    protected void closeChannels() {
+        for (ServerSocketChannel c : channels) {
+            if( c!=null ) {
                 try {
-                    channel.close();
+                    c.close();
                 } catch (IOException e) {
                 }
             }
-        });
-        acceptSource.resume();
-        if( onCompleted!=null ) {
-            dispatchQueue.execute(onCompleted);
         }
     }
 
@@ -166,19 +231,21 @@ public class TcpTransportServer implements TransportServer {
         stop(null);
     }
     public void stop(final Runnable onCompleted) throws Exception {
-        if( acceptSource.isCanceled() ) {
+        if( acceptSources[0].isCanceled() ) {
             onCompleted.run();
         } else {
-            acceptSource.setCancelHandler(new Runnable() {
-                public void run() {
-                    try {
-                        channel.close();
-                    } catch (IOException e) {
+            final AtomicInteger remaining = new AtomicInteger(acceptSources.length);
+            for (DispatchSource source : acceptSources) {
+                source.setCancelHandler(new Runnable() {
+                    public void run() {
+                        if( remaining.decrementAndGet() == 0 ) {
+                            closeChannels();
+                            dispatchQueue.execute(onCompleted);
+                        }
                     }
-                    onCompleted.run();
-                }
-            });
-            acceptSource.cancel();
+                });
+                source.cancel();
+            }
         }
     }
 
@@ -190,13 +257,47 @@ public class TcpTransportServer implements TransportServer {
         this.backlog = backlog;
     }
 
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public boolean isReuse_port() {
+        return reuse_port;
+    }
+
+    public void setReuse_port(boolean reuse_port) {
+        this.reuse_port = reuse_port;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     protected final void handleSocket(SocketChannel socket) throws Exception {
-        TcpTransport transport = createTransport();
+        final TcpTransport transport = createTransport();
+        transport.setBufferPool(bufferPool);
         if (transportOptions != null) {
             IntrospectionSupport.setProperties(transport, new HashMap<String,String>(transportOptions) );
         }
         transport.connected(socket);
-        listener.onAccept(transport);
+        if( acceptSources.length == 1 ) {
+            listener.onAccept(transport);
+        } else {
+            // the accept listener expects to be called from the server's queue.
+            dispatchQueue.execute(new Runnable() {
+                public void run() {
+                    listener.onAccept(transport);
+                }
+            });
+        }
     }
 
     protected TcpTransport createTransport() {
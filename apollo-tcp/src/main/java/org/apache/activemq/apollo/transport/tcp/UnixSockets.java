@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import org.apache.activemq.apollo.util.IOExceptionSupport;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Gets at the unix domain socket support of the JVM.  It only showed up in
+ * Java 16 so it's accessed reflectively to keep building for older JVMs.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+final class UnixSockets {
+
+    private static final Object UNIX;
+    private static final Method OPEN;
+    private static final Method OPEN_SERVER;
+    private static final Method ADDRESS_OF;
+    private static final Method BIND;
+    private static final Method LOCAL_ADDRESS;
+    private static final Method REMOTE_ADDRESS;
+    private static final Exception UNSUPPORTED;
+
+    static {
+        Object unix = null;
+        Method open = null, openServer = null, addressOf = null, bind = null, localAddress = null, remoteAddress = null;
+        Exception unsupported = null;
+        try {
+            Class<?> familyClass = Class.forName("java.net.ProtocolFamily");
+            unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+            open = SocketChannel.class.getMethod("open", familyClass);
+            openServer = ServerSocketChannel.class.getMethod("open", familyClass);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class, int.class);
+            localAddress = SocketChannel.class.getMethod("getLocalAddress");
+            remoteAddress = SocketChannel.class.getMethod("getRemoteAddress");
+        } catch (Exception e) {
+            unsupported = e;
+        }
+        UNIX = unix;
+        OPEN = open;
+        OPEN_SERVER = openServer;
+        ADDRESS_OF = addressOf;
+        BIND = bind;
+        LOCAL_ADDRESS = localAddress;
+        REMOTE_ADDRESS = remoteAddress;
+        UNSUPPORTED = unsupported;
+    }
+
+    private UnixSockets() {
+    }
+
+    public static boolean isSupported() {
+        return UNSUPPORTED == null;
+    }
+
+    /**
+     * @return the socket file a unix:///path URI points at.
+     */
+    public static File path(URI location) throws IOException {
+        String path = location.getPath();
+        if( path == null || path.length() == 0 ) {
+            throw new IOException("Expected a socket file path in: " + location);
+        }
+        return new File(path);
+    }
+
+    public static SocketAddress address(File path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, null, path.getPath());
+    }
+
+    public static SocketChannel open() throws IOException {
+        return (SocketChannel) invoke(OPEN, null, UNIX);
+    }
+
+    public static ServerSocketChannel openServer() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+    }
+
+    public static void bind(ServerSocketChannel channel, File path, int backlog) throws IOException {
+        invoke(BIND, channel, address(path), backlog);
+    }
+
+    public static SocketAddress localAddress(SocketChannel channel) throws IOException {
+        return (SocketAddress) invoke(LOCAL_ADDRESS, channel);
+    }
+
+    public static SocketAddress remoteAddress(SocketChannel channel) throws IOException {
+        return (SocketAddress) invoke(REMOTE_ADDRESS, channel);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        if( UNSUPPORTED != null ) {
+            throw IOExceptionSupport.create("Unix domain sockets are not supported by this JVM: " + UNSUPPORTED, UNSUPPORTED);
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            if( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            throw IOExceptionSupport.create(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw IOExceptionSupport.create(e);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A transport which talks over a unix domain socket.  Clients running on
+ * the same host as the broker can use it to skip the TCP/IP stack.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransport extends TcpTransport {
+
+    @Override
+    protected void initializeChannel() throws IOException {
+        // none of the tcp socket options apply.
+        this.channel.configureBlocking(false);
+    }
+
+    @Override
+    protected void initializeAddresses() {
+        try {
+            localAddress = UnixSockets.localAddress(channel);
+            remoteAddress = UnixSockets.remoteAddress(channel);
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public void connecting(URI remoteLocation, URI localLocation) throws IOException, Exception {
+        this.channel = UnixSockets.open();
+        initializeChannel();
+        this.remoteLocation = remoteLocation;
+        this.localLocation = localLocation;
+
+        // local connects usually complete right away.
+        if( channel.connect(UnixSockets.address(UnixSockets.path(remoteLocation))) ) {
+            this.socketState = new CONNECTED();
+        } else {
+            this.socketState = new CONNECTING();
+        }
+    }
+
+    @Override
+    public String getTypeId() {
+        return "unix";
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.net.URI;
+
+/**
+ * Creates the unix domain socket transports for unix:///path URIs.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransportFactory extends TcpTransportFactory {
+
+    protected TcpTransportServer createTcpTransportServer(final URI location) throws Exception {
+        if( !location.getScheme().equals("unix") ) {
+            return null;
+        }
+        return new UnixTransportServer(location);
+    }
+
+    protected TcpTransport createTransport(URI uri) throws Exception {
+        if( !uri.getScheme().equals("unix") ) {
+            return null;
+        }
+        return new UnixTransport();
+    }
+
+    protected URI getLocalLocation(URI location) {
+        // the path is the socket file, not a local address.
+        return null;
+    }
+
+}
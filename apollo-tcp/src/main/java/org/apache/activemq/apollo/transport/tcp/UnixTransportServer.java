@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A transport server which accepts connections on a unix domain socket.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class UnixTransportServer extends TcpTransportServer {
+
+    private final URI location;
+    private final File path;
+    private volatile boolean bound;
+
+    public UnixTransportServer(URI location) throws IOException {
+        super(location, null);
+        this.location = location;
+        this.path = UnixSockets.path(location);
+    }
+
+    @Override
+    protected void bind(ServerSocketChannel[] channels) throws IOException {
+        deleteStaleSocket();
+        // all the acceptors share the one channel.
+        for (int i = 0; i < channels.length; i++) {
+            if( i == 0 ) {
+                channels[i] = UnixSockets.openServer();
+                channels[i].configureBlocking(false);
+                UnixSockets.bind(channels[i], path, getBacklog());
+                bound = true;
+            } else {
+                channels[i] = channels[0];
+            }
+        }
+    }
+
+    /**
+     * A socket file left behind by a broker which did not shut down
+     * cleanly would make the bind fail, so it gets removed if nothing
+     * accepts connections on it anymore.
+     */
+    private void deleteStaleSocket() throws IOException {
+        if( !path.exists() ) {
+            return;
+        }
+        if( path.isFile() || path.isDirectory() ) {
+            throw new IOException("Not a socket file: " + path);
+        }
+        SocketChannel probe = UnixSockets.open();
+        try {
+            probe.connect(UnixSockets.address(path));
+        } catch (IOException e) {
+            // nobody is listening on it.
+            path.delete();
+            return;
+        } finally {
+            probe.close();
+        }
+        throw new IOException("Another server is listening on: " + path);
+    }
+
+    @Override
+    protected void closeChannels() {
+        super.closeChannels();
+        // don't remove the socket of the server which kept us from binding.
+        if( bound ) {
+            bound = false;
+            path.delete();
+        }
+    }
+
+    @Override
+    public SocketAddress getSocketAddress() {
+        try {
+            return UnixSockets.address(path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getBoundAddress() {
+        return location.getScheme() + "://" + path.getAbsolutePath();
+    }
+
+    @Override
+    public String getConnectAddress() {
+        return getBoundAddress();
+    }
+
+    @Override
+    protected TcpTransport createTransport() {
+        return new UnixTransport();
+    }
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.transport.DefaultTransportListener;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.fusesource.hawtdispatch.Dispatch;
+
+/**
+ * Simulates all the clients of a broker reconnecting at once after a
+ * failover and measures how long it takes until all of them got accepted.
+ */
+public class ReconnectStormTest extends TestCase {
+
+    static final int CLIENTS = 1000;
+
+    /**
+     * Keeps the listening channels around so the test can check how the
+     * server bound them.
+     */
+    static class StormServer extends TcpTransportServer {
+        ServerSocketChannel[] bound;
+
+        StormServer(int acceptors, boolean reusePort) throws Exception {
+            super(new URI("tcp://127.0.0.1:0"));
+            setBacklog(CLIENTS);
+            setAcceptors(acceptors);
+            setReuse_port(reusePort);
+        }
+
+        @Override
+        protected void bind(ServerSocketChannel[] channels) throws IOException {
+            super.bind(channels);
+            bound = channels;
+        }
+    }
+
+    public void testSingleAcceptor() throws Exception {
+        StormServer server = new StormServer(1, false);
+        storm(server);
+        assertEquals(1, server.bound.length);
+    }
+
+    public void testMultipleAcceptors() throws Exception {
+        StormServer server = new StormServer(4, false);
+        storm(server);
+        // all the acceptors share the one listening channel.
+        assertEquals(1, server.bound.length);
+    }
+
+    public void testMultipleAcceptorsWithReusePort() throws Exception {
+        if( !isReusePortSupported() ) {
+            System.out.println("Skipping, SO_REUSEPORT is not supported by this JVM.");
+            return;
+        }
+        StormServer server = new StormServer(4, true);
+        storm(server);
+        // every acceptor got its own listening channel on the same port.
+        assertEquals(4, server.bound.length);
+        for (ServerSocketChannel channel : server.bound) {
+            assertEquals(server.bound[0].socket().getLocalPort(), channel.socket().getLocalPort());
+        }
+    }
+
+    private void storm(StormServer server) throws Exception {
+        final ConcurrentLinkedQueue<Transport> accepted = new ConcurrentLinkedQueue<Transport>();
+        final CountDownLatch acceptLatch = new CountDownLatch(CLIENTS);
+        final CountDownLatch connectLatch = new CountDownLatch(CLIENTS);
+        final AtomicInteger errors = new AtomicInteger();
+        server.setDispatchQueue(Dispatch.createQueue("reconnect storm"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+                accepted.add(transport);
+                transport.setDispatchQueue(Dispatch.createQueue("accepted"));
+                // only count it once it's connected, a stop before that
+                // would not complete.
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportConnected() {
+                        acceptLatch.countDown();
+                    }
+                    public void onTransportFailure(IOException error) {
+                        errors.incrementAndGet();
+                    }
+                });
+                try {
+                    transport.start();
+                } catch (Exception e) {
+                    onAcceptError(e);
+                }
+            }
+            public void onAcceptError(Exception error) {
+                errors.incrementAndGet();
+            }
+        });
+        server.start();
+
+        String uri = "tcp://127.0.0.1:" + ((InetSocketAddress) server.getSocketAddress()).getPort();
+        ArrayList<Transport> clients = new ArrayList<Transport>(CLIENTS);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < CLIENTS; i++) {
+                Transport client = new TcpTransportFactory().connect(uri);
+                clients.add(client);
+                client.setDispatchQueue(Dispatch.createQueue("client " + i));
+                client.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportConnected() {
+                        connectLatch.countDown();
+                    }
+                    public void onTransportFailure(IOException error) {
+                        errors.incrementAndGet();
+                    }
+                });
+                client.start();
+            }
+
+            assertTrue("Not all the clients got connected", connectLatch.await(30, TimeUnit.SECONDS));
+            assertTrue("Not all the clients got accepted", acceptLatch.await(30, TimeUnit.SECONDS));
+            long duration = System.nanoTime() - start;
+            System.out.println(String.format("acceptors: %d, reuse_port: %s, %d clients accepted in %.2f ms",
+                    server.getAcceptors(), server.isReuse_port(), CLIENTS, duration / 1000000.0));
+
+            // every connect got accepted exactly once.
+            assertEquals(CLIENTS, accepted.size());
+            assertEquals(0, errors.get());
+        } finally {
+            stop(accepted);
+            stop(clients);
+            final CountDownLatch stopped = new CountDownLatch(1);
+            server.stop(new Runnable() {
+                public void run() {
+                    stopped.countDown();
+                }
+            });
+            assertTrue("The server did not stop", stopped.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private void stop(Collection<Transport> transports) throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(transports.size());
+        for (Transport transport : transports) {
+            transport.stop(new Runnable() {
+                public void run() {
+                    stopped.countDown();
+                }
+            });
+        }
+        assertTrue("Not all the transports stopped", stopped.await(30, TimeUnit.SECONDS));
+    }
+
+    private static boolean isReusePortSupported() {
+        try {
+            Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT");
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.tcp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.fusesource.hawtdispatch.Dispatch;
+
+/**
+ * Benchmarks the round trip latency of a unix domain socket connection
+ * against a tcp connection to localhost.
+ */
+public class UnixTransportTest extends TestCase {
+
+    static final int WARMUP = 10000;
+    static final int ROUND_TRIPS = 50000;
+    static final int MESSAGE_SIZE = 64;
+
+    public void testLatency() throws Exception {
+        if( !UnixSockets.isSupported() ) {
+            System.out.println("Skipping, unix domain sockets are not supported by this JVM.");
+            return;
+        }
+        File socket = new File(System.getProperty("java.io.tmpdir"), "apollo-test-" + System.nanoTime() + ".sock");
+        double tcp = benchmark(new TcpTransportFactory(), "tcp://127.0.0.1:0");
+        double unix = benchmark(new UnixTransportFactory(), "unix://" + socket.getAbsolutePath());
+        System.out.println(String.format("round trip latency, tcp: %.2f us, unix: %.2f us", tcp, unix));
+        assertFalse("The socket file should get removed when the server stops", socket.exists());
+    }
+
+    private double benchmark(TcpTransportFactory factory, String uri) throws Exception {
+        final AtomicReference<Transport> accepted = new AtomicReference<Transport>();
+        final CountDownLatch acceptLatch = new CountDownLatch(1);
+        TransportServer server = factory.bind(uri);
+        server.setDispatchQueue(Dispatch.createQueue("server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+                accepted.set(transport);
+                acceptLatch.countDown();
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+        try {
+            SocketChannel client;
+            if( factory instanceof UnixTransportFactory ) {
+                client = UnixSockets.open();
+                client.connect(server.getSocketAddress());
+            } else {
+                client = SocketChannel.open(new InetSocketAddress("127.0.0.1", ((InetSocketAddress) server.getSocketAddress()).getPort()));
+                client.socket().setTcpNoDelay(true);
+            }
+            assertTrue(acceptLatch.await(5, TimeUnit.SECONDS));
+
+            // echo back whatever the client sends.
+            final SocketChannel echo = ((TcpTransport) accepted.get()).getSocketChannel();
+            echo.configureBlocking(true);
+            Thread echoThread = new Thread("echo") {
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+                    try {
+                        while( true ) {
+                            buffer.clear();
+                            while( buffer.hasRemaining() ) {
+                                if( echo.read(buffer) < 0 ) {
+                                    return;
+                                }
+                            }
+                            buffer.flip();
+                            while( buffer.hasRemaining() ) {
+                                echo.write(buffer);
+                            }
+                        }
+                    } catch (Exception e) {
+                    }
+                }
+            };
+            echoThread.start();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+            for (int i = 0; i < WARMUP; i++) {
+                roundTrip(client, buffer);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                roundTrip(client, buffer);
+            }
+            double latency = (System.nanoTime() - start) / 1000.0 / ROUND_TRIPS;
+
+            client.close();
+            echoThread.join(5000);
+            echo.close();
+            return latency;
+        } finally {
+            stop(server);
+        }
+    }
+
+    public void testStaleSocketFileGetsReplaced() throws Exception {
+        if( !UnixSockets.isSupported() ) {
+            return;
+        }
+        File socket = socketFile();
+        // a closed server channel leaves its socket file behind.
+        ServerSocketChannel stale = UnixSockets.openServer();
+        UnixSockets.bind(stale, socket, 1);
+        stale.close();
+        assertTrue(socket.exists());
+
+        TransportServer server = start(socket);
+        try {
+            assertConnects(server);
+        } finally {
+            stop(server);
+        }
+        assertFalse(socket.exists());
+    }
+
+    public void testBindFailsWhileAnotherServerIsListening() throws Exception {
+        if( !UnixSockets.isSupported() ) {
+            return;
+        }
+        File socket = socketFile();
+        TransportServer server = start(socket);
+        try {
+            try {
+                start(socket);
+                fail("Expected the bind to fail");
+            } catch (IOException expected) {
+            }
+            // the running server keeps its socket.
+            assertTrue(socket.exists());
+            assertConnects(server);
+        } finally {
+            stop(server);
+        }
+    }
+
+    public void testBindDoesNotDeleteRegularFiles() throws Exception {
+        if( !UnixSockets.isSupported() ) {
+            return;
+        }
+        File file = socketFile();
+        assertTrue(file.createNewFile());
+        try {
+            try {
+                start(file);
+                fail("Expected the bind to fail");
+            } catch (IOException expected) {
+            }
+            assertTrue(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private File socketFile() {
+        return new File(System.getProperty("java.io.tmpdir"), "apollo-test-" + System.nanoTime() + ".sock");
+    }
+
+    private TransportServer start(File socket) throws Exception {
+        TransportServer server = new UnixTransportFactory().bind("unix://" + socket.getAbsolutePath());
+        server.setDispatchQueue(Dispatch.createQueue("server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(Transport transport) {
+            }
+            public void onAcceptError(Exception error) {
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void assertConnects(TransportServer server) throws Exception {
+        SocketChannel client = UnixSockets.open();
+        try {
+            client.connect(server.getSocketAddress());
+            assertTrue(client.isConnected());
+        } finally {
+            client.close();
+        }
+    }
+
+    private void stop(TransportServer server) throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        server.stop(new Runnable() {
+            public void run() {
+                stopped.countDown();
+            }
+        });
+        stopped.await(5, TimeUnit.SECONDS);
+    }
+
+    private void roundTrip(SocketChannel client, ByteBuffer buffer) throws Exception {
+        buffer.clear();
+        while( buffer.hasRemaining() ) {
+            client.write(buffer);
+        }
+        buffer.clear();
+        while( buffer.hasRemaining() ) {
+            if( client.read(buffer) < 0 ) {
+                throw new AssertionError("echo closed the connection");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A pool of byte buffers shared by the transports of a connector.  Transports
+ * and codecs borrow buffers only while data is in flight and hand them back
+ * once they go idle, so idle connections don't hold on to large buffers.
+ * </p>
+ *
+ * <p>
+ * Buffers are pooled in power of two size classes.  Requests larger than
+ * the biggest size class get a buffer which is not pooled.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE_CLASS = 10; // 1k
+    public static final int MAX_SIZE_CLASS = 20; // 1M
+
+    private final boolean direct;
+    private final long maxPooledSize;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] pools;
+
+    private final AtomicLong pooledSize = new AtomicLong();
+    private final AtomicLong borrowedCount = new AtomicLong();
+    private final AtomicLong borrowedSize = new AtomicLong();
+    private final AtomicLong allocatedCount = new AtomicLong();
+
+    /**
+     * @param direct should direct buffers be pooled instead of heap buffers?
+     * @param maxPooledSize the max number of bytes kept in the pool while not borrowed.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct, long maxPooledSize) {
+        this.direct = direct;
+        this.maxPooledSize = maxPooledSize;
+        this.pools = new ConcurrentLinkedQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return a cleared buffer with a capacity of at least size bytes.
+     */
+    public ByteBuffer borrow(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer rc = null;
+        if( sizeClass <= MAX_SIZE_CLASS ) {
+            rc = pools[sizeClass - MIN_SIZE_CLASS].poll();
+            if( rc!=null ) {
+                pooledSize.addAndGet(-rc.capacity());
+                rc.clear();
+            } else {
+                rc = allocate(1 << sizeClass);
+            }
+        } else {
+            rc = allocate(size);
+        }
+        borrowedCount.incrementAndGet();
+        borrowedSize.addAndGet(rc.capacity());
+        return rc;
+    }
+
+    /**
+     * Hands back a buffer which was borrowed from this pool.  It must not be
+     * used after it has been released.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        borrowedCount.decrementAndGet();
+        borrowedSize.addAndGet(-capacity);
+
+        int sizeClass = sizeClass(capacity);
+        if( sizeClass > MAX_SIZE_CLASS || (1 << sizeClass) != capacity ) {
+            return; // not a pooled size.
+        }
+        if( pooledSize.addAndGet(capacity) > maxPooledSize ) {
+            pooledSize.addAndGet(-capacity);
+            return; // let the GC have it.
+        }
+        pools[sizeClass - MIN_SIZE_CLASS].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int size) {
+        allocatedCount.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int sizeClass(int size) {
+        if( size <= (1 << MIN_SIZE_CLASS) ) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * @return the number of bytes held by the pool which are not borrowed.
+     */
+    public long getPooledSize() {
+        return pooledSize.get();
+    }
+
+    /**
+     * @return the number of buffers currently borrowed.
+     */
+    public long getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    /**
+     * @return the number of bytes currently borrowed.
+     */
+    public long getBorrowedSize() {
+        return borrowedSize.get();
+    }
+
+    /**
+     * @return the number of buffers the pool had to allocate.
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import org.apache.activemq.apollo.util.JavaBaseService;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * <p>
+ * Base class for the transports which move commands through a
+ * {@link ProtocolCodec} over a non-blocking channel.  It offers the commands
+ * to the codec and drains it in both directions, subclasses only have to
+ * say how they get notified once the channel is ready again.
+ * </p>
+ *
+ * <p>
+ * All the drain methods have to be called from the dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public abstract class CodecTransportSupport extends JavaBaseService implements Transport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CodecTransportSupport.class);
+
+    protected TransportListener listener;
+    protected volatile ProtocolCodec codec;
+    protected DispatchQueue dispatchQueue;
+
+    // only accessed from the dispatch queue.
+    protected boolean drained = true;
+
+    /**
+     * Starts the write notifications, there is data to flush.
+     */
+    protected abstract void resumeWrite();
+
+    /**
+     * Stops the write notifications, everything got flushed.
+     */
+    protected abstract void suspendWrite();
+
+    /**
+     * Called when a flush could not write everything.  Transports which only
+     * get notified once per request have to ask to be notified again.
+     */
+    protected void rearmWrite() {
+    }
+
+    /**
+     * @return true if {@link #suspendRead()} stopped the reads.
+     */
+    protected abstract boolean isReadSuspended();
+
+    /**
+     * Called when the codec has no more commands to read for now.
+     */
+    protected void onReadDrained() throws IOException {
+    }
+
+    /**
+     * Called when the drain stopped reading to give other connections a
+     * chance, so the remaining data has to get drained later.
+     */
+    protected abstract void onReadYield();
+
+    /**
+     * Flushes anything the transport buffers after the codec.
+     *
+     * @return true if everything got written.
+     */
+    protected boolean flush() throws IOException {
+        return true;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener listener) {
+        this.listener = listener;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return codec;
+    }
+
+    public boolean full() {
+        return codec==null || codec.full();
+    }
+
+    public boolean offer(Object command) {
+        assert Dispatch.getCurrentQueue() == dispatchQueue;
+        try {
+            if( !isConnected() ) {
+                throw new IOException("Not connected.");
+            }
+            if( getServiceState() != STARTED ) {
+                throw new IOException("Not running.");
+            }
+            switch( codec.write(command) ) {
+                case FULL:
+                    return false;
+                default:
+                    if( drained ) {
+                        drained = false;
+                        resumeWrite();
+                    }
+                    return true;
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+            return false;
+        }
+    }
+
+    protected void drainOutbound() {
+        assert Dispatch.getCurrentQueue() == dispatchQueue;
+        if( getServiceState() != STARTED || !isConnected() ) {
+            return;
+        }
+        try {
+            if( codec.flush() == ProtocolCodec.BufferState.EMPTY && flush() ) {
+                if( !drained ) {
+                    drained = true;
+                    suspendWrite();
+                    listener.onRefill();
+                }
+            } else {
+                rearmWrite();
+            }
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    protected void drainInbound() {
+        if( getServiceState() != STARTED || !isConnected() || isReadSuspended() ) {
+            return;
+        }
+        try {
+            long initial = codec.getReadCounter();
+            // Only process upto 2 x the read buffer worth of data at a time so we can give
+            // other connections a chance to process their requests.
+            while( codec.getReadCounter()-initial < codec.getReadBufferSize()<<2 ) {
+                Object command = codec.read();
+                if ( command!=null ) {
+                    try {
+                        listener.onTransportCommand(command);
+                    } catch (Throwable e) {
+                        LOG.warn("Transport listener failure.", e);
+                        onTransportFailure(new IOException("Transport listener failure."));
+                    }
+
+                    // the transport may be suspended after processing a command.
+                    if( getServiceState() == STOPPED || isReadSuspended() ) {
+                        return;
+                    }
+                } else {
+                    onReadDrained();
+                    return;
+                }
+            }
+            onReadYield();
+        } catch (IOException e) {
+            onTransportFailure(e);
+        }
+    }
+
+    public void onTransportFailure(IOException error) {
+        listener.onTransportFailure(error);
+    }
+
+    public <T> T narrow(Class<T> target) {
+        if (target.isAssignableFrom(getClass())) {
+            return target.cast(this);
+        }
+        return null;
+    }
+
+    public boolean isFaultTolerant() {
+        return false;
+    }
+
+    public void reconnect(URI uri) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+
+/**
+ * <p>
+ * Stages the data a {@link ProtocolCodec} is going to write as a list of
+ * buffer segments.  Small pieces like frame headers get encoded into a
+ * staging buffer while large buffers like message bodies are queued by
+ * reference, so they get written to the channel with a gathering write
+ * instead of being copied.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class GatheringWriteBuffer {
+
+    private int copyThreshold;
+
+    private DataByteArrayOutputStream staging;
+    private int mark;
+    private int referencedSize;
+    private final ArrayList<Buffer> segments = new ArrayList<Buffer>();
+
+    /**
+     * @param stagingSize the initial size of the staging buffer.
+     * @param copyThreshold buffers smaller than this are copied into the staging buffer.
+     */
+    public GatheringWriteBuffer(int stagingSize, int copyThreshold) {
+        this.copyThreshold = copyThreshold;
+        this.staging = new DataByteArrayOutputStream(stagingSize);
+    }
+
+    public int getCopyThreshold() {
+        return copyThreshold;
+    }
+
+    public void setCopyThreshold(int copyThreshold) {
+        this.copyThreshold = copyThreshold;
+    }
+
+    /**
+     * @return the stream small writes should get encoded into.
+     */
+    public DataByteArrayOutputStream staging() {
+        return staging;
+    }
+
+    /**
+     * Appends a buffer.  It's copied into the staging buffer when it's
+     * small, otherwise it's queued by reference so it must not be modified
+     * until it has been written.
+     */
+    public void append(Buffer buffer) throws IOException {
+        if( buffer.length < copyThreshold ) {
+            staging.write(buffer.data, buffer.offset, buffer.length);
+        } else {
+            cut();
+            segments.add(buffer);
+            referencedSize += buffer.length;
+        }
+    }
+
+    private void cut() {
+        int size = staging.size();
+        if( size > mark ) {
+            segments.add(new Buffer(staging.getData(), mark, size - mark));
+            mark = size;
+        }
+    }
+
+    /**
+     * @return the number of bytes appended so far.
+     */
+    public int size() {
+        return staging.size() + referencedSize;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Hands over everything that was appended as byte buffers ready for
+     * a gathering write and resets this buffer.
+     *
+     * @param maxStagingSize the largest initial size of the next staging buffer.
+     */
+    public ByteBuffer[] drain(int maxStagingSize) {
+        cut();
+        ByteBuffer[] rc = new ByteBuffer[segments.size()];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = segments.get(i).toByteBuffer();
+        }
+        // size of next buffer is based on how much was used in the previous buffer.
+        int nextSize = Math.min(Math.max(staging.size() + 512, 512), maxStagingSize);
+        staging = new DataByteArrayOutputStream(nextSize);
+        segments.clear();
+        mark = 0;
+        referencedSize = 0;
+        return rc;
+    }
+
+    /**
+     * Writes as much of the buffers starting at the given offset as the
+     * channel accepts.  Uses a gathering write when the channel supports it.
+     *
+     * @return the number of bytes written.
+     */
+    public static long write(WritableByteChannel channel, ByteBuffer[] buffers, int offset) throws IOException {
+        if( channel instanceof GatheringByteChannel ) {
+            return ((GatheringByteChannel) channel).write(buffers, offset, buffers.length - offset);
+        } else {
+            long rc = 0;
+            for (int i = offset; i < buffers.length; i++) {
+                ByteBuffer buffer = buffers[i];
+                rc += channel.write(buffer);
+                if( buffer.remaining() != 0 ) {
+                    break;
+                }
+            }
+            return rc;
+        }
+    }
+
+    /**
+     * @return the index of the first buffer starting at offset that still has
+     *         data remaining, or buffers.length if they have all been written.
+     */
+    public static int skipWritten(ByteBuffer[] buffers, int offset) {
+        while( offset < buffers.length && buffers[offset].remaining() == 0 ) {
+            offset++;
+        }
+        return offset;
+    }
+
+}
@@ -25,6 +25,8 @@ import org.fusesource.hawtbuf.Buffer;
 
 /**
  * Interface to encode and decode commands in and out of a a non blocking channel.
+ * Codecs can stage their writes in a {@link GatheringWriteBuffer} so large
+ * buffers get flushed with gathering writes instead of being copied.
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -63,7 +65,8 @@ public interface ProtocolCodec {
     void unread(Buffer buffer);
 
     /**
-     * @return The number of bytes received.
+     * @return The number of bytes received.  Heart beat monitors call this
+     *         from other threads, so it must be safe to read from any thread.
      */
     public long getReadCounter();
 
@@ -112,7 +115,8 @@ public interface ProtocolCodec {
     boolean full();
 
     /**
-     * @return The number of bytes written.
+     * @return The number of bytes written.  Like the read counter, this
+     *         may be called from any thread.
      */
     public long getWriteCounter();
 
@@ -48,9 +48,9 @@ public class PipeTransport implements Transport {
     private CustomDispatchSource<Object,LinkedList<Object>> dispatchSource;
     private boolean connected;
 
-    private long writeCounter = 0;
-    private long readCounter = 0;
-    private ProtocolCodec protocolCodec;
+    private volatile long writeCounter = 0;
+    private volatile long readCounter = 0;
+    private volatile ProtocolCodec protocolCodec;
 
     public PipeTransport(PipeTransportServer server) {
         this.server = server;
@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>
+ * A connection between two processes made of a pair of {@link ShmRing}s
+ * in one memory mapped file.  The client creates the file in the server's
+ * directory and the server picks it up from there.
+ * </p>
+ *
+ * <p>
+ * The file starts with a header holding the ring capacity and the
+ * connection state flags, followed by the client to server ring and then
+ * the server to client ring.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmConnection {
+
+    public static final String SUFFIX = ".shm";
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    static final int MAGIC = 0x41534D31;
+    static final int HEADER_SIZE = 128;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int ACCEPTED_OFFSET = 64;
+    private static final int CLIENT_CLOSED_OFFSET = 68;
+    private static final int SERVER_CLOSED_OFFSET = 72;
+
+    private final File file;
+    private final boolean client;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer flags;
+    private final ShmRing inbound;
+    private final ShmRing outbound;
+    private boolean closed;
+
+    // orders the flag accesses the same way ShmRing orders its positions,
+    // which relies on HotSpot and x86 behaviour.
+    private volatile int fence;
+
+    private ShmConnection(File file, boolean client, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.client = client;
+        this.buffer = buffer;
+        this.flags = buffer.duplicate().order(ByteOrder.nativeOrder());
+        int capacity = buffer.getInt(CAPACITY_OFFSET);
+        if( buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.capacity() != fileSize(capacity) ) {
+            throw new IOException("Not a valid shared memory connection file: " + file);
+        }
+        ShmRing toServer = new ShmRing(region(HEADER_SIZE, capacity));
+        ShmRing toClient = new ShmRing(region(HEADER_SIZE + ShmRing.HEADER_SIZE + capacity, capacity));
+        this.inbound = client ? toClient : toServer;
+        this.outbound = client ? toServer : toClient;
+    }
+
+    private ByteBuffer region(int offset, int capacity) {
+        ByteBuffer rc = buffer.duplicate();
+        rc.position(offset);
+        rc.limit(offset + ShmRing.HEADER_SIZE + capacity);
+        return rc.slice();
+    }
+
+    private static int fileSize(int capacity) {
+        return HEADER_SIZE + 2 * (ShmRing.HEADER_SIZE + capacity);
+    }
+
+    /**
+     * Creates a new connection file in the server's directory.  The file
+     * only shows up under its final name once it has been initialized.
+     *
+     * @param capacity the size of each ring, gets rounded up to a power of 2.
+     */
+    public static ShmConnection create(File directory, int capacity) throws IOException {
+        int size = 4 * 1024;
+        while( size < capacity ) {
+            size <<= 1;
+        }
+        File tmp = File.createTempFile("connection-", ".tmp", directory);
+        MappedByteBuffer buffer = map(tmp, fileSize(size));
+        buffer.putInt(CAPACITY_OFFSET, size);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+
+        String name = tmp.getName();
+        File file = new File(directory, name.substring(0, name.length() - ".tmp".length()) + SUFFIX);
+        if( !tmp.renameTo(file) ) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        return new ShmConnection(file, true, buffer);
+    }
+
+    /**
+     * Opens a connection file a client created.
+     */
+    public static ShmConnection open(File file) throws IOException {
+        return new ShmConnection(file, false, map(file, -1));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if( size >= 0 ) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isClient() {
+        return client;
+    }
+
+    public ShmRing getInbound() {
+        return inbound;
+    }
+
+    public ShmRing getOutbound() {
+        return outbound;
+    }
+
+    public boolean isAccepted() {
+        return flag(ACCEPTED_OFFSET);
+    }
+
+    /**
+     * Called by the server to let the client know it picked up the connection.
+     */
+    public void accept() {
+        setFlag(ACCEPTED_OFFSET);
+    }
+
+    public boolean isPeerClosed() {
+        return flag(client ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Lets the peer know this side is gone.  The file gets deleted by the
+     * side which closes last.
+     */
+    public void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        setFlag(client ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET);
+        if( isPeerClosed() ) {
+            file.delete();
+        }
+    }
+
+    private boolean flag(int offset) {
+        boolean rc = flags.getInt(offset) != 0;
+        int ignore = fence;
+        return rc;
+    }
+
+    private void setFlag(int offset) {
+        fence = 0;
+        flags.putInt(offset, 1);
+        fence = 0;
+    }
+
+    /**
+     * @return a non-blocking channel which reads from the inbound ring.
+     */
+    public ReadableByteChannel readChannel() {
+        return new ReadableByteChannel() {
+            public int read(ByteBuffer dst) throws IOException {
+                if( closed ) {
+                    throw new ClosedChannelException();
+                }
+                int rc = inbound.read(dst);
+                if( rc == 0 && dst.hasRemaining() && isPeerClosed() && inbound.available() == 0 ) {
+                    return -1;
+                }
+                return rc;
+            }
+            public boolean isOpen() {
+                return !closed;
+            }
+            public void close() throws IOException {
+                ShmConnection.this.close();
+            }
+        };
+    }
+
+    /**
+     * @return a non-blocking channel which writes to the outbound ring.
+     */
+    public WritableByteChannel writeChannel() {
+        return new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException {
+                if( closed ) {
+                    throw new ClosedChannelException();
+                }
+                if( isPeerClosed() ) {
+                    throw new IOException("Peer disconnected");
+                }
+                return outbound.write(src);
+            }
+            public boolean isOpen() {
+                return !closed;
+            }
+            public void close() throws IOException {
+                ShmConnection.this.close();
+            }
+        };
+    }
+
+    public String toString() {
+        return file.getPath();
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * The thread which watches the rings of all the shared memory transports
+ * of a JVM.  The peer is in another process so there is nothing it can
+ * signal us with, instead the poller spins over the rings for a while
+ * after it last found work, then yields, and then parks for exponentially
+ * longer periods up to maxPark nanoseconds.
+ * </p>
+ *
+ * <p>
+ * Lower spin counts and a higher maxPark trade latency after idle periods
+ * for less CPU burned while idle.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmPoller implements Runnable {
+
+    /**
+     * Something the poller checks for work.
+     */
+    public interface Pollable {
+        /**
+         * @return true if work was found.
+         */
+        boolean poll();
+    }
+
+    private static ShmPoller shared;
+
+    /**
+     * @return the poller shared by all the transports of the JVM.
+     */
+    public static synchronized ShmPoller shared() {
+        if( shared == null ) {
+            shared = new ShmPoller();
+        }
+        return shared;
+    }
+
+    private final CopyOnWriteArrayList<Pollable> pollables = new CopyOnWriteArrayList<Pollable>();
+    // spinning only starves the peer when there is a single cpu.
+    private volatile int spins = Runtime.getRuntime().availableProcessors() > 1 ? 100000 : 0;
+    private volatile int yields = 100;
+    private volatile long maxPark = 1000000;
+    private volatile boolean woken;
+    private volatile Thread thread;
+
+    public synchronized void register(Pollable pollable) {
+        pollables.add(pollable);
+        if( thread == null ) {
+            thread = new Thread(this, "shared memory transport poller");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        wakeup();
+    }
+
+    public void unregister(Pollable pollable) {
+        pollables.remove(pollable);
+    }
+
+    /**
+     * Gets the poller spinning again, used when a reply is likely to show up soon.
+     */
+    public void wakeup() {
+        if( !woken ) {
+            woken = true;
+            Thread t = thread;
+            if( t != null ) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    public void run() {
+        int idle = 0;
+        long park = 1000;
+        while( true ) {
+            boolean work = false;
+            for (Pollable pollable : pollables) {
+                work |= pollable.poll();
+            }
+            if( work || woken ) {
+                woken = false;
+                idle = 0;
+                park = 1000;
+            } else if( idle < spins ) {
+                idle++;
+            } else if( idle < spins + yields ) {
+                idle++;
+                Thread.yield();
+            } else if( pollables.isEmpty() ) {
+                LockSupport.park();
+            } else {
+                LockSupport.parkNanos(park);
+                park = Math.min(park << 1, maxPark);
+            }
+        }
+    }
+
+    public int getSpins() {
+        return spins;
+    }
+
+    public void setSpins(int spins) {
+        this.spins = spins;
+    }
+
+    public int getYields() {
+        return yields;
+    }
+
+    public void setYields(int yields) {
+        this.yields = yields;
+    }
+
+    public long getMaxPark() {
+        return maxPark;
+    }
+
+    public void setMaxPark(long maxPark) {
+        this.maxPark = maxPark;
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * A single producer, single consumer ring buffer of bytes which lives in a
+ * region of a memory mapped file so that the producer and the consumer can
+ * be in different processes.
+ * </p>
+ *
+ * <p>
+ * The region starts with the write and read positions, each on their own
+ * cache line, followed by the data.  The positions only ever grow, the
+ * producer publishes the bytes it wrote by advancing the write position
+ * and the consumer frees up space by advancing the read position.
+ * </p>
+ *
+ * <p>
+ * The positions are accessed through a view of the header with plain
+ * reads and writes, which the Java memory model does not order against the
+ * data.  A position update is preceded by a volatile write and a position
+ * read is followed by a volatile read.  That only orders them because
+ * HotSpot emits those volatile accesses as compiler and CPU barriers and
+ * because x86 does not reorder stores with stores or loads with loads.
+ * Other JVMs or weaker CPUs may need real release and acquire accesses.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmRing {
+
+    public static final int HEADER_SIZE = 128;
+    private static final int WRITE_POSITION = 0;
+    private static final int READ_POSITION = 64;
+
+    private final ByteBuffer header;
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+
+    // the last seen position of the other side, saves touching its cache line.
+    // Only used by the producer or consumer, never by a poller.
+    private long cachedWritePosition;
+    private long cachedReadPosition;
+
+    // only there to order the position accesses on HotSpot, see the class comment.
+    private volatile int fence;
+
+    /**
+     * @param region a direct buffer holding the header and the data of the ring.
+     */
+    public ShmRing(ByteBuffer region) throws IOException {
+        if( !region.isDirect() ) {
+            throw new IOException("The ring must live in a direct buffer");
+        }
+        this.capacity = region.capacity() - HEADER_SIZE;
+        if( capacity <= 0 || (capacity & (capacity - 1)) != 0 ) {
+            throw new IOException("The ring capacity must be a power of 2: " + capacity);
+        }
+        this.mask = capacity - 1;
+        region.position(0);
+        region.limit(HEADER_SIZE);
+        this.header = region.slice().order(ByteOrder.nativeOrder());
+        region.limit(region.capacity());
+        region.position(HEADER_SIZE);
+        this.data = region.slice();
+        cachedWritePosition = load(WRITE_POSITION);
+        cachedReadPosition = load(READ_POSITION);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes the consumer can read.
+     */
+    public int available() {
+        return (int) (load(WRITE_POSITION) - load(READ_POSITION));
+    }
+
+    /**
+     * @return true if the producer has space to write into.
+     */
+    public boolean writable() {
+        return available() < capacity;
+    }
+
+    /**
+     * Copies as much of src into the ring as fits.  Only called by the producer.
+     *
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer src) {
+        long write = load(WRITE_POSITION);
+        int free = (int) (capacity - (write - cachedReadPosition));
+        if( free < src.remaining() ) {
+            cachedReadPosition = load(READ_POSITION);
+            free = (int) (capacity - (write - cachedReadPosition));
+        }
+        int count = Math.min(free, src.remaining());
+        if( count == 0 ) {
+            return 0;
+        }
+        int offset = (int) (write & mask);
+        int first = Math.min(count, capacity - offset);
+        copyIn(src, offset, first);
+        if( first < count ) {
+            copyIn(src, 0, count - first);
+        }
+        // publishes the data to the consumer.
+        store(WRITE_POSITION, write + count);
+        return count;
+    }
+
+    /**
+     * Copies as many bytes as are available and fit into dst.  Only called by the consumer.
+     *
+     * @return the number of bytes read.
+     */
+    public int read(ByteBuffer dst) {
+        long read = load(READ_POSITION);
+        int available = (int) (cachedWritePosition - read);
+        if( available < dst.remaining() ) {
+            cachedWritePosition = load(WRITE_POSITION);
+            available = (int) (cachedWritePosition - read);
+        }
+        int count = Math.min(available, dst.remaining());
+        if( count == 0 ) {
+            return 0;
+        }
+        int offset = (int) (read & mask);
+        int first = Math.min(count, capacity - offset);
+        copyOut(dst, offset, first);
+        if( first < count ) {
+            copyOut(dst, 0, count - first);
+        }
+        // hands the space back to the producer.
+        store(READ_POSITION, read + count);
+        return count;
+    }
+
+    private long load(int position) {
+        long rc = header.getLong(position);
+        // keeps the data reads which follow after the position read.
+        int ignore = fence;
+        return rc;
+    }
+
+    private void store(int position, long value) {
+        // keeps the data accesses before the position update.
+        fence = 0;
+        header.putLong(position, value);
+    }
+
+    private void copyIn(ByteBuffer src, int offset, int length) {
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        data.clear();
+        data.position(offset);
+        data.put(src);
+        src.limit(limit);
+    }
+
+    private void copyOut(ByteBuffer dst, int offset, int length) {
+        data.clear();
+        data.position(offset);
+        data.limit(offset + length);
+        dst.put(data);
+    }
+
+}
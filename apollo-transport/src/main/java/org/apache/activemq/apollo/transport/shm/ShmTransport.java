@@ -0,0 +1,256 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import org.apache.activemq.apollo.transport.CodecTransportSupport;
+import org.apache.activemq.apollo.transport.ProtocolCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * <p>
+ * A transport which exchanges data with a process on the same host through
+ * a {@link ShmConnection} so that frames don't have to go through the kernel.
+ * The protocol codec reads from and writes to the rings through the
+ * connection's channel adapters.
+ * </p>
+ *
+ * <p>
+ * A {@link ShmPoller} thread stands in for the selector: it watches the
+ * rings and dispatches the read and write handlers to the transport's
+ * dispatch queue once they are ready.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransport extends CodecTransportSupport implements ShmPoller.Pollable {
+
+    private final ShmConnection connection;
+    private final SocketAddress address;
+    private ShmPoller poller = ShmPoller.shared();
+
+    // set from the dispatch queue, cleared by the poller.
+    private volatile boolean connectArmed;
+    private volatile boolean readArmed;
+    private volatile boolean writeArmed;
+
+    // only accessed from the dispatch queue.
+    private boolean connected;
+    private boolean disposed;
+    private boolean readSuspended;
+    private boolean readScheduled;
+    private boolean writeScheduled;
+
+    public ShmTransport(final ShmConnection connection) {
+        this.connection = connection;
+        this.address = new ShmAddress(connection.toString());
+    }
+
+    /**
+     * Names the connection file for the local and remote addresses.
+     */
+    static final class ShmAddress extends SocketAddress {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        ShmAddress(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public ShmPoller getPoller() {
+        return poller;
+    }
+
+    public void setPoller(ShmPoller poller) {
+        this.poller = poller;
+    }
+
+    protected void _start(Runnable onCompleted) {
+        try {
+            if( connection.isAccepted() ) {
+                dispatchQueue.execute(CONNECTED_TASK);
+            } else {
+                connectArmed = true;
+            }
+            poller.register(this);
+        } finally {
+            if( onCompleted!=null ) {
+                onCompleted.run();
+            }
+        }
+    }
+
+    protected void _stop(Runnable onCompleted) {
+        poller.unregister(this);
+        connectArmed = false;
+        readArmed = false;
+        writeArmed = false;
+        if( connected ) {
+            connected = false;
+            listener.onTransportDisconnected();
+        }
+        connection.close();
+        disposed = true;
+        if( onCompleted!=null ) {
+            onCompleted.run();
+        }
+    }
+
+    /**
+     * Called from the poller thread.
+     */
+    public boolean poll() {
+        boolean rc = false;
+        if( connectArmed && connection.isAccepted() ) {
+            connectArmed = false;
+            dispatchQueue.execute(CONNECTED_TASK);
+            rc = true;
+        }
+        if( readArmed && (connection.getInbound().available() > 0 || connection.isPeerClosed()) ) {
+            readArmed = false;
+            dispatchQueue.execute(READ_TASK);
+            rc = true;
+        }
+        if( writeArmed && (connection.getOutbound().writable() || connection.isPeerClosed()) ) {
+            writeArmed = false;
+            dispatchQueue.execute(WRITE_TASK);
+            rc = true;
+        }
+        return rc;
+    }
+
+    private final Runnable CONNECTED_TASK = new Runnable() {
+        public void run() {
+            if( getServiceState() != STARTED ) {
+                return;
+            }
+            connected = true;
+            listener.onTransportConnected();
+            armRead();
+            drainInbound();
+        }
+    };
+
+    private final Runnable READ_TASK = new Runnable() {
+        public void run() {
+            readScheduled = false;
+            drainInbound();
+        }
+    };
+
+    private final Runnable WRITE_TASK = new Runnable() {
+        public void run() {
+            writeScheduled = false;
+            drainOutbound();
+        }
+    };
+
+    private void armRead() {
+        if( connected && !readSuspended && !readScheduled ) {
+            readScheduled = true;
+            readArmed = true;
+        }
+    }
+
+    protected void resumeWrite() {
+        // flush once the commands offered by the current task are in.
+        dispatchQueue.execute(WRITE_TASK);
+    }
+
+    protected void suspendWrite() {
+    }
+
+    protected void rearmWrite() {
+        if( connected && !writeScheduled ) {
+            writeScheduled = true;
+            writeArmed = true;
+        }
+    }
+
+    @Override
+    protected void drainOutbound() {
+        super.drainOutbound();
+        // the peer is likely to answer, so get the poller spinning.
+        poller.wakeup();
+    }
+
+    protected boolean isReadSuspended() {
+        return readSuspended;
+    }
+
+    protected void onReadDrained() throws IOException {
+        if( connection.isPeerClosed() && connection.getInbound().available() == 0 ) {
+            throw new EOFException("Peer disconnected");
+        }
+        armRead();
+    }
+
+    protected void onReadYield() {
+        armRead();
+    }
+
+    public void suspendRead() {
+        readSuspended = true;
+    }
+
+    public void resumeRead() {
+        readSuspended = false;
+        armRead();
+    }
+
+    public void setProtocolCodec(ProtocolCodec codec) {
+        this.codec = codec;
+        if( codec!=null ) {
+            codec.setReadableByteChannel(connection.readChannel());
+            codec.setWritableByteChannel(connection.writeChannel());
+        }
+    }
+
+    public ShmConnection getConnection() {
+        return connection;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return address;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    public String getTypeId() {
+        return "shm";
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.apache.activemq.apollo.transport.TransportFactorySupport.*;
+
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportFactory;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.apache.activemq.apollo.util.IntrospectionSupport;
+import org.apache.activemq.apollo.util.URISupport;
+
+/**
+ * Creates the shared memory transports for shm:///directory URIs.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransportFactory implements TransportFactory.Provider {
+
+    public TransportServer bind(String location) throws URISyntaxException, IOException {
+        if( !location.startsWith("shm:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+        ShmTransportServer server = new ShmTransportServer(uri, directory(uri));
+        IntrospectionSupport.setProperties(server, options);
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Invalid bind parameters: " + options);
+        }
+        return server;
+    }
+
+    public Transport connect(String location) throws IOException, URISyntaxException {
+        if( !location.startsWith("shm:") ) {
+            return null;
+        }
+
+        URI uri = new URI(location);
+        File directory = directory(uri);
+        if( !new File(directory, ShmTransportServer.SERVER_FILE).exists() ) {
+            throw new IOException("Server is not bound: " + location);
+        }
+        Map<String, String> options = new HashMap<String, String>(URISupport.parseParamters(uri));
+        String ring_size = options.remove("ring_size");
+        int capacity = ring_size!=null ? Integer.parseInt(ring_size) : ShmConnection.DEFAULT_CAPACITY;
+        ShmTransport transport = new ShmTransport(ShmConnection.create(directory, capacity));
+        return verify( configure(transport, options), options);
+    }
+
+    private static File directory(URI uri) throws IOException {
+        String path = uri.getPath();
+        if( path == null || path.length() == 0 ) {
+            throw new IOException("Expected a directory path in: " + uri);
+        }
+        return new File(path);
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+/**
+ * <p>
+ * Accepts shared memory connections.  Clients create their connection
+ * files in the server's directory which gets scanned every
+ * accept_interval milliseconds for new ones.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class ShmTransportServer implements TransportServer {
+
+    /**
+     * The file which tells clients that a server is bound to the directory.
+     * The server holds a lock on it for as long as it's bound.
+     */
+    public static final String SERVER_FILE = "server";
+
+    private final URI location;
+    private final File directory;
+    private TransportAcceptListener listener;
+    private DispatchQueue dispatchQueue;
+    private int accept_interval = 10;
+    private RandomAccessFile serverFile;
+    private FileLock lock;
+
+    // only accessed from the dispatch queue.
+    private boolean started;
+    private boolean suspended;
+    private HashSet<String> accepted = new HashSet<String>();
+
+    public ShmTransportServer(URI location, File directory) {
+        this.location = location;
+        this.directory = directory;
+    }
+
+    public void setAcceptListener(TransportAcceptListener listener) {
+        this.listener = listener;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public void start() throws Exception {
+        start(null);
+    }
+
+    public void start(Runnable onCompleted) throws Exception {
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Could not create the directory: " + directory);
+        }
+        lock();
+        // files left behind by a server which did not shut down cleanly,
+        // nobody else can be using them since we hold the lock.
+        for (File file : listFiles()) {
+            file.delete();
+        }
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                started = true;
+                scan();
+            }
+        });
+        if( onCompleted!=null ) {
+            dispatchQueue.execute(onCompleted);
+        }
+    }
+
+    public void stop() throws Exception {
+        stop(null);
+    }
+
+    public void stop(final Runnable onCompleted) throws Exception {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                started = false;
+                new File(directory, SERVER_FILE).delete();
+                unlock();
+                if( onCompleted!=null ) {
+                    onCompleted.run();
+                }
+            }
+        });
+    }
+
+    private void lock() throws IOException {
+        File file = new File(directory, SERVER_FILE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileLock rc = null;
+        try {
+            rc = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // another server of this JVM holds it.
+        } finally {
+            if( rc == null ) {
+                raf.close();
+            }
+        }
+        if( rc == null ) {
+            throw new IOException("Another server is bound to: " + directory);
+        }
+        serverFile = raf;
+        lock = rc;
+    }
+
+    private void unlock() {
+        if( lock != null ) {
+            try {
+                lock.release();
+                serverFile.close();
+            } catch (IOException ignore) {
+            }
+            lock = null;
+            serverFile = null;
+        }
+    }
+
+    public void suspend() {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                suspended = true;
+            }
+        });
+    }
+
+    public void resume() {
+        dispatchQueue.execute(new Runnable() {
+            public void run() {
+                suspended = false;
+            }
+        });
+    }
+
+    private File[] listFiles() {
+        File[] rc = directory.listFiles();
+        if( rc == null ) {
+            return new File[0];
+        }
+        HashSet<File> connections = new HashSet<File>();
+        for (File file : rc) {
+            String name = file.getName();
+            if( name.endsWith(ShmConnection.SUFFIX) || name.endsWith(".tmp") ) {
+                connections.add(file);
+            }
+        }
+        return connections.toArray(new File[connections.size()]);
+    }
+
+    private void scan() {
+        if( !started ) {
+            return;
+        }
+        if( !suspended ) {
+            HashSet<String> current = new HashSet<String>();
+            for (File file : listFiles()) {
+                String name = file.getName();
+                if( !name.endsWith(ShmConnection.SUFFIX) ) {
+                    continue;
+                }
+                current.add(name);
+                if( accepted.add(name) ) {
+                    try {
+                        ShmConnection connection = ShmConnection.open(file);
+                        connection.accept();
+                        listener.onAccept(new ShmTransport(connection));
+                    } catch (Exception e) {
+                        file.delete();
+                        listener.onAcceptError(e);
+                    }
+                }
+            }
+            // forget about the connections which got closed.
+            accepted.retainAll(current);
+        }
+        dispatchQueue.executeAfter(accept_interval, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run() {
+                scan();
+            }
+        });
+    }
+
+    public String getBoundAddress() {
+        return location.getScheme() + "://" + directory.getAbsolutePath();
+    }
+
+    public String getConnectAddress() {
+        return getBoundAddress();
+    }
+
+    public InetSocketAddress getSocketAddress() {
+        return null;
+    }
+
+    public int getAccept_interval() {
+        return accept_interval;
+    }
+
+    public void setAccept_interval(int accept_interval) {
+        this.accept_interval = accept_interval;
+    }
+
+    public String toString() {
+        return getBoundAddress();
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testBuffersAreRoundedUpToTheirSizeClass() {
+        BufferPool pool = new BufferPool(false, 1024 * 1024);
+        assertEquals(1024, pool.borrow(1).capacity());
+        assertEquals(1024, pool.borrow(1024).capacity());
+        assertEquals(2048, pool.borrow(1025).capacity());
+        assertEquals(64 * 1024, pool.borrow(64 * 1024).capacity());
+        assertEquals(1024 * 1024, pool.borrow(1024 * 1024).capacity());
+    }
+
+    public void testBuffersLargerThanTheBiggestSizeClassAreNotPooled() {
+        BufferPool pool = new BufferPool(false, 4 * 1024 * 1024);
+        ByteBuffer buffer = pool.borrow(1024 * 1024 + 1);
+        assertEquals(1024 * 1024 + 1, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(0, pool.getPooledSize());
+        assertNotSame(buffer, pool.borrow(1024 * 1024 + 1));
+    }
+
+    public void testReleasedBuffersGetReused() {
+        BufferPool pool = new BufferPool(false, 1024 * 1024);
+        ByteBuffer buffer = pool.borrow(4000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(4096, pool.getPooledSize());
+
+        ByteBuffer reused = pool.borrow(3000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(4096, reused.remaining());
+        assertEquals(0, pool.getPooledSize());
+        assertEquals(1, pool.getAllocatedCount());
+
+        // other size classes don't share buffers.
+        assertNotSame(buffer, pool.borrow(8192));
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    public void testBorrowedBuffersAreTracked() {
+        BufferPool pool = new BufferPool(false, 1024 * 1024);
+        ByteBuffer a = pool.borrow(1024);
+        ByteBuffer b = pool.borrow(2048);
+        assertEquals(2, pool.getBorrowedCount());
+        assertEquals(3072, pool.getBorrowedSize());
+
+        pool.release(a);
+        assertEquals(1, pool.getBorrowedCount());
+        assertEquals(2048, pool.getBorrowedSize());
+        pool.release(b);
+        assertEquals(0, pool.getBorrowedCount());
+        assertEquals(0, pool.getBorrowedSize());
+        assertEquals(3072, pool.getPooledSize());
+    }
+
+    public void testThePoolKeepsAtMostItsMaxPooledSize() {
+        BufferPool pool = new BufferPool(false, 2048);
+        ByteBuffer a = pool.borrow(1024);
+        ByteBuffer b = pool.borrow(1024);
+        ByteBuffer c = pool.borrow(1024);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2048, pool.getPooledSize());
+        assertEquals(0, pool.getBorrowedCount());
+
+        pool.borrow(1024);
+        pool.borrow(1024);
+        assertEquals(3, pool.getAllocatedCount());
+        pool.borrow(1024);
+        assertEquals(4, pool.getAllocatedCount());
+    }
+
+    public void testDirectPoolsHandOutDirectBuffers() {
+        BufferPool pool = new BufferPool(true, 1024 * 1024);
+        assertTrue(pool.isDirect());
+        assertTrue(pool.borrow(1024).isDirect());
+        assertFalse(new BufferPool(false, 1024 * 1024).borrow(1024).isDirect());
+    }
+
+}
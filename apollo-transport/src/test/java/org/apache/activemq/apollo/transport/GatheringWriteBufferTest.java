@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import junit.framework.TestCase;
+
+import org.fusesource.hawtbuf.Buffer;
+
+public class GatheringWriteBufferTest extends TestCase {
+
+    /**
+     * A channel which accepts at most limit bytes per write call.
+     */
+    static class SlowChannel implements WritableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int limit;
+
+        SlowChannel(int limit) {
+            this.limit = limit;
+        }
+
+        public int write(ByteBuffer src) {
+            int count = Math.min(limit, src.remaining());
+            byte[] data = new byte[count];
+            src.get(data);
+            written.write(data, 0, count);
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Like SlowChannel but also supports gathering writes.
+     */
+    static class SlowGatheringChannel extends SlowChannel implements GatheringByteChannel {
+        int gatheringWrites;
+
+        SlowGatheringChannel(int limit) {
+            super(limit);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            gatheringWrites++;
+            int budget = limit;
+            long rc = 0;
+            for (int i = offset; i < offset + length && budget > 0; i++) {
+                int saved = limit;
+                limit = budget;
+                int count = write(srcs[i]);
+                limit = saved;
+                budget -= count;
+                rc += count;
+            }
+            return rc;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+    }
+
+    static Buffer buffer(char c, int size) {
+        byte[] data = new byte[size];
+        java.util.Arrays.fill(data, (byte) c);
+        return new Buffer(data);
+    }
+
+    static String drainToString(ByteBuffer[] buffers) {
+        StringBuilder sb = new StringBuilder();
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                sb.append((char) buffer.get());
+            }
+        }
+        return sb.toString();
+    }
+
+    public void testSmallBuffersAreCopied() throws IOException {
+        GatheringWriteBuffer buffer = new GatheringWriteBuffer(64, 16);
+        buffer.staging().write("HEAD".getBytes());
+        buffer.append(buffer('a', 15));
+        buffer.staging().write("TAIL".getBytes());
+        assertEquals(23, buffer.size());
+
+        ByteBuffer[] buffers = buffer.drain(1024);
+        assertEquals(1, buffers.length);
+        assertEquals("HEAD" + buffer('a', 15).ascii() + "TAIL", drainToString(buffers));
+    }
+
+    public void testLargeBuffersAreReferenced() throws IOException {
+        GatheringWriteBuffer buffer = new GatheringWriteBuffer(64, 16);
+        Buffer body = buffer('b', 16);
+        buffer.staging().write("HEAD".getBytes());
+        buffer.append(body);
+        buffer.staging().write("TAIL".getBytes());
+        assertEquals(24, buffer.size());
+
+        ByteBuffer[] buffers = buffer.drain(1024);
+        assertEquals(3, buffers.length);
+        // the body was not copied.
+        assertSame(body.data, buffers[1].array());
+        assertEquals("HEAD" + body.ascii() + "TAIL", drainToString(buffers));
+    }
+
+    public void testDrainResetsTheBuffer() throws IOException {
+        GatheringWriteBuffer buffer = new GatheringWriteBuffer(64, 16);
+        buffer.append(buffer('c', 100));
+        buffer.staging().write("x".getBytes());
+        buffer.drain(1024);
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.drain(1024).length);
+
+        buffer.staging().write("next".getBytes());
+        ByteBuffer[] buffers = buffer.drain(1024);
+        assertEquals("next", drainToString(buffers));
+    }
+
+    public void testPartialGatheringWrites() throws IOException {
+        checkPartialWrites(new SlowGatheringChannel(7));
+    }
+
+    public void testPartialWritesWithoutGathering() throws IOException {
+        checkPartialWrites(new SlowChannel(7));
+    }
+
+    private void checkPartialWrites(SlowChannel channel) throws IOException {
+        GatheringWriteBuffer buffer = new GatheringWriteBuffer(64, 16);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            buffer.staging().write(("h" + i).getBytes());
+            Buffer body = buffer((char) ('a' + i), 20);
+            buffer.append(body);
+            expected.append("h" + i).append(body.ascii());
+        }
+
+        ByteBuffer[] buffers = buffer.drain(1024);
+        int offset = 0;
+        long total = 0;
+        int writes = 0;
+        while (offset < buffers.length) {
+            long count = GatheringWriteBuffer.write(channel, buffers, offset);
+            assertTrue(count > 0);
+            total += count;
+            offset = GatheringWriteBuffer.skipWritten(buffers, offset);
+            writes++;
+        }
+        assertEquals(expected.length(), total);
+        assertEquals(expected.toString(), new String(channel.written.toByteArray()));
+        if (channel instanceof SlowGatheringChannel) {
+            // every call was a single gathering write of at most 7 bytes.
+            assertEquals((expected.length() + 6) / 7, writes);
+            assertEquals(writes, ((SlowGatheringChannel) channel).gatheringWrites);
+        }
+    }
+
+}
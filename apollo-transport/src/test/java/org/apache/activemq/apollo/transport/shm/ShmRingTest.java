@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class ShmRingTest extends TestCase {
+
+    static final int CAPACITY = 1024;
+
+    private ByteBuffer region() {
+        return ByteBuffer.allocateDirect(ShmRing.HEADER_SIZE + CAPACITY);
+    }
+
+    private ByteBuffer bytes(int start, int length) {
+        ByteBuffer rc = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            rc.put((byte) (start + i));
+        }
+        rc.flip();
+        return rc;
+    }
+
+    public void testWritesOnlyWhatFits() throws Exception {
+        ShmRing ring = new ShmRing(region());
+        assertEquals(CAPACITY, ring.write(bytes(0, CAPACITY + 100)));
+        assertEquals(CAPACITY, ring.available());
+        assertFalse(ring.writable());
+        assertEquals(0, ring.write(bytes(0, 1)));
+
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, ring.read(dst));
+        assertTrue(ring.writable());
+        assertEquals(100, ring.write(bytes(0, 100)));
+    }
+
+    public void testDataWrapsAroundTheEndOfTheRing() throws Exception {
+        ShmRing ring = new ShmRing(region());
+        ByteBuffer dst = ByteBuffer.allocate(CAPACITY);
+        int start = 0;
+        // odd sizes so the writes and reads straddle the end of the ring.
+        for (int i = 0; i < 10; i++) {
+            int length = 700 + i;
+            assertEquals(length, ring.write(bytes(start, length)));
+            dst.clear();
+            dst.limit(length);
+            assertEquals(length, ring.read(dst));
+            dst.flip();
+            assertEquals(bytes(start, length), dst);
+            assertEquals(0, ring.available());
+            start += length;
+        }
+    }
+
+    public void testBothEndsOfTheRingShareThePositions() throws Exception {
+        ByteBuffer region = region();
+        ShmRing producer = new ShmRing(region.duplicate());
+        ShmRing consumer = new ShmRing(region.duplicate());
+        assertEquals(10, producer.write(bytes(0, 10)));
+        assertEquals(10, consumer.available());
+
+        ByteBuffer dst = ByteBuffer.allocate(10);
+        assertEquals(10, consumer.read(dst));
+        dst.flip();
+        assertEquals(bytes(0, 10), dst);
+        assertEquals(0, producer.available());
+    }
+
+}
@@ -0,0 +1,309 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.transport.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.transport.DefaultTransportListener;
+import org.apache.activemq.apollo.transport.ProtocolCodec;
+import org.apache.activemq.apollo.transport.Transport;
+import org.apache.activemq.apollo.transport.TransportAcceptListener;
+import org.apache.activemq.apollo.transport.TransportServer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+
+/**
+ * Runs an echo server over the shared memory transport and measures the
+ * round trip latency seen by a client stand-in which spins on the rings.
+ */
+public class ShmTransportTest extends TestCase {
+
+    static final int WARMUP = 5000;
+    static final int ROUND_TRIPS = 20000;
+    static final int MESSAGE_SIZE = 64;
+    static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 100000 : 0;
+
+    /**
+     * Passes along whatever bytes are available as a Buffer.
+     */
+    static class RawCodec implements ProtocolCodec {
+        ReadableByteChannel readChannel;
+        WritableByteChannel writeChannel;
+        LinkedList<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+        long readCounter;
+        long writeCounter;
+
+        public String protocol() {
+            return "raw";
+        }
+
+        public void setReadableByteChannel(ReadableByteChannel channel) {
+            readChannel = channel;
+        }
+
+        public Object read() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            int count = readChannel.read(buffer);
+            if( count < 0 ) {
+                throw new java.io.EOFException("Peer disconnected");
+            }
+            if( count == 0 ) {
+                return null;
+            }
+            readCounter += count;
+            return new Buffer(buffer.array(), 0, count);
+        }
+
+        public void unread(Buffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getReadCounter() {
+            return readCounter;
+        }
+
+        public int getLastReadSize() {
+            return 0;
+        }
+
+        public int getReadBufferSize() {
+            return 1024;
+        }
+
+        public void setWritableByteChannel(WritableByteChannel channel) {
+            writeChannel = channel;
+        }
+
+        public BufferState write(Object value) throws IOException {
+            if( full() ) {
+                return BufferState.FULL;
+            }
+            boolean wasEmpty = pending.isEmpty();
+            pending.add(((Buffer) value).toByteBuffer());
+            return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
+        }
+
+        public BufferState flush() throws IOException {
+            while( !pending.isEmpty() ) {
+                ByteBuffer buffer = pending.getFirst();
+                writeCounter += writeChannel.write(buffer);
+                if( buffer.hasRemaining() ) {
+                    return BufferState.NOT_EMPTY;
+                }
+                pending.removeFirst();
+            }
+            return BufferState.EMPTY;
+        }
+
+        public boolean full() {
+            return pending.size() >= 100;
+        }
+
+        public long getWriteCounter() {
+            return writeCounter;
+        }
+
+        public int getLastWriteSize() {
+            return 0;
+        }
+
+        public int getWriteBufferSize() {
+            return 0;
+        }
+    }
+
+    File directory;
+    TransportServer server;
+    AtomicReference<IOException> serverFailure = new AtomicReference<IOException>();
+    CountDownLatch serverDisconnected = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "apollo-shm-test-" + System.nanoTime());
+        server = new ShmTransportFactory().bind("shm://" + directory.getAbsolutePath() + "?accept_interval=1");
+        server.setDispatchQueue(Dispatch.createQueue("server"));
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(final Transport transport) {
+                transport.setDispatchQueue(Dispatch.createQueue("echo"));
+                transport.setProtocolCodec(new RawCodec());
+                transport.setTransportListener(new DefaultTransportListener() {
+                    public void onTransportCommand(Object command) {
+                        transport.offer(command);
+                    }
+                    public void onTransportFailure(IOException error) {
+                        serverFailure.set(error);
+                        serverDisconnected.countDown();
+                        try {
+                            transport.stop();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+                try {
+                    transport.start();
+                } catch (Exception e) {
+                    onAcceptError(e);
+                }
+            }
+            public void onAcceptError(Exception error) {
+                error.printStackTrace();
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        server.stop(new Runnable() {
+            public void run() {
+                stopped.countDown();
+            }
+        });
+        stopped.await(5, TimeUnit.SECONDS);
+        File[] files = directory.listFiles();
+        if( files != null ) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testRoundTripLatency() throws Exception {
+        ShmConnection client = ShmConnection.create(directory, 64 * 1024);
+        long deadline = System.currentTimeMillis() + 5000;
+        while( !client.isAccepted() ) {
+            assertTrue("The server did not accept the connection", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        ByteBuffer request = ByteBuffer.allocate(MESSAGE_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(MESSAGE_SIZE);
+        long[] latencies = new long[ROUND_TRIPS];
+        for (int i = 0; i < WARMUP + ROUND_TRIPS; i++) {
+            request.clear();
+            request.putInt(0, i);
+            response.clear();
+            long start = System.nanoTime();
+            while( request.hasRemaining() ) {
+                if( client.getOutbound().write(request) == 0 ) {
+                    Thread.yield();
+                }
+            }
+            for (int spins = 0; response.hasRemaining(); spins++) {
+                if( client.getInbound().read(response) == 0 && spins > SPINS ) {
+                    Thread.yield();
+                }
+            }
+            long latency = System.nanoTime() - start;
+            assertEquals(i, response.getInt(0));
+            if( i >= WARMUP ) {
+                latencies[i - WARMUP] = latency;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("shm round trip latency, median: %.2f us, 99th percentile: %.2f us",
+                latencies[ROUND_TRIPS / 2] / 1000.0, latencies[ROUND_TRIPS * 99 / 100] / 1000.0));
+
+        // the server should notice the client going away.
+        client.close();
+        assertTrue(serverDisconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(serverFailure.get() instanceof java.io.EOFException);
+    }
+
+    public void testSecondServerCannotBindTheSameDirectory() throws Exception {
+        ShmConnection client = ShmConnection.create(directory, 4096);
+        long deadline = System.currentTimeMillis() + 5000;
+        while( !client.isAccepted() ) {
+            assertTrue("The server did not accept the connection", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        TransportServer other = new ShmTransportFactory().bind("shm://" + directory.getAbsolutePath());
+        other.setDispatchQueue(Dispatch.createQueue("other"));
+        try {
+            other.start();
+            fail("Expected the bind to fail");
+        } catch (IOException expected) {
+        }
+        // the connection of the running server was left alone.
+        assertTrue(client.getFile().exists());
+        assertTrue(new File(directory, ShmTransportServer.SERVER_FILE).exists());
+        client.close();
+    }
+
+    public void testTransportToTransport() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final AtomicReference<Object> reply = new AtomicReference<Object>();
+        final Transport client = new ShmTransportFactory().connect("shm://" + directory.getAbsolutePath() + "?ring_size=4096");
+        client.setDispatchQueue(Dispatch.createQueue("client"));
+        client.setProtocolCodec(new RawCodec());
+        client.setTransportListener(new DefaultTransportListener() {
+            public void onTransportConnected() {
+                // bigger than a ring so it has to wrap around a few times.
+                byte[] data = new byte[10000];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) i;
+                }
+                client.offer(new Buffer(data));
+            }
+            public void onTransportCommand(Object command) {
+                Buffer previous = (Buffer) reply.get();
+                Buffer buffer = (Buffer) command;
+                if( previous != null ) {
+                    byte[] joined = new byte[previous.length + buffer.length];
+                    System.arraycopy(previous.data, previous.offset, joined, 0, previous.length);
+                    System.arraycopy(buffer.data, buffer.offset, joined, previous.length, buffer.length);
+                    buffer = new Buffer(joined);
+                }
+                reply.set(buffer);
+                if( buffer.length == 10000 ) {
+                    received.countDown();
+                }
+            }
+        });
+        client.start();
+        assertTrue("The echo did not come back", received.await(5, TimeUnit.SECONDS));
+        Buffer buffer = (Buffer) reply.get();
+        for (int i = 0; i < buffer.length; i++) {
+            assertEquals((byte) i, buffer.get(i));
+        }
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        client.stop(new Runnable() {
+            public void run() {
+                stopped.countDown();
+            }
+        });
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(serverDisconnected.await(5, TimeUnit.SECONDS));
+    }
+
+}
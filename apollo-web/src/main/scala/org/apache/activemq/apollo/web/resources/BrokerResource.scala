@@ -72,6 +72,8 @@ case class BrokerResource() extends Resource {
         result.state_since = broker.service_state.since
         result.version = Broker.version
         result.connection_counter = broker.connection_id_counter.get()
+        result.memory_limit = if( broker.memory_governor.limit == Long.MaxValue ) -1 else broker.memory_governor.limit
+        result.memory_used = broker.memory_governor.used.get
         broker.virtual_hosts.values.foreach{ host=>
           // TODO: may need to sync /w virtual host's dispatch queue
           result.virtual_hosts.add( host.id )
@@ -223,10 +225,16 @@ case class BrokerResource() extends Resource {
   def get_queue_metrics(host:VirtualHost):FutureResult[AggregateQueueMetricsDTO] = {
     val router:LocalRouter = host
     val queues: Iterable[Queue] = router.queues_by_id.values
+    // the partitions of a partitioned queue only count as one queue.
+    val partition_count = queues.count(_.binding.isInstanceOf[QueuePartitionQueueBinding])
     val metrics = sync_all(queues) { queue =>
       get_queue_metrics(queue)
     }
-    metrics.map( x=> Success(aggregate_queue_metrics(x.flatMap(_.success_option))) )
+    metrics.map { x=>
+      val rc = aggregate_queue_metrics(x.flatMap(_.success_option))
+      rc.queues -= partition_count
+      Success(rc)
+    }
   }
 
 
@@ -239,6 +247,9 @@ case class BrokerResource() extends Resource {
         result.state = host.service_state.toString
         result.state_since = host.service_state.since
         result.store = host.store!=null
+        result.memory_used = host.memory_used.get
+        result.queues_restored = host.queue_recovery.completed
+        result.queues_restoring = host.queue_recovery.in_progress
 
         val router:LocalRouter = host
 
@@ -273,6 +284,7 @@ case class BrokerResource() extends Resource {
         if(host.store!=null) {
           val rc = FutureResult[StoreStatusDTO]()
           host.store.get_store_status { status =>
+            host.message_cache.fill_store_status(status)
             rc(Success(status))
           }
           rc
@@ -368,8 +380,10 @@ case class BrokerResource() extends Resource {
       val router: LocalRouter = host
       val values: Iterable[Queue] = router.queue_domain.destination_by_id.values
 
-      val records = sync_all(values) { value =>
-        status(value, false)
+      val records = Future.all {
+        values.map { value =>
+          rollup_status(router, value, false)
+        }
       }
 
       val rc:FutureResult[DataPageDTO] = records.map(narrow(classOf[QueueStatusDTO], _, f, q, p, ps, o))
@@ -382,9 +396,7 @@ case class BrokerResource() extends Resource {
     with_virtual_host(id) { host =>
       val router: LocalRouter = host
       val node = router.queue_domain.destination_by_id.get(name).getOrElse(result(NOT_FOUND))
-      sync(node) {
-        status(node, entries)
-      }
+      rollup_status(router, node, entries)
     }
   }
 
@@ -498,6 +510,46 @@ case class BrokerResource() extends Resource {
     }
   }
 
+  /**
+   * Gets the status of a queue.  The metrics, producers and consumers of the
+   * partitions of a partitioned queue get rolled up into it's status.  Must be
+   * called from the router's dispatch queue.
+   */
+  def rollup_status(router:LocalRouter, q:Queue, entries:Boolean):FutureResult[QueueStatusDTO] = {
+    val partitions = router.queue_domain.partitions(q)
+    if( partitions.isEmpty ) {
+      sync(q) {
+        status(q, entries)
+      }
+    } else {
+      val statuses = sync_all(q :: partitions.toList) { partition =>
+        status(partition, entries && (partition eq q))
+      }
+      statuses.map { x =>
+        val results = x.toList
+        results.find(_.failed).getOrElse {
+          val all = results.map(_.success)
+          val rc = all.head
+          val metrics = aggregate_queue_metrics(all.map(_.metrics))
+          // producers are attached to every partition while the
+          // consumers get spread over them.
+          metrics.producer_counter = rc.metrics.producer_counter
+          rc.metrics = metrics
+          all.tail.foreach { partition =>
+            import collection.JavaConversions._
+            partition.producers.foreach { link =>
+              if( !rc.producers.exists(_.id == link.id) ) {
+                rc.producers.add(link)
+              }
+            }
+            rc.consumers.addAll(partition.consumers)
+          }
+          Success(rc)
+        }
+      }
+    }
+  }
+
   def status(q:Queue, entries:Boolean=false) = monitoring(q) {
     val rc = new QueueStatusDTO
     rc.id = q.id